@@ -2,6 +2,8 @@ package com.example.payment;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Idempotent Payment API Application.
@@ -10,6 +12,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  * - POST /api/payments/charge with Idempotency-Key header
  * - In-memory idempotency store (development)
  * - Configurable TTL for idempotency keys
+ * - Background eviction of expired keys
  * 
  * Run with:
  * mvn spring-boot:run
@@ -20,7 +23,9 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  *   -H "Idempotency-Key: test-key-123" \
  *   -d '{"customerId":"cust_123","amount":99.99,"currency":"USD","description":"Test"}'
  */
-@SpringBootApplication
+// The DataSource is only configured for the jdbc store, see JdbcStoreConfiguration
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
+@EnableScheduling
 public class PaymentApplication {
     
     public static void main(String[] args) {
@@ -0,0 +1,339 @@
+package com.example.payment.controller;
+
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.service.PaymentService;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Charges a stream of newline-delimited JSON items and streams the results
+ * back the same way.
+ *
+ * Items are read one at a time with Jackson's streaming parser and charged
+ * in chunks through {@link PaymentService#chargeEach}, so each chunk gets
+ * the bulk store calls of the batch endpoint. A chunk is charged once it is
+ * full or once its first item has waited flushInterval, so a client that
+ * sends a few lines and waits is still answered. Each result line is written
+ * as soon as its charge completes, in completion order. At most maxInFlight
+ * items are read but not yet answered; at that point reading waits for
+ * results to be written. Memory therefore stays flat whatever the stream's
+ * length, and a client slow to read results also slows its own upload.
+ *
+ * Each stream has a reader thread and, while results are waiting, a writer
+ * thread. Gateway and store threads never block on the client.
+ */
+@Component
+public class NdjsonChargeStreamer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonChargeStreamer.class);
+
+    private final PaymentService paymentService;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+    private final ObjectReader itemReader;
+    private final ObjectWriter resultWriter;
+    private final int maxInFlight;
+    private final int chunkSize;
+    private final long flushIntervalNanos;
+    private final long timeoutMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService flusher;
+    private final DistributionSummary chunkSizes;
+
+    /**
+     * @param maxInFlight   items read but not yet answered, per stream
+     * @param chunkSize     items per bulk lookup and reserve
+     * @param flushInterval longest the first item of a partial chunk waits for more
+     * @param timeout       longest a stream may run
+     */
+    public NdjsonChargeStreamer(
+            PaymentService paymentService,
+            Validator validator,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${payment.stream.max-in-flight:1024}") int maxInFlight,
+            @Value("${payment.stream.chunk-size:64}") int chunkSize,
+            @Value("${payment.stream.flush-interval:PT0.005S}") Duration flushInterval,
+            @Value("${payment.stream.timeout:PT1H}") Duration timeout) {
+        if (maxInFlight <= 0 || chunkSize <= 0 || flushInterval.isNegative()) {
+            throw new IllegalArgumentException("Invalid stream limits: max in flight " + maxInFlight
+                    + ", chunk size " + chunkSize + ", flush interval " + flushInterval);
+        }
+        this.paymentService = paymentService;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        this.itemReader = objectMapper.readerFor(BatchChargeItem.class);
+        this.resultWriter = objectMapper.writerFor(BatchChargeResult.class).withRootValueSeparator("\n");
+        this.maxInFlight = maxInFlight;
+        this.chunkSize = chunkSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.timeoutMillis = timeout.toMillis();
+        // Threads block on client I/O, so they are not pooled to a fixed size
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "payment-stream-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-stream-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.chunkSizes = DistributionSummary.builder("payment.stream.chunk.size")
+                .description("Streamed items charged by one bulk lookup and reserve")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue((double) chunkSize)
+                .register(meterRegistry);
+        logger.info("NDJSON charge streams: {} in flight, chunks of {} flushed after {}, timeout {}",
+                maxInFlight, chunkSize, flushInterval, timeout);
+    }
+
+    /**
+     * Start charging the items of a request body.
+     *
+     * @param body the request body, read on a stream thread once this returns
+     * @return the emitter the result lines are sent through
+     */
+    public ResponseBodyEmitter stream(InputStream body) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeoutMillis);
+        ChargeStream stream = new ChargeStream(body, emitter);
+        emitter.onTimeout(stream::cancel);
+        emitter.onError(failure -> stream.cancel());
+        executor.execute(stream::read);
+        return emitter;
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * One request: its reader, its pending results and their writer.
+     */
+    private final class ChargeStream {
+
+        private final InputStream body;
+        private final ResponseBodyEmitter emitter;
+        // One permit per item read but not yet written back
+        private final Semaphore permits = new Semaphore(maxInFlight);
+        private final Queue<BatchChargeResult> results = new ConcurrentLinkedQueue<>();
+        // Results queued and not yet written; a writer runs while this is above zero
+        private final AtomicInteger queued = new AtomicInteger();
+        // Guarded by this: filled by the reader, taken by the reader or the flusher
+        private final List<BatchChargeItem> chunk = new ArrayList<>(chunkSize);
+        private ScheduledFuture<?> flush;
+        private volatile boolean cancelled;
+        // Ends the response with an error once every result has been written
+        private volatile Throwable failure;
+        private long lines;
+
+        private ChargeStream(InputStream body, ResponseBodyEmitter emitter) {
+            this.body = body;
+            this.emitter = emitter;
+        }
+
+        private void read() {
+            try (JsonParser parser = objectMapper.createParser(body)) {
+                MappingIterator<BatchChargeItem> items = itemReader.readValues(parser);
+                while (!cancelled && items.hasNextValue()) {
+                    BatchChargeItem item = items.nextValue();
+                    lines++;
+                    if (!permits.tryAcquire()) {
+                        // Full: send what is waiting, then wait for a result to be written
+                        submit();
+                        permits.acquire();
+                    }
+                    String invalid = item == null ? "Item is required" : firstViolation(item);
+                    if (invalid != null) {
+                        emit(new BatchChargeResult(item != null ? item.getIdempotencyKey() : null,
+                                BatchChargeResult.Status.INVALID, ChargeResponse.failed("Invalid request: " + invalid)));
+                    } else {
+                        add(item);
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                // No way to find the next line in malformed input: answer what was read and stop
+                logger.warn("Malformed NDJSON charge stream after line {}: {}", lines, e.getOriginalMessage());
+                permits.acquireUninterruptibly();
+                emit(new BatchChargeResult(null, BatchChargeResult.Status.INVALID,
+                        ChargeResponse.failed("Malformed NDJSON after line " + lines + ": " + e.getOriginalMessage())));
+            } catch (IOException e) {
+                // Stop reading; the lines already read are still charged and answered
+                logger.warn("Charge stream request failed after line {}: {}", lines, e.getMessage());
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+            submit();
+
+            // Every permit back means every result has been written
+            permits.acquireUninterruptibly(maxInFlight);
+            if (failure != null) {
+                emitter.completeWithError(failure);
+            } else if (!cancelled) {
+                emitter.complete();
+            }
+            logger.info("Charge stream finished: {} lines{}", lines,
+                    failure != null ? ", failed" : cancelled ? ", cancelled" : "");
+        }
+
+        private String firstViolation(BatchChargeItem item) {
+            Set<ConstraintViolation<BatchChargeItem>> violations = validator.validate(item);
+            return violations.isEmpty() ? null : violations.iterator().next().getMessage();
+        }
+
+        /**
+         * Add an item to the chunk, charging the chunk once it is full.
+         */
+        private void add(BatchChargeItem item) {
+            List<BatchChargeItem> full = null;
+            synchronized (this) {
+                chunk.add(item);
+                if (chunk.size() >= chunkSize) {
+                    full = take();
+                } else if (chunk.size() == 1) {
+                    // The reader may block on the client next; the flusher charges what it left behind
+                    flush = flusher.schedule(() -> executor.execute(this::submit),
+                            flushIntervalNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (full != null) {
+                charge(full);
+            }
+        }
+
+        /**
+         * Charge the items read so far, if any.
+         */
+        private void submit() {
+            List<BatchChargeItem> items;
+            synchronized (this) {
+                items = take();
+            }
+            if (items != null) {
+                charge(items);
+            }
+        }
+
+        private List<BatchChargeItem> take() {
+            if (chunk.isEmpty()) {
+                return null;
+            }
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+            List<BatchChargeItem> items = new ArrayList<>(chunk);
+            chunk.clear();
+            return items;
+        }
+
+        /**
+         * Charge a chunk; the results are emitted as each completes.
+         */
+        private void charge(List<BatchChargeItem> items) {
+            chunkSizes.record(items.size());
+            try {
+                for (CompletableFuture<BatchChargeResult> result : paymentService.chargeEach(items)) {
+                    result.thenAccept(this::emit);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error processing " + items.size() + " streamed charges", e);
+                for (BatchChargeItem item : items) {
+                    emit(new BatchChargeResult(item.getIdempotencyKey(), BatchChargeResult.Status.FAILED,
+                            ChargeResponse.failed("Internal server error")));
+                }
+            }
+        }
+
+        private void emit(BatchChargeResult result) {
+            results.add(result);
+            if (queued.getAndIncrement() == 0) {
+                executor.execute(this::write);
+            }
+        }
+
+        /**
+         * Send every queued result as one chunk of lines, until none are left.
+         */
+        private void write() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int taken;
+            do {
+                // Every result taken is counted, written or not, so the reader can finish
+                taken = 0;
+                try (SequenceWriter lines = resultWriter.writeValues(buffer)) {
+                    BatchChargeResult result;
+                    while ((result = results.poll()) != null) {
+                        taken++;
+                        if (!cancelled) {
+                            lines.write(result);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Failed to encode charge stream results", e);
+                    failure = e;
+                    cancel();
+                }
+                if (taken > 0 && !cancelled) {
+                    buffer.write('\n');
+                    try {
+                        emitter.send(buffer.toByteArray(), MediaType.APPLICATION_NDJSON);
+                    } catch (IOException | IllegalStateException e) {
+                        // Client gone or stream timed out: keep draining so the reader can finish
+                        logger.warn("Charge stream response failed: {}", e.getMessage());
+                        cancel();
+                    }
+                }
+                buffer.reset();
+                permits.release(taken);
+            } while (queued.addAndGet(-taken) > 0);
+        }
+
+        private void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package com.example.payment.controller;
 
 import com.example.payment.exception.IdempotencyConflictException;
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
 import com.example.payment.model.ChargeRequest;
 import com.example.payment.model.ChargeResponse;
+import com.example.payment.service.ChargeOutcome;
 import com.example.payment.service.PaymentService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Payment API controller with idempotency support.
@@ -25,9 +42,19 @@ public class PaymentController {
     private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
     
     private final PaymentService paymentService;
+    private final Validator validator;
+    private final NdjsonChargeStreamer chargeStreamer;
+    private final ObjectMapper objectMapper;
+    private final int batchMaxItems;
     
-    public PaymentController(PaymentService paymentService) {
+    public PaymentController(PaymentService paymentService, Validator validator,
+                             NdjsonChargeStreamer chargeStreamer, ObjectMapper objectMapper,
+                             @Value("${payment.batch.max-items:10000}") int batchMaxItems) {
         this.paymentService = paymentService;
+        this.validator = validator;
+        this.chargeStreamer = chargeStreamer;
+        this.objectMapper = objectMapper;
+        this.batchMaxItems = batchMaxItems;
     }
     
     /**
@@ -51,43 +78,192 @@ public class PaymentController {
      * - 400 Bad Request: Missing Idempotency-Key header
      * - 409 Conflict: Same key with different request
      * - 500 Internal Server Error: Processing error
+     * 
+     * The request is handled asynchronously: the servlet thread is released
+     * while the charge waits on the payment gateway or on an in-progress
+     * duplicate, and the response is written when the future completes.
+     * A replay of a completed record writes the JSON cached on the record.
      *
      * @param idempotencyKey unique key from header (required)
      * @param request        the charge request
-     * @return the charge response
+     * @return the charge response, once the charge completes
      */
     @PostMapping("/charge")
-    public ResponseEntity<ChargeResponse> charge(
+    public CompletableFuture<ResponseEntity<?>> charge(
             @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
             @Valid @RequestBody ChargeRequest request) {
         
         // Validate idempotency key is present
         if (idempotencyKey == null || idempotencyKey.trim().isEmpty()) {
             logger.warn("Charge request missing Idempotency-Key header");
-            return ResponseEntity
+            return CompletableFuture.completedFuture(ResponseEntity
                     .badRequest()
-                    .body(ChargeResponse.failed("Idempotency-Key header is required"));
+                    .body(ChargeResponse.failed("Idempotency-Key header is required")));
         }
         
         logger.info("Received charge request - Key: {}, Customer: {}, Amount: {} {}",
                 idempotencyKey, request.getCustomerId(), request.getAmount(), request.getCurrency());
         
+        CompletableFuture<ChargeOutcome> charged;
+        try {
+            charged = paymentService.chargeOutcomeAsync(idempotencyKey, request);
+        } catch (RuntimeException e) {
+            charged = CompletableFuture.failedFuture(e);
+        }
+        return charged
+                .<ResponseEntity<?>>thenApply(this::okResponse)
+                .exceptionally(failure -> errorResponse(idempotencyKey, failure));
+    }
+    
+    /**
+     * The response's JSON, encoded when the outcome was recorded and kept
+     * by the store, written as is. A replayed record without it (stored
+     * before responses carried their JSON) is serialized and the bytes
+     * kept on its response for the next replay.
+     */
+    private ResponseEntity<?> okResponse(ChargeOutcome outcome) {
+        ChargeResponse response = outcome.getResponse();
+        byte[] json = response.getJson();
+        if (json == null) {
+            if (outcome.getReplayedFrom() == null) {
+                return ResponseEntity.ok(response);
+            }
+            try {
+                json = objectMapper.writeValueAsBytes(response);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Cannot serialize charge response", e);
+            }
+            response.setJson(json);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(json);
+    }
+    
+    /**
+     * POST /api/payments/charges/batch
+     * 
+     * Process many charges in one call, each with its own idempotency key.
+     * 
+     * Request Body:
+     * [
+     *   {"idempotencyKey": "key-1", "request": {"customerId": "customer_123", "amount": 99.99, ...}},
+     *   {"idempotencyKey": "key-2", "request": {...}}
+     * ]
+     * 
+     * Responses:
+     * - 200 OK: one result per item, in order, each with a status
+     *   (PROCESSED, REPLAYED, CONFLICT, INVALID or FAILED) and its charge response
+     * - 400 Bad Request: empty batch, or more than payment.batch.max-items items
+     * - 500 Internal Server Error: the store failed; no item can be relied on
+     * 
+     * An invalid item is reported as INVALID and does not stop the others.
+     *
+     * @param items the charges
+     * @return the per-item results, once every charge completes
+     */
+    @PostMapping("/charges/batch")
+    public CompletableFuture<ResponseEntity<?>> chargeBatch(@RequestBody List<BatchChargeItem> items) {
+        if (items == null || items.isEmpty()) {
+            return CompletableFuture.completedFuture(ResponseEntity
+                    .badRequest()
+                    .body(ChargeResponse.failed("Batch must contain at least one charge")));
+        }
+        if (items.size() > batchMaxItems) {
+            logger.warn("Batch of {} charges rejected, limit is {}", items.size(), batchMaxItems);
+            return CompletableFuture.completedFuture(ResponseEntity
+                    .badRequest()
+                    .body(ChargeResponse.failed("Batch exceeds the limit of " + batchMaxItems + " charges")));
+        }
+        
+        // Invalid items are answered here; the valid ones are charged together
+        BatchChargeResult[] results = new BatchChargeResult[items.size()];
+        List<BatchChargeItem> valid = new ArrayList<>(items.size());
+        List<Integer> positions = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            BatchChargeItem item = items.get(i);
+            String invalid = item == null ? "Item is required" : firstViolation(item);
+            if (invalid != null) {
+                results[i] = new BatchChargeResult(item != null ? item.getIdempotencyKey() : null,
+                        BatchChargeResult.Status.INVALID, ChargeResponse.failed("Invalid request: " + invalid));
+            } else {
+                valid.add(item);
+                positions.add(i);
+            }
+        }
+        logger.info("Received batch of {} charges, {} invalid", items.size(), items.size() - valid.size());
+        
+        CompletableFuture<List<BatchChargeResult>> charged;
         try {
-            ChargeResponse response = paymentService.charge(idempotencyKey, request);
-            return ResponseEntity.ok(response);
-            
-        } catch (IdempotencyConflictException e) {
+            charged = valid.isEmpty()
+                    ? CompletableFuture.completedFuture(List.of())
+                    : paymentService.chargeBatch(valid);
+        } catch (RuntimeException e) {
+            charged = CompletableFuture.failedFuture(e);
+        }
+        return charged
+                .<ResponseEntity<?>>thenApply(processed -> {
+                    for (int j = 0; j < processed.size(); j++) {
+                        results[positions.get(j)] = processed.get(j);
+                    }
+                    return ResponseEntity.ok(List.of(results));
+                })
+                .exceptionally(failure -> {
+                    logger.error("Unexpected error processing batch of " + items.size() + " charges", failure);
+                    return ResponseEntity
+                            .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                            .body(ChargeResponse.failed("Internal server error"));
+                });
+    }
+    
+    /**
+     * POST /api/payments/charges/stream
+     * 
+     * Process any number of charges as newline-delimited JSON
+     * (application/x-ndjson), one batch item per line.
+     * 
+     * Request Body:
+     * {"idempotencyKey": "key-1", "request": {"customerId": "customer_123", "amount": 99.99, ...}}
+     * {"idempotencyKey": "key-2", "request": {...}}
+     * 
+     * Responses:
+     * - 200 OK: one result line per item, as in the batch endpoint, written
+     *   as each charge completes and so not in request order
+     * 
+     * Lines are read and answered incrementally, with at most
+     * payment.stream.max-in-flight items pending at a time, so there is no
+     * limit on the number of lines. A line that is not JSON ends the stream
+     * with an INVALID result naming the last line read.
+     *
+     * @param request the servlet request, whose body is read as it arrives
+     * @return the emitter the result lines are written to
+     */
+    @PostMapping(value = "/charges/stream", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> chargeStream(HttpServletRequest request) throws IOException {
+        logger.info("Received charge stream");
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(chargeStreamer.stream(request.getInputStream()));
+    }
+    
+    private String firstViolation(BatchChargeItem item) {
+        Set<ConstraintViolation<BatchChargeItem>> violations = validator.validate(item);
+        return violations.isEmpty() ? null : violations.iterator().next().getMessage();
+    }
+    
+    private static ResponseEntity<ChargeResponse> errorResponse(String idempotencyKey, Throwable failure) {
+        Throwable e = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        if (e instanceof IdempotencyConflictException) {
             logger.warn("Idempotency conflict for key: {} - {}", idempotencyKey, e.getMessage());
             return ResponseEntity
                     .status(HttpStatus.CONFLICT)
                     .body(ChargeResponse.failed(e.getMessage()));
-                    
-        } catch (Exception e) {
-            logger.error("Unexpected error processing charge for key: " + idempotencyKey, e);
-            return ResponseEntity
-                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(ChargeResponse.failed("Internal server error"));
         }
+        logger.error("Unexpected error processing charge for key: " + idempotencyKey, e);
+        return ResponseEntity
+                .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(ChargeResponse.failed("Internal server error"));
     }
     
     /**
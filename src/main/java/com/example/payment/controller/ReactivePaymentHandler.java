@@ -0,0 +1,90 @@
+package com.example.payment.controller;
+
+import com.example.payment.exception.IdempotencyConflictException;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.service.ReactivePaymentService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.Set;
+
+/**
+ * Reactive counterpart of {@link PaymentController#charge}, served on Netty
+ * by {@link ReactivePaymentServer}.
+ *
+ * Same contract: 200 with the (possibly cached) charge response, 400 for a
+ * missing Idempotency-Key header or an invalid body, 409 for a conflict and
+ * 500 for anything else.
+ */
+@Component
+@ConditionalOnProperty(name = "payment.reactive.enabled", havingValue = "true")
+public class ReactivePaymentHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactivePaymentHandler.class);
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private final ReactivePaymentService paymentService;
+    private final Validator validator;
+
+    public ReactivePaymentHandler(ReactivePaymentService paymentService, Validator validator) {
+        this.paymentService = paymentService;
+        this.validator = validator;
+    }
+
+    /**
+     * POST /api/payments/charge
+     */
+    public Mono<ServerResponse> charge(ServerRequest serverRequest) {
+        String idempotencyKey = serverRequest.headers().firstHeader(IDEMPOTENCY_KEY_HEADER);
+
+        return serverRequest.bodyToMono(ChargeRequest.class)
+                .flatMap(request -> {
+                    Set<ConstraintViolation<ChargeRequest>> violations = validator.validate(request);
+                    if (!violations.isEmpty()) {
+                        return respond(HttpStatus.BAD_REQUEST,
+                                ChargeResponse.failed("Invalid request: " + violations.iterator().next().getMessage()));
+                    }
+                    // Validate idempotency key is present
+                    if (idempotencyKey == null || idempotencyKey.trim().isEmpty()) {
+                        logger.warn("Charge request missing Idempotency-Key header");
+                        return respond(HttpStatus.BAD_REQUEST,
+                                ChargeResponse.failed("Idempotency-Key header is required"));
+                    }
+
+                    logger.info("Received reactive charge request - Key: {}, Customer: {}, Amount: {} {}",
+                            idempotencyKey, request.getCustomerId(), request.getAmount(), request.getCurrency());
+                    return paymentService.charge(idempotencyKey, request)
+                            .flatMap(response -> respond(HttpStatus.OK, response));
+                })
+                .switchIfEmpty(Mono.defer(() -> respond(HttpStatus.BAD_REQUEST,
+                        ChargeResponse.failed("Request body is required"))))
+                .onErrorResume(IdempotencyConflictException.class, e -> {
+                    logger.warn("Idempotency conflict for key: {} - {}", idempotencyKey, e.getMessage());
+                    return respond(HttpStatus.CONFLICT, ChargeResponse.failed(e.getMessage()));
+                })
+                .onErrorResume(ResponseStatusException.class, e -> {
+                    // Unreadable body or unsupported content type
+                    logger.warn("Rejected charge request for key: {} - {}", idempotencyKey, e.getReason());
+                    return respond(e.getStatus(), ChargeResponse.failed(e.getReason()));
+                })
+                .onErrorResume(e -> {
+                    logger.error("Unexpected error processing charge for key: " + idempotencyKey, e);
+                    return respond(HttpStatus.INTERNAL_SERVER_ERROR, ChargeResponse.failed("Internal server error"));
+                });
+    }
+
+    private static Mono<ServerResponse> respond(HttpStatus status, ChargeResponse body) {
+        return ServerResponse.status(status).contentType(MediaType.APPLICATION_JSON).bodyValue(body);
+    }
+}
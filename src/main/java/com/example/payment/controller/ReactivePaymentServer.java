@@ -0,0 +1,69 @@
+package com.example.payment.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import javax.annotation.PreDestroy;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+
+/**
+ * WebFlux endpoint on its own Netty server, next to the servlet API.
+ *
+ * The application stays a servlet application on Tomcat; this binds a
+ * second port whose event loops serve POST /api/payments/charge through
+ * {@link ReactivePaymentHandler} without blocking. JSON goes through the
+ * application's ObjectMapper, so both endpoints format responses alike.
+ *
+ * Enable with payment.reactive.enabled=true; payment.reactive.port sets the
+ * port (0 picks a free one).
+ */
+@Component
+@ConditionalOnProperty(name = "payment.reactive.enabled", havingValue = "true")
+public class ReactivePaymentServer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactivePaymentServer.class);
+
+    private final DisposableServer server;
+
+    public ReactivePaymentServer(ReactivePaymentHandler handler, ObjectMapper objectMapper,
+                                 @Value("${payment.reactive.port:8081}") int port) {
+        RouterFunction<ServerResponse> routes = RouterFunctions.route(
+                POST("/api/payments/charge"), handler::charge);
+        HandlerStrategies strategies = HandlerStrategies.builder()
+                .codecs(codecs -> {
+                    codecs.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper));
+                    codecs.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper));
+                })
+                .build();
+
+        this.server = HttpServer.create()
+                .port(port)
+                .handle(new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(routes, strategies)))
+                .bindNow();
+        logger.info("Reactive payment endpoint listening on port {}", server.port());
+    }
+
+    public int getPort() {
+        return server.port();
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
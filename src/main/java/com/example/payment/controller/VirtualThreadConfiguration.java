@@ -0,0 +1,42 @@
+package com.example.payment.controller;
+
+import com.example.payment.service.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves requests on virtual threads instead of Tomcat's bounded worker pool.
+ *
+ * Each connection's request processing gets a virtual thread of its own, and
+ * PaymentService runs each charge, store and gateway calls included, on a
+ * further virtual thread, so in-flight charges are limited by Tomcat's
+ * max-connections rather than its thread count. Needs a Java 21 runtime;
+ * build with the virtual-threads profile.
+ *
+ * Enable with payment.threads=virtual.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "payment.threads", havingValue = "virtual")
+public class VirtualThreadConfiguration {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConfiguration.class);
+
+    @Bean(destroyMethod = "shutdownNow")
+    ExecutorService tomcatVirtualThreads() {
+        return VirtualThreads.newPerTaskExecutor("http-virtual-");
+    }
+
+    @Bean
+    TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandler(ExecutorService tomcatVirtualThreads) {
+        return protocolHandler -> {
+            protocolHandler.setExecutor(tomcatVirtualThreads);
+            logger.info("Tomcat requests run on virtual threads");
+        };
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.payment.exception;
+
+/**
+ * Exception thrown when the payment gateway fails or does not answer in time.
+ */
+public class PaymentGatewayException extends RuntimeException {
+    
+    public PaymentGatewayException(String message) {
+        super(message);
+    }
+    
+    public PaymentGatewayException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
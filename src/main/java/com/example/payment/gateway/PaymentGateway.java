@@ -0,0 +1,33 @@
+package com.example.payment.gateway;
+
+import com.example.payment.exception.PaymentGatewayException;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Payment processor that executes charges (Stripe, PayPal, etc.).
+ *
+ * A charge the gateway answers, approved or declined, is returned as a
+ * ChargeResponse. A gateway error or timeout is a PaymentGatewayException.
+ * Idempotency is handled in front of the gateway, so each call is a new
+ * charge attempt.
+ */
+public interface PaymentGateway {
+
+    /**
+     * Charge and wait for the gateway's answer.
+     *
+     * @throws PaymentGatewayException if the gateway fails or times out
+     */
+    ChargeResponse charge(ChargeRequest request);
+
+    /**
+     * Charge without holding the calling thread while the gateway works.
+     *
+     * @return the gateway's answer; completes exceptionally with
+     *         PaymentGatewayException if the gateway fails or times out
+     */
+    CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request);
+}
@@ -0,0 +1,221 @@
+package com.example.payment.gateway;
+
+import com.example.payment.exception.PaymentGatewayException;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in gateway for development and load tests.
+ *
+ * Each call draws a latency and an outcome. Latency follows
+ * payment.gateway.simulated.latency.distribution, shaped by its median and
+ * 99th percentile:
+ * <ul>
+ *   <li>fixed: always the median.</li>
+ *   <li>uniform: evenly spread around the median, up to the p99 and a bit beyond.</li>
+ *   <li>lognormal: the long-tailed shape of real gateway latency.</li>
+ * </ul>
+ * The outcome is a timeout, an error, a decline or an approval, by the
+ * configured rates. A timed-out call, or one whose latency reaches the
+ * timeout, fails only once the timeout has passed. Async calls wait on a
+ * timer and complete on the gateway's own threads.
+ *
+ * The default, used unless payment.gateway names another gateway.
+ */
+@Component
+@ConditionalOnProperty(name = "payment.gateway", havingValue = "simulated", matchIfMissing = true)
+public class SimulatedPaymentGateway implements PaymentGateway, MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedPaymentGateway.class);
+    // 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.3263;
+
+    public enum LatencyDistribution {
+        FIXED, UNIFORM, LOGNORMAL
+    }
+
+    enum Outcome {
+        APPROVED, DECLINED, ERROR, TIMEOUT
+    }
+
+    private final LatencyDistribution distribution;
+    private final long medianNanos;
+    private final long p99Nanos;
+    private final double timeoutRate;
+    private final double errorRate;
+    private final double declineRate;
+    private final Duration timeout;
+    private final ExecutorService executor;
+
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+    /**
+     * @param distribution latency distribution: fixed, uniform or lognormal
+     * @param median       median latency
+     * @param p99          99th percentile latency, at least the median; ignored when fixed
+     * @param timeoutRate  share of calls that get no answer before the timeout
+     * @param errorRate    share of calls that fail with a gateway error
+     * @param declineRate  share of calls that are declined
+     * @param timeout      how long a call waits for the gateway
+     * @param threads      threads completing async calls (0 = one per available processor)
+     */
+    @Autowired
+    public SimulatedPaymentGateway(
+            @Value("${payment.gateway.simulated.latency.distribution:fixed}") String distribution,
+            @Value("${payment.gateway.simulated.latency.median:PT0.1S}") Duration median,
+            @Value("${payment.gateway.simulated.latency.p99:PT0.1S}") Duration p99,
+            @Value("${payment.gateway.simulated.timeout-rate:0}") double timeoutRate,
+            @Value("${payment.gateway.simulated.error-rate:0}") double errorRate,
+            @Value("${payment.gateway.simulated.decline-rate:0}") double declineRate,
+            @Value("${payment.gateway.simulated.timeout:PT10S}") Duration timeout,
+            @Value("${payment.gateway.simulated.threads:0}") int threads) {
+        if (median.isNegative() || p99.compareTo(median) < 0) {
+            throw new IllegalArgumentException("Invalid gateway latency: median " + median + ", p99 " + p99);
+        }
+        if (timeoutRate < 0 || errorRate < 0 || declineRate < 0 || timeoutRate + errorRate + declineRate > 1) {
+            throw new IllegalArgumentException("Invalid gateway rates: timeout " + timeoutRate
+                    + ", error " + errorRate + ", decline " + declineRate);
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Invalid gateway timeout: " + timeout);
+        }
+        this.distribution = LatencyDistribution.valueOf(distribution.trim().toUpperCase(Locale.ROOT));
+        this.medianNanos = median.toNanos();
+        this.p99Nanos = p99.toNanos();
+        this.timeoutRate = timeoutRate;
+        this.errorRate = errorRate;
+        this.declineRate = declineRate;
+        this.timeout = timeout;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(runnable, "payment-gateway-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        logger.info("Using SimulatedPaymentGateway: {} latency, median {}, p99 {}, timeout {}, " +
+                        "timeout rate {}, error rate {}, decline rate {}",
+                this.distribution, median, p99, timeout, timeoutRate, errorRate, declineRate);
+    }
+
+    @Override
+    public ChargeResponse charge(ChargeRequest request) {
+        Call call = nextCall();
+        try {
+            TimeUnit.NANOSECONDS.sleep(call.latencyNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaymentGatewayException("Interrupted while waiting for the payment gateway", e);
+        }
+        return respond(call.outcome, request);
+    }
+
+    @Override
+    public CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request) {
+        Call call = nextCall();
+        return CompletableFuture.supplyAsync(() -> respond(call.outcome, request),
+                CompletableFuture.delayedExecutor(call.latencyNanos, TimeUnit.NANOSECONDS, executor));
+    }
+
+    private Call nextCall() {
+        double draw = ThreadLocalRandom.current().nextDouble();
+        Outcome outcome = draw < timeoutRate ? Outcome.TIMEOUT
+                : draw < timeoutRate + errorRate ? Outcome.ERROR
+                : draw < timeoutRate + errorRate + declineRate ? Outcome.DECLINED
+                : Outcome.APPROVED;
+        long latencyNanos = sampleLatencyNanos();
+        if (outcome == Outcome.TIMEOUT || latencyNanos >= timeout.toNanos()) {
+            return new Call(Outcome.TIMEOUT, timeout.toNanos());
+        }
+        return new Call(outcome, latencyNanos);
+    }
+
+    /**
+     * Draw a latency from the configured distribution.
+     */
+    long sampleLatencyNanos() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (distribution) {
+            case UNIFORM:
+                // The median plus or minus a spread that puts 99% of draws below the p99
+                double spread = (p99Nanos - medianNanos) / 0.98;
+                return Math.max(0, Math.round(medianNanos + spread * (2 * random.nextDouble() - 1)));
+            case LOGNORMAL:
+                double sigma = medianNanos == 0 ? 0 : Math.log((double) p99Nanos / medianNanos) / Z_99;
+                return Math.round(medianNanos * Math.exp(sigma * random.nextGaussian()));
+            default:
+                return medianNanos;
+        }
+    }
+
+    private ChargeResponse respond(Outcome outcome, ChargeRequest request) {
+        outcomes[outcome.ordinal()].increment();
+        switch (outcome) {
+            case TIMEOUT:
+                throw new PaymentGatewayException("Payment gateway did not answer within " + timeout);
+            case ERROR:
+                throw new PaymentGatewayException("Payment gateway error");
+            case DECLINED:
+                return ChargeResponse.failed("Card declined");
+            default:
+                String transactionId = "txn_" + UUID.randomUUID().toString().replace("-", "");
+                return ChargeResponse.success(transactionId, request.getAmount(), request.getCurrency());
+        }
+    }
+
+    long count(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Outcome outcome : Outcome.values()) {
+            FunctionCounter.builder("payment.gateway.calls", outcomes[outcome.ordinal()], LongAdder::sum)
+                    .description("Simulated gateway calls by outcome")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class Call {
+        final Outcome outcome;
+        final long latencyNanos;
+
+        Call(Outcome outcome, long latencyNanos) {
+            this.outcome = outcome;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+}
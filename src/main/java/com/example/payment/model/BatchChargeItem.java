@@ -0,0 +1,56 @@
+package com.example.payment.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+
+/**
+ * One charge of a batch: the charge request with its own idempotency key.
+ */
+public class BatchChargeItem {
+    
+    @NotBlank(message = "Idempotency key is required")
+    private String idempotencyKey;
+    
+    @Valid
+    @NotNull(message = "Request is required")
+    private ChargeRequest request;
+    
+    public BatchChargeItem() {
+    }
+    
+    @JsonCreator
+    public BatchChargeItem(
+            @JsonProperty("idempotencyKey") String idempotencyKey,
+            @JsonProperty("request") ChargeRequest request) {
+        this.idempotencyKey = idempotencyKey;
+        this.request = request;
+    }
+    
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+    
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+    
+    public ChargeRequest getRequest() {
+        return request;
+    }
+    
+    public void setRequest(ChargeRequest request) {
+        this.request = request;
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchChargeItem{" +
+                "idempotencyKey='" + idempotencyKey + '\'' +
+                ", request=" + request +
+                '}';
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.payment.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Outcome of one charge of a batch.
+ */
+public class BatchChargeResult {
+    
+    public enum Status {
+        /** Charged through the gateway by this batch. */
+        PROCESSED,
+        /** Already charged under this key; the cached response is returned. */
+        REPLAYED,
+        /** Key used with a different request, or still in progress elsewhere. */
+        CONFLICT,
+        /** Item failed validation and was not charged. */
+        INVALID,
+        /** Unexpected error; the charge may be retried with the same key. */
+        FAILED
+    }
+    
+    private String idempotencyKey;
+    private Status status;
+    private ChargeResponse response;
+    
+    public BatchChargeResult() {
+    }
+    
+    @JsonCreator
+    public BatchChargeResult(
+            @JsonProperty("idempotencyKey") String idempotencyKey,
+            @JsonProperty("status") Status status,
+            @JsonProperty("response") ChargeResponse response) {
+        this.idempotencyKey = idempotencyKey;
+        this.status = status;
+        this.response = response;
+    }
+    
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+    
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+    
+    public Status getStatus() {
+        return status;
+    }
+    
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+    
+    public ChargeResponse getResponse() {
+        return response;
+    }
+    
+    public void setResponse(ChargeResponse response) {
+        this.response = response;
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchChargeResult{" +
+                "idempotencyKey='" + idempotencyKey + '\'' +
+                ", status=" + status +
+                ", response=" + response +
+                '}';
+    }
+}
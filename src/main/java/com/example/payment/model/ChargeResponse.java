@@ -1,6 +1,7 @@
 package com.example.payment.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.math.BigDecimal;
@@ -8,6 +9,10 @@ import java.time.Instant;
 
 /**
  * Payment charge response model.
+ * 
+ * A recorded response also carries itself serialized as JSON, encoded once
+ * when the outcome is stored and persisted with it, so replays write those
+ * bytes instead of serializing the response again. Setters drop it.
  */
 public class ChargeResponse {
     
@@ -17,6 +22,7 @@ public class ChargeResponse {
     private String currency;
     private Instant processedAt;
     private String message;
+    private volatile byte[] json;
     
     public ChargeResponse() {
     }
@@ -67,6 +73,7 @@ public class ChargeResponse {
     
     public void setTransactionId(String transactionId) {
         this.transactionId = transactionId;
+        this.json = null;
     }
     
     public String getStatus() {
@@ -75,6 +82,7 @@ public class ChargeResponse {
     
     public void setStatus(String status) {
         this.status = status;
+        this.json = null;
     }
     
     public BigDecimal getAmount() {
@@ -83,6 +91,7 @@ public class ChargeResponse {
     
     public void setAmount(BigDecimal amount) {
         this.amount = amount;
+        this.json = null;
     }
     
     public String getCurrency() {
@@ -91,6 +100,7 @@ public class ChargeResponse {
     
     public void setCurrency(String currency) {
         this.currency = currency;
+        this.json = null;
     }
     
     public Instant getProcessedAt() {
@@ -99,6 +109,7 @@ public class ChargeResponse {
     
     public void setProcessedAt(Instant processedAt) {
         this.processedAt = processedAt;
+        this.json = null;
     }
     
     public String getMessage() {
@@ -107,5 +118,19 @@ public class ChargeResponse {
     
     public void setMessage(String message) {
         this.message = message;
+        this.json = null;
+    }
+    
+    /**
+     * @return this response as JSON, or null if it was not encoded when recorded
+     */
+    @JsonIgnore
+    public byte[] getJson() {
+        return json;
+    }
+    
+    @JsonIgnore
+    public void setJson(byte[] json) {
+        this.json = json;
     }
 }
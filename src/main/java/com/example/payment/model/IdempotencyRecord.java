@@ -4,12 +4,31 @@ import java.time.Instant;
 
 /**
  * Idempotency record stored in cache/database.
+ * 
+ * A record is created IN_PROGRESS when a key is reserved and moves to
+ * COMPLETED once the charge response is known.
+ * 
+ * Conflict detection compares the request fingerprint. The full request is
+ * only kept when retained for audit/debugging and may be null.
+ * 
+ * A completed record's response carries its JSON, encoded when the outcome
+ * was recorded, so replays write those bytes instead of serializing again.
  */
 public class IdempotencyRecord {
     
+    /**
+     * Lifecycle state of an idempotency record.
+     */
+    public enum Status {
+        IN_PROGRESS,
+        COMPLETED
+    }
+    
     private String idempotencyKey;
+    private RequestFingerprint requestFingerprint;
     private ChargeRequest request;
     private ChargeResponse response;
+    private Status status;
     private Instant createdAt;
     private Instant expiresAt;
     
@@ -18,19 +37,71 @@ public class IdempotencyRecord {
     
     public IdempotencyRecord(String idempotencyKey, ChargeRequest request,
                            ChargeResponse response, Instant expiresAt) {
+        this(idempotencyKey, RequestFingerprint.of(request), request, response, expiresAt);
+    }
+    
+    public IdempotencyRecord(String idempotencyKey, RequestFingerprint requestFingerprint,
+                           ChargeRequest request, ChargeResponse response, Instant expiresAt) {
         this.idempotencyKey = idempotencyKey;
+        this.requestFingerprint = requestFingerprint;
         this.request = request;
         this.response = response;
+        this.status = response != null ? Status.COMPLETED : Status.IN_PROGRESS;
         this.createdAt = Instant.now();
         this.expiresAt = expiresAt;
     }
     
+    // Factory methods
+    public static IdempotencyRecord inProgress(String idempotencyKey, ChargeRequest request,
+                                               Instant expiresAt) {
+        return new IdempotencyRecord(idempotencyKey, request, null, expiresAt);
+    }
+    
+    public static IdempotencyRecord inProgress(String idempotencyKey, RequestFingerprint requestFingerprint,
+                                               ChargeRequest request, Instant expiresAt) {
+        return new IdempotencyRecord(idempotencyKey, requestFingerprint, request, null, expiresAt);
+    }
+    
+    /**
+     * Create the COMPLETED successor of this record, keeping key, request and creation time.
+     */
+    public IdempotencyRecord complete(ChargeResponse response, Instant expiresAt) {
+        IdempotencyRecord completed = new IdempotencyRecord(
+                idempotencyKey, requestFingerprint, request, response, expiresAt);
+        completed.setCreatedAt(createdAt);
+        return completed;
+    }
+    
     public boolean isExpired() {
         return Instant.now().isAfter(expiresAt);
     }
     
+    public boolean isInProgress() {
+        return status == Status.IN_PROGRESS;
+    }
+    
+    public boolean isCompleted() {
+        return status == Status.COMPLETED;
+    }
+    
+    /**
+     * Whether this record is still the given reservation: IN_PROGRESS, for the
+     * same request and created at the same moment (to the millisecond, as
+     * stores keep it). Once a reservation expires and the key is reserved
+     * again, even by a retry of the same request, it is a different record.
+     */
+    public boolean isReservation(IdempotencyRecord reservation) {
+        return isInProgress()
+                && requestFingerprint.equals(reservation.getRequestFingerprint())
+                && createdAt.toEpochMilli() == reservation.getCreatedAt().toEpochMilli();
+    }
+    
     public boolean requestMatches(ChargeRequest otherRequest) {
-        return this.request.equals(otherRequest);
+        return requestMatches(RequestFingerprint.of(otherRequest));
+    }
+    
+    public boolean requestMatches(RequestFingerprint otherFingerprint) {
+        return this.requestFingerprint.equals(otherFingerprint);
     }
     
     // Getters and Setters
@@ -42,6 +113,14 @@ public class IdempotencyRecord {
         this.idempotencyKey = idempotencyKey;
     }
     
+    public RequestFingerprint getRequestFingerprint() {
+        return requestFingerprint;
+    }
+    
+    public void setRequestFingerprint(RequestFingerprint requestFingerprint) {
+        this.requestFingerprint = requestFingerprint;
+    }
+    
     public ChargeRequest getRequest() {
         return request;
     }
@@ -58,6 +137,14 @@ public class IdempotencyRecord {
         this.response = response;
     }
     
+    public Status getStatus() {
+        return status;
+    }
+    
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+    
     public Instant getCreatedAt() {
         return createdAt;
     }
@@ -73,4 +160,11 @@ public class IdempotencyRecord {
     public void setExpiresAt(Instant expiresAt) {
         this.expiresAt = expiresAt;
     }
+    
+    /**
+     * @return the response as JSON, or null if it was not encoded when recorded
+     */
+    public byte[] getResponseJson() {
+        return response != null ? response.getJson() : null;
+    }
 }
@@ -0,0 +1,112 @@
+package com.example.payment.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Compact 128-bit fingerprint of a normalized charge request.
+ * 
+ * Two requests are considered the same if they only differ in amount scale
+ * (99.9 vs 99.90) or currency case (usd vs USD). The fingerprint is the first
+ * 128 bits of a SHA-256 over a length-prefixed canonical encoding, so it is
+ * stable across JVMs and safe to compare in remote stores.
+ */
+public final class RequestFingerprint {
+    
+    private static final String ALGORITHM = "SHA-256";
+    
+    private final long high;
+    private final long low;
+    
+    public RequestFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+    
+    /**
+     * Fingerprint a charge request.
+     */
+    public static RequestFingerprint of(ChargeRequest request) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to ship SHA-256
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+        
+        update(digest, request.getCustomerId());
+        update(digest, normalizeAmount(request.getAmount()));
+        update(digest, request.getCurrency() == null ? null : request.getCurrency().toUpperCase(Locale.ROOT));
+        update(digest, request.getDescription());
+        
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        return new RequestFingerprint(hash.getLong(), hash.getLong());
+    }
+    
+    @JsonCreator
+    public static RequestFingerprint fromHex(String hex) {
+        if (hex == null || hex.length() != 32) {
+            throw new IllegalArgumentException("Fingerprint must be 32 hex characters: " + hex);
+        }
+        return new RequestFingerprint(
+                Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                Long.parseUnsignedLong(hex.substring(16), 16));
+    }
+    
+    @JsonValue
+    public String toHex() {
+        return String.format("%016x%016x", high, low);
+    }
+    
+    public long getHigh() {
+        return high;
+    }
+    
+    public long getLow() {
+        return low;
+    }
+    
+    private static String normalizeAmount(BigDecimal amount) {
+        if (amount == null) {
+            return null;
+        }
+        return amount.signum() == 0 ? "0" : amount.stripTrailingZeros().toPlainString();
+    }
+    
+    private static void update(MessageDigest digest, String value) {
+        // Length prefix keeps ("ab", "c") and ("a", "bc") apart; -1 marks null
+        if (value == null) {
+            digest.update(ByteBuffer.allocate(4).putInt(-1).array());
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestFingerprint that = (RequestFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+    
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
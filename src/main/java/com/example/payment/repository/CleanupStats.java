@@ -0,0 +1,56 @@
+package com.example.payment.repository;
+
+import java.time.Duration;
+
+/**
+ * Statistics for a single cleanupExpired run.
+ */
+public class CleanupStats {
+    
+    private final int scanned;
+    private final int removed;
+    private final Duration elapsed;
+    private final boolean passCompleted;
+    
+    public CleanupStats(int scanned, int removed, Duration elapsed, boolean passCompleted) {
+        this.scanned = scanned;
+        this.removed = removed;
+        this.elapsed = elapsed;
+        this.passCompleted = passCompleted;
+    }
+    
+    /**
+     * Number of records examined in this run.
+     */
+    public int getScanned() {
+        return scanned;
+    }
+    
+    /**
+     * Number of expired records removed in this run.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+    
+    public Duration getElapsed() {
+        return elapsed;
+    }
+    
+    /**
+     * Whether this run reached the end of the store, so the next run starts a new pass.
+     */
+    public boolean isPassCompleted() {
+        return passCompleted;
+    }
+    
+    @Override
+    public String toString() {
+        return "CleanupStats{" +
+                "scanned=" + scanned +
+                ", removed=" + removed +
+                ", elapsed=" + elapsed +
+                ", passCompleted=" + passCompleted +
+                '}';
+    }
+}
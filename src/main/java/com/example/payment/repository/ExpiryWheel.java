@@ -0,0 +1,235 @@
+package com.example.payment.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel indexing idempotency keys by expiry time.
+ *
+ * Four levels of 64 slots each; level 0 slots are one tick wide and every
+ * level above is 64 times coarser, so with a 1 second tick the wheel covers
+ * about 194 days before falling back to re-scheduling from the top level.
+ * Each slot is a doubly linked list under its own lock, so scheduling and
+ * cancelling are O(1) and only contend on the same slot. Advancing is done
+ * by a single thread and only touches the slots whose time has come.
+ *
+ * The caller cancels an entry when its record goes away, so the wheel holds
+ * no more entries than there are records. The eviction callback still
+ * re-checks the live record, in case its expiry changed after scheduling.
+ */
+final class ExpiryWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Bucket[][] wheels;
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile long currentTick;
+
+    ExpiryWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.wheels = new Bucket[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                wheels[level][slot] = new Bucket();
+            }
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Index a key under its expiry time. Safe to call from any thread.
+     *
+     * @return the entry, to {@link #cancel} it if the record goes away first
+     */
+    Entry schedule(String key, long expiresAtMillis) {
+        // Round up so an entry never fires before its record has expired
+        long expiryTick = Math.floorDiv(expiresAtMillis + tickMillis - 1, tickMillis);
+        long now = currentTick;
+        Entry entry = new Entry(key, expiresAtMillis, expiryTick);
+        place(entry, Math.max(expiryTick, now + 1), now);
+        return entry;
+    }
+
+    /**
+     * Remove an entry so that it never fires. Safe to call from any thread,
+     * and a no-op for an entry that has already fired or been cancelled.
+     */
+    void cancel(Entry entry) {
+        synchronized (entry) {
+            entry.cancelled = true;
+            Bucket bucket = entry.bucket;
+            if (bucket != null && bucket.remove(entry)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Number of entries waiting to fire.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Advance the wheel up to the given time, handing every due entry to the callback.
+     * Must only be called from one thread at a time.
+     *
+     * @return number of entries handed to the callback
+     */
+    int advance(long nowMillis, Consumer<Entry> expired) {
+        long target = nowMillis / tickMillis;
+        int fired = 0;
+
+        while (currentTick < target) {
+            long tick = currentTick + 1;
+            currentTick = tick;
+
+            // Cascade coarser levels whose slot boundary is this tick, highest first
+            int top = 0;
+            while (top + 1 < LEVELS && (tick & ((1L << (WHEEL_BITS * (top + 1))) - 1)) == 0) {
+                top++;
+            }
+            for (int level = top; level > 0; level--) {
+                // Drain before re-placing: far-future entries may land back in this very slot
+                List<Entry> cascaded = drain(wheels[level][slotOf(tick, level)]);
+                for (Entry e : cascaded) {
+                    place(e, Math.max(e.expiryTick, tick), tick);
+                }
+            }
+
+            for (Entry entry : drain(wheels[0][slotOf(tick, 0)])) {
+                if (entry.expiryTick > tick) {
+                    // Scheduled a full rotation ahead, or raced with this tick
+                    place(entry, entry.expiryTick, tick);
+                } else if (!entry.cancelled) {
+                    entry.fired = true;
+                    expired.accept(entry);
+                    fired++;
+                }
+            }
+        }
+        return fired;
+    }
+
+    private void place(Entry entry, long expiryTick, long now) {
+        long delta = expiryTick - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        Bucket bucket = wheels[level][slotOf(expiryTick, level)];
+        // Under the entry's lock, so a cancel cannot slip in between a cascade and the re-place
+        synchronized (entry) {
+            if (!entry.cancelled) {
+                bucket.add(entry);
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    private List<Entry> drain(Bucket bucket) {
+        List<Entry> entries = bucket.drain();
+        size.addAndGet(-entries.size());
+        return entries;
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+    }
+
+    /**
+     * A key and the expiry it was scheduled with.
+     */
+    static final class Entry {
+
+        final String key;
+        final long expiresAtMillis;
+        final long expiryTick;
+
+        // Set under the entry's lock, read by the advancing thread without it
+        private volatile boolean cancelled;
+        private volatile boolean fired;
+
+        // Guarded by the bucket the entry is in; only place() sets bucket, under the entry's lock
+        private Bucket bucket;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(String key, long expiresAtMillis, long expiryTick) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+            this.expiryTick = expiryTick;
+        }
+
+        /**
+         * @return true until the entry fires or is cancelled
+         */
+        boolean isPending() {
+            return !cancelled && !fired;
+        }
+    }
+
+    /**
+     * One slot: an intrusive doubly linked list of entries.
+     */
+    private static final class Bucket {
+
+        private Entry head;
+
+        synchronized void add(Entry entry) {
+            entry.bucket = this;
+            entry.prev = null;
+            entry.next = head;
+            if (head != null) {
+                head.prev = entry;
+            }
+            head = entry;
+        }
+
+        /**
+         * @return false if the entry was drained from this bucket in the meantime
+         */
+        synchronized boolean remove(Entry entry) {
+            if (entry.bucket != this) {
+                return false;
+            }
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            entry.bucket = null;
+            entry.prev = null;
+            entry.next = null;
+            return true;
+        }
+
+        synchronized List<Entry> drain() {
+            List<Entry> entries = new ArrayList<>();
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.bucket = null;
+                entry.prev = null;
+                entry.next = null;
+                entries.add(entry);
+                entry = next;
+            }
+            head = null;
+            return entries;
+        }
+    }
+}
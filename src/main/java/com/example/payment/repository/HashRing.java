@@ -0,0 +1,81 @@
+package com.example.payment.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring mapping idempotency keys to owner nodes.
+ *
+ * Each node is placed at virtualNodes points on a 64-bit ring; a key belongs
+ * to the first point at or after its own hash, wrapping around. Many points
+ * per node even out the share each node owns, and adding or removing a node
+ * only moves the keys next to its points.
+ *
+ * Immutable: points are kept in sorted primitive arrays and looked up by
+ * binary search.
+ */
+final class HashRing {
+
+    private final List<String> nodes;
+    private final int virtualNodes;
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param nodes        node addresses; every node must build the ring from the same list
+     * @param virtualNodes points per node
+     */
+    HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("Invalid hash ring: " + nodes + ", " + virtualNodes + " virtual nodes");
+        }
+        if (nodes.stream().distinct().count() != nodes.size()) {
+            throw new IllegalArgumentException("Duplicate node in hash ring: " + nodes);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.virtualNodes = virtualNodes;
+
+        int size = nodes.size() * virtualNodes;
+        long[][] placed = new long[size][];
+        int n = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                placed[n++] = new long[] {KeyHasher.hash128(nodes.get(node) + "#" + i)[0], node};
+            }
+        }
+        // Ties (vanishingly rare) go to the node listed first, the same way on every node
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodes.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * The node that owns the key.
+     */
+    String ownerOf(String key) {
+        long hash = KeyHasher.hash128(key)[0];
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    int getVirtualNodes() {
+        return virtualNodes;
+    }
+}
@@ -1,7 +1,15 @@
 package com.example.payment.repository;
 
+import com.example.payment.model.ChargeResponse;
 import com.example.payment.model.IdempotencyRecord;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -16,6 +24,29 @@ public interface IdempotencyStore {
      */
     void save(IdempotencyRecord record);
     
+    /**
+     * Atomically reserve an idempotency key.
+     * 
+     * If no live record exists for the key, the given IN_PROGRESS record is
+     * stored and an empty Optional is returned: the caller now owns the key
+     * and must either complete or delete it. Otherwise the existing record
+     * is returned untouched.
+     *
+     * @param record the IN_PROGRESS record to place
+     * @return the existing record if the key is already taken, empty if reserved
+     */
+    Optional<IdempotencyRecord> reserve(IdempotencyRecord record);
+    
+    /**
+     * Complete a previously reserved key with its charge response.
+     *
+     * @param idempotencyKey the idempotency key
+     * @param response       the charge response to cache
+     * @param expiresAt      new expiry for the completed record
+     * @return true if an IN_PROGRESS reservation was found and completed
+     */
+    boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt);
+    
     /**
      * Find an idempotency record by key.
      *
@@ -24,6 +55,44 @@ public interface IdempotencyStore {
      */
     Optional<IdempotencyRecord> findByKey(String idempotencyKey);
     
+    /**
+     * Find the records for several keys at once.
+     * 
+     * Looks each key up in turn; stores that pay a round trip per call
+     * override this to fetch all of them in one.
+     *
+     * @param idempotencyKeys the idempotency keys
+     * @return the records found and not expired, by key
+     */
+    default Map<String, IdempotencyRecord> findAllByKey(Collection<String> idempotencyKeys) {
+        Map<String, IdempotencyRecord> found = new HashMap<>();
+        for (String idempotencyKey : idempotencyKeys) {
+            findByKey(idempotencyKey).ifPresent(record -> found.put(idempotencyKey, record));
+        }
+        return found;
+    }
+    
+    /**
+     * Reserve several keys at once, each exactly as {@link #reserve} would.
+     * 
+     * Each key is reserved atomically on its own; the batch as a whole is
+     * not, so some keys may be reserved while others are taken. If this
+     * throws, keys reserved before the failure stay reserved; the caller
+     * releases them with {@link #release}, which leaves keys it does not hold
+     * alone. Reserves each key in turn; stores that pay a round trip per call
+     * override this to reserve all of them in one.
+     *
+     * @param records IN_PROGRESS records to place, one per key
+     * @return for each record, in order: the existing record if the key is taken, empty if reserved
+     */
+    default List<Optional<IdempotencyRecord>> reserveAll(List<IdempotencyRecord> records) {
+        List<Optional<IdempotencyRecord>> results = new ArrayList<>(records.size());
+        for (IdempotencyRecord record : records) {
+            results.add(reserve(record));
+        }
+        return results;
+    }
+    
     /**
      * Delete an idempotency record.
      *
@@ -31,8 +100,34 @@ public interface IdempotencyStore {
      */
     void delete(String idempotencyKey);
     
+    /**
+     * Atomically release a reservation the caller holds, so the key can be
+     * charged again.
+     * 
+     * The record is deleted only while it is still this reservation (see
+     * {@link IdempotencyRecord#isReservation}). If the reservation expired and
+     * the key has been reserved again since, the new holder keeps it; a plain
+     * {@link #delete} would remove it and let the key be charged twice.
+     *
+     * @param reservation the IN_PROGRESS record the caller placed with reserve
+     * @return true if the reservation was still held and has been deleted
+     */
+    boolean release(IdempotencyRecord reservation);
+    
     /**
      * Clean up expired records.
      */
     void cleanupExpired();
+    
+    /**
+     * Clean up expired records incrementally.
+     * 
+     * Stops once either budget is spent and resumes from where it left off on
+     * the next call, so a full pass may be spread across several runs.
+     *
+     * @param maxEntries  maximum number of records to examine
+     * @param maxDuration maximum time to spend
+     * @return statistics for this run
+     */
+    CleanupStats cleanupExpired(int maxEntries, Duration maxDuration);
 }
@@ -1,21 +1,46 @@
 package com.example.payment.repository;
 
+import com.example.payment.model.ChargeResponse;
 import com.example.payment.model.IdempotencyRecord;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Primary;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * In-memory implementation of IdempotencyStore.
- * Thread-safe using ConcurrentHashMap.
+ * Thread-safe using a Caffeine-backed concurrent map, optionally bounded by
+ * entry count or estimated heap weight. IN_PROGRESS records are never evicted.
+ * 
+ * Expired records are evicted incrementally by a background tick driven
+ * from an {@link ExpiryWheel}, so no full scan is needed to reclaim them.
+ * Each record has exactly one wheel entry, dropped with the record however
+ * it leaves the store, so evictions for capacity free the entry too.
  * 
  * Note: Suitable for development and single-instance deployments.
  * For production distributed systems, use RedisIdempotencyStore.
@@ -23,22 +48,112 @@ import java.util.concurrent.ConcurrentHashMap;
 @Repository
 @Primary
 @ConditionalOnMissingBean(RedisTemplate.class)
-public class InMemoryIdempotencyStore implements IdempotencyStore {
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "memory", matchIfMissing = true)
+public class InMemoryIdempotencyStore implements IdempotencyStore, MeterBinder {
     
     private static final Logger logger = LoggerFactory.getLogger(InMemoryIdempotencyStore.class);
+    private static final int CLEANUP_CLOCK_CHECK_MASK = 63;
+    
+    private final Map<String, IdempotencyRecord> store;
+    private final Policy<String, IdempotencyRecord> policy;
+    private final ExpiryWheel expiryWheel;
+    // The wheel entry of each record, kept in step with the record by syncExpiry
+    private final Map<String, ExpiryWheel.Entry> expiryEntries = new ConcurrentHashMap<>();
+    
+    // Capacity metrics, maintained by the removal listener and the write paths
+    private final AtomicLong estimatedWeightBytes = new AtomicLong();
+    private final AtomicLong capacityEvicted = new AtomicLong();
+    
+    // Incremental cleanup resumes from this weakly consistent iterator
+    private final ReentrantLock cleanupLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, IdempotencyRecord>> cleanupCursor;
     
-    private final Map<String, IdempotencyRecord> store = new ConcurrentHashMap<>();
+    // Expiry tick metrics, written by the tick thread only
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong tickNanosTotal = new AtomicLong();
+    private volatile long lastTickNanos;
+    private final AtomicLong expiredEvicted = new AtomicLong();
     
     public InMemoryIdempotencyStore() {
-        logger.info("Using InMemoryIdempotencyStore (development mode)");
+        this(Duration.ofSeconds(1), 0, 0);
+    }
+    
+    /**
+     * @param expiryTick     resolution of the expiry wheel
+     * @param maxEntries     maximum number of completed records, 0 for no limit
+     * @param maxWeightBytes maximum estimated heap weight of completed records, 0 for no limit;
+     *                       takes precedence over maxEntries when both are set
+     */
+    @Autowired
+    public InMemoryIdempotencyStore(
+            @Value("${payment.idempotency.expiry.tick:PT1S}") Duration expiryTick,
+            @Value("${payment.idempotency.max-entries:0}") long maxEntries,
+            @Value("${payment.idempotency.max-weight-bytes:0}") long maxWeightBytes) {
+        this.expiryWheel = new ExpiryWheel(expiryTick.toMillis(), System.currentTimeMillis());
+        
+        // Caffeine's W-TinyLFU policy admits new records against a frequency sketch,
+        // so completed keys that are rarely replayed are the first to go
+        Caffeine<String, IdempotencyRecord> builder = Caffeine.newBuilder()
+                .executor(Runnable::run)
+                .removalListener(this::onRemoval);
+        if (maxWeightBytes > 0) {
+            builder.maximumWeight(maxWeightBytes).weigher(new RecordWeigher(true));
+        } else if (maxEntries > 0) {
+            builder.maximumWeight(maxEntries).weigher(new RecordWeigher(false));
+        }
+        Cache<String, IdempotencyRecord> cache = builder.build();
+        this.store = cache.asMap();
+        this.policy = cache.policy();
+        
+        logger.info("Using InMemoryIdempotencyStore (development mode), expiry tick: {}, " +
+                "max entries: {}, max weight bytes: {}", expiryTick, maxEntries, maxWeightBytes);
     }
     
     @Override
     public void save(IdempotencyRecord record) {
         store.put(record.getIdempotencyKey(), record);
+        onWrite(record);
         logger.debug("Saved idempotency record for key: {}", record.getIdempotencyKey());
     }
     
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        
+        // compute() runs atomically per key, so only one caller can win the reservation
+        IdempotencyRecord current = store.compute(key, (k, existing) ->
+                existing == null || existing.isExpired() ? record : existing);
+        
+        if (current == record) {
+            onWrite(record);
+            logger.debug("Reserved idempotency key: {}", key);
+            return Optional.empty();
+        }
+        
+        logger.debug("Idempotency key already reserved: {} ({})", key, current.getStatus());
+        return Optional.of(current);
+    }
+    
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        boolean[] completed = new boolean[1];
+        IdempotencyRecord current = store.computeIfPresent(idempotencyKey, (k, existing) -> {
+            if (!existing.isInProgress()) {
+                return existing;
+            }
+            completed[0] = true;
+            return existing.complete(response, expiresAt);
+        });
+        
+        if (completed[0]) {
+            onWrite(current);
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+        } else {
+            logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        }
+        return completed[0];
+    }
+    
     @Override
     public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
         IdempotencyRecord record = store.get(idempotencyKey);
@@ -51,7 +166,8 @@ public class InMemoryIdempotencyStore implements IdempotencyStore {
         // Check if expired
         if (record.isExpired()) {
             logger.debug("Idempotency record expired for key: {}", idempotencyKey);
-            delete(idempotencyKey);
+            // Only drop the exact record we saw, a concurrent reserve may have replaced it
+            store.remove(idempotencyKey, record);
             return Optional.empty();
         }
         
@@ -65,20 +181,180 @@ public class InMemoryIdempotencyStore implements IdempotencyStore {
         logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
     }
     
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        boolean[] released = new boolean[1];
+        store.computeIfPresent(idempotencyKey, (k, existing) -> {
+            if (!existing.isReservation(reservation)) {
+                return existing;
+            }
+            released[0] = true;
+            return null;
+        });
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released[0]);
+        return released[0];
+    }
+    
     @Override
     public void cleanupExpired() {
-        Instant now = Instant.now();
-        int removed = 0;
-        
-        for (Map.Entry<String, IdempotencyRecord> entry : store.entrySet()) {
-            if (entry.getValue().getExpiresAt().isBefore(now)) {
-                store.remove(entry.getKey());
-                removed++;
+        cleanupLock.lock();
+        try {
+            // A full cleanup always covers the whole store, so restart the pass
+            cleanupCursor = null;
+            cleanupExpired(Integer.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE));
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+    
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        cleanupLock.lock();
+        try {
+            long start = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            int scanned = 0;
+            int removed = 0;
+            boolean passCompleted = false;
+            
+            if (cleanupCursor == null) {
+                cleanupCursor = store.entrySet().iterator();
+            }
+            
+            while (scanned < maxEntries) {
+                if (!cleanupCursor.hasNext()) {
+                    cleanupCursor = null;
+                    passCompleted = true;
+                    break;
+                }
+                
+                Map.Entry<String, IdempotencyRecord> entry = cleanupCursor.next();
+                scanned++;
+                if (entry.getValue().getExpiresAt().toEpochMilli() < nowMillis
+                        && store.remove(entry.getKey(), entry.getValue())) {
+                    removed++;
+                }
+                
+                // Reading the clock is not free, only check the time budget periodically
+                if ((scanned & CLEANUP_CLOCK_CHECK_MASK) == 0
+                        && System.nanoTime() - start >= maxDuration.toNanos()) {
+                    break;
+                }
+            }
+            
+            CleanupStats stats = new CleanupStats(
+                    scanned, removed, Duration.ofNanos(System.nanoTime() - start), passCompleted);
+            if (removed > 0) {
+                logger.info("Cleaned up {} expired idempotency records", removed);
             }
+            logger.debug("Cleanup run: {}", stats);
+            return stats;
+        } finally {
+            cleanupLock.unlock();
         }
+    }
+    
+    /**
+     * Background expiry tick: evict every record whose expiry slot has come due.
+     */
+    @Scheduled(fixedDelayString = "${payment.idempotency.expiry.tick:PT1S}")
+    public void evictExpired() {
+        long start = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        long[] evicted = new long[1];
+        
+        expiryWheel.advance(nowMillis, entry -> {
+            IdempotencyRecord kept = store.computeIfPresent(entry.key, (k, record) -> {
+                // Record may have been replaced or extended since this entry was scheduled
+                if (record.getExpiresAt().toEpochMilli() <= nowMillis) {
+                    evicted[0]++;
+                    return null;
+                }
+                return record;
+            });
+            if (kept != null) {
+                // The fired entry no longer covers the record; give it a pending one
+                syncExpiry(entry.key);
+            }
+        });
+        
+        long elapsed = System.nanoTime() - start;
+        ticks.incrementAndGet();
+        tickNanosTotal.addAndGet(elapsed);
+        lastTickNanos = elapsed;
+        expiredEvicted.addAndGet(evicted[0]);
         
-        if (removed > 0) {
-            logger.info("Cleaned up {} expired idempotency records", removed);
+        if (evicted[0] > 0) {
+            logger.debug("Expiry tick evicted {} records in {} us", evicted[0], elapsed / 1000);
+        }
+    }
+    
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.store.size", store, Map::size)
+                .description("Idempotency records currently held in memory")
+                .register(registry);
+        FunctionCounter.builder("idempotency.store.expired", expiredEvicted, AtomicLong::get)
+                .description("Records evicted by the expiry tick")
+                .register(registry);
+        FunctionCounter.builder("idempotency.store.evicted", capacityEvicted, AtomicLong::get)
+                .description("Completed records evicted to stay within capacity")
+                .register(registry);
+        Gauge.builder("idempotency.store.weight", estimatedWeightBytes, AtomicLong::get)
+                .description("Estimated heap weight of idempotency records, expiry entries included")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("idempotency.store.expiry.entries", expiryWheel, ExpiryWheel::size)
+                .description("Expiry wheel entries waiting to fire")
+                .register(registry);
+        FunctionTimer.builder("idempotency.store.expiry.tick", this,
+                        s -> s.ticks.get(), s -> s.tickNanosTotal.get(), TimeUnit.NANOSECONDS)
+                .description("Duration of expiry ticks")
+                .register(registry);
+        Gauge.builder("idempotency.store.expiry.tick.last", this, s -> s.lastTickNanos / 1_000_000.0)
+                .description("Duration of the most recent expiry tick")
+                .baseUnit("milliseconds")
+                .register(registry);
+    }
+    
+    private void onWrite(IdempotencyRecord record) {
+        estimatedWeightBytes.addAndGet(RecordWeigher.estimateBytes(record));
+        syncExpiry(record.getIdempotencyKey());
+    }
+    
+    private void onRemoval(String key, IdempotencyRecord record, RemovalCause cause) {
+        if (record == null) {
+            return;
+        }
+        estimatedWeightBytes.addAndGet(-RecordWeigher.estimateBytes(record));
+        if (cause == RemovalCause.SIZE) {
+            capacityEvicted.incrementAndGet();
+            logger.debug("Evicted idempotency record for key {} to stay within capacity", key);
+        }
+        // A replacement is scheduled by its own write
+        if (cause != RemovalCause.REPLACED) {
+            syncExpiry(key);
         }
     }
+    
+    /**
+     * Make the key's wheel entry match its live record: none if the record is
+     * gone, and a new one only if the expiry changed. Runs after every change,
+     * atomically per key, so whichever call runs last sees the final record.
+     */
+    private void syncExpiry(String key) {
+        expiryEntries.compute(key, (k, scheduled) -> {
+            // Quietly, so syncing does not count as a read for eviction
+            IdempotencyRecord live = policy.getIfPresentQuietly(k);
+            long expiresAtMillis = live != null ? live.getExpiresAt().toEpochMilli() : 0;
+            if (scheduled != null) {
+                if (live != null && scheduled.expiresAtMillis == expiresAtMillis && scheduled.isPending()) {
+                    return scheduled;
+                }
+                expiryWheel.cancel(scheduled);
+            }
+            return live != null ? expiryWheel.schedule(k, expiresAtMillis) : null;
+        });
+    }
 }
@@ -0,0 +1,49 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * Reactive view of an in-process store (memory, open-addressing or off-heap).
+ *
+ * Those stores never wait on I/O, and their per-key locking is held for a
+ * single map operation, so each call runs inline on the subscribing thread,
+ * typically a Netty event loop, with no scheduler hop. Sharing the servlet
+ * endpoint's store keeps both endpoints on one set of keys.
+ */
+public class InMemoryReactiveIdempotencyStore implements ReactiveIdempotencyStore {
+
+    private final IdempotencyStore store;
+
+    public InMemoryReactiveIdempotencyStore(IdempotencyStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Mono<Void> save(IdempotencyRecord record) {
+        return Mono.fromRunnable(() -> store.save(record));
+    }
+
+    @Override
+    public Mono<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        return Mono.fromCallable(() -> store.reserve(record).orElse(null));
+    }
+
+    @Override
+    public Mono<Boolean> complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        return Mono.fromCallable(() -> store.complete(idempotencyKey, response, expiresAt));
+    }
+
+    @Override
+    public Mono<IdempotencyRecord> findByKey(String idempotencyKey) {
+        return Mono.fromCallable(() -> store.findByKey(idempotencyKey).orElse(null));
+    }
+
+    @Override
+    public Mono<Void> delete(String idempotencyKey) {
+        return Mono.fromRunnable(() -> store.delete(idempotencyKey));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.payment.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the log store's index, written next to the segment files.
+ *
+ * A checkpoint records the log position it covers, the latest expiry of each
+ * segment and every live index entry. Recovery loads it and replays only the
+ * log from that position on. The file is written to a temporary name, forced
+ * and atomically renamed over the previous checkpoint, and carries a CRC32
+ * trailer so a damaged checkpoint is detected and ignored.
+ *
+ * Layout (big-endian): magic, format version, covered segment id and offset,
+ * segment count and (id, max expiry) pairs, then entries each preceded by a
+ * 1 marker byte and followed by a 0 terminator, then the CRC32 of all of it.
+ */
+final class IndexCheckpoint {
+
+    static final String FILE_NAME = "index.checkpoint";
+
+    private static final int MAGIC = 0x49444358;
+    private static final int VERSION = 1;
+    private static final int MAX_KEY_BYTES = 1 << 16;
+
+    final long segmentId;
+    final int offset;
+
+    private IndexCheckpoint(long segmentId, int offset) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+    }
+
+    /**
+     * An index entry as stored in a checkpoint.
+     */
+    static final class Entry {
+
+        final String key;
+        final long segmentId;
+        final int offset;
+        final long expiresAtMillis;
+        final boolean inProgress;
+
+        Entry(String key, long segmentId, int offset, long expiresAtMillis, boolean inProgress) {
+            this.key = key;
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.expiresAtMillis = expiresAtMillis;
+            this.inProgress = inProgress;
+        }
+    }
+
+    /**
+     * Write a checkpoint covering the log up to, but excluding, the given position.
+     *
+     * @return number of entries written
+     */
+    static long write(Path directory, long segmentId, int offset,
+                      Map<Long, Long> segmentMaxExpiresAt, Iterable<Entry> entries) throws IOException {
+        Path target = directory.resolve(FILE_NAME);
+        Path temp = directory.resolve(FILE_NAME + ".tmp");
+        long written = 0;
+
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segmentId);
+            out.writeInt(offset);
+
+            out.writeInt(segmentMaxExpiresAt.size());
+            for (Map.Entry<Long, Long> segment : segmentMaxExpiresAt.entrySet()) {
+                out.writeLong(segment.getKey());
+                out.writeLong(segment.getValue());
+            }
+
+            for (Entry entry : entries) {
+                byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(1);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.segmentId);
+                out.writeInt(entry.offset);
+                out.writeLong(entry.expiresAtMillis);
+                out.writeBoolean(entry.inProgress);
+                written++;
+            }
+            out.writeByte(0);
+
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    /**
+     * Stream a checkpoint's segment expiries and entries to the given consumers.
+     * Entries are handed over before the trailer is verified, so on an exception
+     * the caller must discard whatever it loaded.
+     *
+     * @return the covered log position, or null if there is no checkpoint
+     * @throws IOException if the checkpoint is unreadable or damaged
+     */
+    static IndexCheckpoint read(Path directory, Map<Long, Long> segmentMaxExpiresAt,
+                                Consumer<Entry> entries) throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (InputStream stream = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(stream, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an idempotency index checkpoint: " + file);
+            }
+            long segmentId = in.readLong();
+            int offset = in.readInt();
+
+            int segments = in.readInt();
+            for (int i = 0; i < segments; i++) {
+                segmentMaxExpiresAt.put(in.readLong(), in.readLong());
+            }
+
+            while (in.readByte() != 0) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_KEY_BYTES) {
+                    throw new IOException("Idempotency index checkpoint is corrupt: " + file);
+                }
+                byte[] key = new byte[length];
+                in.readFully(key);
+                entries.accept(new Entry(new String(key, StandardCharsets.UTF_8),
+                        in.readLong(), in.readInt(), in.readLong(), in.readBoolean()));
+            }
+
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Idempotency index checkpoint is corrupt: " + file);
+            }
+            return new IndexCheckpoint(segmentId, offset);
+        }
+    }
+}
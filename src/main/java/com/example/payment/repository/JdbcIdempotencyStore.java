@@ -0,0 +1,473 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Relational implementation of IdempotencyStore, for environments where a
+ * database is the only shared state.
+ *
+ * One row per key (see jdbc/schema.sql). Reserve is an INSERT ... ON
+ * CONFLICT DO NOTHING, so the primary key decides who owns a key in a single
+ * statement; only when the insert loses is the existing row read, and an
+ * expired one deleted and the insert retried. The response is kept in its
+ * own column and written in place on completion.
+ *
+ * Completions from concurrent requests are coalesced into one JDBC batch in
+ * one transaction. Bulk reservations are one JDBC batch of inserts, and bulk
+ * lookups one SELECT per thousand keys. Expired rows are deleted through
+ * the expires_at index in bounded batches, never with one unbounded DELETE.
+ *
+ * Enable with payment.idempotency.store=jdbc; the connection comes from the
+ * spring.datasource.* properties.
+ */
+@Repository
+@Primary
+@ConditionalOnClass(JdbcTemplate.class)
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "jdbc")
+public class JdbcIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcIdempotencyStore.class);
+
+    private static final String IN_PROGRESS = "I";
+    private static final String COMPLETED = "C";
+
+    private static final String INSERT_IF_ABSENT =
+            "INSERT INTO idempotency_record (idempotency_key, status, reservation, response, expires_at) "
+                    + "VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING";
+    private static final String UPDATE =
+            "UPDATE idempotency_record SET status = ?, reservation = ?, response = ?, expires_at = ? "
+                    + "WHERE idempotency_key = ?";
+    private static final String COMPLETE =
+            "UPDATE idempotency_record SET status = '" + COMPLETED + "', response = ?, expires_at = ? "
+                    + "WHERE idempotency_key = ? AND status = '" + IN_PROGRESS + "'";
+    private static final String SELECT =
+            "SELECT status, reservation, response, expires_at FROM idempotency_record WHERE idempotency_key = ?";
+    private static final String SELECT_LIVE = SELECT + " AND expires_at >= ?";
+    private static final String SELECT_IN =
+            "SELECT idempotency_key, status, reservation, response, expires_at FROM idempotency_record "
+                    + "WHERE idempotency_key IN ";
+    private static final String DELETE =
+            "DELETE FROM idempotency_record WHERE idempotency_key = ?";
+    private static final String RELEASE =
+            "DELETE FROM idempotency_record WHERE idempotency_key = ? AND status = 'I' AND reservation = ?";
+    private static final String DELETE_IF_EXPIRED =
+            "DELETE FROM idempotency_record WHERE idempotency_key = ? AND expires_at < ?";
+    private static final String DELETE_EXPIRED_BATCH =
+            "DELETE FROM idempotency_record WHERE idempotency_key IN "
+                    + "(SELECT idempotency_key FROM idempotency_record WHERE expires_at < ? LIMIT ?)";
+
+    // Keys per IN list, well under the bind parameter limits of common drivers
+    private static final int IN_LIST_SIZE = 1000;
+
+    private static final RowMapper<StoredRow> ROW_MAPPER = (rs, rowNum) -> new StoredRow(
+            rs.getString(1), rs.getBytes(2), rs.getBytes(3), rs.getLong(4));
+    private static final RowMapper<Map.Entry<String, StoredRow>> KEYED_ROW_MAPPER = (rs, rowNum) -> Map.entry(
+            rs.getString(1), new StoredRow(rs.getString(2), rs.getBytes(3), rs.getBytes(4), rs.getLong(5)));
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate transaction;
+    private final int deleteBatchSize;
+
+    // Null when completion batching is off
+    private final RequestBatcher<Completion, Boolean> completionBatcher;
+    private final DistributionSummary batchSizes;
+
+    /**
+     * @param dataSource           the database
+     * @param meterRegistry        registry for the completion batch histogram
+     * @param initializeSchema     create the table and index if missing
+     * @param deleteBatchSize      expired rows removed per DELETE statement
+     * @param completeBatchWindow  how long a completion waits for others to share its batch
+     * @param completeBatchSize    completions per batch; 1 disables batching
+     * @param completeBatchTimeout longest a completion waits for its batch
+     */
+    public JdbcIdempotencyStore(
+            DataSource dataSource,
+            MeterRegistry meterRegistry,
+            @Value("${payment.idempotency.jdbc.initialize-schema:true}") boolean initializeSchema,
+            @Value("${payment.idempotency.jdbc.delete-batch-size:1000}") int deleteBatchSize,
+            @Value("${payment.idempotency.jdbc.complete-batch.window:PT0S}") Duration completeBatchWindow,
+            @Value("${payment.idempotency.jdbc.complete-batch.max-size:64}") int completeBatchSize,
+            @Value("${payment.idempotency.jdbc.complete-batch.timeout:PT5S}") Duration completeBatchTimeout) {
+        if (deleteBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalid delete batch size: " + deleteBatchSize);
+        }
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.transaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.deleteBatchSize = deleteBatchSize;
+
+        if (initializeSchema) {
+            new ResourceDatabasePopulator(new ClassPathResource("jdbc/schema.sql")).execute(dataSource);
+        }
+
+        this.batchSizes = DistributionSummary.builder("idempotency.jdbc.complete.batch.size")
+                .description("Completions written by one JDBC batch")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue((double) Math.max(1, completeBatchSize))
+                .register(meterRegistry);
+        this.completionBatcher = completeBatchSize > 1
+                ? new RequestBatcher<>("idempotency-jdbc-completer", this::completeBatch,
+                        completeBatchWindow.toNanos(), completeBatchSize, completeBatchTimeout.toNanos(),
+                        batchSizes::record)
+                : null;
+
+        logger.info("Using JdbcIdempotencyStore, delete batch size: {}, completion batches of up to {} within {}",
+                deleteBatchSize, completeBatchSize, completeBatchWindow);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        String status = record.isCompleted() ? COMPLETED : IN_PROGRESS;
+        byte[] reservation = RecordCodec.encodeReservation(record);
+        byte[] response = record.getResponse() != null ? RecordCodec.encodeResponse(record.getResponse()) : null;
+        long expiresAt = record.getExpiresAt().toEpochMilli();
+
+        // Portable upsert: update, else insert, and if a concurrent insert won, update again
+        while (jdbc.update(UPDATE, ps -> {
+            ps.setString(1, status);
+            ps.setBytes(2, reservation);
+            setBytesOrNull(ps, 3, response);
+            ps.setLong(4, expiresAt);
+            ps.setString(5, key);
+        }) == 0) {
+            if (insertIfAbsent(key, status, reservation, response, expiresAt)) {
+                break;
+            }
+        }
+        logger.debug("Saved idempotency record for key: {}", key);
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        byte[] reservation = RecordCodec.encode(record);
+        long expiresAt = record.getExpiresAt().toEpochMilli();
+
+        while (true) {
+            if (insertIfAbsent(key, IN_PROGRESS, reservation, null, expiresAt)) {
+                logger.debug("Reserved idempotency key: {}", key);
+                return Optional.empty();
+            }
+
+            List<StoredRow> rows = jdbc.query(SELECT, ROW_MAPPER, key);
+            if (rows.isEmpty()) {
+                // Deleted since the insert lost; try again
+                continue;
+            }
+            StoredRow row = rows.get(0);
+            long nowMillis = System.currentTimeMillis();
+            if (row.expiresAt < nowMillis) {
+                // Only an expired row is removed, so a concurrent fresh reservation survives
+                jdbc.update(DELETE_IF_EXPIRED, key, nowMillis);
+                continue;
+            }
+
+            IdempotencyRecord existing = row.toRecord();
+            logger.debug("Idempotency key already reserved: {} ({})", key, existing.getStatus());
+            return Optional.of(existing);
+        }
+    }
+
+    /**
+     * Insert every reservation in one JDBC batch; only keys whose insert lost
+     * are read back, together, to return the record holding them.
+     */
+    @Override
+    public List<Optional<IdempotencyRecord>> reserveAll(List<IdempotencyRecord> records) {
+        List<byte[]> reservations = records.stream().map(RecordCodec::encode).collect(Collectors.toList());
+        // Not in an explicit transaction, but the driver may still run the batch as one implicit
+        // transaction (PostgreSQL's does): its rows then commit together when the batch ends, and
+        // another node inserting one of these keys waits for that. ON CONFLICT DO NOTHING keeps a
+        // taken key from failing the rest of the batch.
+        int[] counts = jdbc.batchUpdate(INSERT_IF_ABSENT, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                IdempotencyRecord record = records.get(i);
+                ps.setString(1, record.getIdempotencyKey());
+                ps.setString(2, IN_PROGRESS);
+                ps.setBytes(3, reservations.get(i));
+                ps.setNull(4, Types.VARBINARY);
+                ps.setLong(5, record.getExpiresAt().toEpochMilli());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return records.size();
+            }
+        });
+
+        List<Optional<IdempotencyRecord>> results = new ArrayList<>(
+                Collections.nCopies(records.size(), Optional.empty()));
+        List<Integer> lost = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 1) {
+                lost.add(i);
+            }
+        }
+        if (lost.isEmpty()) {
+            return results;
+        }
+
+        Map<String, StoredRow> rows = selectRows(lost.stream()
+                .map(i -> records.get(i).getIdempotencyKey())
+                .collect(Collectors.toList()));
+        long nowMillis = System.currentTimeMillis();
+        for (int i : lost) {
+            IdempotencyRecord record = records.get(i);
+            StoredRow row = rows.get(record.getIdempotencyKey());
+            if (row != null && Arrays.equals(row.reservation, reservations.get(i))) {
+                // Inserted after all, by a driver that does not report batch counts
+                continue;
+            }
+            if (row != null && row.expiresAt >= nowMillis) {
+                results.set(i, Optional.of(row.toRecord()));
+            } else {
+                // Deleted or expired since the insert lost: settle this key on its own
+                results.set(i, reserve(record));
+            }
+        }
+        logger.debug("Reserved {} of {} idempotency keys in one batch",
+                records.size() - lost.size(), records.size());
+        return results;
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        Completion completion = new Completion(idempotencyKey, RecordCodec.encodeResponse(response),
+                expiresAt.toEpochMilli());
+        boolean completed = completionBatcher != null
+                ? completionBatcher.execute(completion)
+                : completeBatch(List.of(completion)).get(0);
+
+        if (completed) {
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+        } else {
+            logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        }
+        return completed;
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        List<StoredRow> rows = jdbc.query(SELECT_LIVE, ROW_MAPPER, idempotencyKey, System.currentTimeMillis());
+        if (rows.isEmpty()) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+        logger.debug("Found idempotency record for key: {}", idempotencyKey);
+        return Optional.of(rows.get(0).toRecord());
+    }
+
+    @Override
+    public Map<String, IdempotencyRecord> findAllByKey(Collection<String> idempotencyKeys) {
+        long nowMillis = System.currentTimeMillis();
+        Map<String, IdempotencyRecord> found = new HashMap<>();
+        selectRows(idempotencyKeys).forEach((key, row) -> {
+            if (row.expiresAt >= nowMillis) {
+                found.put(key, row.toRecord());
+            }
+        });
+        return found;
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        jdbc.update(DELETE, idempotencyKey);
+        logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        boolean released = jdbc.update(RELEASE, idempotencyKey, RecordCodec.encodeReservation(reservation)) > 0;
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released);
+        return released;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        CleanupStats stats;
+        int removed = 0;
+        do {
+            stats = cleanupExpired(Integer.MAX_VALUE, Duration.ofDays(1));
+            removed += stats.getRemoved();
+        } while (!stats.isPassCompleted());
+        logger.info("Cleaned up {} expired idempotency records", removed);
+    }
+
+    /**
+     * Delete expired rows in batches of at most deleteBatchSize until none are
+     * left or a budget is spent. Each batch is its own short statement, so
+     * locks are held briefly and no single DELETE touches the whole table.
+     */
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        long start = System.nanoTime();
+        long deadline = start + maxDuration.toNanos();
+        long nowMillis = System.currentTimeMillis();
+        int removed = 0;
+        boolean passCompleted = false;
+
+        while (removed < maxEntries && System.nanoTime() - deadline < 0) {
+            int limit = Math.min(deleteBatchSize, maxEntries - removed);
+            int deleted = jdbc.update(DELETE_EXPIRED_BATCH, nowMillis, limit);
+            removed += deleted;
+            if (deleted < limit) {
+                passCompleted = true;
+                break;
+            }
+        }
+
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        if (removed > 0) {
+            logger.debug("Deleted {} expired idempotency records in {} ms", removed, elapsed.toMillis());
+        }
+        return new CleanupStats(removed, removed, elapsed, passCompleted);
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (completionBatcher != null) {
+            completionBatcher.close();
+        }
+    }
+
+    /**
+     * Write a batch of completions as one JDBC batch in one transaction.
+     */
+    private List<Boolean> completeBatch(List<Completion> completions) {
+        int[] counts = transaction.execute(status -> jdbc.batchUpdate(COMPLETE, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                Completion completion = completions.get(i);
+                ps.setBytes(1, completion.response);
+                ps.setLong(2, completion.expiresAt);
+                ps.setString(3, completion.key);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return completions.size();
+            }
+        }));
+
+        List<Boolean> completed = new ArrayList<>(completions.size());
+        for (int count : counts) {
+            // Drivers that do not report batch counts are taken at their word
+            completed.add(count > 0 || count == Statement.SUCCESS_NO_INFO);
+        }
+        return completed;
+    }
+
+    /**
+     * Read the rows for many keys, expired ones included, one IN list at a time.
+     */
+    private Map<String, StoredRow> selectRows(Collection<String> keys) {
+        List<String> remaining = new ArrayList<>(keys);
+        Map<String, StoredRow> rows = new HashMap<>();
+        for (int from = 0; from < remaining.size(); from += IN_LIST_SIZE) {
+            List<String> chunk = remaining.subList(from, Math.min(from + IN_LIST_SIZE, remaining.size()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            for (Map.Entry<String, StoredRow> row : jdbc.query(SELECT_IN + "(" + placeholders + ")",
+                    KEYED_ROW_MAPPER, chunk.toArray())) {
+                rows.put(row.getKey(), row.getValue());
+            }
+        }
+        return rows;
+    }
+
+    private boolean insertIfAbsent(String key, String status, byte[] reservation, byte[] response, long expiresAt) {
+        return jdbc.update(INSERT_IF_ABSENT, ps -> {
+            ps.setString(1, key);
+            ps.setString(2, status);
+            ps.setBytes(3, reservation);
+            setBytesOrNull(ps, 4, response);
+            ps.setLong(5, expiresAt);
+        }) == 1;
+    }
+
+    private static void setBytesOrNull(PreparedStatement ps, int index, byte[] value) throws SQLException {
+        if (value != null) {
+            ps.setBytes(index, value);
+        } else {
+            ps.setNull(index, Types.VARBINARY);
+        }
+    }
+
+    /**
+     * A row as read, decoded on demand.
+     */
+    private static final class StoredRow {
+
+        private final String status;
+        private final byte[] reservation;
+        private final byte[] response;
+        private final long expiresAt;
+
+        private StoredRow(String status, byte[] reservation, byte[] response, long expiresAt) {
+            this.status = status;
+            this.reservation = reservation;
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+        private IdempotencyRecord toRecord() {
+            return RecordCodec.decodeReservation(reservation, COMPLETED.equals(status) ? response : null,
+                    Instant.ofEpochMilli(expiresAt));
+        }
+    }
+
+    /**
+     * A pending completion; compared by identity so every call gets its own batch slot.
+     */
+    private static final class Completion {
+
+        private final String key;
+        private final byte[] response;
+        private final long expiresAt;
+
+        private Completion(String key, byte[] response, long expiresAt) {
+            this.key = key;
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.payment.repository;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Brings in the spring.datasource.* DataSource for the jdbc store only.
+ *
+ * DataSourceAutoConfiguration is excluded application-wide: with spring-jdbc on
+ * the classpath it would otherwise demand a database from every store.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnClass(JdbcTemplate.class)
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "jdbc")
+@Import(DataSourceAutoConfiguration.class)
+public class JdbcStoreConfiguration {
+}
@@ -0,0 +1,836 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, append-only implementation of IdempotencyStore.
+ *
+ * Every write appends an entry (a {@link RecordCodec} record, or a delete
+ * tombstone) to the active {@link LogSegment}, a preallocated memory-mapped
+ * file. An in-memory hash index maps each key to the segment and offset of its
+ * latest record plus its expiry and status, so lookups read straight from the
+ * mapping and expiry checks need no I/O.
+ *
+ * The index is checkpointed periodically and on shutdown ({@link IndexCheckpoint}).
+ * On startup the store loads the last checkpoint and replays only the log
+ * written after it, skipping expired records; without a usable checkpoint it
+ * replays every segment. IN_PROGRESS reservations are restored as such, but
+ * only for payment.idempotency.log.recovered-lease: the requests behind them
+ * died with the previous process, so once the lease runs out the key can be
+ * reserved again instead of answering 409 until the reservation's TTL.
+ *
+ * Durability follows payment.idempotency.log.fsync:
+ * <ul>
+ *   <li>always: a write returns only once it is forced to disk. Concurrent
+ *       writers share one force (group commit).</li>
+ *   <li>interval: a background flusher forces every fsync-interval; a crash
+ *       may lose the writes of the last interval.</li>
+ *   <li>never: flushing is left to the OS page cache.</li>
+ * </ul>
+ *
+ * Records are never rewritten. Records usually share one TTL, so segments age
+ * out in the order they were written: cleanup deletes the oldest segments
+ * wholesale once every entry in them has expired. Only a prefix of the log is
+ * dropped, so an older record can never outlive a newer one for the same key.
+ *
+ * Enable with payment.idempotency.store=log.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "log")
+public class LogIdempotencyStore implements IdempotencyStore, MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogIdempotencyStore.class);
+    private static final int CLEANUP_CLOCK_CHECK_MASK = 63;
+
+    public enum FsyncPolicy {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final Duration recoveredLease;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+
+    // Appends are serialized; the sequence numbers them for group commit
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile LogSegment active;
+    private long appendedSequence;
+
+    // Holder of syncLock forces the log on behalf of every writer waiting behind it;
+    // package-private so tests can queue writers behind it
+    final ReentrantLock syncLock = new ReentrantLock();
+    private volatile long durableSequence;
+    private final ScheduledExecutorService flusher;
+
+    // Incremental cleanup resumes from this weakly consistent iterator
+    private final ReentrantLock cleanupLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Location>> cleanupCursor;
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncNanosTotal = new AtomicLong();
+    private final AtomicLong syncedEntries = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    // Checkpoints are written by the scheduler and on shutdown, one at a time
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private long checkpointedSequence = -1;
+    private final AtomicLong checkpoints = new AtomicLong();
+    private final AtomicLong checkpointNanosTotal = new AtomicLong();
+
+    // Outcome of the startup recovery
+    private boolean recoveredFromCheckpoint;
+    private long recoveredInProgress;
+    private long lastRecoveryNanos;
+
+    /**
+     * @param directory     directory holding the segment files, created if missing
+     * @param segmentSize   size of each preallocated segment file
+     * @param fsync         always, interval or never
+     * @param fsyncInterval flush period for the interval policy
+     * @param recoveredLease how long a reservation recovered on startup stays IN_PROGRESS
+     */
+    @Autowired
+    public LogIdempotencyStore(
+            @Value("${payment.idempotency.log.directory:data/idempotency}") String directory,
+            @Value("${payment.idempotency.log.segment-size:64MB}") DataSize segmentSize,
+            @Value("${payment.idempotency.log.fsync:always}") String fsync,
+            @Value("${payment.idempotency.log.fsync-interval:PT0.05S}") Duration fsyncInterval,
+            @Value("${payment.idempotency.log.recovered-lease:${payment.idempotency.in-progress-timeout:PT5S}}")
+                    Duration recoveredLease) {
+        if (segmentSize.toBytes() <= LogSegment.HEADER_BYTES || segmentSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid log segment size: " + segmentSize);
+        }
+        this.directory = Paths.get(directory);
+        this.segmentSize = (int) segmentSize.toBytes();
+        this.fsyncPolicy = FsyncPolicy.valueOf(fsync.trim().toUpperCase(Locale.ROOT));
+        this.recoveredLease = recoveredLease;
+
+        try {
+            Files.createDirectories(this.directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open idempotency log in " + this.directory, e);
+        }
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "idempotency-log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long periodNanos = Math.max(1, fsyncInterval.toNanos());
+            flusher.scheduleWithFixedDelay(this::flushQuietly, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.flusher = null;
+        }
+
+        logger.info("Using LogIdempotencyStore in {}: {} segments, {} records, {} byte segments, fsync {}",
+                this.directory, segments.size(), index.size(), this.segmentSize, fsyncPolicy);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        byte[] payload = RecordCodec.encode(record);
+        Location location = withRoom(() -> index.compute(record.getIdempotencyKey(),
+                (k, existing) -> append(LogSegment.PUT, payload, record)));
+        awaitDurable(location.sequence);
+        logger.debug("Saved idempotency record for key: {}", record.getIdempotencyKey());
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        byte[] payload = RecordCodec.encode(record);
+        long nowMillis = System.currentTimeMillis();
+        IdempotencyRecord[] found = new IdempotencyRecord[1];
+
+        // compute() runs atomically per key, so only one caller can append the reservation
+        Location location = withRoom(() -> index.compute(key, (k, existing) -> {
+            if (existing != null && existing.expiresAtMillis >= nowMillis) {
+                found[0] = read(existing);
+                if (found[0] != null) {
+                    return existing;
+                }
+            }
+            return append(LogSegment.PUT, payload, record);
+        }));
+
+        if (found[0] != null) {
+            logger.debug("Idempotency key already reserved: {} ({})", key, found[0].getStatus());
+            return Optional.of(found[0]);
+        }
+
+        awaitDurable(location.sequence);
+        logger.debug("Reserved idempotency key: {}", key);
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        boolean[] completed = new boolean[1];
+        Location location = withRoom(() -> index.computeIfPresent(idempotencyKey, (k, existing) -> {
+            if (!existing.inProgress) {
+                return existing;
+            }
+            IdempotencyRecord reserved = read(existing);
+            if (reserved == null) {
+                return null;
+            }
+            IdempotencyRecord done = reserved.complete(response, expiresAt);
+            Location appended = append(LogSegment.PUT, RecordCodec.encode(done), done);
+            completed[0] = true;
+            return appended;
+        }));
+
+        if (completed[0]) {
+            awaitDurable(location.sequence);
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+        } else {
+            logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        }
+        return completed[0];
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        Location location = index.get(idempotencyKey);
+
+        if (location == null) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+
+        if (location.expiresAtMillis < System.currentTimeMillis()) {
+            logger.debug("Idempotency record expired for key: {}", idempotencyKey);
+            // Only drop the exact entry we saw, a concurrent reserve may have replaced it
+            index.remove(idempotencyKey, location);
+            return Optional.empty();
+        }
+
+        IdempotencyRecord record = read(location);
+        if (record == null) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+
+        logger.debug("Found idempotency record for key: {}", idempotencyKey);
+        return Optional.of(record);
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        long[] sequence = new long[1];
+        withRoom(() -> index.computeIfPresent(idempotencyKey, (k, existing) -> {
+            sequence[0] = appendTombstone(k, existing.expiresAtMillis);
+            return null;
+        }));
+        awaitDurable(sequence[0]);
+        logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        long[] sequence = new long[1];
+        withRoom(() -> index.computeIfPresent(idempotencyKey, (k, existing) -> {
+            if (!existing.inProgress) {
+                return existing;
+            }
+            IdempotencyRecord reserved = read(existing);
+            if (reserved != null && !reserved.isReservation(reservation)) {
+                return existing;
+            }
+            sequence[0] = appendTombstone(k, existing.expiresAtMillis);
+            return null;
+        }));
+        boolean released = sequence[0] != 0;
+        if (released) {
+            awaitDurable(sequence[0]);
+        }
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released);
+        return released;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        cleanupLock.lock();
+        try {
+            // A full cleanup always covers the whole index, so restart the pass
+            cleanupCursor = null;
+            cleanupExpired(Integer.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE));
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Drop fully expired segments, then sweep expired entries out of the index.
+     * Neither step writes to the log.
+     */
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        cleanupLock.lock();
+        try {
+            long start = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            int scanned = 0;
+            int removed = 0;
+            boolean passCompleted = false;
+
+            int dropped = dropExpiredSegments(nowMillis);
+
+            if (cleanupCursor == null) {
+                cleanupCursor = index.entrySet().iterator();
+            }
+
+            while (scanned < maxEntries) {
+                if (!cleanupCursor.hasNext()) {
+                    cleanupCursor = null;
+                    passCompleted = true;
+                    break;
+                }
+
+                Map.Entry<String, Location> entry = cleanupCursor.next();
+                scanned++;
+                if (entry.getValue().expiresAtMillis < nowMillis
+                        && index.remove(entry.getKey(), entry.getValue())) {
+                    removed++;
+                }
+
+                // Reading the clock is not free, only check the time budget periodically
+                if ((scanned & CLEANUP_CLOCK_CHECK_MASK) == 0
+                        && System.nanoTime() - start >= maxDuration.toNanos()) {
+                    break;
+                }
+            }
+
+            CleanupStats stats = new CleanupStats(
+                    scanned, removed, Duration.ofNanos(System.nanoTime() - start), passCompleted);
+            if (removed > 0 || dropped > 0) {
+                logger.info("Cleaned up {} expired idempotency records and {} log segments", removed, dropped);
+            }
+            logger.debug("Cleanup run: {}", stats);
+            return stats;
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Force all appended entries to disk.
+     */
+    public void flush() {
+        forceThrough(Long.MAX_VALUE);
+    }
+
+    /**
+     * Force the log unless the entry with this sequence is already on disk.
+     * A force covers everything appended when it starts, so it may cover the
+     * entries of writers queued behind it as well.
+     */
+    private void forceThrough(long sequence) {
+        syncLock.lock();
+        try {
+            // Forced by whoever held the lock while this caller queued for it
+            if (durableSequence >= sequence) {
+                return;
+            }
+            long target;
+            LogSegment segment;
+            appendLock.lock();
+            try {
+                target = appendedSequence;
+                segment = active;
+            } finally {
+                appendLock.unlock();
+            }
+            if (durableSequence >= target) {
+                return;
+            }
+
+            // Sealed segments were forced when they were rolled
+            long start = System.nanoTime();
+            segment.force();
+            syncNanosTotal.addAndGet(System.nanoTime() - start);
+            syncs.incrementAndGet();
+            syncedEntries.addAndGet(target - durableSequence);
+            durableSequence = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Write an index checkpoint so the next startup only replays the log after this point.
+     * Skipped when nothing was appended since the last checkpoint.
+     */
+    @Scheduled(fixedDelayString = "${payment.idempotency.log.checkpoint-interval:PT1M}",
+            initialDelayString = "${payment.idempotency.log.checkpoint-interval:PT1M}")
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long start = System.nanoTime();
+            long sequence;
+            long segmentId;
+            int offset;
+            appendLock.lock();
+            try {
+                sequence = appendedSequence;
+                segmentId = active.getId();
+                offset = active.getWritePosition();
+            } finally {
+                appendLock.unlock();
+            }
+            if (sequence == checkpointedSequence) {
+                return;
+            }
+
+            // Everything before the checkpoint position must be on disk before the checkpoint is
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                flush();
+            }
+
+            Map<Long, Long> segmentMaxExpiresAt = new LinkedHashMap<>();
+            for (LogSegment segment : segments.values()) {
+                segmentMaxExpiresAt.put(segment.getId(), segment.getMaxExpiresAt());
+            }
+            long nowMillis = System.currentTimeMillis();
+            Iterable<IndexCheckpoint.Entry> entries = () -> index.entrySet().stream()
+                    .filter(entry -> entry.getValue().expiresAtMillis >= nowMillis)
+                    .map(entry -> new IndexCheckpoint.Entry(entry.getKey(), entry.getValue().segmentId,
+                            entry.getValue().offset, entry.getValue().expiresAtMillis, entry.getValue().inProgress))
+                    .iterator();
+
+            long written;
+            try {
+                written = IndexCheckpoint.write(directory, segmentId, offset, segmentMaxExpiresAt, entries);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write index checkpoint in " + directory, e);
+            }
+            checkpointedSequence = sequence;
+
+            long elapsed = System.nanoTime() - start;
+            checkpoints.incrementAndGet();
+            checkpointNanosTotal.addAndGet(elapsed);
+            logger.debug("Checkpointed {} index entries at segment {} offset {} in {} ms",
+                    written, segmentId, offset, elapsed / 1_000_000);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            flush();
+        }
+        checkpoint();
+        logger.info("Closed idempotency log in {}", directory);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.store.size", index, Map::size)
+                .description("Idempotency records in the log index")
+                .register(registry);
+        Gauge.builder("idempotency.log.segments", segments, Map::size)
+                .description("Segment files of the idempotency log")
+                .register(registry);
+        Gauge.builder("idempotency.log.disk", this, LogIdempotencyStore::diskBytes)
+                .description("Disk space preallocated for log segments")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("idempotency.log.segments.dropped", droppedSegments, AtomicLong::get)
+                .description("Fully expired segments deleted by cleanup")
+                .register(registry);
+        FunctionTimer.builder("idempotency.log.sync", this,
+                        s -> s.syncs.get(), s -> s.syncNanosTotal.get(), TimeUnit.NANOSECONDS)
+                .description("Forces of the log to disk")
+                .register(registry);
+        FunctionCounter.builder("idempotency.log.sync.entries", syncedEntries, AtomicLong::get)
+                .description("Log entries made durable; divide by sync count for the group commit size")
+                .register(registry);
+        FunctionTimer.builder("idempotency.log.checkpoint", this,
+                        s -> s.checkpoints.get(), s -> s.checkpointNanosTotal.get(), TimeUnit.NANOSECONDS)
+                .description("Index checkpoints written")
+                .register(registry);
+        Gauge.builder("idempotency.log.recovery", this, s -> s.lastRecoveryNanos / 1_000_000.0)
+                .description("Duration of the startup recovery")
+                .baseUnit("milliseconds")
+                .register(registry);
+        Gauge.builder("idempotency.log.recovery.in-progress", this, s -> s.recoveredInProgress)
+                .description("IN_PROGRESS records restored by the startup recovery")
+                .register(registry);
+    }
+
+    /**
+     * Number of records in the index, including expired ones not yet reclaimed.
+     */
+    public long size() {
+        return index.size();
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    boolean isRecoveredFromCheckpoint() {
+        return recoveredFromCheckpoint;
+    }
+
+    long getRecoveredInProgress() {
+        return recoveredInProgress;
+    }
+
+    Duration getLastRecoveryTime() {
+        return Duration.ofNanos(lastRecoveryNanos);
+    }
+
+    long diskBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(LogSegment::isSegmentFile)
+                    .sorted((a, b) -> Long.compare(LogSegment.idOf(a), LogSegment.idOf(b)))
+                    .collect(Collectors.toList());
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        long replayed = recoverFromCheckpoint(files, nowMillis);
+        if (replayed < 0) {
+            index.clear();
+            segments.clear();
+            replayed = 0;
+            for (Path file : files) {
+                LogSegment segment = LogSegment.open(file);
+                replayed += replay(segment, LogSegment.HEADER_BYTES, nowMillis);
+                segments.put(segment.getId(), segment);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            LogSegment first = LogSegment.create(directory, 0, segmentSize);
+            segments.put(first.getId(), first);
+        }
+        active = segments.lastEntry().getValue();
+        dropExpiredSegments(nowMillis);
+
+        // The requests behind these reservations died with the previous process. They stay
+        // IN_PROGRESS for the lease so a late duplicate is not charged twice, then expire in
+        // the index so a retry can reserve the key again. The log keeps the original expiry,
+        // so a later restart starts a new lease from its own recovery time.
+        long leaseEndMillis = System.currentTimeMillis() + recoveredLease.toMillis();
+        recoveredInProgress = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (location.inProgress) {
+                recoveredInProgress++;
+                if (location.expiresAtMillis > leaseEndMillis) {
+                    entry.setValue(new Location(location.segmentId, location.offset,
+                            leaseEndMillis, true, location.sequence));
+                }
+            }
+        }
+        lastRecoveryNanos = System.nanoTime() - start;
+        if (recoveredInProgress > 0) {
+            logger.warn("Recovered {} IN_PROGRESS idempotency records from {}, leased for {}",
+                    recoveredInProgress, directory, recoveredLease);
+        }
+        logger.info("Recovered {} idempotency records in {} ms ({} log entries replayed, checkpoint {})",
+                index.size(), lastRecoveryNanos / 1_000_000, replayed, recoveredFromCheckpoint ? "used" : "not used");
+    }
+
+    /**
+     * Load the index checkpoint and replay the log written after it.
+     *
+     * @return number of log entries replayed, or -1 if the log must be replayed in full
+     */
+    private long recoverFromCheckpoint(List<Path> files, long nowMillis) throws IOException {
+        Map<Long, Long> segmentMaxExpiresAt = new HashMap<>();
+        IndexCheckpoint checkpoint;
+        try {
+            checkpoint = IndexCheckpoint.read(directory, segmentMaxExpiresAt, entry -> {
+                if (entry.expiresAtMillis >= nowMillis) {
+                    index.put(entry.key, new Location(
+                            entry.segmentId, entry.offset, entry.expiresAtMillis, entry.inProgress, 0));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable index checkpoint in {}, replaying the full log", directory, e);
+            return -1;
+        }
+        if (checkpoint == null) {
+            return -1;
+        }
+
+        long replayed = 0;
+        for (Path file : files) {
+            LogSegment segment = LogSegment.open(file);
+            Long maxExpiresAt = segmentMaxExpiresAt.get(segment.getId());
+            if (maxExpiresAt != null) {
+                segment.observeExpiry(maxExpiresAt);
+            }
+            if (segment.getId() > checkpoint.segmentId) {
+                replayed += replay(segment, LogSegment.HEADER_BYTES, nowMillis);
+            } else if (segment.getId() == checkpoint.segmentId) {
+                replayed += replay(segment, checkpoint.offset, nowMillis);
+            } else if (maxExpiresAt == null) {
+                logger.warn("Index checkpoint does not cover segment {}, replaying the full log", file);
+                return -1;
+            }
+            segments.put(segment.getId(), segment);
+        }
+        if (!segments.containsKey(checkpoint.segmentId)) {
+            logger.warn("Index checkpoint refers to missing segment {}, replaying the full log", checkpoint.segmentId);
+            return -1;
+        }
+
+        // Appends continue while a checkpoint is written, so it may point past a torn tail
+        LogSegment last = segments.lastEntry().getValue();
+        for (Location location : index.values()) {
+            if (!segments.containsKey(location.segmentId) || (location.segmentId == last.getId()
+                    && location.offset >= last.getWritePosition())) {
+                logger.warn("Index checkpoint points past the end of the log, replaying the full log");
+                return -1;
+            }
+        }
+
+        recoveredFromCheckpoint = true;
+        return replayed;
+    }
+
+    private int replay(LogSegment segment, int fromOffset, long nowMillis) {
+        int entries = segment.replay(fromOffset, (offset, type, payload) ->
+                replayEntry(segment, offset, type, payload, nowMillis));
+        logger.debug("Replayed {} entries from {}", entries, segment.getPath());
+        return entries;
+    }
+
+    private void replayEntry(LogSegment segment, int offset, byte type, ByteBuffer payload, long nowMillis) {
+        if (type == LogSegment.PUT) {
+            IdempotencyRecord record = RecordCodec.decode(payload);
+            long expiresAtMillis = record.getExpiresAt().toEpochMilli();
+            segment.observeExpiry(expiresAtMillis);
+            if (expiresAtMillis < nowMillis) {
+                index.remove(record.getIdempotencyKey());
+            } else {
+                index.put(record.getIdempotencyKey(),
+                        new Location(segment.getId(), offset, expiresAtMillis, record.isInProgress(), 0));
+            }
+        } else if (type == LogSegment.DELETE) {
+            long expiresAtMillis = payload.getLong();
+            byte[] key = new byte[payload.remaining()];
+            payload.get(key);
+            segment.observeExpiry(expiresAtMillis);
+            index.remove(new String(key, StandardCharsets.UTF_8));
+        }
+    }
+
+    private Location append(byte type, byte[] payload, IdempotencyRecord record) {
+        long expiresAtMillis = record.getExpiresAt().toEpochMilli();
+        if (LogSegment.HEADER_BYTES + LogSegment.ENTRY_OVERHEAD + payload.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + payload.length
+                    + " bytes exceeds log segment size " + segmentSize);
+        }
+
+        appendLock.lock();
+        try {
+            int offset = active.append(type, payload, expiresAtMillis);
+            if (offset < 0) {
+                throw new SegmentFullException(active);
+            }
+            return new Location(active.getId(), offset, expiresAtMillis, record.isInProgress(), ++appendedSequence);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private long appendTombstone(String key, long expiresAtMillis) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(8 + keyBytes.length).putLong(expiresAtMillis).put(keyBytes).array();
+
+        appendLock.lock();
+        try {
+            if (active.append(LogSegment.DELETE, payload, expiresAtMillis) < 0) {
+                throw new SegmentFullException(active);
+            }
+            return ++appendedSequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Run an index update that appends to the log, rolling the log and
+     * retrying when the active segment is full. The roll forces the sealed
+     * segment and creates a file, so it runs here, after the update has
+     * given up its key, rather than inside the map's compute.
+     */
+    private <T> T withRoom(Supplier<T> update) {
+        while (true) {
+            try {
+                return update.get();
+            } catch (SegmentFullException e) {
+                appendLock.lock();
+                try {
+                    // Another writer may have rolled while this one waited for the lock
+                    if (active == e.segment) {
+                        roll();
+                    }
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Seal the active segment and start the next one. Caller holds the append lock. */
+    private void roll() {
+        LogSegment sealed = active;
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            sealed.force();
+        }
+        try {
+            LogSegment next = LogSegment.create(directory, sealed.getId() + 1, segmentSize);
+            segments.put(next.getId(), next);
+            active = next;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create idempotency log segment in " + directory, e);
+        }
+        logger.debug("Rolled idempotency log to segment {}", active.getId());
+    }
+
+    /**
+     * Group commit: return once the entry with this sequence is on disk. The
+     * first waiter forces the log; writers queued behind it find their
+     * entries covered once they get the lock and return without forcing.
+     */
+    private void awaitDurable(long sequence) {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS || sequence == 0 || durableSequence >= sequence) {
+            return;
+        }
+        forceThrough(sequence);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Failed to flush idempotency log", e);
+        }
+    }
+
+    private int dropExpiredSegments(long nowMillis) {
+        int dropped = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment == active || segment.getMaxExpiresAt() >= nowMillis) {
+                break;
+            }
+            segments.remove(segment.getId());
+            segment.delete();
+            droppedSegments.incrementAndGet();
+            dropped++;
+            logger.debug("Dropped expired idempotency log segment {}", segment.getPath());
+        }
+        return dropped;
+    }
+
+    private IdempotencyRecord read(Location location) {
+        LogSegment segment = segments.get(location.segmentId);
+        if (segment == null) {
+            // Segment was dropped: everything in it had expired
+            return null;
+        }
+        return RecordCodec.decode(segment.payload(location.offset));
+    }
+
+    /**
+     * Thrown out of an index update when its entry does not fit in the active
+     * segment; the map leaves the key unchanged and {@link #withRoom} retries.
+     */
+    private static final class SegmentFullException extends RuntimeException {
+
+        final transient LogSegment segment;
+
+        SegmentFullException(LogSegment segment) {
+            super(null, null, false, false);
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Index entry: where a key's latest record lives, plus what is needed to
+     * answer expiry and status checks without reading it.
+     */
+    private static final class Location {
+
+        final long segmentId;
+        final int offset;
+        final long expiresAtMillis;
+        final boolean inProgress;
+        final long sequence;
+
+        Location(long segmentId, int offset, long expiresAtMillis, boolean inProgress, long sequence) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.expiresAtMillis = expiresAtMillis;
+            this.inProgress = inProgress;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.payment.repository;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped, preallocated segment file of the idempotency log.
+ *
+ * File layout: an 8 byte header (magic, format version) followed by entries
+ * of [int payload length][int CRC32 of type and payload][byte type][payload].
+ * The unwritten rest of the file is zero, so a zero length marks the end.
+ *
+ * Appends are serialized by the caller. Reads use absolute positions on a
+ * duplicate of the mapping and may run concurrently with appends.
+ */
+final class LogSegment {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    static final int HEADER_BYTES = 8;
+    static final int ENTRY_OVERHEAD = 9;
+
+    private static final int MAGIC = 0x49444c47;
+    private static final int VERSION = 1;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private final long id;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private volatile int writePosition;
+    private volatile long maxExpiresAt = Long.MIN_VALUE;
+
+    private LogSegment(long id, Path path, MappedByteBuffer buffer, int writePosition) {
+        this.id = id;
+        this.path = path;
+        this.buffer = buffer;
+        this.writePosition = writePosition;
+    }
+
+    /**
+     * Create and preallocate a new segment file.
+     */
+    static LogSegment create(Path directory, long id, int size) throws IOException {
+        Path path = directory.resolve(fileName(id));
+        MappedByteBuffer buffer = map(path, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        return new LogSegment(id, path, buffer, HEADER_BYTES);
+    }
+
+    /**
+     * Map an existing segment file. Call {@link #replay} before appending to it.
+     */
+    static LogSegment open(Path path) throws IOException {
+        MappedByteBuffer buffer = map(path, (int) Files.size(path));
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an idempotency log segment: " + path);
+        }
+        return new LogSegment(idOf(path), path, buffer, HEADER_BYTES);
+    }
+
+    static boolean isSegmentFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    static long idOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static String fileName(long id) {
+        return String.format("%s%020d%s", PREFIX, id, SUFFIX);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Append an entry if it fits.
+     *
+     * @return the entry offset, or -1 if the segment is full
+     */
+    int append(byte type, byte[] payload, long expiresAtMillis) {
+        int offset = writePosition;
+        if (offset + ENTRY_OVERHEAD + payload.length > buffer.capacity()) {
+            return -1;
+        }
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + ENTRY_OVERHEAD);
+        target.put(payload);
+        buffer.put(offset + 8, type);
+        buffer.putInt(offset + 4, checksum(type, payload));
+        // Length last: a non-zero length is what makes the entry visible to replay
+        buffer.putInt(offset, payload.length);
+
+        writePosition = offset + ENTRY_OVERHEAD + payload.length;
+        if (expiresAtMillis > maxExpiresAt) {
+            maxExpiresAt = expiresAtMillis;
+        }
+        return offset;
+    }
+
+    /**
+     * Payload of the entry at an offset, as a buffer positioned at its first byte.
+     */
+    ByteBuffer payload(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + ENTRY_OVERHEAD + buffer.getInt(offset));
+        view.position(offset + ENTRY_OVERHEAD);
+        return view;
+    }
+
+    /**
+     * Validate the entry at an offset.
+     *
+     * @return the entry type, or 0 if there is no complete, intact entry there
+     */
+    byte entryType(int offset) {
+        if (offset + ENTRY_OVERHEAD > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + ENTRY_OVERHEAD + length > buffer.capacity()) {
+            return 0;
+        }
+        byte type = buffer.get(offset + 8);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + ENTRY_OVERHEAD);
+        view.get(payload);
+        return buffer.getInt(offset + 4) == checksum(type, payload) ? type : 0;
+    }
+
+    /**
+     * Visit every intact entry from an offset on and move the write position
+     * past the last one. A torn or corrupt entry ends the scan and is zeroed,
+     * together with everything after it.
+     *
+     * @return number of entries visited
+     */
+    int replay(int fromOffset, EntryVisitor visitor) {
+        int offset = fromOffset;
+        int entries = 0;
+        byte type;
+        while ((type = entryType(offset)) != 0) {
+            visitor.visit(offset, type, payload(offset));
+            offset += ENTRY_OVERHEAD + buffer.getInt(offset);
+            entries++;
+        }
+        if (offset + 4 <= buffer.capacity() && buffer.getInt(offset) != 0) {
+            truncate(offset);
+        }
+        writePosition = offset;
+        return entries;
+    }
+
+    /**
+     * Zero everything from an offset on.
+     */
+    void truncate(int offset) {
+        byte[] zeros = new byte[8192];
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        while (target.hasRemaining()) {
+            target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+        }
+        writePosition = offset;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete log segment " + path, e);
+        }
+    }
+
+    void observeExpiry(long expiresAtMillis) {
+        if (expiresAtMillis > maxExpiresAt) {
+            maxExpiresAt = expiresAtMillis;
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Latest expiry of any entry in this segment; once passed, the whole segment is garbage.
+     */
+    long getMaxExpiresAt() {
+        return maxExpiresAt;
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        void visit(int offset, byte type, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.payment.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+
+/**
+ * Puts a NearCacheIdempotencyStore in front of whichever store is selected.
+ *
+ * Enable with payment.idempotency.near-cache.enabled=true.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "payment.idempotency.near-cache.enabled", havingValue = "true")
+public class NearCacheConfiguration {
+
+    /**
+     * Wraps the store once it is fully initialized. Not Ordered, so it runs after the
+     * @Scheduled and exception translation post processors have seen the plain store.
+     */
+    @Bean
+    static BeanPostProcessor nearCacheStorePostProcessor(Environment environment) {
+        long maxEntries = environment.getProperty(
+                "payment.idempotency.near-cache.max-entries", Long.class, 100_000L);
+        Duration maxTtl = environment.getProperty(
+                "payment.idempotency.near-cache.max-ttl", Duration.class, Duration.ofMinutes(5));
+
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof IdempotencyStore && !(bean instanceof NearCacheIdempotencyStore)) {
+                    return new NearCacheIdempotencyStore((IdempotencyStore) bean, maxEntries, maxTtl);
+                }
+                return bean;
+            }
+        };
+    }
+
+    /**
+     * A store whose class is not a MeterBinder (Redis) is not picked up by the registry even
+     * once wrapped, so bind the near cache metrics when startup is complete. Binding twice
+     * is harmless: meters are registered once per name.
+     */
+    @Bean
+    SmartInitializingSingleton nearCacheMetrics(ObjectProvider<IdempotencyStore> stores,
+                                                ObjectProvider<MeterRegistry> registries) {
+        return () -> registries.ifAvailable(registry -> stores.orderedStream()
+                .filter(NearCacheIdempotencyStore.class::isInstance)
+                .forEach(store -> ((NearCacheIdempotencyStore) store).bindTo(registry)));
+    }
+}
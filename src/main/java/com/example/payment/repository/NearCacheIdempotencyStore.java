@@ -0,0 +1,287 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier store: a bounded local cache of completed records in front of a
+ * remote store.
+ *
+ * A replay that this node recently served, or looked up, is answered from
+ * the local cache by both findByKey and reserve, without a network hop. Only
+ * COMPLETED records are cached: they never change until they expire, so a
+ * cached copy cannot go stale the way an IN_PROGRESS reservation would.
+ * Everything else, and every write, goes to the remote store. Bulk lookups
+ * and reservations pass only the keys the cache cannot answer, in one call.
+ *
+ * Each cached record expires with its own expiresAt, capped at maxTtl so a
+ * record deleted or replaced through another node is not served for long.
+ * Local deletes and writes invalidate the key.
+ *
+ * Installed by NearCacheConfiguration when payment.idempotency.near-cache.enabled=true.
+ */
+public class NearCacheIdempotencyStore implements IdempotencyStore, MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NearCacheIdempotencyStore.class);
+
+    private final IdempotencyStore remote;
+    private final Cache<String, IdempotencyRecord> local;
+    private final long maxEntries;
+    private final Duration maxTtl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param remote     the store of record
+     * @param maxEntries maximum number of locally cached records
+     * @param maxTtl     longest time a record is served locally
+     */
+    public NearCacheIdempotencyStore(IdempotencyStore remote, long maxEntries, Duration maxTtl) {
+        if (maxEntries <= 0 || maxTtl.isNegative() || maxTtl.isZero()) {
+            throw new IllegalArgumentException("Invalid near cache size or TTL: " + maxEntries + ", " + maxTtl);
+        }
+        this.remote = remote;
+        this.maxEntries = maxEntries;
+        this.maxTtl = maxTtl;
+        this.local = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new RecordExpiry(maxTtl.toNanos()))
+                .executor(Runnable::run)
+                .build();
+        logger.info("Near cache enabled in front of {}: {} entries, max TTL {}",
+                remote.getClass().getSimpleName(), maxEntries, maxTtl);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        remote.save(record);
+        if (record.isCompleted()) {
+            cache(record);
+        } else {
+            local.invalidate(record.getIdempotencyKey());
+        }
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        // A completed record holds the key until it expires: no need to ask the remote store
+        IdempotencyRecord cached = cached(record.getIdempotencyKey());
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        Optional<IdempotencyRecord> existing = remote.reserve(record);
+        existing.ifPresent(this::cache);
+        return existing;
+    }
+
+    @Override
+    public List<Optional<IdempotencyRecord>> reserveAll(List<IdempotencyRecord> records) {
+        List<Optional<IdempotencyRecord>> results = new ArrayList<>(records.size());
+        List<Integer> missed = new ArrayList<>();
+        for (IdempotencyRecord record : records) {
+            IdempotencyRecord cached = cached(record.getIdempotencyKey());
+            if (cached == null) {
+                missed.add(results.size());
+            }
+            results.add(Optional.ofNullable(cached));
+        }
+        if (missed.isEmpty()) {
+            return results;
+        }
+
+        List<IdempotencyRecord> forwarded = new ArrayList<>(missed.size());
+        for (int i : missed) {
+            forwarded.add(records.get(i));
+        }
+        List<Optional<IdempotencyRecord>> reserved = remote.reserveAll(forwarded);
+        for (int j = 0; j < missed.size(); j++) {
+            reserved.get(j).ifPresent(this::cache);
+            results.set(missed.get(j), reserved.get(j));
+        }
+        return results;
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        // The completed record is cached on its first lookup, which brings the fingerprint with it
+        local.invalidate(idempotencyKey);
+        return remote.complete(idempotencyKey, response, expiresAt);
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        IdempotencyRecord cached = cached(idempotencyKey);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        Optional<IdempotencyRecord> found = remote.findByKey(idempotencyKey);
+        found.ifPresent(this::cache);
+        return found;
+    }
+
+    @Override
+    public Map<String, IdempotencyRecord> findAllByKey(Collection<String> idempotencyKeys) {
+        Map<String, IdempotencyRecord> hits = new HashMap<>();
+        List<String> missed = new ArrayList<>();
+        for (String idempotencyKey : idempotencyKeys) {
+            IdempotencyRecord cached = cached(idempotencyKey);
+            if (cached != null) {
+                hits.put(idempotencyKey, cached);
+            } else {
+                missed.add(idempotencyKey);
+            }
+        }
+        if (missed.isEmpty()) {
+            return hits;
+        }
+
+        Map<String, IdempotencyRecord> found = remote.findAllByKey(missed);
+        found.values().forEach(this::cache);
+        hits.putAll(found);
+        return hits;
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        remote.delete(idempotencyKey);
+        local.invalidate(idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        boolean released = remote.release(reservation);
+        local.invalidate(reservation.getIdempotencyKey());
+        return released;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        local.cleanUp();
+        remote.cleanupExpired();
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        local.cleanUp();
+        return remote.cleanupExpired(maxEntries, maxDuration);
+    }
+
+    /**
+     * The remote store's shutdown hooks are not called on a decorated bean, so forward them.
+     */
+    @PreDestroy
+    @Override
+    public void close() throws Exception {
+        if (remote instanceof AutoCloseable) {
+            ((AutoCloseable) remote).close();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (remote instanceof MeterBinder) {
+            ((MeterBinder) remote).bindTo(registry);
+        }
+        Gauge.builder("idempotency.nearcache.size", local, Cache::estimatedSize)
+                .description("Completed records cached locally")
+                .register(registry);
+        FunctionCounter.builder("idempotency.nearcache.hits", hits, AtomicLong::get)
+                .description("Lookups and reservations answered by the local cache")
+                .register(registry);
+        FunctionCounter.builder("idempotency.nearcache.misses", misses, AtomicLong::get)
+                .description("Lookups and reservations passed to the remote store")
+                .register(registry);
+    }
+
+    /**
+     * The store behind the cache.
+     */
+    public IdempotencyStore getRemote() {
+        return remote;
+    }
+
+    /**
+     * An empty near cache with the same limits in front of another store.
+     */
+    NearCacheIdempotencyStore withRemote(IdempotencyStore remote) {
+        return new NearCacheIdempotencyStore(remote, maxEntries, maxTtl);
+    }
+
+    private IdempotencyRecord cached(String idempotencyKey) {
+        IdempotencyRecord record = local.getIfPresent(idempotencyKey);
+        // Caffeine expires on its own clock; re-check so an expired record is never replayed
+        if (record != null && !record.isExpired()) {
+            hits.incrementAndGet();
+            logger.debug("Near cache hit for key: {}", idempotencyKey);
+            return record;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void cache(IdempotencyRecord record) {
+        if (record.isCompleted() && !record.isExpired()) {
+            local.put(record.getIdempotencyKey(), record);
+        }
+    }
+
+    /**
+     * Expire each entry with its record, or after maxTtl if that comes first.
+     */
+    private static final class RecordExpiry implements Expiry<String, IdempotencyRecord> {
+
+        private final long maxTtlNanos;
+
+        private RecordExpiry(long maxTtlNanos) {
+            this.maxTtlNanos = maxTtlNanos;
+        }
+
+        @Override
+        public long expireAfterCreate(String key, IdempotencyRecord record, long currentTime) {
+            Instant now = Instant.now();
+            Instant expiresAt = record.getExpiresAt();
+            if (!expiresAt.isAfter(now)) {
+                return 0;
+            }
+            if (expiresAt.isAfter(now.plusNanos(maxTtlNanos))) {
+                return maxTtlNanos;
+            }
+            return Duration.between(now, expiresAt).toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, IdempotencyRecord record, long currentTime,
+                                      long currentDuration) {
+            return expireAfterCreate(key, record, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, IdempotencyRecord record, long currentTime,
+                                    long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap implementation of IdempotencyStore.
+ *
+ * Records are serialized with {@link RecordCodec} into direct-memory chunks
+ * handed out by a {@link SlabAllocator}; freed chunks are reused through
+ * per-size-class free lists. The hash index (128-bit key hash, chunk address
+ * and expiry per slot) is a linear-probing table in a direct ByteBuffer as
+ * well, so the heap only sees the record materialized for a lookup.
+ *
+ * The store is split into stripes, each with its own index, allocator and
+ * read/write lock. Capacity is fixed: when a stripe runs out of memory or
+ * index slots it first drops its expired records, then rejects the write.
+ *
+ * Enable with payment.idempotency.store=off-heap. Direct memory is limited by
+ * -XX:MaxDirectMemorySize, which must cover the configured capacity.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "off-heap")
+public class OffHeapIdempotencyStore implements IdempotencyStore, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapIdempotencyStore.class);
+    private static final int CLEANUP_CLOCK_CHECK_MASK = 63;
+
+    // Index slot layout: key hash high, key hash low, chunk address, expiry millis
+    private static final int SLOT_BYTES = 32;
+    private static final int KEY_HIGH = 0;
+    private static final int KEY_LOW = 8;
+    private static final int ADDRESS = 16;
+    private static final int EXPIRES_AT = 24;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    // Incremental cleanup cursor: segment and slot to resume from
+    private final ReentrantLock cleanupLock = new ReentrantLock();
+    private int cleanupSegment;
+    private int cleanupSlot;
+
+    public OffHeapIdempotencyStore() {
+        this(DataSize.ofMegabytes(16), 100_000, 4, DataSize.ofKilobytes(256));
+    }
+
+    /**
+     * @param capacity   total direct memory for record data
+     * @param maxEntries total number of records the index must hold
+     * @param stripes    number of independently locked stripes, rounded up to a power of two
+     * @param slabSize   size of each slab, rounded up to a power of two
+     */
+    @Autowired
+    public OffHeapIdempotencyStore(
+            @Value("${payment.idempotency.off-heap.capacity:256MB}") DataSize capacity,
+            @Value("${payment.idempotency.off-heap.max-entries:1000000}") long maxEntries,
+            @Value("${payment.idempotency.off-heap.stripes:16}") int stripes,
+            @Value("${payment.idempotency.off-heap.slab-size:1MB}") DataSize slabSize) {
+        int segmentCount = 1;
+        while (segmentCount < stripes) {
+            segmentCount <<= 1;
+        }
+        int slabBytes = 64;
+        while (slabBytes < slabSize.toBytes()) {
+            slabBytes <<= 1;
+        }
+        int slabsPerSegment = (int) Math.max(1, capacity.toBytes() / segmentCount / slabBytes);
+
+        // Keep the index at most 75% full
+        long entriesPerSegment = Math.max(1, maxEntries / segmentCount);
+        int slotsPerSegment = 16;
+        while (slotsPerSegment * 3L < entriesPerSegment * 4) {
+            slotsPerSegment <<= 1;
+        }
+
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slotsPerSegment, new SlabAllocator(slabBytes, slabsPerSegment));
+        }
+        this.segmentMask = segmentCount - 1;
+        logger.info("Using OffHeapIdempotencyStore: {} stripes, {} index slots and {} x {} byte slabs per stripe",
+                segmentCount, slotsPerSegment, slabsPerSegment, slabBytes);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        long[] hash = KeyHasher.hash128(record.getIdempotencyKey());
+        Segment segment = segmentFor(hash);
+        byte[] payload = RecordCodec.encode(record);
+
+        segment.lock.writeLock().lock();
+        try {
+            segment.put(hash[0], hash[1], payload, record.getExpiresAt().toEpochMilli());
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+        logger.debug("Saved idempotency record for key: {}", record.getIdempotencyKey());
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        long[] hash = KeyHasher.hash128(key);
+        Segment segment = segmentFor(hash);
+        byte[] payload = RecordCodec.encode(record);
+        long nowMillis = System.currentTimeMillis();
+
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            if (slot >= 0 && segment.expiresAt(slot) >= nowMillis) {
+                IdempotencyRecord existing = RecordCodec.decode(segment.allocator.read(segment.address(slot)));
+                logger.debug("Idempotency key already reserved: {} ({})", key, existing.getStatus());
+                return Optional.of(existing);
+            }
+            segment.put(hash[0], hash[1], payload, record.getExpiresAt().toEpochMilli());
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        logger.debug("Reserved idempotency key: {}", key);
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        boolean completed = false;
+
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            if (slot >= 0) {
+                IdempotencyRecord existing = RecordCodec.decode(segment.allocator.read(segment.address(slot)));
+                if (existing.isInProgress()) {
+                    IdempotencyRecord done = existing.complete(response, expiresAt);
+                    segment.put(hash[0], hash[1], RecordCodec.encode(done), expiresAt.toEpochMilli());
+                    completed = true;
+                }
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        if (completed) {
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+        } else {
+            logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        }
+        return completed;
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        long nowMillis = System.currentTimeMillis();
+        IdempotencyRecord record = null;
+        boolean expired = false;
+
+        segment.lock.readLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            if (slot >= 0) {
+                expired = segment.expiresAt(slot) < nowMillis;
+                if (!expired) {
+                    record = RecordCodec.decode(segment.allocator.read(segment.address(slot)));
+                }
+            }
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+
+        if (expired) {
+            logger.debug("Idempotency record expired for key: {}", idempotencyKey);
+            removeIfExpired(segment, hash, nowMillis);
+            return Optional.empty();
+        }
+        if (record == null) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+
+        logger.debug("Found idempotency record for key: {}", idempotencyKey);
+        return Optional.of(record);
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            if (slot >= 0) {
+                segment.removeAt(slot);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+        logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        boolean released = false;
+
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            if (slot >= 0
+                    && RecordCodec.decode(segment.allocator.read(segment.address(slot))).isReservation(reservation)) {
+                segment.removeAt(slot);
+                released = true;
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released);
+        return released;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        cleanupLock.lock();
+        try {
+            cleanupSegment = 0;
+            cleanupSlot = 0;
+            cleanupExpired(Integer.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE));
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        cleanupLock.lock();
+        try {
+            long start = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            int scanned = 0;
+            int removed = 0;
+            boolean passCompleted = false;
+
+            outer:
+            while (scanned < maxEntries) {
+                if (cleanupSegment >= segments.length) {
+                    cleanupSegment = 0;
+                    cleanupSlot = 0;
+                    passCompleted = true;
+                    break;
+                }
+
+                Segment segment = segments[cleanupSegment];
+                segment.lock.writeLock().lock();
+                try {
+                    while (cleanupSlot < segment.slots) {
+                        if (scanned >= maxEntries) {
+                            break outer;
+                        }
+                        int slot = cleanupSlot;
+                        if (segment.isEmpty(slot)) {
+                            cleanupSlot++;
+                            continue;
+                        }
+
+                        scanned++;
+                        if (segment.expiresAt(slot) < nowMillis) {
+                            // Backward shift may move a later entry into this slot, so stay on it
+                            segment.removeAt(slot);
+                            removed++;
+                        } else {
+                            cleanupSlot++;
+                        }
+
+                        // Reading the clock is not free, only check the time budget periodically
+                        if ((scanned & CLEANUP_CLOCK_CHECK_MASK) == 0
+                                && System.nanoTime() - start >= maxDuration.toNanos()) {
+                            break outer;
+                        }
+                    }
+                } finally {
+                    segment.lock.writeLock().unlock();
+                }
+                cleanupSegment++;
+                cleanupSlot = 0;
+            }
+
+            CleanupStats stats = new CleanupStats(
+                    scanned, removed, Duration.ofNanos(System.nanoTime() - start), passCompleted);
+            if (removed > 0) {
+                logger.info("Cleaned up {} expired idempotency records", removed);
+            }
+            logger.debug("Cleanup run: {}", stats);
+            return stats;
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.store.size", this, OffHeapIdempotencyStore::size)
+                .description("Idempotency records currently held off-heap")
+                .register(registry);
+        Gauge.builder("idempotency.offheap.allocated", this, OffHeapIdempotencyStore::allocatedBytes)
+                .description("Direct memory allocated for slabs and index")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("idempotency.offheap.used", this, OffHeapIdempotencyStore::usedBytes)
+                .description("Direct memory in use by record chunks and index")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("idempotency.offheap.fragmentation", this, OffHeapIdempotencyStore::fragmentation)
+                .description("Share of slab memory not holding record bytes")
+                .register(registry);
+    }
+
+    /**
+     * Number of records held, including expired ones not yet reclaimed.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    long allocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                bytes += segment.allocator.reservedBytes() + (long) segment.slots * SLOT_BYTES;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    long usedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                bytes += segment.allocator.chunkBytesInUse() + (long) segment.slots * SLOT_BYTES;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Fraction of slab memory lost to size-class rounding, free chunks and uncarved slab tails.
+     */
+    double fragmentation() {
+        long reserved = 0;
+        long payload = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                reserved += segment.allocator.reservedBytes();
+                payload += segment.allocator.payloadBytesInUse();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return reserved == 0 ? 0.0 : 1.0 - (double) payload / reserved;
+    }
+
+    private Segment segmentFor(long[] hash) {
+        return segments[(int) (hash[0] ^ (hash[0] >>> 32)) & segmentMask];
+    }
+
+    private void removeIfExpired(Segment segment, long[] hash, long nowMillis) {
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.indexOf(hash[0], hash[1]);
+            // A concurrent reserve may have replaced the expired record
+            if (slot >= 0 && segment.expiresAt(slot) < nowMillis) {
+                segment.removeAt(slot);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * One lock stripe: an off-heap linear-probing index over its own slab allocator.
+     */
+    private static final class Segment {
+
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final ByteBuffer index;
+        final int slots;
+        final int maxSize;
+        final SlabAllocator allocator;
+        volatile int size;
+
+        Segment(int slots, SlabAllocator allocator) {
+            this.index = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+            this.slots = slots;
+            this.maxSize = slots / 4 * 3;
+            this.allocator = allocator;
+        }
+
+        boolean isEmpty(int slot) {
+            int base = slot * SLOT_BYTES;
+            return index.getLong(base + KEY_HIGH) == 0 && index.getLong(base + KEY_LOW) == 0;
+        }
+
+        long address(int slot) {
+            return index.getLong(slot * SLOT_BYTES + ADDRESS);
+        }
+
+        long expiresAt(int slot) {
+            return index.getLong(slot * SLOT_BYTES + EXPIRES_AT);
+        }
+
+        int home(long keyLow) {
+            return (int) (keyLow ^ (keyLow >>> 32)) & (slots - 1);
+        }
+
+        int indexOf(long keyHigh, long keyLow) {
+            int mask = slots - 1;
+            int slot = home(keyLow);
+            for (int probes = 0; probes <= mask; probes++) {
+                int base = slot * SLOT_BYTES;
+                long high = index.getLong(base + KEY_HIGH);
+                long low = index.getLong(base + KEY_LOW);
+                if (high == 0 && low == 0) {
+                    return -1;
+                }
+                if (high == keyHigh && low == keyLow) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** Insert or overwrite, freeing the previous chunk. Caller holds the write lock. */
+        void put(long keyHigh, long keyLow, byte[] payload, long expiresAtMillis) {
+            int slot = indexOf(keyHigh, keyLow);
+            if (slot < 0 && size >= maxSize) {
+                purgeExpired();
+            }
+            if (slot < 0 && size >= maxSize) {
+                throw new IllegalStateException("Off-heap idempotency index is full");
+            }
+
+            long address = allocator.store(payload);
+            if (address == SlabAllocator.NULL && purgeExpired() > 0) {
+                slot = indexOf(keyHigh, keyLow);
+                address = allocator.store(payload);
+            }
+            if (address == SlabAllocator.NULL) {
+                throw new IllegalStateException("Off-heap idempotency store is out of memory");
+            }
+
+            if (slot >= 0) {
+                allocator.free(address(slot));
+            } else {
+                int mask = slots - 1;
+                slot = home(keyLow);
+                while (!isEmpty(slot)) {
+                    slot = (slot + 1) & mask;
+                }
+                size++;
+            }
+
+            int base = slot * SLOT_BYTES;
+            index.putLong(base + ADDRESS, address);
+            index.putLong(base + EXPIRES_AT, expiresAtMillis);
+            index.putLong(base + KEY_LOW, keyLow);
+            index.putLong(base + KEY_HIGH, keyHigh);
+        }
+
+        /** Remove a slot, freeing its chunk and shifting back later entries of the probe run. */
+        void removeAt(int slot) {
+            allocator.free(address(slot));
+
+            int mask = slots - 1;
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (isEmpty(next)) {
+                    break;
+                }
+                int home = home(index.getLong(next * SLOT_BYTES + KEY_LOW));
+                // Entry stays if its home lies cyclically in (hole, next]
+                boolean stays = hole <= next
+                        ? hole < home && home <= next
+                        : hole < home || home <= next;
+                if (!stays) {
+                    for (int offset = 0; offset < SLOT_BYTES; offset += 8) {
+                        index.putLong(hole * SLOT_BYTES + offset, index.getLong(next * SLOT_BYTES + offset));
+                    }
+                    hole = next;
+                }
+            }
+            index.putLong(hole * SLOT_BYTES + KEY_HIGH, 0);
+            index.putLong(hole * SLOT_BYTES + KEY_LOW, 0);
+            size--;
+        }
+
+        private int purgeExpired() {
+            long nowMillis = System.currentTimeMillis();
+            int removed = 0;
+            int slot = 0;
+            while (slot < slots) {
+                if (!isEmpty(slot) && expiresAt(slot) < nowMillis) {
+                    removeAt(slot);
+                    removed++;
+                } else {
+                    slot++;
+                }
+            }
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.model.RequestFingerprint;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Compact in-memory implementation of IdempotencyStore.
+ *
+ * Keys are hashed to 128 bits and records are laid out in parallel primitive
+ * arrays of an open-addressing (linear probing) table, so there is no per-entry
+ * map node, key String or Instant. Only the response (and the request, when
+ * retained) are still objects. The table is split into power-of-two stripes,
+ * each guarded by its own StampedLock: writes lock one stripe and reads are
+ * optimistic.
+ *
+ * Enable with payment.idempotency.store=open-addressing. Expired records are
+ * reclaimed lazily on access and by the scheduled budgeted cleanup.
+ */
+@Repository
+@Primary
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "open-addressing")
+public class OpenAddressingIdempotencyStore implements IdempotencyStore, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(OpenAddressingIdempotencyStore.class);
+    private static final int CLEANUP_CLOCK_CHECK_MASK = 63;
+    private static final byte IN_PROGRESS = 1;
+    private static final byte COMPLETED = 2;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    // Incremental cleanup cursor: segment and slot to resume from
+    private final ReentrantLock cleanupLock = new ReentrantLock();
+    private int cleanupSegment;
+    private int cleanupSlot;
+
+    public OpenAddressingIdempotencyStore() {
+        this(64, 1024);
+    }
+
+    /**
+     * @param stripes         number of independently locked stripes, rounded up to a power of two
+     * @param initialCapacity initial total slot count, spread across stripes
+     */
+    @Autowired
+    public OpenAddressingIdempotencyStore(
+            @Value("${payment.idempotency.open-addressing.stripes:64}") int stripes,
+            @Value("${payment.idempotency.open-addressing.initial-capacity:65536}") int initialCapacity) {
+        int segmentCount = 1;
+        while (segmentCount < stripes) {
+            segmentCount <<= 1;
+        }
+        int perSegment = 16;
+        while (perSegment < initialCapacity / segmentCount) {
+            perSegment <<= 1;
+        }
+
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.segmentMask = segmentCount - 1;
+        logger.info("Using OpenAddressingIdempotencyStore with {} stripes of {} slots", segmentCount, perSegment);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        long[] hash = KeyHasher.hash128(record.getIdempotencyKey());
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.put(hash[0], hash[1], record);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        logger.debug("Saved idempotency record for key: {}", record.getIdempotencyKey());
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        long[] hash = KeyHasher.hash128(key);
+        Segment segment = segmentFor(hash);
+        long nowMillis = System.currentTimeMillis();
+
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int slot = segment.indexOf(table, hash[0], hash[1]);
+            if (slot >= 0 && table.expiresAt[slot] >= nowMillis) {
+                IdempotencyRecord existing = materialize(key, table, slot);
+                logger.debug("Idempotency key already reserved: {} ({})", key, existing.getStatus());
+                return Optional.of(existing);
+            }
+            segment.put(hash[0], hash[1], record);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+
+        logger.debug("Reserved idempotency key: {}", key);
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        boolean completed = false;
+
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int slot = segment.indexOf(table, hash[0], hash[1]);
+            if (slot >= 0 && table.status[slot] == IN_PROGRESS) {
+                table.responses[slot] = response;
+                table.expiresAt[slot] = expiresAt.toEpochMilli();
+                table.status[slot] = COMPLETED;
+                completed = true;
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+
+        if (completed) {
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+        } else {
+            logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        }
+        return completed;
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        long nowMillis = System.currentTimeMillis();
+
+        // Optimistic read first; fall back to a read lock if a writer got in the way
+        long stamp = segment.lock.tryOptimisticRead();
+        IdempotencyRecord record = segment.read(idempotencyKey, hash[0], hash[1]);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                record = segment.read(idempotencyKey, hash[0], hash[1]);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+
+        if (record == null) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+
+        if (record.getExpiresAt().toEpochMilli() < nowMillis) {
+            logger.debug("Idempotency record expired for key: {}", idempotencyKey);
+            removeIfExpired(segment, hash, nowMillis);
+            return Optional.empty();
+        }
+
+        logger.debug("Found idempotency record for key: {}", idempotencyKey);
+        return Optional.of(record);
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.indexOf(segment.table, hash[0], hash[1]);
+            if (slot >= 0) {
+                segment.removeAt(slot);
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        long[] hash = KeyHasher.hash128(idempotencyKey);
+        RequestFingerprint fingerprint = reservation.getRequestFingerprint();
+        Segment segment = segmentFor(hash);
+        boolean released = false;
+
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int slot = segment.indexOf(table, hash[0], hash[1]);
+            if (slot >= 0 && table.status[slot] == IN_PROGRESS
+                    && table.fingerprintHigh[slot] == fingerprint.getHigh()
+                    && table.fingerprintLow[slot] == fingerprint.getLow()
+                    && table.createdAt[slot] == reservation.getCreatedAt().toEpochMilli()) {
+                segment.removeAt(slot);
+                released = true;
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released);
+        return released;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        cleanupLock.lock();
+        try {
+            cleanupSegment = 0;
+            cleanupSlot = 0;
+            cleanupExpired(Integer.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE));
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        cleanupLock.lock();
+        try {
+            long start = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            int scanned = 0;
+            int removed = 0;
+            boolean passCompleted = false;
+
+            outer:
+            while (scanned < maxEntries) {
+                if (cleanupSegment >= segments.length) {
+                    cleanupSegment = 0;
+                    cleanupSlot = 0;
+                    passCompleted = true;
+                    break;
+                }
+
+                Segment segment = segments[cleanupSegment];
+                long stamp = segment.lock.writeLock();
+                try {
+                    Table table = segment.table;
+                    while (cleanupSlot < table.capacity()) {
+                        if (scanned >= maxEntries) {
+                            break outer;
+                        }
+                        int slot = cleanupSlot;
+                        if (table.isEmpty(slot)) {
+                            cleanupSlot++;
+                            continue;
+                        }
+
+                        scanned++;
+                        if (table.expiresAt[slot] < nowMillis) {
+                            // Backward shift may move a later entry into this slot, so stay on it
+                            segment.removeAt(slot);
+                            removed++;
+                        } else {
+                            cleanupSlot++;
+                        }
+
+                        // Reading the clock is not free, only check the time budget periodically
+                        if ((scanned & CLEANUP_CLOCK_CHECK_MASK) == 0
+                                && System.nanoTime() - start >= maxDuration.toNanos()) {
+                            break outer;
+                        }
+                    }
+                } finally {
+                    segment.lock.unlockWrite(stamp);
+                }
+                cleanupSegment++;
+                cleanupSlot = 0;
+            }
+
+            CleanupStats stats = new CleanupStats(
+                    scanned, removed, Duration.ofNanos(System.nanoTime() - start), passCompleted);
+            if (removed > 0) {
+                logger.info("Cleaned up {} expired idempotency records", removed);
+            }
+            logger.debug("Cleanup run: {}", stats);
+            return stats;
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.store.size", this, OpenAddressingIdempotencyStore::size)
+                .description("Idempotency records currently held in memory")
+                .register(registry);
+        Gauge.builder("idempotency.store.slots", this, OpenAddressingIdempotencyStore::capacity)
+                .description("Allocated open-addressing slots")
+                .register(registry);
+    }
+
+    /**
+     * Number of records held, including expired ones not yet reclaimed.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    long capacity() {
+        long capacity = 0;
+        for (Segment segment : segments) {
+            capacity += segment.table.capacity();
+        }
+        return capacity;
+    }
+
+    private Segment segmentFor(long[] hash) {
+        // Stripe by the high word, probe by the low word
+        return segments[(int) (hash[0] ^ (hash[0] >>> 32)) & segmentMask];
+    }
+
+    private void removeIfExpired(Segment segment, long[] hash, long nowMillis) {
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int slot = segment.indexOf(table, hash[0], hash[1]);
+            // A concurrent reserve may have replaced the expired record
+            if (slot >= 0 && table.expiresAt[slot] < nowMillis) {
+                segment.removeAt(slot);
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    private static IdempotencyRecord materialize(String key, Table table, int slot) {
+        IdempotencyRecord record = new IdempotencyRecord(
+                key,
+                new RequestFingerprint(table.fingerprintHigh[slot], table.fingerprintLow[slot]),
+                table.requests[slot],
+                table.status[slot] == COMPLETED ? table.responses[slot] : null,
+                Instant.ofEpochMilli(table.expiresAt[slot]));
+        record.setCreatedAt(Instant.ofEpochMilli(table.createdAt[slot]));
+        return record;
+    }
+
+    /**
+     * Parallel arrays for one stripe. Replaced wholesale on resize so that an
+     * optimistic reader always sees arrays of matching length.
+     */
+    private static final class Table {
+
+        final long[] keyHigh;
+        final long[] keyLow;
+        final long[] fingerprintHigh;
+        final long[] fingerprintLow;
+        final long[] expiresAt;
+        final long[] createdAt;
+        final byte[] status;
+        final ChargeResponse[] responses;
+        final ChargeRequest[] requests;
+
+        Table(int capacity) {
+            keyHigh = new long[capacity];
+            keyLow = new long[capacity];
+            fingerprintHigh = new long[capacity];
+            fingerprintLow = new long[capacity];
+            expiresAt = new long[capacity];
+            createdAt = new long[capacity];
+            status = new byte[capacity];
+            responses = new ChargeResponse[capacity];
+            requests = new ChargeRequest[capacity];
+        }
+
+        int capacity() {
+            return keyHigh.length;
+        }
+
+        boolean isEmpty(int slot) {
+            return keyHigh[slot] == 0 && keyLow[slot] == 0;
+        }
+
+        int home(long keyLow) {
+            return (int) (keyLow ^ (keyLow >>> 32)) & (capacity() - 1);
+        }
+
+        void copy(int from, Table target, int to) {
+            target.keyHigh[to] = keyHigh[from];
+            target.keyLow[to] = keyLow[from];
+            target.fingerprintHigh[to] = fingerprintHigh[from];
+            target.fingerprintLow[to] = fingerprintLow[from];
+            target.expiresAt[to] = expiresAt[from];
+            target.createdAt[to] = createdAt[from];
+            target.status[to] = status[from];
+            target.responses[to] = responses[from];
+            target.requests[to] = requests[from];
+        }
+
+        void clear(int slot) {
+            keyHigh[slot] = 0;
+            keyLow[slot] = 0;
+            status[slot] = 0;
+            responses[slot] = null;
+            requests[slot] = null;
+        }
+    }
+
+    /**
+     * One lock stripe: a linear-probing table with backward-shift deletion.
+     */
+    private static final class Segment {
+
+        final StampedLock lock = new StampedLock();
+        volatile Table table;
+        volatile int size;
+
+        Segment(int capacity) {
+            this.table = new Table(capacity);
+        }
+
+        int indexOf(Table t, long keyHigh, long keyLow) {
+            int mask = t.capacity() - 1;
+            int slot = t.home(keyLow);
+            // Bounded so a torn optimistic read can never spin forever
+            for (int probes = 0; probes <= mask; probes++) {
+                if (t.isEmpty(slot)) {
+                    return -1;
+                }
+                if (t.keyHigh[slot] == keyHigh && t.keyLow[slot] == keyLow) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        IdempotencyRecord read(String key, long keyHigh, long keyLow) {
+            Table t = table;
+            int slot = indexOf(t, keyHigh, keyLow);
+            if (slot < 0 || t.status[slot] == 0) {
+                return null;
+            }
+            return materialize(key, t, slot);
+        }
+
+        /** Insert or overwrite. Caller holds the write lock. */
+        void put(long keyHigh, long keyLow, IdempotencyRecord record) {
+            Table t = table;
+            int slot = indexOf(t, keyHigh, keyLow);
+            if (slot < 0) {
+                if ((size + 1) * 4 > t.capacity() * 3) {
+                    t = resize(t.capacity() * 2);
+                }
+                slot = t.home(keyLow);
+                int mask = t.capacity() - 1;
+                while (!t.isEmpty(slot)) {
+                    slot = (slot + 1) & mask;
+                }
+                size++;
+            }
+
+            RequestFingerprint fingerprint = record.getRequestFingerprint();
+            t.fingerprintHigh[slot] = fingerprint.getHigh();
+            t.fingerprintLow[slot] = fingerprint.getLow();
+            t.expiresAt[slot] = record.getExpiresAt().toEpochMilli();
+            t.createdAt[slot] = record.getCreatedAt().toEpochMilli();
+            t.responses[slot] = record.getResponse();
+            t.requests[slot] = record.getRequest();
+            t.status[slot] = record.isCompleted() ? COMPLETED : IN_PROGRESS;
+            t.keyLow[slot] = keyLow;
+            t.keyHigh[slot] = keyHigh;
+        }
+
+        /** Remove a slot, shifting back later entries of the probe run. Caller holds the write lock. */
+        void removeAt(int slot) {
+            Table t = table;
+            int mask = t.capacity() - 1;
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (t.isEmpty(next)) {
+                    break;
+                }
+                int home = t.home(t.keyLow[next]);
+                // Entry stays if its home lies cyclically in (hole, next]
+                boolean stays = hole <= next
+                        ? hole < home && home <= next
+                        : hole < home || home <= next;
+                if (!stays) {
+                    t.copy(next, t, hole);
+                    hole = next;
+                }
+            }
+            t.clear(hole);
+            size--;
+        }
+
+        private Table resize(int capacity) {
+            Table old = table;
+            Table grown = new Table(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < old.capacity(); i++) {
+                if (!old.isEmpty(i)) {
+                    int slot = grown.home(old.keyLow[i]);
+                    while (!grown.isEmpty(slot)) {
+                        slot = (slot + 1) & mask;
+                    }
+                    old.copy(i, grown, slot);
+                }
+            }
+            table = grown;
+            return grown;
+        }
+    }
+}
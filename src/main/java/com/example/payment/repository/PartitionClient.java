@@ -0,0 +1,270 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.payment.repository.PartitionProtocol.*;
+
+/**
+ * Forwards store calls to the node that owns the key, or replicated writes
+ * to a standby.
+ *
+ * Opens at most maxConnections connections to the peer and keeps them open
+ * between calls; a call borrows an idle one or opens a new one. When all are
+ * busy, a call waits up to the timeout for one to come back and then fails
+ * with an UncheckedIOException, so a slow peer cannot make this node open
+ * more connections (and the peer more threads). A connection that fails
+ * mid-call is dropped and the call fails with an UncheckedIOException rather
+ * than being retried, since the peer may already have applied it.
+ */
+final class PartitionClient implements AutoCloseable {
+
+    private final String address;
+    private final InetSocketAddress endpoint;
+    private final int timeoutMillis;
+    private final int maxConnections;
+    /** One permit per connection that may be open; held for the length of a call */
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle;
+    private volatile boolean closed;
+
+    PartitionClient(String address, int maxConnections, Duration timeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid connections per peer: " + maxConnections);
+        }
+        this.address = address;
+        this.endpoint = parseAddress(address);
+        this.timeoutMillis = Math.toIntExact(timeout.toMillis());
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+    }
+
+    /**
+     * Parse a host:port node address.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0 || colon == address.length() - 1) {
+            throw new IllegalArgumentException("Node address must be host:port: " + address);
+        }
+        return InetSocketAddress.createUnresolved(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    void save(IdempotencyRecord record) {
+        call(connection -> {
+            connection.out.writeByte(SAVE);
+            writeRecord(connection.out, record);
+            connection.out.flush();
+            expect(connection.in, OK);
+            return null;
+        });
+    }
+
+    Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        return call(connection -> {
+            connection.out.writeByte(RESERVE);
+            writeRecord(connection.out, record);
+            connection.out.flush();
+            return readOptional(connection.in);
+        });
+    }
+
+    boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        return call(connection -> {
+            connection.out.writeByte(COMPLETE);
+            connection.out.writeUTF(idempotencyKey);
+            writeResponse(connection.out, response);
+            connection.out.writeLong(expiresAt.toEpochMilli());
+            connection.out.flush();
+            return expect(connection.in, TRUE, FALSE) == TRUE;
+        });
+    }
+
+    Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        return call(connection -> {
+            connection.out.writeByte(FIND);
+            connection.out.writeUTF(idempotencyKey);
+            connection.out.flush();
+            return readOptional(connection.in);
+        });
+    }
+
+    void delete(String idempotencyKey) {
+        call(connection -> {
+            connection.out.writeByte(DELETE);
+            connection.out.writeUTF(idempotencyKey);
+            connection.out.flush();
+            expect(connection.in, OK);
+            return null;
+        });
+    }
+
+    boolean release(IdempotencyRecord reservation) {
+        return call(connection -> {
+            connection.out.writeByte(RELEASE);
+            writeRecord(connection.out, reservation);
+            connection.out.flush();
+            return expect(connection.in, TRUE, FALSE) == TRUE;
+        });
+    }
+
+    /**
+     * Apply a batch of replicated writes on the peer, in order.
+     */
+    void replicate(List<ReplicationLog.Entry> entries) {
+        call(connection -> {
+            connection.out.writeByte(REPLICATE);
+            connection.out.writeInt(entries.size());
+            for (ReplicationLog.Entry entry : entries) {
+                if (entry.record != null) {
+                    connection.out.writeByte(SAVE);
+                    writeRecord(connection.out, entry.record);
+                } else {
+                    connection.out.writeByte(DELETE);
+                    connection.out.writeUTF(entry.key);
+                }
+            }
+            connection.out.flush();
+            expect(connection.in, OK);
+            return null;
+        });
+    }
+
+    private <T> T call(Exchange<T> exchange) {
+        if (closed) {
+            throw new IllegalStateException("Partition client for " + address + " is closed");
+        }
+        acquire();
+        Connection connection = idle.poll();
+        try {
+            if (connection == null) {
+                connection = connect();
+            }
+            T result = exchange.run(connection);
+            if (closed || !idle.offer(connection)) {
+                connection.close();
+            }
+            return result;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            throw new UncheckedIOException("Partition owner " + address + " is unavailable", e);
+        } catch (RuntimeException e) {
+            // A remote store failure leaves the connection in step; anything else may not
+            if (connection != null && !(e instanceof RemoteStoreException && idle.offer(connection))) {
+                connection.close();
+            }
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void acquire() {
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new UncheckedIOException("Partition owner " + address + " is unavailable",
+                        new SocketTimeoutException("All " + maxConnections + " connections are busy"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a connection to " + address, e);
+        }
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(new InetSocketAddress(endpoint.getHostString(), endpoint.getPort()), timeoutMillis);
+            Connection connection = new Connection(socket);
+            connection.out.writeByte(VERSION);
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Optional<IdempotencyRecord> readOptional(DataInputStream in) throws IOException {
+        return expect(in, FOUND, EMPTY) == FOUND ? Optional.of(readRecord(in)) : Optional.empty();
+    }
+
+    private byte expect(DataInputStream in, byte... statuses) throws IOException {
+        byte status = in.readByte();
+        if (status == ERROR) {
+            throw new RemoteStoreException("Partition owner " + address + " failed: " + in.readUTF());
+        }
+        for (byte expected : statuses) {
+            if (status == expected) {
+                return status;
+            }
+        }
+        throw new IOException("Unexpected partition response status: " + status);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Exchange<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * The owner's store threw; the call reached it and the connection is still usable.
+     */
+    static final class RemoteStoreException extends IllegalStateException {
+        RemoteStoreException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.payment.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Partitions whichever store is selected across the nodes listed in
+ * payment.idempotency.partition.nodes, with this node at partition.self.
+ *
+ * Enable with payment.idempotency.partition.enabled=true.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "payment.idempotency.partition.enabled", havingValue = "true")
+public class PartitionConfiguration {
+
+    /**
+     * Wraps the store once it is fully initialized, like the near cache. When both are
+     * enabled the near cache stays in front, so replays of keys owned elsewhere are served
+     * without forwarding.
+     */
+    @Bean
+    static BeanPostProcessor partitionStorePostProcessor(Environment environment) {
+        String self = environment.getRequiredProperty("payment.idempotency.partition.self");
+        String bindAddress = environment.getProperty("payment.idempotency.partition.bind-address");
+        List<String> nodes = Arrays.asList(
+                environment.getRequiredProperty("payment.idempotency.partition.nodes", String[].class));
+        int virtualNodes = environment.getProperty(
+                "payment.idempotency.partition.virtual-nodes", Integer.class, 128);
+        int connectionsPerPeer = environment.getProperty(
+                "payment.idempotency.partition.connections-per-peer", Integer.class, 8);
+        Duration timeout = environment.getProperty(
+                "payment.idempotency.partition.timeout", Duration.class, Duration.ofSeconds(1));
+
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof NearCacheIdempotencyStore) {
+                    NearCacheIdempotencyStore nearCache = (NearCacheIdempotencyStore) bean;
+                    if (!(nearCache.getRemote() instanceof PartitionedIdempotencyStore)) {
+                        return nearCache.withRemote(partition(nearCache.getRemote()));
+                    }
+                } else if (bean instanceof IdempotencyStore && !(bean instanceof PartitionedIdempotencyStore)) {
+                    return partition((IdempotencyStore) bean);
+                }
+                return bean;
+            }
+
+            private PartitionedIdempotencyStore partition(IdempotencyStore local) {
+                return new PartitionedIdempotencyStore(local, self, bindAddress, nodes, virtualNodes,
+                        connectionsPerPeer, timeout);
+            }
+        };
+    }
+
+    /**
+     * Binds the partition metrics when startup is complete; see NearCacheConfiguration.
+     */
+    @Bean
+    SmartInitializingSingleton partitionMetrics(ObjectProvider<IdempotencyStore> stores,
+                                                ObjectProvider<MeterRegistry> registries) {
+        return () -> registries.ifAvailable(registry -> stores.orderedStream()
+                .filter(PartitionedIdempotencyStore.class::isInstance)
+                .forEach(store -> ((PartitionedIdempotencyStore) store).bindTo(registry)));
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary protocol between the nodes of a partitioned store.
+ *
+ * A connection starts with the client sending the protocol version; after
+ * that each request is an operation byte followed by its arguments and is
+ * answered by a status byte and an optional result, one at a time. Records
+ * and responses travel in their RecordCodec encoding, length-prefixed, and
+ * keys as modified UTF-8.
+ *
+ * <pre>
+ * SAVE      record                          -> OK
+ * RESERVE   record                          -> FOUND record | EMPTY
+ * COMPLETE  key, response, expiresAt        -> TRUE | FALSE
+ * FIND      key                             -> FOUND record | EMPTY
+ * DELETE    key                             -> OK
+ * REPLICATE count, (SAVE record | DELETE key)... -> OK
+ * RELEASE   record                          -> TRUE | FALSE
+ * any                                       -> ERROR message
+ * </pre>
+ */
+final class PartitionProtocol {
+
+    static final byte VERSION = 1;
+
+    static final byte SAVE = 1;
+    static final byte RESERVE = 2;
+    static final byte COMPLETE = 3;
+    static final byte FIND = 4;
+    static final byte DELETE = 5;
+    static final byte REPLICATE = 6;
+    static final byte RELEASE = 7;
+
+    static final byte OK = 0;
+    static final byte FOUND = 1;
+    static final byte EMPTY = 2;
+    static final byte TRUE = 3;
+    static final byte FALSE = 4;
+    static final byte ERROR = 5;
+
+    private PartitionProtocol() {
+    }
+
+    static void writeRecord(DataOutputStream out, IdempotencyRecord record) throws IOException {
+        writeBytes(out, RecordCodec.encode(record));
+    }
+
+    static IdempotencyRecord readRecord(DataInputStream in) throws IOException {
+        return RecordCodec.decode(ByteBuffer.wrap(readBytes(in)));
+    }
+
+    static void writeResponse(DataOutputStream out, ChargeResponse response) throws IOException {
+        writeBytes(out, RecordCodec.encodeResponse(response));
+    }
+
+    static ChargeResponse readResponse(DataInputStream in) throws IOException {
+        return RecordCodec.decodeResponse(ByteBuffer.wrap(readBytes(in)));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.payment.repository.PartitionProtocol.*;
+
+/**
+ * Serves the keys this node owns to the other nodes of a partitioned store,
+ * and replicated writes to a standby.
+ *
+ * Blocking sockets, one thread per peer connection. At most maxConnections
+ * connections are served at once; one accepted beyond that is closed
+ * straight away, and the peer's call fails. Peers cap their own pools
+ * (PartitionClient), so sizing maxConnections for every peer's pool keeps
+ * that from happening in normal operation. Requests are applied to the
+ * local store.
+ *
+ * The protocol has no authentication or encryption: anyone who can connect
+ * can read and overwrite records. The server therefore listens on one
+ * address, never all interfaces, and that address must be on a private
+ * network reachable only by the other nodes.
+ */
+final class PartitionServer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionServer.class);
+
+    private final IdempotencyStore local;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final int maxConnections;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Listen on the loopback interface only.
+     */
+    PartitionServer(IdempotencyStore local, int port, int maxConnections) {
+        this(local, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), maxConnections);
+    }
+
+    /**
+     * @param maxConnections peer connections served at once
+     */
+    PartitionServer(IdempotencyStore local, InetSocketAddress address, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid partition server connections: " + maxConnections);
+        }
+        this.local = local;
+        this.maxConnections = maxConnections;
+        try {
+            this.serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for partition peers on " + address, e);
+        }
+
+        // One thread per connection served, plus the accept loop
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections + 1, maxConnections + 1,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-partition-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.connections = pool;
+        connections.execute(this::accept);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Failed to accept partition peer connection", e);
+                }
+                continue;
+            }
+            // Only the accept loop adds, so the count cannot pass the cap
+            if (open.size() >= maxConnections) {
+                logger.warn("Refusing partition peer connection from {}: already serving {} connections",
+                        socket.getRemoteSocketAddress(), maxConnections);
+                closeQuietly(socket);
+                continue;
+            }
+            open.add(socket);
+            try {
+                connections.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // Accepted while closing
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported partition protocol version: " + version);
+            }
+            while (!closed) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                handle(op, in, out);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // Closed by the peer or by close()
+        } catch (IOException e) {
+            logger.warn("Dropping partition peer connection from {}", socket.getRemoteSocketAddress(), e);
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        // Read the whole request before touching the store, so a store failure leaves the stream in step
+        switch (op) {
+            case SAVE: {
+                IdempotencyRecord record = readRecord(in);
+                apply(out, () -> {
+                    local.save(record);
+                    out.writeByte(OK);
+                });
+                break;
+            }
+            case RESERVE: {
+                IdempotencyRecord record = readRecord(in);
+                apply(out, () -> writeOptional(out, local.reserve(record)));
+                break;
+            }
+            case COMPLETE: {
+                String key = in.readUTF();
+                ChargeResponse response = readResponse(in);
+                Instant expiresAt = Instant.ofEpochMilli(in.readLong());
+                apply(out, () -> out.writeByte(local.complete(key, response, expiresAt) ? TRUE : FALSE));
+                break;
+            }
+            case FIND: {
+                String key = in.readUTF();
+                apply(out, () -> writeOptional(out, local.findByKey(key)));
+                break;
+            }
+            case DELETE: {
+                String key = in.readUTF();
+                apply(out, () -> {
+                    local.delete(key);
+                    out.writeByte(OK);
+                });
+                break;
+            }
+            case REPLICATE: {
+                List<ReplicationLog.Entry> entries = readEntries(in);
+                apply(out, () -> {
+                    for (ReplicationLog.Entry entry : entries) {
+                        if (entry.record != null) {
+                            local.save(entry.record);
+                        } else {
+                            local.delete(entry.key);
+                        }
+                    }
+                    out.writeByte(OK);
+                });
+                break;
+            }
+            case RELEASE: {
+                IdempotencyRecord reservation = readRecord(in);
+                apply(out, () -> out.writeByte(local.release(reservation) ? TRUE : FALSE));
+                break;
+            }
+            default:
+                throw new IOException("Unknown partition operation: " + op);
+        }
+    }
+
+    private static void apply(DataOutputStream out, StoreCall call) throws IOException {
+        try {
+            call.run();
+        } catch (RuntimeException e) {
+            logger.error("Partition request failed", e);
+            out.writeByte(ERROR);
+            out.writeUTF(String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static List<ReplicationLog.Entry> readEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<ReplicationLog.Entry> entries = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            if (op == SAVE) {
+                entries.add(ReplicationLog.Entry.save(readRecord(in)));
+            } else if (op == DELETE) {
+                entries.add(ReplicationLog.Entry.delete(in.readUTF()));
+            } else {
+                throw new IOException("Unknown replicated operation: " + op);
+            }
+        }
+        return entries;
+    }
+
+    private static void writeOptional(DataOutputStream out, Optional<IdempotencyRecord> record) throws IOException {
+        if (record.isPresent()) {
+            out.writeByte(FOUND);
+            writeRecord(out, record.get());
+        } else {
+            out.writeByte(EMPTY);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close partition server socket", e);
+        }
+        open.forEach(PartitionServer::closeQuietly);
+        connections.shutdownNow();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    @FunctionalInterface
+    private interface StoreCall {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Store partitioned across the nodes of the payment API.
+ *
+ * Every key has one owner, picked by a consistent hash ring with virtual
+ * nodes that all nodes build from the same node list. The owner keeps the
+ * key's record in its local store; other nodes forward their calls for that
+ * key to it over the partition protocol, so all requests for a key meet in
+ * one place and reserve stays atomic without sticky routing.
+ *
+ * Each node cleans up only the records it owns. A node that is down makes
+ * its keys unavailable (calls fail) rather than moving them, so a key is
+ * never reserved in two places.
+ *
+ * Installed by PartitionConfiguration when payment.idempotency.partition.enabled=true.
+ */
+public class PartitionedIdempotencyStore implements IdempotencyStore, MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedIdempotencyStore.class);
+
+    private final IdempotencyStore local;
+    private final String self;
+    private final String bindAddress;
+    private final HashRing ring;
+    private final int connectionsPerPeer;
+    private final Duration timeout;
+    private final Map<String, PartitionClient> peers = new HashMap<>();
+    private final PartitionServer server;
+
+    private final AtomicLong localCalls = new AtomicLong();
+    private final AtomicLong forwardedCalls = new AtomicLong();
+    private final AtomicLong forwardNanos = new AtomicLong();
+
+    /**
+     * Partition server listening on the host of self.
+     */
+    public PartitionedIdempotencyStore(IdempotencyStore local, String self, List<String> nodes,
+                                       int virtualNodes, int connectionsPerPeer, Duration timeout) {
+        this(local, self, null, nodes, virtualNodes, connectionsPerPeer, timeout);
+    }
+
+    /**
+     * @param local              store for the keys this node owns
+     * @param self               this node's host:port; the partition server listens on its port
+     * @param bindAddress        address the partition server listens on; null or empty for
+     *                           the host of self, so it never listens on all interfaces by default
+     * @param nodes              all nodes, including this one, in the same order on every node
+     * @param virtualNodes       ring points per node
+     * @param connectionsPerPeer most connections open to each peer; the partition server
+     *                           serves as many from each of the other nodes
+     * @param timeout            connect and read timeout for forwarded calls
+     */
+    public PartitionedIdempotencyStore(IdempotencyStore local, String self, String bindAddress, List<String> nodes,
+                                       int virtualNodes, int connectionsPerPeer, Duration timeout) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("Node " + self + " is not in the partition nodes " + nodes);
+        }
+        this.local = local;
+        this.self = self;
+        this.bindAddress = bindAddress;
+        this.ring = new HashRing(nodes, virtualNodes);
+        this.connectionsPerPeer = connectionsPerPeer;
+        this.timeout = timeout;
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.put(node, new PartitionClient(node, connectionsPerPeer, timeout));
+            }
+        }
+        InetSocketAddress selfAddress = PartitionClient.parseAddress(self);
+        this.server = new PartitionServer(local, new InetSocketAddress(
+                bindAddress == null || bindAddress.isEmpty() ? selfAddress.getHostString() : bindAddress,
+                selfAddress.getPort()), Math.max(1, (nodes.size() - 1) * connectionsPerPeer));
+        logger.info("Partitioned {} as node {} of {} ({} virtual nodes each)",
+                local.getClass().getSimpleName(), self, nodes, virtualNodes);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        route(record.getIdempotencyKey(), store -> {
+            store.save(record);
+            return null;
+        }, peer -> {
+            peer.save(record);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        return route(record.getIdempotencyKey(), store -> store.reserve(record), peer -> peer.reserve(record));
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        return route(idempotencyKey, store -> store.complete(idempotencyKey, response, expiresAt),
+                peer -> peer.complete(idempotencyKey, response, expiresAt));
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        return route(idempotencyKey, store -> store.findByKey(idempotencyKey), peer -> peer.findByKey(idempotencyKey));
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        route(idempotencyKey, store -> {
+            store.delete(idempotencyKey);
+            return null;
+        }, peer -> {
+            peer.delete(idempotencyKey);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        return route(reservation.getIdempotencyKey(), store -> store.release(reservation),
+                peer -> peer.release(reservation));
+    }
+
+    @Override
+    public void cleanupExpired() {
+        local.cleanupExpired();
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        return local.cleanupExpired(maxEntries, maxDuration);
+    }
+
+    /**
+     * The node that owns the key.
+     */
+    public String ownerOf(String idempotencyKey) {
+        return ring.ownerOf(idempotencyKey);
+    }
+
+    public IdempotencyStore getLocal() {
+        return local;
+    }
+
+    /**
+     * Stop serving and return a partitioned store with the same nodes in front of
+     * another local store. This store's local store is left open.
+     */
+    PartitionedIdempotencyStore withLocal(IdempotencyStore local) {
+        server.close();
+        peers.values().forEach(PartitionClient::close);
+        return new PartitionedIdempotencyStore(local, self, bindAddress, ring.getNodes(), ring.getVirtualNodes(),
+                connectionsPerPeer, timeout);
+    }
+
+    private <T> T route(String idempotencyKey, Function<IdempotencyStore, T> onLocal,
+                        Function<PartitionClient, T> onPeer) {
+        String owner = ring.ownerOf(idempotencyKey);
+        if (owner.equals(self)) {
+            localCalls.incrementAndGet();
+            return onLocal.apply(local);
+        }
+        forwardedCalls.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return onPeer.apply(peers.get(owner));
+        } finally {
+            forwardNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (local instanceof MeterBinder) {
+            ((MeterBinder) local).bindTo(registry);
+        }
+        FunctionCounter.builder("idempotency.partition.calls", localCalls, AtomicLong::get)
+                .description("Store calls for keys this node owns")
+                .tag("target", "local")
+                .register(registry);
+        FunctionCounter.builder("idempotency.partition.calls", forwardedCalls, AtomicLong::get)
+                .description("Store calls forwarded to the owning node")
+                .tag("target", "forwarded")
+                .register(registry);
+        FunctionTimer.builder("idempotency.partition.forward", this,
+                        store -> store.forwardedCalls.get(), store -> store.forwardNanos.get(), TimeUnit.NANOSECONDS)
+                .description("Round trips to the owning node")
+                .register(registry);
+    }
+
+    /**
+     * The local store's shutdown hooks are not called on a decorated bean, so forward them.
+     */
+    @PreDestroy
+    @Override
+    public void close() throws Exception {
+        server.close();
+        peers.values().forEach(PartitionClient::close);
+        if (local instanceof AutoCloseable) {
+            ((AutoCloseable) local).close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * Non-blocking counterpart of {@link IdempotencyStore} for the reactive
+ * endpoint.
+ *
+ * Same semantics, call for call; an absent record is an empty Mono rather
+ * than an empty Optional. Nothing happens until the Mono is subscribed.
+ * Cleanup is left to the blocking store or to the backend's own expiry.
+ */
+public interface ReactiveIdempotencyStore {
+
+    /**
+     * Save an idempotency record.
+     *
+     * @param record the record to save
+     */
+    Mono<Void> save(IdempotencyRecord record);
+
+    /**
+     * Atomically reserve an idempotency key.
+     *
+     * @param record the IN_PROGRESS record to place
+     * @return the existing record if the key is already taken, empty if reserved
+     * @see IdempotencyStore#reserve(IdempotencyRecord)
+     */
+    Mono<IdempotencyRecord> reserve(IdempotencyRecord record);
+
+    /**
+     * Complete a previously reserved key with its charge response.
+     *
+     * @param idempotencyKey the idempotency key
+     * @param response       the charge response to cache
+     * @param expiresAt      new expiry for the completed record
+     * @return true if an IN_PROGRESS reservation was found and completed
+     */
+    Mono<Boolean> complete(String idempotencyKey, ChargeResponse response, Instant expiresAt);
+
+    /**
+     * Find an idempotency record by key.
+     *
+     * @param idempotencyKey the idempotency key
+     * @return the record if found and not expired, empty otherwise
+     */
+    Mono<IdempotencyRecord> findByKey(String idempotencyKey);
+
+    /**
+     * Delete an idempotency record.
+     *
+     * @param idempotencyKey the idempotency key
+     */
+    Mono<Void> delete(String idempotencyKey);
+}
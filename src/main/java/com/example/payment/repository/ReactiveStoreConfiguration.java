@@ -0,0 +1,49 @@
+package com.example.payment.repository;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+
+/**
+ * Picks the ReactiveIdempotencyStore for the reactive endpoint to match the
+ * selected blocking store, so both endpoints see the same keys.
+ *
+ * The redis store gets its reactive twin on the same keyspace. The in-process
+ * stores are shared through {@link InMemoryReactiveIdempotencyStore}. Stores
+ * that block on I/O (log, jdbc, or partitioned or replicated ones) have no
+ * reactive form and are refused at startup.
+ *
+ * Enabled with payment.reactive.enabled=true.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "payment.reactive.enabled", havingValue = "true")
+public class ReactiveStoreConfiguration {
+
+    @Bean
+    @ConditionalOnExpression("'${payment.idempotency.store:memory}' != 'redis'")
+    ReactiveIdempotencyStore inMemoryReactiveIdempotencyStore(IdempotencyStore store) {
+        if (!(store instanceof InMemoryIdempotencyStore || store instanceof OpenAddressingIdempotencyStore
+                || store instanceof OffHeapIdempotencyStore)) {
+            throw new IllegalStateException("The reactive endpoint needs the memory, open-addressing, off-heap "
+                    + "or redis store, not " + store.getClass().getSimpleName());
+        }
+        return new InMemoryReactiveIdempotencyStore(store);
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(ReactiveRedisConnectionFactory.class)
+    @ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "redis")
+    static class RedisReactiveStoreConfiguration {
+
+        @Bean
+        ReactiveIdempotencyStore redisReactiveIdempotencyStore(ReactiveRedisConnectionFactory connectionFactory,
+                                                               Environment environment) {
+            return new RedisReactiveIdempotencyStore(connectionFactory,
+                    environment.getProperty("payment.idempotency.redis.key-prefix", "idempotency:"));
+        }
+    }
+}
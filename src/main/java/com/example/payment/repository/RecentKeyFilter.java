@@ -0,0 +1,269 @@
+package com.example.payment.repository;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Time-partitioned Bloom filter of the idempotency keys this node has seen
+ * recently.
+ *
+ * Most charges carry a key that has never been used, and looking one up in a
+ * remote store is a round trip that is certain to miss. A key the filter has
+ * never seen is definitely new, so the lookup can be skipped and the key
+ * reserved directly. The filter is only a hint: a key first seen by another
+ * node, or before a restart, is simply reported as new, and the atomic
+ * reserve still decides who owns it.
+ *
+ * The filter is split into generations, each covering ttl / (generations - 1),
+ * so together they cover at least one TTL. Keys are added to the newest
+ * generation and looked up in all of them; when the newest is full or its
+ * time is up, the oldest is cleared and becomes the newest. Each generation
+ * is sized for the target false positive rate divided by the generation
+ * count, so the filter as a whole stays within the target.
+ *
+ * Lock-free for lookups and inserts; bits are set with CAS on a long array.
+ */
+@Component
+@ConditionalOnProperty(name = "payment.idempotency.key-filter.enabled", havingValue = "true", matchIfMissing = true)
+public class RecentKeyFilter implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecentKeyFilter.class);
+
+    private final long generationNanos;
+    private final long keysPerGeneration;
+    private final int hashes;
+    private final int bitsPerGeneration;
+
+    // Newest first; replaced as a whole on rotation
+    private volatile Generation[] generations;
+    private volatile long generationStart;
+    private final ReentrantLock rotationLock = new ReentrantLock();
+
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong emptyHits = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    /**
+     * @param ttl               how long keys should be remembered, normally the idempotency TTL
+     * @param generations       number of generations, at least 2
+     * @param keysPerGeneration keys a generation holds before it is rotated early
+     * @param falsePositiveRate target false positive rate of the whole filter
+     */
+    @Autowired
+    public RecentKeyFilter(
+            @Value("${payment.idempotency.ttl:PT1H}") Duration ttl,
+            @Value("${payment.idempotency.key-filter.generations:4}") int generations,
+            @Value("${payment.idempotency.key-filter.keys-per-generation:1000000}") long keysPerGeneration,
+            @Value("${payment.idempotency.key-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+        if (generations < 2 || keysPerGeneration <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid key filter settings: " + generations + " generations, "
+                    + keysPerGeneration + " keys, false positive rate " + falsePositiveRate);
+        }
+        this.generationNanos = Math.max(1, ttl.toNanos() / (generations - 1));
+        this.keysPerGeneration = keysPerGeneration;
+
+        // Standard Bloom sizing: m = -n ln p / (ln 2)^2, k = m / n ln 2
+        double generationRate = falsePositiveRate / generations;
+        long bits = (long) Math.ceil(-keysPerGeneration * Math.log(generationRate) / (Math.log(2) * Math.log(2)));
+        if (bits > Integer.MAX_VALUE - 63) {
+            throw new IllegalArgumentException("Key filter generation too large: " + bits + " bits");
+        }
+        this.bitsPerGeneration = (int) ((bits + 63) & ~63L);
+        this.hashes = Math.max(1, (int) Math.round((double) bitsPerGeneration / keysPerGeneration * Math.log(2)));
+
+        Generation[] initial = new Generation[generations];
+        for (int i = 0; i < generations; i++) {
+            initial[i] = new Generation(bitsPerGeneration);
+        }
+        this.generations = initial;
+        this.generationStart = System.nanoTime();
+
+        logger.info("Recent key filter: {} generations of {} keys / {} KB, {} hashes, covering {}",
+                generations, keysPerGeneration, bitsPerGeneration / 8 / 1024, hashes, ttl);
+    }
+
+    /**
+     * @return false if the key has definitely not been added within the covered window
+     */
+    public boolean mightContain(String key) {
+        long[] hash = KeyHasher.hash128(key);
+        for (Generation generation : current()) {
+            if (generation.contains(hash, hashes)) {
+                return true;
+            }
+        }
+        negatives.incrementAndGet();
+        return false;
+    }
+
+    public void add(String key) {
+        long[] hash = KeyHasher.hash128(key);
+        Generation newest = current()[0];
+        if (newest.add(hash, hashes)) {
+            newest.keys.incrementAndGet();
+        }
+    }
+
+    /**
+     * Report a key the filter let through whose lookup then found nothing.
+     * That is either a false positive or a key whose record was deleted or
+     * has expired since it was added; the two cannot be told apart here.
+     */
+    public void recordEmptyHit() {
+        emptyHits.incrementAndGet();
+    }
+
+    /**
+     * Estimated false positive rate right now, from how full each generation is.
+     */
+    public double estimatedFalsePositiveRate() {
+        double allMiss = 1.0;
+        for (Generation generation : generations) {
+            double fill = (double) generation.bitsSet.get() / bitsPerGeneration;
+            allMiss *= 1.0 - Math.pow(fill, hashes);
+        }
+        return 1.0 - allMiss;
+    }
+
+    public long memoryBytes() {
+        return (long) generations.length * bitsPerGeneration / 8;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.keyfilter.memory", this, RecentKeyFilter::memoryBytes)
+                .description("Memory held by the recent key filter")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("idempotency.keyfilter.fpp", this, RecentKeyFilter::estimatedFalsePositiveRate)
+                .description("Estimated false positive rate of the recent key filter")
+                .register(registry);
+        FunctionCounter.builder("idempotency.keyfilter.negatives", negatives, AtomicLong::get)
+                .description("Keys reported new, so their store lookup was skipped")
+                .register(registry);
+        FunctionCounter.builder("idempotency.keyfilter.empty-hits", emptyHits, AtomicLong::get)
+                .description("Filter hits with no stored record: false positives, deleted and expired keys")
+                .register(registry);
+        FunctionCounter.builder("idempotency.keyfilter.rotations", rotations, AtomicLong::get)
+                .description("Generations cleared by rotation")
+                .register(registry);
+    }
+
+    /**
+     * The generations, rotated first if the newest one is full or its time is up.
+     */
+    private Generation[] current() {
+        Generation[] snapshot = generations;
+        long elapsed = System.nanoTime() - generationStart;
+        if (elapsed < generationNanos && snapshot[0].keys.get() < keysPerGeneration) {
+            return snapshot;
+        }
+        // One thread rotates; the others carry on with the current generations
+        if (!rotationLock.tryLock()) {
+            return snapshot;
+        }
+        try {
+            snapshot = generations;
+            long now = System.nanoTime();
+            elapsed = now - generationStart;
+            long due = elapsed >= generationNanos ? elapsed / generationNanos
+                    : snapshot[0].keys.get() >= keysPerGeneration ? 1 : 0;
+            int count = (int) Math.min(due, snapshot.length);
+            if (count == 0) {
+                return snapshot;
+            }
+
+            // Recycle the oldest generations as the newest ones
+            Generation[] rotated = new Generation[snapshot.length];
+            for (int i = 0; i < count; i++) {
+                Generation recycled = snapshot[snapshot.length - 1 - i];
+                recycled.clear();
+                rotated[i] = recycled;
+            }
+            System.arraycopy(snapshot, 0, rotated, count, snapshot.length - count);
+
+            generations = rotated;
+            generationStart = now;
+            rotations.addAndGet(count);
+            return rotated;
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    /**
+     * One Bloom filter, probed by double hashing of the 128-bit key hash.
+     */
+    private static final class Generation {
+
+        private final AtomicLongArray words;
+        private final int bits;
+        private final AtomicLong bitsSet = new AtomicLong();
+        private final AtomicLong keys = new AtomicLong();
+
+        private Generation(int bits) {
+            this.words = new AtomicLongArray(bits / 64);
+            this.bits = bits;
+        }
+
+        boolean contains(long[] hash, int hashes) {
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) ((combined & Long.MAX_VALUE) % bits);
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+                combined += hash[1];
+            }
+            return true;
+        }
+
+        /**
+         * @return true if any bit changed, i.e. the key was not already present
+         */
+        boolean add(long[] hash, int hashes) {
+            boolean changed = false;
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) ((combined & Long.MAX_VALUE) % bits);
+                int word = bit >>> 6;
+                long mask = 1L << bit;
+                long current;
+                while (((current = words.get(word)) & mask) == 0) {
+                    if (words.compareAndSet(word, current, current | mask)) {
+                        bitsSet.incrementAndGet();
+                        changed = true;
+                        break;
+                    }
+                }
+                combined += hash[1];
+            }
+            return changed;
+        }
+
+        /**
+         * Callers holding an older snapshot may still probe or add to a generation being
+         * cleared; that can only turn a hit into a miss, which the reserve tolerates.
+         */
+        void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+            }
+            bitsSet.set(0);
+            keys.set(0);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.model.RequestFingerprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Compact binary encoding of idempotency records.
+ *
+ * Used by stores that keep records outside the Java heap or on disk.
+ * Layout (big-endian): format version, key, request fingerprint, status,
+ * created/expiry epoch millis, then the optional response and request.
+ * Strings and byte arrays are length-prefixed, with -1 marking null.
+ *
+ * Format 2 appends the response's JSON to the response. It is only written
+ * when there is JSON to carry, so reservations keep the format 1 bytes that
+ * conditional releases compare against, and format 1 data still decodes.
+ */
+final class RecordCodec {
+
+    private static final byte VERSION = 1;
+    private static final byte VERSION_WITH_JSON = 2;
+    private static final byte IN_PROGRESS = 1;
+    private static final byte COMPLETED = 2;
+
+    private RecordCodec() {
+    }
+
+    static byte[] encode(IdempotencyRecord record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            ChargeResponse response = record.getResponse();
+            byte version = versionFor(response);
+            out.writeByte(version);
+            writeString(out, record.getIdempotencyKey());
+            out.writeLong(record.getRequestFingerprint().getHigh());
+            out.writeLong(record.getRequestFingerprint().getLow());
+            out.writeByte(record.isCompleted() ? COMPLETED : IN_PROGRESS);
+            out.writeLong(record.getCreatedAt().toEpochMilli());
+            out.writeLong(record.getExpiresAt().toEpochMilli());
+
+            out.writeBoolean(response != null);
+            if (response != null) {
+                writeResponse(out, response, version);
+            }
+
+            ChargeRequest request = record.getRequest();
+            out.writeBoolean(request != null);
+            if (request != null) {
+                writeString(out, request.getCustomerId());
+                writeDecimal(out, request.getAmount());
+                writeString(out, request.getCurrency());
+                writeString(out, request.getDescription());
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a record starting at the buffer's position, advancing it past the record.
+     */
+    static IdempotencyRecord decode(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION && version != VERSION_WITH_JSON) {
+            throw new IllegalStateException("Unsupported idempotency record format: " + version);
+        }
+        String key = readString(in);
+        RequestFingerprint fingerprint = new RequestFingerprint(in.getLong(), in.getLong());
+        byte status = in.get();
+        long createdAt = in.getLong();
+        long expiresAt = in.getLong();
+
+        ChargeResponse response = in.get() != 0 ? readResponse(in, version) : null;
+
+        ChargeRequest request = null;
+        if (in.get() != 0) {
+            request = new ChargeRequest(readString(in), readDecimal(in), readString(in), readString(in));
+        }
+
+        IdempotencyRecord record = new IdempotencyRecord(key, fingerprint, request,
+                status == COMPLETED ? response : null, Instant.ofEpochMilli(expiresAt));
+        record.setCreatedAt(Instant.ofEpochMilli(createdAt));
+        return record;
+    }
+
+    /**
+     * Encode a response on its own, for stores that keep it apart from the reservation.
+     */
+    static byte[] encodeResponse(ChargeResponse response) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte version = versionFor(response);
+            out.writeByte(version);
+            writeResponse(out, response, version);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ChargeResponse decodeResponse(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION && version != VERSION_WITH_JSON) {
+            throw new IllegalStateException("Unsupported charge response format: " + version);
+        }
+        return readResponse(in, version);
+    }
+
+    /**
+     * Encode the record as it looked while IN_PROGRESS, for stores that keep the
+     * response in its own field and complete records in place.
+     */
+    static byte[] encodeReservation(IdempotencyRecord record) {
+        if (record.isInProgress()) {
+            return encode(record);
+        }
+        IdempotencyRecord reservation = IdempotencyRecord.inProgress(record.getIdempotencyKey(),
+                record.getRequestFingerprint(), record.getRequest(), record.getExpiresAt());
+        reservation.setCreatedAt(record.getCreatedAt());
+        return encode(reservation);
+    }
+
+    /**
+     * Rebuild a record from its encoded reservation and, once completed, its encoded response.
+     *
+     * @param response the encoded response, null or empty while IN_PROGRESS
+     */
+    static IdempotencyRecord decodeReservation(byte[] reservation, byte[] response, Instant expiresAt) {
+        IdempotencyRecord record = decode(ByteBuffer.wrap(reservation));
+        if (response != null && response.length > 0) {
+            record = record.complete(decodeResponse(ByteBuffer.wrap(response)), expiresAt);
+        }
+        return record;
+    }
+
+    private static byte versionFor(ChargeResponse response) {
+        return response != null && response.getJson() != null ? VERSION_WITH_JSON : VERSION;
+    }
+
+    private static void writeResponse(DataOutputStream out, ChargeResponse response, byte version)
+            throws IOException {
+        writeString(out, response.getTransactionId());
+        writeString(out, response.getStatus());
+        writeDecimal(out, response.getAmount());
+        writeString(out, response.getCurrency());
+        out.writeBoolean(response.getProcessedAt() != null);
+        if (response.getProcessedAt() != null) {
+            out.writeLong(response.getProcessedAt().getEpochSecond());
+            out.writeInt(response.getProcessedAt().getNano());
+        }
+        writeString(out, response.getMessage());
+        if (version == VERSION_WITH_JSON) {
+            byte[] json = response.getJson();
+            out.writeInt(json.length);
+            out.write(json);
+        }
+    }
+
+    private static ChargeResponse readResponse(ByteBuffer in, byte version) {
+        String transactionId = readString(in);
+        String status = readString(in);
+        BigDecimal amount = readDecimal(in);
+        String currency = readString(in);
+        Instant processedAt = in.get() != 0 ? Instant.ofEpochSecond(in.getLong(), in.getInt()) : null;
+        String message = readString(in);
+        ChargeResponse response = new ChargeResponse(transactionId, status, amount, currency, processedAt, message);
+        if (version == VERSION_WITH_JSON) {
+            byte[] json = new byte[in.getInt()];
+            in.get(json);
+            response.setJson(json);
+        }
+        return response;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        writeString(out, value == null ? null : value.toString());
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static BigDecimal readDecimal(ByteBuffer in) {
+        String value = readString(in);
+        return value == null ? null : new BigDecimal(value);
+    }
+}
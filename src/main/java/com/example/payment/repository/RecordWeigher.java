@@ -0,0 +1,94 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import java.math.BigDecimal;
+
+/**
+ * Caffeine weigher for idempotency records.
+ * 
+ * IN_PROGRESS records always weigh zero, which Caffeine excludes from
+ * size-based eviction, so a reservation can never be evicted while its
+ * payment is being processed.
+ */
+final class RecordWeigher implements Weigher<String, IdempotencyRecord> {
+    
+    // Rough shallow sizes for a 64-bit JVM with compressed oops
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int BIG_DECIMAL = 40;
+    private static final int INSTANT = 24;
+    private static final int MAP_ENTRY = 32;
+    private static final int WHEEL_ENTRY = 48;
+    private static final int FINGERPRINT = 32;
+    private static final int ARRAY_HEADER = 16;
+    
+    private final boolean byBytes;
+    
+    /**
+     * @param byBytes weigh by estimated heap bytes; otherwise every completed record weighs one
+     */
+    RecordWeigher(boolean byBytes) {
+        this.byBytes = byBytes;
+    }
+    
+    @Override
+    public int weigh(String key, IdempotencyRecord record) {
+        if (record.isInProgress()) {
+            return 0;
+        }
+        return byBytes ? (int) Math.min(Integer.MAX_VALUE, estimateBytes(record)) : 1;
+    }
+    
+    /**
+     * Estimate the retained heap size of a record, including its map entry,
+     * key and expiry wheel entry.
+     */
+    static long estimateBytes(IdempotencyRecord record) {
+        long bytes = MAP_ENTRY + OBJECT_HEADER + 7 * REFERENCE
+                + MAP_ENTRY + WHEEL_ENTRY
+                + string(record.getIdempotencyKey())
+                + (record.getRequestFingerprint() != null ? FINGERPRINT : 0)
+                + 2L * INSTANT;
+        
+        // Only present when the full request is retained for audit
+        ChargeRequest request = record.getRequest();
+        if (request != null) {
+            bytes += OBJECT_HEADER + 4 * REFERENCE
+                    + string(request.getCustomerId())
+                    + decimal(request.getAmount())
+                    + string(request.getCurrency())
+                    + string(request.getDescription());
+        }
+        
+        ChargeResponse response = record.getResponse();
+        if (response != null) {
+            bytes += OBJECT_HEADER + 7 * REFERENCE
+                    + string(response.getTransactionId())
+                    + string(response.getStatus())
+                    + decimal(response.getAmount())
+                    + string(response.getCurrency())
+                    + INSTANT
+                    + string(response.getMessage())
+                    + bytes(response.getJson());
+        }
+        return bytes;
+    }
+    
+    private static long string(String value) {
+        // Compact strings: one byte per Latin-1 char, which covers our keys and codes
+        return value == null ? 0 : STRING_OVERHEAD + value.length();
+    }
+    
+    private static long bytes(byte[] value) {
+        return value == null ? 0 : ARRAY_HEADER + value.length;
+    }
+    
+    private static long decimal(BigDecimal value) {
+        return value == null ? 0 : BIG_DECIMAL;
+    }
+}
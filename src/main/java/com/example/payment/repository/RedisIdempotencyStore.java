@@ -0,0 +1,340 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.model.RequestFingerprint;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Redis implementation of IdempotencyStore, shared by every node.
+ *
+ * Each record is a hash: request fingerprint (f), status (s), the encoded
+ * IN_PROGRESS reservation (r), the encoded response once completed (p) and
+ * the expiry (e). Reserve, including the fingerprint comparison, and complete
+ * are Lua scripts run with EVALSHA, so each is a single atomic round trip.
+ *
+ * Keys carry a native expiry (PEXPIREAT), so Redis drops expired records by
+ * itself and cleanupExpired has nothing to do.
+ *
+ * Concurrent findByKey calls are coalesced: reads arriving within the batch
+ * window (or until the batch is full) go out as one pipeline of HMGETs, so a
+ * burst of retries costs one round trip instead of one per request. A batch
+ * max size of 1 turns batching off. Bulk lookups and reservations go out as
+ * one pipeline each.
+ *
+ * Enable with payment.idempotency.store=redis; the connection comes from the
+ * spring.redis.* properties.
+ */
+@Repository
+@Primary
+@ConditionalOnClass(RedisConnectionFactory.class)
+@ConditionalOnProperty(name = "payment.idempotency.store", havingValue = "redis")
+public class RedisIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisIdempotencyStore.class);
+
+    static final List<String> FIELDS = Arrays.asList("f", "s", "r", "p", "e");
+    private static final byte[][] RAW_FIELDS = FIELDS.stream()
+            .map(field -> field.getBytes(StandardCharsets.UTF_8))
+            .toArray(byte[][]::new);
+    static final byte[] IN_PROGRESS = {'I'};
+    static final byte[] COMPLETED = {'C'};
+    static final byte[] NONE = new byte[0];
+    private static final RedisSerializer<?> RAW = RedisSerializer.byteArray();
+
+    static final long RESERVED = 1;
+    static final long HELD_BY_SAME_REQUEST = 0;
+
+    private final RedisTemplate<String, byte[]> redis;
+    private final String keyPrefix;
+
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> reserveScript = script("redis/reserve.lua", List.class);
+    private final RedisScript<Long> completeScript = script("redis/complete.lua", Long.class);
+    private final RedisScript<Long> saveScript = script("redis/save.lua", Long.class);
+    private final RedisScript<Long> releaseScript = script("redis/release.lua", Long.class);
+
+    // Null when batching is off
+    private final RequestBatcher<String, List<byte[]>> readBatcher;
+    private final DistributionSummary batchSizes;
+
+    /**
+     * @param connectionFactory Redis connection
+     * @param meterRegistry     registry for the read batch histogram
+     * @param keyPrefix         prefix for record keys, to share a database with other data
+     * @param batchWindow       how long a findByKey waits for others to share its round trip
+     * @param batchMaxSize      findByKey calls per pipeline; 1 disables batching
+     * @param batchTimeout      longest a findByKey waits for its pipeline
+     */
+    public RedisIdempotencyStore(
+            RedisConnectionFactory connectionFactory,
+            MeterRegistry meterRegistry,
+            @Value("${payment.idempotency.redis.key-prefix:idempotency:}") String keyPrefix,
+            @Value("${payment.idempotency.redis.batch.window:PT0.0002S}") Duration batchWindow,
+            @Value("${payment.idempotency.redis.batch.max-size:64}") int batchMaxSize,
+            @Value("${payment.idempotency.redis.batch.timeout:PT5S}") Duration batchTimeout) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        template.afterPropertiesSet();
+
+        this.redis = template;
+        this.keyPrefix = keyPrefix;
+        // Registered here rather than through MeterBinder: the Lettuce metrics behind the
+        // connection factory need the registry, which would need this store again
+        this.batchSizes = DistributionSummary.builder("idempotency.redis.batch.size")
+                .description("findByKey calls served by one pipelined round trip")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue((double) Math.max(1, batchMaxSize))
+                .register(meterRegistry);
+        this.readBatcher = batchMaxSize > 1
+                ? new RequestBatcher<>("idempotency-redis-reader", this::readPipelined,
+                        batchWindow.toNanos(), batchMaxSize, batchTimeout.toNanos(), batchSizes::record)
+                : null;
+        logger.info("Using RedisIdempotencyStore, key prefix: {}, read batches of up to {} within {}",
+                keyPrefix, batchMaxSize, batchWindow);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        run(saveScript, keyPrefix + record.getIdempotencyKey(),
+                fingerprintBytes(record.getRequestFingerprint()),
+                record.isCompleted() ? COMPLETED : IN_PROGRESS,
+                RecordCodec.encodeReservation(record),
+                record.getResponse() != null ? RecordCodec.encodeResponse(record.getResponse()) : NONE,
+                millis(record.getExpiresAt()));
+        logger.debug("Saved idempotency record for key: {}", record.getIdempotencyKey());
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        List<?> reply = run(reserveScript, keyPrefix + key,
+                fingerprintBytes(record.getRequestFingerprint()),
+                RecordCodec.encode(record),
+                millis(record.getExpiresAt()));
+        return reserved(key, reply);
+    }
+
+    /**
+     * Run the reserve script for every record in one pipeline.
+     */
+    @Override
+    public List<Optional<IdempotencyRecord>> reserveAll(List<IdempotencyRecord> records) {
+        if (records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[] script = reserveScript.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        List<Object> replies = redis.executePipelined((RedisCallback<Object>) connection -> {
+            // EVALSHA has no EVAL fallback inside a pipeline: load the script first, in the same pipeline
+            connection.scriptingCommands().scriptLoad(script);
+            for (IdempotencyRecord record : records) {
+                connection.scriptingCommands().evalSha(reserveScript.getSha1(), ReturnType.MULTI, 1,
+                        (keyPrefix + record.getIdempotencyKey()).getBytes(StandardCharsets.UTF_8),
+                        fingerprintBytes(record.getRequestFingerprint()),
+                        RecordCodec.encode(record),
+                        millis(record.getExpiresAt()));
+            }
+            return null;
+        }, RAW);
+
+        List<Optional<IdempotencyRecord>> results = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            results.add(reserved(records.get(i).getIdempotencyKey(), (List<?>) replies.get(i + 1)));
+        }
+        return results;
+    }
+
+    /**
+     * Decode a reserve script reply: empty if reserved, else the record holding the key.
+     */
+    private Optional<IdempotencyRecord> reserved(String key, List<?> reply) {
+        long outcome = (Long) reply.get(0);
+        if (outcome == RESERVED) {
+            logger.debug("Reserved idempotency key: {}", key);
+            return Optional.empty();
+        }
+
+        IdempotencyRecord existing;
+        if (outcome == HELD_BY_SAME_REQUEST) {
+            existing = toRecord((byte[]) reply.get(1), (byte[]) reply.get(2),
+                    (byte[]) reply.get(3), (byte[]) reply.get(4));
+        } else {
+            // Held by a different request: the fingerprint is all the caller needs to reject it
+            existing = new IdempotencyRecord(key, fingerprintOf((byte[]) reply.get(1)), null, null,
+                    Instant.ofEpochMilli(parseMillis((byte[]) reply.get(2))));
+        }
+        logger.debug("Idempotency key already reserved: {} ({})", key, existing.getStatus());
+        return Optional.of(existing);
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        Long completed = run(completeScript, keyPrefix + idempotencyKey,
+                RecordCodec.encodeResponse(response),
+                millis(expiresAt));
+
+        if (completed != null && completed == 1) {
+            logger.debug("Completed idempotency record for key: {}", idempotencyKey);
+            return true;
+        }
+        logger.warn("No IN_PROGRESS reservation to complete for key: {}", idempotencyKey);
+        return false;
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        List<byte[]> fields = readBatcher != null
+                ? readBatcher.execute(idempotencyKey)
+                : redis.<String, byte[]>opsForHash().multiGet(keyPrefix + idempotencyKey, FIELDS);
+
+        if (fields.get(0) == null) {
+            logger.debug("No idempotency record found for key: {}", idempotencyKey);
+            return Optional.empty();
+        }
+
+        logger.debug("Found idempotency record for key: {}", idempotencyKey);
+        return Optional.of(toRecord(fields.get(1), fields.get(2), fields.get(3), fields.get(4)));
+    }
+
+    /**
+     * HMGET every key in one pipeline, without waiting for a read batch to form.
+     */
+    @Override
+    public Map<String, IdempotencyRecord> findAllByKey(Collection<String> idempotencyKeys) {
+        List<String> keys = new ArrayList<>(idempotencyKeys);
+        Map<String, IdempotencyRecord> found = new HashMap<>();
+        if (keys.isEmpty()) {
+            return found;
+        }
+        List<List<byte[]>> replies = readPipelined(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            List<byte[]> fields = replies.get(i);
+            if (fields.get(0) != null) {
+                found.put(keys.get(i), toRecord(fields.get(1), fields.get(2), fields.get(3), fields.get(4)));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        redis.delete(keyPrefix + idempotencyKey);
+        logger.debug("Deleted idempotency record for key: {}", idempotencyKey);
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        String idempotencyKey = reservation.getIdempotencyKey();
+        Long released = run(releaseScript, keyPrefix + idempotencyKey, RecordCodec.encodeReservation(reservation));
+        logger.debug("Released reservation for key: {}: {}", idempotencyKey, released);
+        return released != null && released == 1;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        // Redis expires keys natively
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        return new CleanupStats(0, 0, Duration.ZERO, true);
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        if (readBatcher != null) {
+            readBatcher.close();
+        }
+    }
+
+    /**
+     * HMGET every key in one pipeline; replies come back in key order.
+     */
+    @SuppressWarnings("unchecked")
+    private List<List<byte[]>> readPipelined(List<String> keys) {
+        List<Object> replies = redis.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.hashCommands().hMGet((keyPrefix + key).getBytes(StandardCharsets.UTF_8), RAW_FIELDS);
+            }
+            return null;
+        }, RAW);
+        return replies.stream().map(reply -> (List<byte[]>) reply).collect(Collectors.toList());
+    }
+
+    /**
+     * Run a script with EVALSHA (falling back to EVAL once per connection). Arguments
+     * are raw bytes, and bulk replies, also inside multi-bulk replies, stay byte[].
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T run(RedisScript<T> script, String key, Object... args) {
+        return redis.execute(script, RedisSerializer.byteArray(), (RedisSerializer<T>) RAW,
+                Collections.singletonList(key), args);
+    }
+
+    static IdempotencyRecord toRecord(byte[] status, byte[] reservation, byte[] response, byte[] expiresAt) {
+        return RecordCodec.decodeReservation(reservation, Arrays.equals(status, COMPLETED) ? response : null,
+                Instant.ofEpochMilli(parseMillis(expiresAt)));
+    }
+
+    static byte[] fingerprintBytes(RequestFingerprint fingerprint) {
+        return ByteBuffer.allocate(16).putLong(fingerprint.getHigh()).putLong(fingerprint.getLow()).array();
+    }
+
+    static RequestFingerprint fingerprintOf(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new RequestFingerprint(buffer.getLong(), buffer.getLong());
+    }
+
+    static byte[] millis(Instant instant) {
+        return Long.toString(instant.toEpochMilli()).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static long parseMillis(byte[] bytes) {
+        return Long.parseLong(new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    static <T> RedisScript<T> script(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.payment.repository.RedisIdempotencyStore.COMPLETED;
+import static com.example.payment.repository.RedisIdempotencyStore.FIELDS;
+import static com.example.payment.repository.RedisIdempotencyStore.HELD_BY_SAME_REQUEST;
+import static com.example.payment.repository.RedisIdempotencyStore.IN_PROGRESS;
+import static com.example.payment.repository.RedisIdempotencyStore.NONE;
+import static com.example.payment.repository.RedisIdempotencyStore.RESERVED;
+import static com.example.payment.repository.RedisIdempotencyStore.fingerprintBytes;
+import static com.example.payment.repository.RedisIdempotencyStore.fingerprintOf;
+import static com.example.payment.repository.RedisIdempotencyStore.millis;
+import static com.example.payment.repository.RedisIdempotencyStore.parseMillis;
+import static com.example.payment.repository.RedisIdempotencyStore.script;
+import static com.example.payment.repository.RedisIdempotencyStore.toRecord;
+
+/**
+ * Reactive Redis store over Lettuce's non-blocking connection.
+ *
+ * Same record layout and Lua scripts as {@link RedisIdempotencyStore}, so
+ * both endpoints can share one keyspace: a key charged through either is
+ * replayed by the other. Scripts go out with EVALSHA, falling back to EVAL
+ * once per connection. Reads need no batching here: concurrent HMGETs are
+ * pipelined on the shared connection as they are issued.
+ */
+public class RedisReactiveIdempotencyStore implements ReactiveIdempotencyStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisReactiveIdempotencyStore.class);
+
+    private static final RedisElementWriter<byte[]> RAW_WRITER = RedisElementWriter.from(RedisSerializer.byteArray());
+    private static final RedisElementReader<byte[]> RAW_READER = RedisElementReader.from(RedisSerializer.byteArray());
+
+    private final ReactiveRedisTemplate<String, byte[]> redis;
+    private final String keyPrefix;
+
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> reserveScript = script("redis/reserve.lua", List.class);
+    private final RedisScript<Long> completeScript = script("redis/complete.lua", Long.class);
+    private final RedisScript<Long> saveScript = script("redis/save.lua", Long.class);
+
+    /**
+     * @param connectionFactory Redis connection
+     * @param keyPrefix         prefix for record keys; match the blocking store's to share keys
+     */
+    public RedisReactiveIdempotencyStore(ReactiveRedisConnectionFactory connectionFactory, String keyPrefix) {
+        RedisSerializationContext<String, byte[]> context = RedisSerializationContext
+                .<String, byte[]>newSerializationContext()
+                .key(RedisSerializer.string())
+                .value(RedisSerializer.byteArray())
+                .hashKey(RedisSerializer.string())
+                .hashValue(RedisSerializer.byteArray())
+                .build();
+        this.redis = new ReactiveRedisTemplate<>(connectionFactory, context);
+        this.keyPrefix = keyPrefix;
+        logger.info("Using RedisReactiveIdempotencyStore, key prefix: {}", keyPrefix);
+    }
+
+    @Override
+    public Mono<Void> save(IdempotencyRecord record) {
+        return run(saveScript, keyPrefix + record.getIdempotencyKey(),
+                fingerprintBytes(record.getRequestFingerprint()),
+                record.isCompleted() ? COMPLETED : IN_PROGRESS,
+                RecordCodec.encodeReservation(record),
+                record.getResponse() != null ? RecordCodec.encodeResponse(record.getResponse()) : NONE,
+                millis(record.getExpiresAt()))
+                .then();
+    }
+
+    @Override
+    public Mono<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        String key = record.getIdempotencyKey();
+        return run(reserveScript, keyPrefix + key,
+                fingerprintBytes(record.getRequestFingerprint()),
+                RecordCodec.encode(record),
+                millis(record.getExpiresAt()))
+                .collectList()
+                .flatMap(items -> {
+                    List<?> reply = multiBulk(items);
+                    long outcome = (Long) reply.get(0);
+                    if (outcome == RESERVED) {
+                        return Mono.empty();
+                    }
+                    if (outcome == HELD_BY_SAME_REQUEST) {
+                        return Mono.just(toRecord((byte[]) reply.get(1), (byte[]) reply.get(2),
+                                (byte[]) reply.get(3), (byte[]) reply.get(4)));
+                    }
+                    // Held by a different request: the fingerprint is all the caller needs to reject it
+                    return Mono.just(new IdempotencyRecord(key, fingerprintOf((byte[]) reply.get(1)), null, null,
+                            Instant.ofEpochMilli(parseMillis((byte[]) reply.get(2)))));
+                });
+    }
+
+    @Override
+    public Mono<Boolean> complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        return run(completeScript, keyPrefix + idempotencyKey,
+                RecordCodec.encodeResponse(response),
+                millis(expiresAt))
+                .next()
+                .map(completed -> Long.valueOf(1).equals(completed))
+                .defaultIfEmpty(false);
+    }
+
+    @Override
+    public Mono<IdempotencyRecord> findByKey(String idempotencyKey) {
+        return redis.<String, byte[]>opsForHash()
+                .multiGet(keyPrefix + idempotencyKey, FIELDS)
+                .filter(fields -> fields.get(0) != null)
+                .map(fields -> toRecord(fields.get(1), fields.get(2), fields.get(3), fields.get(4)));
+    }
+
+    @Override
+    public Mono<Void> delete(String idempotencyKey) {
+        return redis.delete(keyPrefix + idempotencyKey).then();
+    }
+
+    /**
+     * Run a script with byte[] arguments; bulk replies, also inside multi-bulk replies, come back as byte[].
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Flux<Object> run(RedisScript<?> script, String key, byte[]... args) {
+        return redis.execute((RedisScript) script, Collections.singletonList(key),
+                Arrays.asList((Object[]) args), RAW_WRITER, (RedisElementReader) RAW_READER);
+    }
+
+    /**
+     * A multi-bulk reply arrives either as one list or element by element.
+     */
+    private static List<?> multiBulk(List<Object> items) {
+        return items.size() == 1 && items.get(0) instanceof List ? (List<?>) items.get(0) : items;
+    }
+}
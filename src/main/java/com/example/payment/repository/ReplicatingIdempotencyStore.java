@@ -0,0 +1,198 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store that streams its writes to a standby node.
+ *
+ * Every successful write on the primary store is replayed on the replica
+ * through the save/delete contract: reservations, completed records and
+ * saves as save, releases as delete. Writes go through a ReplicationLog and
+ * are applied on the replica asynchronously, in order and in batches, so a
+ * slow standby does not slow down charges until its queue is full.
+ *
+ * With syncReserve, a reservation is not granted until the replica has it:
+ * if this node dies mid-charge, a retry sent to the standby finds the key
+ * IN_PROGRESS instead of charging again. Completions stay asynchronous. A
+ * reservation the replica does not acknowledge within the timeout is
+ * released and the reserve fails.
+ *
+ * The replica applies writes to its own store and expires them on its own;
+ * reads are always served by the primary. The standby runs the partition
+ * server to receive them (payment.idempotency.replication.listen-port).
+ *
+ * Installed by ReplicationConfiguration when payment.idempotency.replication.replica is set.
+ */
+public class ReplicatingIdempotencyStore implements IdempotencyStore, MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicatingIdempotencyStore.class);
+
+    private final IdempotencyStore primary;
+    private final String replica;
+    private final ReplicationLog log;
+    private final boolean syncReserve;
+    private final Duration timeout;
+
+    /**
+     * @param primary             the store of record on this node
+     * @param replica             the standby's host:port
+     * @param queueCapacity       writes queued for the replica before writers are pushed back
+     * @param batchSize           writes applied on the replica per round trip
+     * @param backpressureTimeout how long a writer waits for room before its write is dropped
+     * @param timeout             replica connect/read timeout, and how long a sync reserve waits
+     * @param syncReserve         whether reserve waits for the replica
+     */
+    public ReplicatingIdempotencyStore(IdempotencyStore primary, String replica, int queueCapacity, int batchSize,
+                                       Duration backpressureTimeout, Duration timeout, boolean syncReserve) {
+        this.primary = primary;
+        this.replica = replica;
+        this.log = new ReplicationLog(replica, queueCapacity, batchSize, backpressureTimeout, timeout);
+        this.syncReserve = syncReserve;
+        this.timeout = timeout;
+        logger.info("Replicating {} to {}: queue {}, batch {}, sync reserve {}",
+                primary.getClass().getSimpleName(), replica, queueCapacity, batchSize, syncReserve);
+    }
+
+    @Override
+    public void save(IdempotencyRecord record) {
+        primary.save(record);
+        log.append(ReplicationLog.Entry.save(record));
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+        Optional<IdempotencyRecord> existing = primary.reserve(record);
+        if (existing.isPresent()) {
+            return existing;
+        }
+        if (!syncReserve) {
+            log.append(ReplicationLog.Entry.save(record));
+            return existing;
+        }
+
+        // Queued like any other write, so it cannot overtake an earlier write of the same key
+        ReplicationLog.Entry entry = ReplicationLog.Entry.awaitedSave(record);
+        try {
+            if (!log.append(entry)) {
+                throw new IllegalStateException("Replication queue is full");
+            }
+            entry.applied.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            return existing;
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            throw unreplicated(record, e instanceof ExecutionException ? e.getCause() : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unreplicated(record, e);
+        }
+    }
+
+    private IllegalStateException unreplicated(IdempotencyRecord reservation, Throwable cause) {
+        // Release the key so a retry is not blocked, here or on the replica should the save still land
+        release(reservation);
+        return new IllegalStateException("Reservation for idempotency key " + reservation.getIdempotencyKey()
+                + " was not replicated to " + replica, cause);
+    }
+
+    @Override
+    public boolean complete(String idempotencyKey, ChargeResponse response, Instant expiresAt) {
+        if (!primary.complete(idempotencyKey, response, expiresAt)) {
+            return false;
+        }
+        // The replica gets the whole record, fingerprint included, even if it never saw the reservation
+        primary.findByKey(idempotencyKey).ifPresent(record -> log.append(ReplicationLog.Entry.save(record)));
+        return true;
+    }
+
+    @Override
+    public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+        return primary.findByKey(idempotencyKey);
+    }
+
+    @Override
+    public void delete(String idempotencyKey) {
+        primary.delete(idempotencyKey);
+        log.append(ReplicationLog.Entry.delete(idempotencyKey));
+    }
+
+    @Override
+    public boolean release(IdempotencyRecord reservation) {
+        if (!primary.release(reservation)) {
+            return false;
+        }
+        log.append(ReplicationLog.Entry.delete(reservation.getIdempotencyKey()));
+        return true;
+    }
+
+    @Override
+    public void cleanupExpired() {
+        primary.cleanupExpired();
+    }
+
+    @Override
+    public CleanupStats cleanupExpired(int maxEntries, Duration maxDuration) {
+        return primary.cleanupExpired(maxEntries, maxDuration);
+    }
+
+    public IdempotencyStore getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Age of the oldest write the replica has not applied yet, in seconds.
+     */
+    public double getReplicationLag() {
+        return log.lagSeconds();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (primary instanceof MeterBinder) {
+            ((MeterBinder) primary).bindTo(registry);
+        }
+        Gauge.builder("idempotency.replication.lag", log, ReplicationLog::lagSeconds)
+                .description("Age of the oldest write not yet applied on the replica")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("idempotency.replication.queue", log, ReplicationLog::size)
+                .description("Writes queued for the replica")
+                .register(registry);
+        FunctionCounter.builder("idempotency.replication.writes", log.replicated, AtomicLong::get)
+                .description("Writes applied on the replica")
+                .register(registry);
+        FunctionCounter.builder("idempotency.replication.batches", log.batches, AtomicLong::get)
+                .description("Round trips to the replica")
+                .register(registry);
+        FunctionCounter.builder("idempotency.replication.dropped", log.dropped, AtomicLong::get)
+                .description("Writes dropped because the queue was full or the replica rejected them")
+                .register(registry);
+    }
+
+    /**
+     * Sends what is still queued, giving a replica that is down one timeout to come back,
+     * then closes the primary store; see NearCacheIdempotencyStore.
+     */
+    @PreDestroy
+    @Override
+    public void close() throws Exception {
+        log.close(timeout);
+        if (primary instanceof AutoCloseable) {
+            ((AutoCloseable) primary).close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.payment.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+/**
+ * Replication of store writes to a standby node.
+ *
+ * On the primary, payment.idempotency.replication.replica=host:port puts a
+ * ReplicatingIdempotencyStore in front of the selected store. On the
+ * standby, payment.idempotency.replication.listen-port starts the server
+ * that applies the replicated writes to its store.
+ */
+@Configuration(proxyBeanMethods = false)
+public class ReplicationConfiguration {
+
+    /**
+     * Wraps the store once it is fully initialized, like the near cache. Replication sits
+     * directly on the store, under the near cache and the partitioning, so that each
+     * partition owner replicates the keys it owns.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "payment.idempotency.replication.replica")
+    static BeanPostProcessor replicationStorePostProcessor(Environment environment) {
+        String replica = environment.getRequiredProperty("payment.idempotency.replication.replica");
+        int queueCapacity = environment.getProperty(
+                "payment.idempotency.replication.queue-capacity", Integer.class, 10_000);
+        int batchSize = environment.getProperty(
+                "payment.idempotency.replication.batch-size", Integer.class, 256);
+        Duration backpressureTimeout = environment.getProperty(
+                "payment.idempotency.replication.backpressure-timeout", Duration.class, Duration.ofMillis(100));
+        Duration timeout = environment.getProperty(
+                "payment.idempotency.replication.timeout", Duration.class, Duration.ofSeconds(1));
+        boolean syncReserve = environment.getProperty(
+                "payment.idempotency.replication.sync-reserve", Boolean.class, false);
+
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof IdempotencyStore ? replicate((IdempotencyStore) bean) : bean;
+            }
+
+            private IdempotencyStore replicate(IdempotencyStore store) {
+                if (store instanceof ReplicatingIdempotencyStore) {
+                    return store;
+                }
+                if (store instanceof NearCacheIdempotencyStore) {
+                    NearCacheIdempotencyStore nearCache = (NearCacheIdempotencyStore) store;
+                    IdempotencyStore remote = replicate(nearCache.getRemote());
+                    return remote == nearCache.getRemote() ? nearCache : nearCache.withRemote(remote);
+                }
+                if (store instanceof PartitionedIdempotencyStore) {
+                    PartitionedIdempotencyStore partitioned = (PartitionedIdempotencyStore) store;
+                    IdempotencyStore local = replicate(partitioned.getLocal());
+                    return local == partitioned.getLocal() ? partitioned : partitioned.withLocal(local);
+                }
+                return new ReplicatingIdempotencyStore(store, replica, queueCapacity, batchSize,
+                        backpressureTimeout, timeout, syncReserve);
+            }
+        };
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "payment.idempotency.replication.listen-port")
+    PartitionServer replicaServer(IdempotencyStore store,
+                                  @Value("${payment.idempotency.replication.listen-address:127.0.0.1}") String address,
+                                  @Value("${payment.idempotency.replication.listen-port}") int port,
+                                  @Value("${payment.idempotency.replication.max-connections:8}") int maxConnections) {
+        return new PartitionServer(store, new InetSocketAddress(address, port), maxConnections);
+    }
+
+    /**
+     * Binds the replication metrics when startup is complete; see NearCacheConfiguration.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "payment.idempotency.replication.replica")
+    SmartInitializingSingleton replicationMetrics(ObjectProvider<IdempotencyStore> stores,
+                                                  ObjectProvider<MeterRegistry> registries) {
+        return () -> registries.ifAvailable(registry -> stores.orderedStream()
+                .filter(ReplicatingIdempotencyStore.class::isInstance)
+                .forEach(store -> ((ReplicatingIdempotencyStore) store).bindTo(registry)));
+    }
+}
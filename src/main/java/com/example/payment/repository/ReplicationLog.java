@@ -0,0 +1,208 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.IdempotencyRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ordered queue of writes on their way to a standby.
+ *
+ * Writers append saves and deletes; a single sender thread drains them in
+ * batches of up to batchSize and applies each batch on the replica in one
+ * round trip. While the replica is unreachable the sender retries the same
+ * batch with backoff, so order is kept and the queue fills up. A full queue
+ * pushes back on writers for up to backpressureTimeout, after which the
+ * entry is dropped and counted rather than failing the write.
+ */
+final class ReplicationLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationLog.class);
+
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 1_000;
+
+    private final PartitionClient replica;
+    private final String address;
+    private final int batchSize;
+    private final long backpressureNanos;
+    private final BlockingQueue<Entry> queue;
+    private final Thread sender;
+
+    /** Oldest entry sent but not yet acknowledged; null when idle */
+    private volatile Entry sending;
+    private volatile boolean closed;
+
+    final AtomicLong replicated = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    ReplicationLog(String address, int capacity, int batchSize, Duration backpressureTimeout, Duration timeout) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Invalid replication queue: " + capacity + " entries, batch " + batchSize);
+        }
+        this.address = address;
+        this.replica = new PartitionClient(address, 1, timeout);
+        this.batchSize = batchSize;
+        this.backpressureNanos = backpressureTimeout.toNanos();
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sender = new Thread(this::send, "idempotency-replication");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue a write, waiting for room while the queue is full.
+     *
+     * @return false if the entry was dropped
+     */
+    boolean append(Entry entry) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (queue.offer(entry, backpressureNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.incrementAndGet();
+        logger.warn("Replication queue to {} is full, dropped write of key: {}", address, entry.key);
+        return false;
+    }
+
+    /**
+     * Age of the oldest write the replica has not acknowledged.
+     */
+    double lagSeconds() {
+        Entry oldest = sending;
+        if (oldest == null) {
+            oldest = queue.peek();
+        }
+        return oldest == null ? 0 : (System.nanoTime() - oldest.appendedAt) / 1e9;
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    private void send() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                sending = first;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                deliver(batch);
+            } catch (InterruptedException e) {
+                // close() stops waiting for a replica that is down
+                batch.forEach(entry -> entry.fail(new IllegalStateException("Replication log is closed")));
+                break;
+            } finally {
+                batch.clear();
+                sending = null;
+            }
+        }
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            entry.fail(new IllegalStateException("Replication log is closed"));
+        }
+    }
+
+    private void deliver(List<Entry> batch) throws InterruptedException {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                replica.replicate(batch);
+                replicated.addAndGet(batch.size());
+                batches.incrementAndGet();
+                batch.forEach(Entry::acknowledge);
+                return;
+            } catch (UncheckedIOException e) {
+                if (backoff == MIN_BACKOFF_MILLIS) {
+                    logger.warn("Replica {} is unavailable, retrying: {}", address, e.getCause().getMessage());
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            } catch (RuntimeException e) {
+                // The replica's store rejected the batch; resending would not help
+                logger.error("Replica {} failed to apply {} writes", address, batch.size(), e);
+                dropped.addAndGet(batch.size());
+                batch.forEach(entry -> entry.fail(e));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send what is queued, waiting up to the timeout for the replica, then stop.
+     */
+    void close(Duration drainTimeout) {
+        closed = true;
+        try {
+            sender.join(drainTimeout.toMillis());
+            if (sender.isAlive()) {
+                sender.interrupt();
+                sender.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replica.close();
+    }
+
+    /**
+     * A replicated save (record set) or delete.
+     */
+    static final class Entry {
+        final String key;
+        final IdempotencyRecord record;
+        final long appendedAt = System.nanoTime();
+        /** Completed once the replica has applied the write; null unless someone waits */
+        final CompletableFuture<Void> applied;
+
+        private Entry(String key, IdempotencyRecord record, CompletableFuture<Void> applied) {
+            this.key = key;
+            this.record = record;
+            this.applied = applied;
+        }
+
+        static Entry save(IdempotencyRecord record) {
+            return new Entry(record.getIdempotencyKey(), record, null);
+        }
+
+        static Entry delete(String key) {
+            return new Entry(key, null, null);
+        }
+
+        static Entry awaitedSave(IdempotencyRecord record) {
+            return new Entry(record.getIdempotencyKey(), record, new CompletableFuture<>());
+        }
+
+        private void acknowledge() {
+            if (applied != null) {
+                applied.complete(null);
+            }
+        }
+
+        private void fail(Throwable cause) {
+            if (applied != null) {
+                applied.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.payment.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Coalesces point operations from many threads into batched calls.
+ *
+ * Callers queue their request and block; a single dispatcher thread takes
+ * the first queued request, collects more until the window closes or the
+ * batch is full, and hands the distinct requests to the executor in one
+ * call. Requests queued while a batch is running join the next one, so under
+ * load batches grow by themselves even with a zero window.
+ *
+ * Equal requests queued together share one slot in the batch, which
+ * coalesces concurrent reads of the same key.
+ *
+ * A batch that fails, even with an Error, fails only its own callers; the
+ * dispatcher goes on with the next one. Callers wait at most the timeout.
+ *
+ * @param <K> request type
+ * @param <V> result type; the executor returns one result per request, in order
+ */
+final class RequestBatcher<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestBatcher.class);
+
+    private final Function<List<K>, List<V>> executor;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final long timeoutNanos;
+    private final IntConsumer batchSizes;
+
+    private final BlockingQueue<PendingRequest<K, V>> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    /**
+     * @param name         dispatcher thread name
+     * @param executor     runs a batch of distinct requests
+     * @param windowNanos  how long the dispatcher waits for more requests after the first one
+     * @param maxBatchSize requests per batch; a full batch runs without waiting for the window
+     * @param timeoutNanos longest a caller waits for its batch, queueing included
+     * @param batchSizes   receives the number of callers served by each batch
+     */
+    RequestBatcher(String name, Function<List<K>, List<V>> executor, long windowNanos, int maxBatchSize,
+                long timeoutNanos, IntConsumer batchSizes) {
+        if (windowNanos < 0 || maxBatchSize < 1 || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid batch window, size or timeout: " + windowNanos + " ns, "
+                    + maxBatchSize + ", " + timeoutNanos + " ns");
+        }
+        this.executor = executor;
+        this.windowNanos = windowNanos;
+        this.maxBatchSize = maxBatchSize;
+        this.timeoutNanos = timeoutNanos;
+        this.batchSizes = batchSizes;
+
+        this.dispatcher = new Thread(this::dispatch, name);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Run one request as part of the next batch, blocking until it is done.
+     * Failures of the executor are rethrown to every caller in the batch.
+     *
+     * @throws IllegalStateException if the batch takes longer than the timeout
+     */
+    V execute(K request) {
+        PendingRequest<K, V> pending = new PendingRequest<>(request);
+        queue.add(pending);
+        if (closed) {
+            // Lost the race with close(): make sure nobody is left waiting
+            failPending();
+        }
+        try {
+            return pending.result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Request batch failed", cause);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("No result from " + dispatcher.getName() + " within "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + dispatcher.getName(), e);
+        }
+    }
+
+    /**
+     * Stop the dispatcher. Requests still queued fail with IllegalStateException.
+     */
+    void close() {
+        closed = true;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPending();
+    }
+
+    private void dispatch() {
+        List<PendingRequest<K, V>> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingRequest<K, V> next = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                            : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // close(): fail what was collected so far along with the rest of the queue
+                batch.forEach(request -> request.result.completeExceptionally(closedException()));
+                return;
+            }
+            run(batch);
+            batch.clear();
+        }
+    }
+
+    private void run(List<PendingRequest<K, V>> batch) {
+        try {
+            Map<K, List<PendingRequest<K, V>>> byKey = new LinkedHashMap<>();
+            for (PendingRequest<K, V> request : batch) {
+                byKey.computeIfAbsent(request.key, k -> new ArrayList<>(1)).add(request);
+            }
+
+            // Recorded first so it is visible by the time callers see their results
+            batchSizes.accept(batch.size());
+            List<V> values = executor.apply(new ArrayList<>(byKey.keySet()));
+            int i = 0;
+            for (List<PendingRequest<K, V>> requests : byKey.values()) {
+                V value = values.get(i++);
+                requests.forEach(request -> request.result.complete(value));
+            }
+        } catch (RuntimeException e) {
+            batch.forEach(request -> request.result.completeExceptionally(e));
+        } catch (Throwable e) {
+            // Fail this batch but keep dispatching: later callers would otherwise wait forever
+            logger.error("{} failed a batch of {} requests", dispatcher.getName(), batch.size(), e);
+            batch.forEach(request -> request.result.completeExceptionally(e));
+        }
+    }
+
+    private void failPending() {
+        PendingRequest<K, V> request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(closedException());
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("Request batcher is closed");
+    }
+
+    private static final class PendingRequest<K, V> {
+
+        private final K key;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        private PendingRequest(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.payment.repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Slab allocator over direct ByteBuffers.
+ *
+ * Memory is taken from the OS in fixed-size slabs and carved into
+ * power-of-two sized chunks. Freed chunks go onto an intrusive free list per
+ * size class: the first 8 bytes of a free chunk hold the address of the next
+ * one, so the free list itself lives off-heap as well. A chunk's size class
+ * is derived from the payload length it stores.
+ *
+ * An address packs the slab index in the high 32 bits and the offset within
+ * the slab in the low 32 bits. Every chunk starts with its payload length.
+ *
+ * Not thread-safe; callers serialize access.
+ */
+final class SlabAllocator {
+
+    static final long NULL = -1L;
+
+    private static final int MIN_CHUNK = 64;
+    private static final int HEADER = 4;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    private final long[] freeHeads;
+    private int carveOffset;
+
+    private long chunkBytesInUse;
+    private long payloadBytesInUse;
+
+    /**
+     * @param slabSize     bytes per slab, a power of two of at least 64
+     * @param maxSlabs     maximum number of slabs to allocate
+     */
+    SlabAllocator(int slabSize, int maxSlabs) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < MIN_CHUNK) {
+            throw new IllegalArgumentException("slabSize must be a power of two >= " + MIN_CHUNK + ": " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = maxSlabs;
+
+        int classes = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK) + 1;
+        this.freeHeads = new long[classes];
+        Arrays.fill(freeHeads, NULL);
+        this.carveOffset = slabSize;
+    }
+
+    /**
+     * Allocate a chunk and copy the payload into it.
+     *
+     * @return the chunk address, or {@link #NULL} if no memory is left for its size class
+     */
+    long store(byte[] payload) {
+        int sizeClass = sizeClass(HEADER + payload.length);
+        if (sizeClass < 0) {
+            throw new IllegalArgumentException("Record of " + payload.length + " bytes exceeds slab size " + slabSize);
+        }
+
+        long address = allocate(sizeClass);
+        if (address == NULL) {
+            return NULL;
+        }
+
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = offset(address);
+        slab.putInt(offset, payload.length);
+        ByteBuffer target = slab.duplicate();
+        target.position(offset + HEADER);
+        target.put(payload);
+
+        chunkBytesInUse += chunkSize(sizeClass);
+        payloadBytesInUse += payload.length;
+        return address;
+    }
+
+    /**
+     * View of the payload at an address, positioned at its first byte.
+     * Safe to call concurrently with other reads.
+     */
+    ByteBuffer read(long address) {
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = offset(address);
+        ByteBuffer view = slab.duplicate();
+        view.limit(offset + HEADER + slab.getInt(offset));
+        view.position(offset + HEADER);
+        return view;
+    }
+
+    void free(long address) {
+        ByteBuffer slab = slabs.get(slabIndex(address));
+        int offset = offset(address);
+        int payloadLength = slab.getInt(offset);
+        int sizeClass = sizeClass(HEADER + payloadLength);
+
+        payloadBytesInUse -= payloadLength;
+        chunkBytesInUse -= chunkSize(sizeClass);
+
+        slab.putLong(offset, freeHeads[sizeClass]);
+        freeHeads[sizeClass] = address;
+    }
+
+    /**
+     * Direct memory held in slabs.
+     */
+    long reservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * Bytes in chunks currently handed out, including size-class rounding.
+     */
+    long chunkBytesInUse() {
+        return chunkBytesInUse;
+    }
+
+    long payloadBytesInUse() {
+        return payloadBytesInUse;
+    }
+
+    private long allocate(int sizeClass) {
+        long head = freeHeads[sizeClass];
+        if (head != NULL) {
+            freeHeads[sizeClass] = slabs.get(slabIndex(head)).getLong(offset(head));
+            return head;
+        }
+
+        // Carve from the newest slab; a tail too small for this chunk is left unused
+        int chunk = chunkSize(sizeClass);
+        if (carveOffset + chunk > slabSize) {
+            if (slabs.size() >= maxSlabs) {
+                return NULL;
+            }
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            carveOffset = 0;
+        }
+
+        long address = ((long) (slabs.size() - 1) << 32) | carveOffset;
+        carveOffset += chunk;
+        return address;
+    }
+
+    private int sizeClass(int bytes) {
+        int chunk = MIN_CHUNK;
+        int sizeClass = 0;
+        while (chunk < bytes) {
+            chunk <<= 1;
+            sizeClass++;
+        }
+        return chunk > slabSize ? -1 : sizeClass;
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return MIN_CHUNK << sizeClass;
+    }
+
+    private static int slabIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.payment.service;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+
+/**
+ * The outcome of a charge: its response and, for a retry answered from
+ * the store, the completed record it was replayed from.
+ *
+ * The record tells the caller the response came from the store, so a
+ * response stored without its JSON can have it kept for later replays.
+ */
+public final class ChargeOutcome {
+
+    private final ChargeResponse response;
+    private final IdempotencyRecord replayedFrom;
+
+    private ChargeOutcome(ChargeResponse response, IdempotencyRecord replayedFrom) {
+        this.response = response;
+        this.replayedFrom = replayedFrom;
+    }
+
+    static ChargeOutcome of(ChargeResponse response) {
+        return new ChargeOutcome(response, null);
+    }
+
+    static ChargeOutcome replayed(IdempotencyRecord completed) {
+        return new ChargeOutcome(completed.getResponse(), completed);
+    }
+
+    public ChargeResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the completed record the response was replayed from, or null if it was not a store replay
+     */
+    public IdempotencyRecord getReplayedFrom() {
+        return replayedFrom;
+    }
+}
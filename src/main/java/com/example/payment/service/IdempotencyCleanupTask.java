@@ -0,0 +1,79 @@
+package com.example.payment.service;
+
+import com.example.payment.repository.CleanupStats;
+import com.example.payment.repository.IdempotencyStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Periodically runs a budgeted, resumable cleanupExpired on the idempotency store.
+ * 
+ * Each run is capped by payment.idempotency.cleanup.max-entries and
+ * payment.idempotency.cleanup.max-duration, so a large store is swept over
+ * several runs rather than in one long pause.
+ */
+@Component
+@ConditionalOnProperty(name = "payment.idempotency.cleanup.enabled", havingValue = "true", matchIfMissing = true)
+public class IdempotencyCleanupTask {
+    
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyCleanupTask.class);
+    
+    private final IdempotencyStore idempotencyStore;
+    private final int maxEntries;
+    private final Duration maxDuration;
+    
+    private final Timer runTimer;
+    private final Counter scannedCounter;
+    private final Counter removedCounter;
+    private final Counter passCounter;
+    
+    public IdempotencyCleanupTask(
+            IdempotencyStore idempotencyStore,
+            MeterRegistry meterRegistry,
+            @Value("${payment.idempotency.cleanup.max-entries:10000}") int maxEntries,
+            @Value("${payment.idempotency.cleanup.max-duration:PT0.005S}") Duration maxDuration) {
+        this.idempotencyStore = idempotencyStore;
+        this.maxEntries = maxEntries;
+        this.maxDuration = maxDuration;
+        this.runTimer = Timer.builder("idempotency.cleanup.run")
+                .description("Duration of budgeted cleanup runs")
+                .register(meterRegistry);
+        this.scannedCounter = Counter.builder("idempotency.cleanup.scanned")
+                .description("Records examined by cleanup runs")
+                .register(meterRegistry);
+        this.removedCounter = Counter.builder("idempotency.cleanup.removed")
+                .description("Expired records removed by cleanup runs")
+                .register(meterRegistry);
+        this.passCounter = Counter.builder("idempotency.cleanup.passes")
+                .description("Completed full passes over the store")
+                .register(meterRegistry);
+        logger.info("Idempotency cleanup enabled, budget per run: {} entries / {}", maxEntries, maxDuration);
+    }
+    
+    @Scheduled(fixedDelayString = "${payment.idempotency.cleanup.interval:PT30S}",
+               initialDelayString = "${payment.idempotency.cleanup.interval:PT30S}")
+    public void run() {
+        try {
+            CleanupStats stats = idempotencyStore.cleanupExpired(maxEntries, maxDuration);
+            
+            runTimer.record(stats.getElapsed());
+            scannedCounter.increment(stats.getScanned());
+            removedCounter.increment(stats.getRemoved());
+            if (stats.isPassCompleted()) {
+                passCounter.increment();
+            }
+        } catch (Exception e) {
+            // Never let a failing run cancel future runs
+            logger.error("Idempotency cleanup run failed", e);
+        }
+    }
+}
@@ -1,124 +1,921 @@
 package com.example.payment.service;
 
 import com.example.payment.exception.IdempotencyConflictException;
+import com.example.payment.gateway.PaymentGateway;
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
 import com.example.payment.model.ChargeRequest;
 import com.example.payment.model.ChargeResponse;
 import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.model.RequestFingerprint;
 import com.example.payment.repository.IdempotencyStore;
+import com.example.payment.repository.RecentKeyFilter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Payment service with idempotency support.
  * 
  * Idempotency guarantees:
  * 1. Same key + same request = same response (no duplicate charge)
- * 2. Same key + different request = 409 Conflict
+ * 2. Same key + different request = 409 Conflict (compared by request fingerprint)
  * 3. Missing key = 400 Bad Request (handled in controller)
  * 4. Expired key = process as new request
+ * 5. Concurrent duplicates = one charge, others share its response
+ * 
+ * The same guarantees hold per item for batches of charges.
  */
 @Service
 public class PaymentService {
     
     private static final Logger logger = LoggerFactory.getLogger(PaymentService.class);
+    private static final long MIN_POLL_MILLIS = 5;
+    private static final long MAX_POLL_MILLIS = 50;
+    
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
     
     private final IdempotencyStore idempotencyStore;
+    private final PaymentGateway paymentGateway;
+    // Null when disabled: every key is then looked up before it is reserved
+    private final RecentKeyFilter recentKeys;
+    // Encodes each recorded response once, for replays to write as is
+    private final ObjectMapper objectMapper;
+    private final StripedLockTable<InFlightCharge> inFlight;
     private final Duration idempotencyKeyTTL;
+    private final Duration inProgressTimeout;
+    private final boolean retainRequest;
+    // Runs in-progress re-checks for chargeAsync
+    private final ExecutorService asyncExecutor;
+    // Virtual mode: runs each blocking charge on its own virtual thread; null otherwise
+    private final ExecutorService virtualThreads;
+    // Gateway calls in flight per batch
+    private final int batchConcurrency;
     
     public PaymentService(
             IdempotencyStore idempotencyStore,
-            @Value("${payment.idempotency.ttl:PT1H}") Duration idempotencyKeyTTL) {
+            PaymentGateway paymentGateway,
+            ObjectProvider<RecentKeyFilter> recentKeys,
+            MeterRegistry meterRegistry,
+            ObjectMapper objectMapper,
+            @Value("${payment.idempotency.ttl:PT1H}") Duration idempotencyKeyTTL,
+            @Value("${payment.idempotency.in-progress-timeout:PT5S}") Duration inProgressTimeout,
+            @Value("${payment.idempotency.retain-request:false}") boolean retainRequest,
+            @Value("${payment.idempotency.inflight.stripes:64}") int inFlightStripes,
+            @Value("${payment.async.threads:0}") int asyncThreads,
+            @Value("${payment.threads:platform}") String threadMode,
+            @Value("${payment.batch.concurrency:64}") int batchConcurrency) {
+        if (batchConcurrency <= 0) {
+            throw new IllegalArgumentException("Invalid batch concurrency: " + batchConcurrency);
+        }
         this.idempotencyStore = idempotencyStore;
+        this.paymentGateway = paymentGateway;
+        this.objectMapper = objectMapper;
+        // Bound here rather than as a MeterBinder bean: binders are bound while the registry
+        // is created, and this service needs the store, which may itself need the registry
+        this.inFlight = new StripedLockTable<>(inFlightStripes);
+        inFlight.bindTo(meterRegistry);
+        this.recentKeys = recentKeys.getIfAvailable();
         this.idempotencyKeyTTL = idempotencyKeyTTL;
-        logger.info("PaymentService initialized with TTL: {}", idempotencyKeyTTL);
+        this.inProgressTimeout = inProgressTimeout;
+        this.retainRequest = retainRequest;
+        AtomicInteger threads = new AtomicInteger();
+        this.asyncExecutor = Executors.newFixedThreadPool(
+                asyncThreads > 0 ? asyncThreads : Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(runnable, "payment-async-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        ThreadMode mode = ThreadMode.valueOf(threadMode.trim().toUpperCase(Locale.ROOT));
+        this.virtualThreads = mode == ThreadMode.VIRTUAL ? VirtualThreads.newPerTaskExecutor("payment-virtual-") : null;
+        this.batchConcurrency = batchConcurrency;
+        logger.info("PaymentService initialized with TTL: {}, in-progress timeout: {}, retain request: {}, " +
+                "recent key filter: {}, in-flight stripes: {}, threads: {}, batch concurrency: {}",
+                idempotencyKeyTTL, inProgressTimeout, retainRequest, this.recentKeys != null,
+                inFlight.stripeCount(), mode, batchConcurrency);
     }
     
     /**
      * Process a payment charge with idempotency.
+     * 
+     * Concurrent duplicates on this node are coalesced: the first caller for a
+     * key becomes the leader and the others attach to its in-flight future.
+     * Leaders are elected in a striped lock table, so only callers whose keys
+     * share a stripe ever wait for each other.
+     * The leader then reserves the key atomically in the store, so duplicates
+     * arriving at other nodes are also kept away from the gateway.
      *
      * @param idempotencyKey unique key for this request
      * @param request        the charge request
      * @return the charge response
-     * @throws IdempotencyConflictException if key exists with different request
+     * @throws IdempotencyConflictException if key exists with different request,
+     *                                      or is still in progress after the wait timeout
      */
     public ChargeResponse charge(String idempotencyKey, ChargeRequest request) {
+        return chargeOutcome(idempotencyKey, request).getResponse();
+    }
+    
+    /**
+     * Process a payment charge as {@link #charge} does, telling a replay of
+     * a completed record apart from a fresh response.
+     */
+    private ChargeOutcome chargeOutcome(String idempotencyKey, ChargeRequest request) {
         logger.info("Processing charge with idempotency key: {}, customer: {}, amount: {}",
                 idempotencyKey, request.getCustomerId(), request.getAmount());
         
-        // Check for existing idempotency record
-        Optional<IdempotencyRecord> existingRecord = idempotencyStore.findByKey(idempotencyKey);
+        long deadline = System.nanoTime() + inProgressTimeout.toNanos();
+        RequestFingerprint fingerprint = RequestFingerprint.of(request);
         
-        if (existingRecord.isPresent()) {
-            IdempotencyRecord record = existingRecord.get();
+        while (true) {
+            InFlightCharge mine = new InFlightCharge(fingerprint);
+            InFlightCharge leader = inFlight.putIfAbsent(idempotencyKey, mine);
             
-            // Check if request matches
-            if (record.requestMatches(request)) {
-                logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
-                return record.getResponse();
+            if (leader != null) {
+                Optional<ChargeResponse> shared = attach(idempotencyKey, leader, fingerprint, request, deadline);
+                if (shared.isPresent()) {
+                    logger.info("Returning in-flight response for idempotency key: {}", idempotencyKey);
+                    return ChargeOutcome.of(shared.get());
+                }
+                // Leader failed and has been removed, try to take over
+                continue;
+            }
+            
+            try {
+                ChargeOutcome outcome = chargeThroughStore(idempotencyKey, fingerprint, request, deadline);
+                mine.future.complete(outcome.getResponse());
+                return outcome;
+            } catch (RuntimeException e) {
+                mine.future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(idempotencyKey, mine);
+            }
+        }
+    }
+    
+    /**
+     * Process a payment charge with idempotency, without blocking the caller.
+     * 
+     * Same guarantees and steps as {@link #charge}, but neither the gateway
+     * call nor waiting for an in-progress duplicate, on this node or another,
+     * holds a thread: the gateway answers through its async charge, and a
+     * duplicate attaches to the leader's future or re-checks the store
+     * on a timer. Store calls themselves still block the thread making them.
+     * 
+     * With payment.threads=virtual the blocking {@link #charge} runs on a
+     * virtual thread of its own instead: blocking there costs a small heap
+     * stack rather than a platform thread, store calls included.
+     *
+     * @param idempotencyKey unique key for this request
+     * @param request        the charge request
+     * @return the charge response; completes exceptionally with
+     *         IdempotencyConflictException where charge would throw it
+     */
+    public CompletableFuture<ChargeResponse> chargeAsync(String idempotencyKey, ChargeRequest request) {
+        return chargeOutcomeAsync(idempotencyKey, request).thenApply(ChargeOutcome::getResponse);
+    }
+    
+    /**
+     * Process a payment charge as {@link #chargeAsync} does, telling a
+     * replay of a completed record apart from a fresh response.
+     *
+     * @param idempotencyKey unique key for this request
+     * @param request        the charge request
+     * @return the response, with the record it was replayed from if any
+     */
+    public CompletableFuture<ChargeOutcome> chargeOutcomeAsync(String idempotencyKey, ChargeRequest request) {
+        if (virtualThreads != null) {
+            return CompletableFuture.supplyAsync(() -> chargeOutcome(idempotencyKey, request), virtualThreads);
+        }
+        logger.info("Processing async charge with idempotency key: {}, customer: {}, amount: {}",
+                idempotencyKey, request.getCustomerId(), request.getAmount());
+        
+        long deadline = System.nanoTime() + inProgressTimeout.toNanos();
+        return chargeAsync(idempotencyKey, RequestFingerprint.of(request), request, deadline);
+    }
+    
+    private CompletableFuture<ChargeOutcome> chargeAsync(String idempotencyKey, RequestFingerprint fingerprint,
+                                                         ChargeRequest request, long deadline) {
+        InFlightCharge mine = new InFlightCharge(fingerprint);
+        InFlightCharge leader = inFlight.putIfAbsent(idempotencyKey, mine);
+        if (leader != null) {
+            return attachAsync(idempotencyKey, leader, fingerprint, request, deadline);
+        }
+        
+        CompletableFuture<ChargeOutcome> charged;
+        try {
+            charged = chargeThroughStoreAsync(idempotencyKey, fingerprint, request, deadline);
+        } catch (RuntimeException e) {
+            charged = CompletableFuture.failedFuture(e);
+        }
+        return charged.whenComplete((outcome, failure) -> {
+            if (failure != null) {
+                mine.future.completeExceptionally(unwrap(failure));
             } else {
-                logger.warn("Idempotency key {} used with different request. " +
-                        "Original: {}, New: {}", idempotencyKey, record.getRequest(), request);
-                throw new IdempotencyConflictException(
-                        "Idempotency key already used with different request parameters"
-                );
+                mine.future.complete(outcome.getResponse());
             }
+            inFlight.remove(idempotencyKey, mine);
+        });
+    }
+    
+    /**
+     * Share the in-flight leader's response, or take over if the leader fails.
+     */
+    private CompletableFuture<ChargeOutcome> attachAsync(String idempotencyKey, InFlightCharge leader,
+                                                         RequestFingerprint fingerprint, ChargeRequest request,
+                                                         long deadline) {
+        if (!leader.fingerprint.equals(fingerprint)) {
+            return CompletableFuture.failedFuture(
+                    requestConflict(idempotencyKey, leader.fingerprint, request));
         }
         
-        // Process new payment
+        // Time out a copy: the leader's own future is shared with other duplicates
+        return leader.future.thenApply(Function.identity())
+                .orTimeout(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                .handle((response, failure) -> {
+                    if (failure == null) {
+                        logger.info("Returning in-flight response for idempotency key: {}", idempotencyKey);
+                        return CompletableFuture.completedFuture(ChargeOutcome.of(response));
+                    }
+                    Throwable cause = unwrap(failure);
+                    if (cause instanceof TimeoutException || System.nanoTime() - deadline >= 0) {
+                        return CompletableFuture.<ChargeOutcome>failedFuture(inProgressTimeout(idempotencyKey));
+                    }
+                    logger.info("In-flight leader for idempotency key {} failed: {}",
+                            idempotencyKey, cause.getMessage());
+                    return chargeAsync(idempotencyKey, fingerprint, request, deadline);
+                })
+                .thenCompose(Function.identity());
+    }
+    
+    private CompletableFuture<ChargeOutcome> chargeThroughStoreAsync(String idempotencyKey,
+                                                                     RequestFingerprint fingerprint,
+                                                                     ChargeRequest request, long deadline) {
+        Optional<IdempotencyRecord> replay = replayCompleted(idempotencyKey, fingerprint, request);
+        if (replay.isPresent()) {
+            return CompletableFuture.completedFuture(ChargeOutcome.replayed(replay.get()));
+        }
+        return reserveAsync(idempotencyKey, fingerprint, request, deadline);
+    }
+    
+    /**
+     * Reserve the key and process it, or wait for whoever holds it and retry if they let go.
+     */
+    private CompletableFuture<ChargeOutcome> reserveAsync(String idempotencyKey, RequestFingerprint fingerprint,
+                                                          ChargeRequest request, long deadline) {
+        IdempotencyRecord reservation = reservation(idempotencyKey, fingerprint, request);
+        Optional<IdempotencyRecord> existingRecord = idempotencyStore.reserve(reservation);
+        if (!existingRecord.isPresent()) {
+            return processReservedAsync(reservation, request).thenApply(ChargeOutcome::of);
+        }
+        
+        return awaitCompletionAsync(existingRecord.get(), fingerprint, request, deadline, MIN_POLL_MILLIS)
+                .thenCompose(completed -> {
+                    if (completed.isPresent()) {
+                        logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
+                        return CompletableFuture.completedFuture(ChargeOutcome.replayed(completed.get()));
+                    }
+                    logger.info("Reservation for idempotency key {} was released, retrying", idempotencyKey);
+                    return reserveAsync(idempotencyKey, fingerprint, request, deadline);
+                });
+    }
+    
+    private CompletableFuture<ChargeResponse> processReservedAsync(IdempotencyRecord reservation,
+                                                                   ChargeRequest request) {
         logger.info("Processing new payment for customer: {}", request.getCustomerId());
-        ChargeResponse response = processPayment(request);
         
-        // Store idempotency record
-        Instant expiresAt = Instant.now().plus(idempotencyKeyTTL);
-        IdempotencyRecord record = new IdempotencyRecord(
-                idempotencyKey,
-                request,
-                response,
-                expiresAt
-        );
+        return processPaymentAsync(request).handle((response, failure) -> {
+            if (failure != null) {
+                release(reservation);
+                throw failure instanceof CompletionException
+                        ? (CompletionException) failure : new CompletionException(failure);
+            }
+            recordOutcome(reservation.getIdempotencyKey(), reservation.getRequestFingerprint(), request, response);
+            return response;
+        });
+    }
+    
+    /**
+     * Poll the store until the record completes, backing off on a timer instead of sleeping.
+     *
+     * @return the completed record, or empty if the reservation was released
+     */
+    private CompletableFuture<Optional<IdempotencyRecord>> awaitCompletionAsync(
+            IdempotencyRecord record, RequestFingerprint fingerprint, ChargeRequest request, long deadline,
+            long backoffMillis) {
+        String idempotencyKey = record.getIdempotencyKey();
+        if (!record.requestMatches(fingerprint)) {
+            return CompletableFuture.failedFuture(
+                    requestConflict(idempotencyKey, record.getRequestFingerprint(), request));
+        }
+        if (record.isCompleted()) {
+            return CompletableFuture.completedFuture(Optional.of(record));
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            return CompletableFuture.failedFuture(inProgressTimeout(idempotencyKey));
+        }
         
-        idempotencyStore.save(record);
-        logger.info("Saved idempotency record for key: {}, expires at: {}", 
-                idempotencyKey, expiresAt);
+        return CompletableFuture.supplyAsync(() -> idempotencyStore.findByKey(idempotencyKey),
+                        CompletableFuture.delayedExecutor(backoffMillis, TimeUnit.MILLISECONDS, asyncExecutor))
+                .thenCompose(current -> current.isPresent()
+                        ? awaitCompletionAsync(current.get(), fingerprint, request, deadline,
+                                Math.min(backoffMillis * 2, MAX_POLL_MILLIS))
+                        : CompletableFuture.completedFuture(Optional.empty()));
+    }
+    
+    /**
+     * Process a batch of charges with idempotency, without blocking the caller.
+     * 
+     * Each item gets the guarantees of {@link #chargeAsync} at a fraction of
+     * the store round trips: all keys are looked up in one bulk read, and
+     * those not already completed are reserved in one bulk reserve. The
+     * reserved charges then go to the gateway's async API, at most
+     * payment.batch.concurrency at a time, and each completes its own record.
+     * A key held by another request is waited on as chargeAsync would.
+     * An item repeating an earlier key of the batch shares that item's
+     * outcome, as a replay.
+     * 
+     * Items are not coalesced with single charges in flight on this node;
+     * the two meet at the store's atomic reserve, like charges on different
+     * nodes.
+     *
+     * @param items valid charge items
+     * @return one result per item, in order; a store failure fails the whole batch
+     */
+    public CompletableFuture<List<BatchChargeResult>> chargeBatch(List<BatchChargeItem> items) {
+        List<CompletableFuture<BatchChargeResult>> results;
+        try {
+            results = chargeEach(items);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> results.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+    
+    /**
+     * Process a batch of charges as {@link #chargeBatch} does, with a result
+     * per item that completes as soon as that item's charge does.
+     *
+     * @param items valid charge items
+     * @return one future result per item, in order; each completes normally
+     * @throws RuntimeException if the bulk lookup or reserve fails, before any item is charged
+     */
+    public List<CompletableFuture<BatchChargeResult>> chargeEach(List<BatchChargeItem> items) {
+        long deadline = System.nanoTime() + inProgressTimeout.toNanos();
+        
+        // The first item for each key leads; repeats share its outcome
+        Map<String, BatchEntry> leaders = new LinkedHashMap<>();
+        List<CompletableFuture<BatchChargeResult>> results = new ArrayList<>(items.size());
+        for (BatchChargeItem item : items) {
+            BatchEntry entry = new BatchEntry(item.getIdempotencyKey(), item.getRequest());
+            BatchEntry leader = leaders.putIfAbsent(entry.key, entry);
+            results.add(leader == null ? entry.result : leader.result.thenApply(led -> repeated(entry, leader, led)));
+        }
+        
+        List<BatchEntry> pending = replayCompleted(leaders.values());
+        reserveAll(pending, deadline);
+        logger.info("Processing batch of {} charges: {} keys, {} replayed, {} reserved or held",
+                items.size(), leaders.size(), leaders.size() - pending.size(), pending.size());
+        return results;
+    }
+    
+    /**
+     * Look every key up in one read and answer the completed ones.
+     *
+     * @return the entries still to be reserved
+     */
+    private List<BatchEntry> replayCompleted(Collection<BatchEntry> entries) {
+        // As for single charges, keys the filter has never seen are not looked up
+        List<String> lookups = new ArrayList<>();
+        for (BatchEntry entry : entries) {
+            entry.lookedUp = recentKeys == null || recentKeys.mightContain(entry.key);
+            if (entry.lookedUp) {
+                lookups.add(entry.key);
+            }
+        }
+        Map<String, IdempotencyRecord> known = lookups.isEmpty()
+                ? Collections.emptyMap() : idempotencyStore.findAllByKey(lookups);
+        
+        List<BatchEntry> pending = new ArrayList<>();
+        for (BatchEntry entry : entries) {
+            IdempotencyRecord record = known.get(entry.key);
+            if (record != null && record.isCompleted()) {
+                if (record.requestMatches(entry.fingerprint)) {
+                    logger.info("Returning cached response for idempotency key: {}", entry.key);
+                    entry.complete(BatchChargeResult.Status.REPLAYED, record.getResponse());
+                } else {
+                    entry.fail(requestConflict(entry.key, record.getRequestFingerprint(), entry.request));
+                }
+                continue;
+            }
+            if (recentKeys != null) {
+                if (entry.lookedUp && record == null) {
+                    recentKeys.recordEmptyHit();
+                }
+                recentKeys.add(entry.key);
+            }
+            pending.add(entry);
+        }
+        return pending;
+    }
+    
+    /**
+     * Reserve every key in one call; charge the reserved ones and wait for the others.
+     */
+    private void reserveAll(List<BatchEntry> entries, long deadline) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<IdempotencyRecord> reservations = new ArrayList<>(entries.size());
+        for (BatchEntry entry : entries) {
+            reservations.add(reservation(entry.key, entry.fingerprint, entry.request));
+        }
+        List<Optional<IdempotencyRecord>> held;
+        try {
+            held = idempotencyStore.reserveAll(reservations);
+        } catch (RuntimeException e) {
+            releaseAll(reservations, e);
+            throw e;
+        }
+        
+        ConcurrencyLimit gatewayCalls = new ConcurrencyLimit(batchConcurrency);
+        for (int i = 0; i < entries.size(); i++) {
+            BatchEntry entry = entries.get(i);
+            CompletableFuture<BatchChargeResult> settled = held.get(i).isPresent()
+                    ? awaitHolderAsync(entry, held.get(i).get(), gatewayCalls, deadline)
+                    : processBatchEntry(entry, reservations.get(i), gatewayCalls);
+            settled.whenComplete((result, failure) -> {
+                if (failure != null) {
+                    entry.fail(failure);
+                } else {
+                    entry.result.complete(result);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Undo a bulk reserve that failed partway, so retries of the batch do not
+     * wait on its keys until they expire. Which keys it reserved is unknown,
+     * but release only deletes a key still held by this very reservation.
+     */
+    private void releaseAll(List<IdempotencyRecord> reservations, RuntimeException failure) {
+        int released = 0;
+        for (IdempotencyRecord reservation : reservations) {
+            try {
+                if (idempotencyStore.release(reservation)) {
+                    released++;
+                }
+            } catch (RuntimeException e) {
+                // Still failing: stop rather than wait out a timeout per key
+                failure.addSuppressed(e);
+                break;
+            }
+        }
+        logger.warn("Bulk reserve of {} keys failed, released {} reserved keys: {}",
+                reservations.size(), released, failure.getMessage());
+    }
+    
+    /**
+     * Wait for whoever holds the key; if they let go, reserve it again.
+     */
+    private CompletableFuture<BatchChargeResult> awaitHolderAsync(BatchEntry entry, IdempotencyRecord holder,
+                                                                  ConcurrencyLimit gatewayCalls, long deadline) {
+        return awaitCompletionAsync(holder, entry.fingerprint, entry.request, deadline, MIN_POLL_MILLIS)
+                .thenCompose(completed -> {
+                    if (completed.isPresent()) {
+                        logger.info("Returning cached response for idempotency key: {}", entry.key);
+                        return CompletableFuture.completedFuture(new BatchChargeResult(entry.key,
+                                BatchChargeResult.Status.REPLAYED, completed.get().getResponse()));
+                    }
+                    logger.info("Reservation for idempotency key {} was released, retrying", entry.key);
+                    IdempotencyRecord reservation = reservation(entry.key, entry.fingerprint, entry.request);
+                    Optional<IdempotencyRecord> existing = idempotencyStore.reserve(reservation);
+                    return existing.isPresent()
+                            ? awaitHolderAsync(entry, existing.get(), gatewayCalls, deadline)
+                            : processBatchEntry(entry, reservation, gatewayCalls);
+                });
+    }
+    
+    private CompletableFuture<BatchChargeResult> processBatchEntry(BatchEntry entry, IdempotencyRecord reservation,
+                                                                   ConcurrencyLimit gatewayCalls) {
+        return gatewayCalls.submit(() -> processReservedAsync(reservation, entry.request))
+                .thenApply(response -> new BatchChargeResult(entry.key, BatchChargeResult.Status.PROCESSED, response));
+    }
+    
+    /**
+     * The outcome of a repeated key: the leader's response, unless the requests differ.
+     */
+    private BatchChargeResult repeated(BatchEntry entry, BatchEntry leader, BatchChargeResult led) {
+        if (!leader.fingerprint.equals(entry.fingerprint)) {
+            IdempotencyConflictException conflict = requestConflict(entry.key, leader.fingerprint, entry.request);
+            return new BatchChargeResult(entry.key, BatchChargeResult.Status.CONFLICT,
+                    ChargeResponse.failed(conflict.getMessage()));
+        }
+        BatchChargeResult.Status status = led.getStatus() == BatchChargeResult.Status.PROCESSED
+                ? BatchChargeResult.Status.REPLAYED : led.getStatus();
+        return new BatchChargeResult(entry.key, status, led.getResponse());
+    }
+    
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+    
+    /**
+     * Wait for the in-flight leader of a key to finish.
+     * 
+     * @return the leader's response, or empty if the leader failed
+     * @throws IdempotencyConflictException on request mismatch or wait timeout
+     */
+    private Optional<ChargeResponse> attach(String idempotencyKey, InFlightCharge leader,
+                                            RequestFingerprint fingerprint, ChargeRequest request,
+                                            long deadline) {
+        if (!leader.fingerprint.equals(fingerprint)) {
+            throw requestConflict(idempotencyKey, leader.fingerprint, request);
+        }
         
+        try {
+            return Optional.of(leader.future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+        } catch (ExecutionException e) {
+            logger.info("In-flight leader for idempotency key {} failed: {}",
+                    idempotencyKey, e.getCause().getMessage());
+            if (System.nanoTime() - deadline >= 0) {
+                throw inProgressTimeout(idempotencyKey);
+            }
+            return Optional.empty();
+        } catch (TimeoutException e) {
+            throw inProgressTimeout(idempotencyKey);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdempotencyConflictException(
+                    "Interrupted while waiting for in-progress request", e);
+        }
+    }
+    
+    /**
+     * Reserve the key in the store and process it, or wait for whoever holds it.
+     */
+    private ChargeOutcome chargeThroughStore(String idempotencyKey, RequestFingerprint fingerprint,
+                                             ChargeRequest request, long deadline) {
+        Optional<IdempotencyRecord> replay = replayCompleted(idempotencyKey, fingerprint, request);
+        if (replay.isPresent()) {
+            return ChargeOutcome.replayed(replay.get());
+        }
+
+        while (true) {
+            // Try to reserve the key; an existing record means someone got here first
+            IdempotencyRecord reservation = reservation(idempotencyKey, fingerprint, request);
+            Optional<IdempotencyRecord> existingRecord = idempotencyStore.reserve(reservation);
+            
+            if (!existingRecord.isPresent()) {
+                return ChargeOutcome.of(processReserved(reservation, request));
+            }
+            
+            Optional<IdempotencyRecord> completed = awaitCompletion(
+                    existingRecord.get(), fingerprint, request, deadline);
+            if (completed.isPresent()) {
+                logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
+                return ChargeOutcome.replayed(completed.get());
+            }
+            
+            // Reservation was released by a failed leader, try to take it over
+            logger.info("Reservation for idempotency key {} was released, retrying", idempotencyKey);
+        }
+    }
+    
+    /**
+     * Answer a retry of a completed charge with a plain read, before reserving.
+     *
+     * @return the completed record, or empty if the key has none
+     * @throws IdempotencyConflictException if the completed record is for another request
+     */
+    private Optional<IdempotencyRecord> replayCompleted(String idempotencyKey, RequestFingerprint fingerprint,
+                                                        ChargeRequest request) {
+        // Most traffic is retries of completed charges: answer those with a plain read.
+        // A key the filter has never seen is new, so the read would only miss.
+        if (recentKeys == null || recentKeys.mightContain(idempotencyKey)) {
+            Optional<IdempotencyRecord> known = idempotencyStore.findByKey(idempotencyKey);
+            if (known.isPresent() && known.get().isCompleted()) {
+                if (!known.get().requestMatches(fingerprint)) {
+                    throw requestConflict(idempotencyKey, known.get().getRequestFingerprint(), request);
+                }
+                logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
+                return known;
+            }
+            if (recentKeys != null && !known.isPresent()) {
+                recentKeys.recordEmptyHit();
+            }
+        }
+        if (recentKeys != null) {
+            recentKeys.add(idempotencyKey);
+        }
+        return Optional.empty();
+    }
+    
+    private IdempotencyRecord reservation(String idempotencyKey, RequestFingerprint fingerprint,
+                                          ChargeRequest request) {
+        return IdempotencyRecord.inProgress(idempotencyKey, fingerprint,
+                retainRequest ? request : null, Instant.now().plus(idempotencyKeyTTL));
+    }
+    
+    /**
+     * Run the payment for a key this caller has reserved and record the outcome.
+     */
+    private ChargeResponse processReserved(IdempotencyRecord reservation, ChargeRequest request) {
+        logger.info("Processing new payment for customer: {}", request.getCustomerId());
+        
+        ChargeResponse response;
+        try {
+            response = processPayment(request);
+        } catch (RuntimeException e) {
+            release(reservation);
+            throw e;
+        }
+        
+        recordOutcome(reservation.getIdempotencyKey(), reservation.getRequestFingerprint(), request, response);
         return response;
     }
     
     /**
-     * Simulate actual payment processing.
-     * In production, this would integrate with payment gateway (Stripe, PayPal, etc.)
+     * Release the reservation of a failed charge so a retry is not blocked
+     * until TTL expiry. Conditional: if it outlived its TTL and the key has
+     * been reserved again, the new holder's reservation stays.
      */
-    private ChargeResponse processPayment(ChargeRequest request) {
+    private void release(IdempotencyRecord reservation) {
+        if (!idempotencyStore.release(reservation)) {
+            logger.warn("Reservation for idempotency key {} was no longer held when released",
+                    reservation.getIdempotencyKey());
+        }
+    }
+    
+    /**
+     * Complete the reservation with the charge response, encoded as JSON so
+     * the store keeps the bytes every replay of it will write.
+     */
+    private void recordOutcome(String idempotencyKey, RequestFingerprint fingerprint, ChargeRequest request,
+                               ChargeResponse response) {
         try {
-            // Simulate payment gateway processing time
-            Thread.sleep(100);
+            response.setJson(objectMapper.writeValueAsBytes(response));
+        } catch (JsonProcessingException e) {
+            // The charge went through; replays serialize the response instead
+            logger.warn("Cannot encode charge response for key: {}", idempotencyKey, e);
+        }
+        Instant expiresAt = Instant.now().plus(idempotencyKeyTTL);
+        if (!idempotencyStore.complete(idempotencyKey, response, expiresAt)) {
+            // Reservation vanished (e.g. expired or deleted) - persist the outcome anyway
+            idempotencyStore.save(new IdempotencyRecord(idempotencyKey, fingerprint,
+                    retainRequest ? request : null, response, expiresAt));
+        }
+        logger.info("Saved idempotency record for key: {}, expires at: {}", 
+                idempotencyKey, expiresAt);
+    }
+    
+    /**
+     * Wait for an existing record to complete.
+     * 
+     * @return the completed record, or empty if the reservation was released
+     * @throws IdempotencyConflictException on request mismatch or wait timeout
+     */
+    private Optional<IdempotencyRecord> awaitCompletion(IdempotencyRecord record, RequestFingerprint fingerprint,
+                                                        ChargeRequest request, long deadline) {
+        String idempotencyKey = record.getIdempotencyKey();
+        long backoffMillis = MIN_POLL_MILLIS;
+        
+        while (true) {
+            // Check if request matches
+            if (!record.requestMatches(fingerprint)) {
+                throw requestConflict(idempotencyKey, record.getRequestFingerprint(), request);
+            }
             
-            // Generate unique transaction ID
-            String transactionId = "txn_" + UUID.randomUUID().toString().replace("-", "");
+            if (record.isCompleted()) {
+                return Optional.of(record);
+            }
             
-            logger.info("Payment processed successfully. Transaction ID: {}, Amount: {} {}",
-                    transactionId, request.getAmount(), request.getCurrency());
+            if (System.nanoTime() - deadline >= 0) {
+                throw inProgressTimeout(idempotencyKey);
+            }
             
-            return ChargeResponse.success(
-                    transactionId,
-                    request.getAmount(),
-                    request.getCurrency()
-            );
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IdempotencyConflictException(
+                        "Interrupted while waiting for in-progress request", e);
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_POLL_MILLIS);
             
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            logger.error("Payment processing interrupted", e);
-            return ChargeResponse.failed("Payment processing failed: " + e.getMessage());
-        } catch (Exception e) {
-            logger.error("Payment processing error", e);
-            return ChargeResponse.failed("Payment processing failed: " + e.getMessage());
+            Optional<IdempotencyRecord> current = idempotencyStore.findByKey(idempotencyKey);
+            if (!current.isPresent()) {
+                return Optional.empty();
+            }
+            record = current.get();
+        }
+    }
+    
+    private IdempotencyConflictException requestConflict(String idempotencyKey, RequestFingerprint original,
+                                                         ChargeRequest request) {
+        logger.warn("Idempotency key {} used with different request. " +
+                "Original fingerprint: {}, New: {}", idempotencyKey, original, request);
+        return new IdempotencyConflictException(
+                "Idempotency key already used with different request parameters"
+        );
+    }
+    
+    private IdempotencyConflictException inProgressTimeout(String idempotencyKey) {
+        logger.warn("Idempotency key {} still in progress after {}", idempotencyKey, inProgressTimeout);
+        return new IdempotencyConflictException(
+                "A request with this idempotency key is still being processed"
+        );
+    }
+    
+    /**
+     * Charge through the payment gateway. A gateway error or timeout is
+     * recorded as a failed charge.
+     */
+    private ChargeResponse processPayment(ChargeRequest request) {
+        try {
+            return processed(request, paymentGateway.charge(request));
+        } catch (RuntimeException e) {
+            return gatewayFailure(e);
+        }
+    }
+    
+    /**
+     * Charge through the payment gateway without holding the caller's thread.
+     */
+    private CompletableFuture<ChargeResponse> processPaymentAsync(ChargeRequest request) {
+        CompletableFuture<ChargeResponse> charged;
+        try {
+            charged = paymentGateway.chargeAsync(request);
+        } catch (RuntimeException e) {
+            charged = CompletableFuture.failedFuture(e);
+        }
+        return charged.handle((response, failure) ->
+                failure == null ? processed(request, response) : gatewayFailure(unwrap(failure)));
+    }
+    
+    private static ChargeResponse processed(ChargeRequest request, ChargeResponse response) {
+        logger.info("Payment processed with status {}. Transaction ID: {}, Amount: {} {}",
+                response.getStatus(), response.getTransactionId(), request.getAmount(), request.getCurrency());
+        return response;
+    }
+    
+    private static ChargeResponse gatewayFailure(Throwable e) {
+        logger.error("Payment processing error", e);
+        return ChargeResponse.failed("Payment processing failed: " + e.getMessage());
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        asyncExecutor.shutdownNow();
+        if (virtualThreads != null) {
+            virtualThreads.shutdownNow();
+        }
+    }
+    
+    /**
+     * The first item of a batch for its key, and its outcome.
+     */
+    private static final class BatchEntry {
+        
+        private final String key;
+        private final ChargeRequest request;
+        private final RequestFingerprint fingerprint;
+        private final CompletableFuture<BatchChargeResult> result = new CompletableFuture<>();
+        private boolean lookedUp;
+        
+        private BatchEntry(String key, ChargeRequest request) {
+            this.key = key;
+            this.request = request;
+            this.fingerprint = RequestFingerprint.of(request);
+        }
+        
+        private void complete(BatchChargeResult.Status status, ChargeResponse response) {
+            result.complete(new BatchChargeResult(key, status, response));
+        }
+        
+        private void fail(Throwable failure) {
+            Throwable e = unwrap(failure);
+            if (e instanceof IdempotencyConflictException) {
+                complete(BatchChargeResult.Status.CONFLICT, ChargeResponse.failed(e.getMessage()));
+            } else {
+                logger.error("Unexpected error processing batch charge for key: " + key, e);
+                complete(BatchChargeResult.Status.FAILED, ChargeResponse.failed("Internal server error"));
+            }
+        }
+    }
+    
+    /**
+     * Starts async tasks with at most a fixed number in flight, the next one
+     * as each completes. Tasks that complete at once are started in a loop,
+     * not recursively, so a long queue cannot overflow the stack.
+     */
+    private static final class ConcurrencyLimit {
+        
+        private final int limit;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int running;
+        private boolean draining;
+        
+        private ConcurrencyLimit(int limit) {
+            this.limit = limit;
+        }
+        
+        private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable start = () -> {
+                CompletableFuture<T> started;
+                try {
+                    started = task.get();
+                } catch (RuntimeException e) {
+                    started = CompletableFuture.failedFuture(e);
+                }
+                started.whenComplete((value, failure) -> {
+                    synchronized (this) {
+                        running--;
+                    }
+                    drain();
+                    if (failure != null) {
+                        result.completeExceptionally(unwrap(failure));
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            };
+            synchronized (this) {
+                waiting.add(start);
+            }
+            drain();
+            return result;
+        }
+        
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    // Whoever is draining picks up the free slot
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (running >= limit || waiting.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    running++;
+                    next = waiting.poll();
+                }
+                next.run();
+            }
+        }
+    }
+    
+    /**
+     * A charge currently being processed by a leader thread on this node.
+     */
+    private static final class InFlightCharge {
+        
+        private final RequestFingerprint fingerprint;
+        private final CompletableFuture<ChargeResponse> future = new CompletableFuture<>();
+        
+        private InFlightCharge(RequestFingerprint fingerprint) {
+            this.fingerprint = fingerprint;
         }
     }
 }
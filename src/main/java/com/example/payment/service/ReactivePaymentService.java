@@ -0,0 +1,178 @@
+package com.example.payment.service;
+
+import com.example.payment.exception.IdempotencyConflictException;
+import com.example.payment.gateway.PaymentGateway;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.model.RequestFingerprint;
+import com.example.payment.repository.ReactiveIdempotencyStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Function;
+
+/**
+ * Reactive payment service with the same idempotency guarantees as
+ * {@link PaymentService}, for the Netty endpoint.
+ *
+ * Every step is a non-blocking call on a {@link ReactiveIdempotencyStore}:
+ * replay a completed record, else reserve the key and charge through the
+ * gateway's async API, else wait for the holder by re-reading the record on
+ * a timer. Duplicates on the same node are not coalesced in memory; they
+ * meet at the store's atomic reserve like duplicates on different nodes.
+ */
+@Service
+@ConditionalOnProperty(name = "payment.reactive.enabled", havingValue = "true")
+public class ReactivePaymentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactivePaymentService.class);
+    private static final long MIN_POLL_MILLIS = 5;
+    private static final long MAX_POLL_MILLIS = 50;
+
+    private final ReactiveIdempotencyStore idempotencyStore;
+    private final PaymentGateway paymentGateway;
+    private final Duration idempotencyKeyTTL;
+    private final Duration inProgressTimeout;
+    private final boolean retainRequest;
+
+    public ReactivePaymentService(
+            ReactiveIdempotencyStore idempotencyStore,
+            PaymentGateway paymentGateway,
+            @Value("${payment.idempotency.ttl:PT1H}") Duration idempotencyKeyTTL,
+            @Value("${payment.idempotency.in-progress-timeout:PT5S}") Duration inProgressTimeout,
+            @Value("${payment.idempotency.retain-request:false}") boolean retainRequest) {
+        this.idempotencyStore = idempotencyStore;
+        this.paymentGateway = paymentGateway;
+        this.idempotencyKeyTTL = idempotencyKeyTTL;
+        this.inProgressTimeout = inProgressTimeout;
+        this.retainRequest = retainRequest;
+        logger.info("ReactivePaymentService initialized with TTL: {}, in-progress timeout: {}, store: {}",
+                idempotencyKeyTTL, inProgressTimeout, idempotencyStore.getClass().getSimpleName());
+    }
+
+    /**
+     * Process a payment charge with idempotency.
+     *
+     * @param idempotencyKey unique key for this request
+     * @param request        the charge request
+     * @return the charge response; fails with IdempotencyConflictException on
+     *         a request mismatch or while the key stays in progress too long
+     */
+    public Mono<ChargeResponse> charge(String idempotencyKey, ChargeRequest request) {
+        return Mono.defer(() -> {
+            logger.info("Processing reactive charge with idempotency key: {}, customer: {}, amount: {}",
+                    idempotencyKey, request.getCustomerId(), request.getAmount());
+
+            RequestFingerprint fingerprint = RequestFingerprint.of(request);
+            long deadline = System.nanoTime() + inProgressTimeout.toNanos();
+            // Most traffic is retries of completed charges: answer those with a plain read
+            return idempotencyStore.findByKey(idempotencyKey)
+                    .filter(IdempotencyRecord::isCompleted)
+                    .flatMap(known -> awaitCompletion(known, fingerprint, request, deadline, MIN_POLL_MILLIS))
+                    .map(known -> {
+                        logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
+                        return known.getResponse();
+                    })
+                    .switchIfEmpty(Mono.defer(() -> reserve(idempotencyKey, fingerprint, request, deadline)));
+        });
+    }
+
+    /**
+     * Reserve the key and process it, or wait for whoever holds it and retry if they let go.
+     */
+    private Mono<ChargeResponse> reserve(String idempotencyKey, RequestFingerprint fingerprint,
+                                         ChargeRequest request, long deadline) {
+        IdempotencyRecord reservation = IdempotencyRecord.inProgress(idempotencyKey, fingerprint,
+                retainRequest ? request : null, Instant.now().plus(idempotencyKeyTTL));
+
+        return idempotencyStore.reserve(reservation)
+                .flatMap(existing -> awaitCompletion(existing, fingerprint, request, deadline, MIN_POLL_MILLIS)
+                        .map(completed -> {
+                            logger.info("Returning cached response for idempotency key: {}", idempotencyKey);
+                            return completed.getResponse();
+                        })
+                        .switchIfEmpty(Mono.defer(() -> {
+                            logger.info("Reservation for idempotency key {} was released, retrying",
+                                    idempotencyKey);
+                            return reserve(idempotencyKey, fingerprint, request, deadline);
+                        })))
+                .switchIfEmpty(Mono.defer(() -> processReserved(idempotencyKey, fingerprint, request)));
+    }
+
+    /**
+     * Charge for a key this caller has reserved and record the outcome.
+     *
+     * Once started the charge runs to completion even if the client goes
+     * away, so a cancelled request never leaves the key IN_PROGRESS.
+     */
+    private Mono<ChargeResponse> processReserved(String idempotencyKey, RequestFingerprint fingerprint,
+                                                 ChargeRequest request) {
+        logger.info("Processing new payment for customer: {}", request.getCustomerId());
+
+        Mono<ChargeResponse> processing = Mono.defer(() -> Mono.fromFuture(paymentGateway.chargeAsync(request)))
+                .map(response -> {
+                    logger.info("Payment processed with status {}. Transaction ID: {}, Amount: {} {}",
+                            response.getStatus(), response.getTransactionId(),
+                            request.getAmount(), request.getCurrency());
+                    return response;
+                })
+                .onErrorResume(e -> {
+                    logger.error("Payment processing error", e);
+                    return Mono.just(ChargeResponse.failed("Payment processing failed: " + e.getMessage()));
+                })
+                .flatMap(response -> recordOutcome(idempotencyKey, fingerprint, request, response)
+                        .thenReturn(response));
+
+        // A copy, so cancelling the caller's subscription does not cancel the charge
+        return Mono.fromFuture(processing.toFuture().thenApply(Function.identity()));
+    }
+
+    private Mono<Void> recordOutcome(String idempotencyKey, RequestFingerprint fingerprint, ChargeRequest request,
+                                     ChargeResponse response) {
+        Instant expiresAt = Instant.now().plus(idempotencyKeyTTL);
+        return idempotencyStore.complete(idempotencyKey, response, expiresAt)
+                .flatMap(completed -> completed
+                        ? Mono.<Void>empty()
+                        // Reservation vanished (e.g. expired or deleted) - persist the outcome anyway
+                        : idempotencyStore.save(new IdempotencyRecord(idempotencyKey, fingerprint,
+                                retainRequest ? request : null, response, expiresAt)))
+                .doOnSuccess(done -> logger.info("Saved idempotency record for key: {}, expires at: {}",
+                        idempotencyKey, expiresAt));
+    }
+
+    /**
+     * Re-read an existing record until it completes, backing off on a timer.
+     *
+     * @return the completed record, or empty if the reservation was released
+     */
+    private Mono<IdempotencyRecord> awaitCompletion(IdempotencyRecord record, RequestFingerprint fingerprint,
+                                                    ChargeRequest request, long deadline, long backoffMillis) {
+        String idempotencyKey = record.getIdempotencyKey();
+        if (!record.requestMatches(fingerprint)) {
+            logger.warn("Idempotency key {} used with different request. " +
+                    "Original fingerprint: {}, New: {}", idempotencyKey, record.getRequestFingerprint(), request);
+            return Mono.error(new IdempotencyConflictException(
+                    "Idempotency key already used with different request parameters"));
+        }
+        if (record.isCompleted()) {
+            return Mono.just(record);
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            logger.warn("Idempotency key {} still in progress after {}", idempotencyKey, inProgressTimeout);
+            return Mono.error(new IdempotencyConflictException(
+                    "A request with this idempotency key is still being processed"));
+        }
+
+        return Mono.delay(Duration.ofMillis(backoffMillis))
+                .then(idempotencyStore.findByKey(idempotencyKey))
+                .flatMap(current -> awaitCompletion(current, fingerprint, request, deadline,
+                        Math.min(backoffMillis * 2, MAX_POLL_MILLIS)));
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.payment.service;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Table of per-key entries split into lock stripes.
+ *
+ * A key maps to one of a power-of-two number of stripes, each a plain
+ * HashMap behind its own ReentrantLock, so callers only ever wait for keys
+ * that share their stripe and locks are held for a single map operation.
+ * A lock is first tried without blocking; only when that fails is the
+ * caller counted as contended and its wait timed.
+ *
+ * @param <V> entry type
+ */
+final class StripedLockTable<V> implements MeterBinder {
+
+    private final Stripe<V>[] stripes;
+    private final int mask;
+
+    private final LongAdder size = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    StripedLockTable(int stripes) {
+        if (stripes < 1 || stripes > 1 << 16) {
+            throw new IllegalArgumentException("Stripes must be between 1 and 65536: " + stripes);
+        }
+        int count = Integer.highestOneBit(stripes) == stripes ? stripes : Integer.highestOneBit(stripes) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe<>();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Store the value unless the key already has one.
+     *
+     * @return the existing value, or null if the value was stored
+     */
+    V putIfAbsent(String key, V value) {
+        Stripe<V> stripe = lock(key);
+        try {
+            V existing = stripe.entries.putIfAbsent(key, value);
+            if (existing == null) {
+                size.increment();
+            }
+            return existing;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the key only while it still maps to the value.
+     */
+    boolean remove(String key, V value) {
+        Stripe<V> stripe = lock(key);
+        try {
+            boolean removed = stripe.entries.remove(key, value);
+            if (removed) {
+                size.decrement();
+            }
+            return removed;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    int size() {
+        return size.intValue();
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    private Stripe<V> lock(String key) {
+        int h = key.hashCode();
+        Stripe<V> stripe = stripes[(h ^ (h >>> 16)) & mask];
+        if (!stripe.lock.tryLock()) {
+            long start = System.nanoTime();
+            stripe.lock.lock();
+            contended.increment();
+            waitNanos.add(System.nanoTime() - start);
+        }
+        return stripe;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("idempotency.inflight.size", this, StripedLockTable::size)
+                .description("Charges being processed on this node")
+                .register(registry);
+        Gauge.builder("idempotency.inflight.stripes", this, StripedLockTable::stripeCount)
+                .description("Lock stripes of the in-flight table")
+                .register(registry);
+        FunctionTimer.builder("idempotency.inflight.contended", this,
+                        table -> table.contended.sum(), table -> table.waitNanos.sum(), TimeUnit.NANOSECONDS)
+                .description("In-flight table accesses that waited for a stripe lock, and the time spent waiting")
+                .register(registry);
+    }
+
+    private static final class Stripe<V> {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, V> entries = new HashMap<>();
+    }
+}
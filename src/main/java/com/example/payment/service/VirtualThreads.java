@@ -0,0 +1,60 @@
+package com.example.payment.service;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to Java 21 virtual threads from code compiled for Java 11.
+ *
+ * The builder API is looked up reflectively once, when an executor is
+ * created; tasks then run on plain virtual threads with no reflection.
+ * On an older runtime creating an executor fails fast instead.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether this runtime has virtual threads
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An executor that starts a new virtual thread for each task.
+     *
+     * @param prefix thread name prefix; threads are numbered from 1
+     * @throws IllegalStateException if the runtime has no virtual threads
+     */
+    public static ExecutorService newPerTaskExecutor(String prefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory")
+                    .invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Virtual thread API not available", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e.getCause());
+        }
+    }
+}
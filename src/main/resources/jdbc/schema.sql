@@ -0,0 +1,14 @@
+-- Idempotency records for the jdbc store (PostgreSQL; H2 in PostgreSQL mode for tests).
+--
+-- reservation  encoded IN_PROGRESS record (key, fingerprint, created/expiry, request)
+-- response     encoded charge response with its JSON, set when the record completes
+-- expires_at   expiry, epoch millis; indexed for the batched expiry deletes
+CREATE TABLE IF NOT EXISTS idempotency_record (
+    idempotency_key VARCHAR(255) PRIMARY KEY,
+    status          CHAR(1)      NOT NULL,
+    reservation     BYTEA        NOT NULL,
+    response        BYTEA,
+    expires_at      BIGINT       NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idempotency_record_expires_at ON idempotency_record (expires_at);
@@ -0,0 +1,14 @@
+-- Complete an IN_PROGRESS reservation with its response.
+--
+-- KEYS[1]  record hash
+-- ARGV[1]  encoded response
+-- ARGV[2]  new expiry, epoch millis
+--
+-- Returns 1 when completed, 0 when there is no IN_PROGRESS reservation.
+if redis.call('HGET', KEYS[1], 's') ~= 'I' then
+    return 0
+end
+
+redis.call('HMSET', KEYS[1], 's', 'C', 'p', ARGV[1], 'e', ARGV[2])
+redis.call('PEXPIREAT', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,13 @@
+-- Release an IN_PROGRESS reservation, only while it is still the caller's.
+--
+-- KEYS[1]  record hash
+-- ARGV[1]  encoded IN_PROGRESS record the caller reserved with
+--
+-- Returns 1 when released, 0 when the key is completed, gone or reserved by
+-- someone else since.
+if redis.call('HGET', KEYS[1], 's') ~= 'I' or redis.call('HGET', KEYS[1], 'r') ~= ARGV[1] then
+    return 0
+end
+
+redis.call('DEL', KEYS[1])
+return 1
@@ -0,0 +1,21 @@
+-- Reserve an idempotency key, or report who holds it, in one round trip.
+--
+-- KEYS[1]  record hash
+-- ARGV[1]  request fingerprint (16 bytes)
+-- ARGV[2]  encoded IN_PROGRESS record
+-- ARGV[3]  expiry, epoch millis
+--
+-- Returns {1} when reserved, {0, status, record, response, expiry} when the key
+-- is held by the same request, or {2, fingerprint, expiry} when it is held by
+-- a different one. A held key is always live: Redis drops it at its expiry.
+local held = redis.call('HMGET', KEYS[1], 'f', 's', 'r', 'p', 'e')
+if held[1] then
+    if held[1] ~= ARGV[1] then
+        return {2, held[1], held[5]}
+    end
+    return {0, held[2], held[3], held[4] or '', held[5]}
+end
+
+redis.call('HMSET', KEYS[1], 'f', ARGV[1], 's', 'I', 'r', ARGV[2], 'e', ARGV[3])
+redis.call('PEXPIREAT', KEYS[1], ARGV[3])
+return {1}
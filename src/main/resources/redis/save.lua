@@ -0,0 +1,15 @@
+-- Replace a record unconditionally.
+--
+-- KEYS[1]  record hash
+-- ARGV[1]  request fingerprint (16 bytes)
+-- ARGV[2]  status, I or C
+-- ARGV[3]  encoded IN_PROGRESS form of the record
+-- ARGV[4]  encoded response, empty if none
+-- ARGV[5]  expiry, epoch millis
+redis.call('DEL', KEYS[1])
+redis.call('HMSET', KEYS[1], 'f', ARGV[1], 's', ARGV[2], 'r', ARGV[3], 'e', ARGV[5])
+if ARGV[4] ~= '' then
+    redis.call('HSET', KEYS[1], 'p', ARGV[4])
+end
+redis.call('PEXPIREAT', KEYS[1], ARGV[5])
+return 1
@@ -0,0 +1,218 @@
+package com.example.payment.controller;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HTTP behaviour of POST /api/payments/charge that every endpoint serving
+ * it shares; the servlet and reactive endpoint tests extend this with a way
+ * to send the request.
+ */
+abstract class ChargeEndpointContractTest {
+
+    @Autowired
+    protected ObjectMapper objectMapper;
+
+    protected ChargeRequest testRequest;
+
+    /**
+     * POST a charge to the endpoint and wait for its response.
+     *
+     * @param idempotencyKey value of the Idempotency-Key header, or null to leave it out
+     */
+    protected abstract ChargeExchange exchange(String idempotencyKey, ChargeRequest request) throws Exception;
+
+    @BeforeEach
+    void setUpRequest() {
+        testRequest = new ChargeRequest(
+                "customer_123",
+                new BigDecimal("99.99"),
+                "USD",
+                "Test payment"
+        );
+    }
+
+    @Test
+    @DisplayName("First call should process payment and return success")
+    void testFirstCallProcessesPayment() throws Exception {
+        ChargeExchange result = exchange(UUID.randomUUID().toString(), testRequest);
+
+        assertEquals(200, result.status);
+        assertTrue(MediaType.APPLICATION_JSON.isCompatibleWith(result.contentType),
+                String.valueOf(result.contentType));
+        JsonNode json = json(result);
+        assertEquals("SUCCESS", json.get("status").asText());
+        assertEquals(0, new BigDecimal("99.99").compareTo(json.get("amount").decimalValue()));
+        assertEquals("USD", json.get("currency").asText());
+        assertEquals("Payment processed successfully", json.get("message").asText());
+
+        ChargeResponse response = response(result);
+        assertNotNull(response.getTransactionId());
+        assertTrue(response.getTransactionId().startsWith("txn_"));
+    }
+
+    @Test
+    @DisplayName("Retry with same key and same request should return cached response")
+    void testRetryWithSameKeyReturnsCache() throws Exception {
+        String idempotencyKey = UUID.randomUUID().toString();
+
+        ChargeExchange first = exchange(idempotencyKey, testRequest);
+        ChargeExchange second = exchange(idempotencyKey, testRequest);
+
+        assertEquals(200, first.status);
+        assertEquals(200, second.status);
+        ChargeResponse firstResponse = response(first);
+        ChargeResponse secondResponse = response(second);
+        assertEquals(firstResponse.getTransactionId(), secondResponse.getTransactionId());
+        assertEquals(firstResponse.getStatus(), secondResponse.getStatus());
+        assertEquals(firstResponse.getAmount(), secondResponse.getAmount());
+        assertEquals(firstResponse.getCurrency(), secondResponse.getCurrency());
+        assertEquals(firstResponse.getProcessedAt(), secondResponse.getProcessedAt());
+    }
+
+    @Test
+    @DisplayName("Same key with different request should return 409 Conflict")
+    void testSameKeyDifferentRequestReturnsConflict() throws Exception {
+        String idempotencyKey = UUID.randomUUID().toString();
+        assertEquals(200, exchange(idempotencyKey, testRequest).status);
+
+        ChargeRequest differentRequest = new ChargeRequest(
+                "customer_456",  // Different customer
+                new BigDecimal("199.99"),  // Different amount
+                "EUR",  // Different currency
+                "Different payment"
+        );
+        ChargeExchange result = exchange(idempotencyKey, differentRequest);
+
+        assertEquals(409, result.status);
+        assertEquals("FAILED", json(result).get("status").asText());
+        assertEquals("Idempotency key already used with different request parameters",
+                json(result).get("message").asText());
+    }
+
+    @Test
+    @DisplayName("Missing Idempotency-Key header should return 400 Bad Request")
+    void testMissingIdempotencyKeyReturnsBadRequest() throws Exception {
+        assertKeyRequired(exchange(null, testRequest));
+    }
+
+    @Test
+    @DisplayName("Empty Idempotency-Key header should return 400 Bad Request")
+    void testEmptyIdempotencyKeyReturnsBadRequest() throws Exception {
+        assertKeyRequired(exchange("", testRequest));
+    }
+
+    @Test
+    @DisplayName("Concurrent requests with same key should all get same response")
+    void testConcurrentRequestsWithSameKey() throws Exception {
+        String idempotencyKey = UUID.randomUUID().toString();
+        int threadCount = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        ChargeExchange[] results = new ChargeExchange[threadCount];
+        Exception[] exceptions = new Exception[threadCount];
+
+        // Submit concurrent requests
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            executor.submit(() -> {
+                try {
+                    results[index] = exchange(idempotencyKey, testRequest);
+                } catch (Exception e) {
+                    exceptions[index] = e;
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        // Wait for all requests to complete
+        latch.await();
+        executor.shutdown();
+
+        String firstTransactionId = null;
+        for (int i = 0; i < threadCount; i++) {
+            assertNull(exceptions[i], "Thread " + i + " threw exception: " +
+                    (exceptions[i] != null ? exceptions[i].getMessage() : ""));
+            assertEquals(200, results[i].status, "Response " + i);
+            ChargeResponse response = response(results[i]);
+            assertEquals("SUCCESS", response.getStatus());
+            if (firstTransactionId == null) {
+                firstTransactionId = response.getTransactionId();
+                assertNotNull(firstTransactionId);
+            }
+            assertEquals(firstTransactionId, response.getTransactionId(),
+                    "Response " + i + " has different transaction ID");
+        }
+    }
+
+    @Test
+    @DisplayName("Different idempotency keys should create different transactions")
+    void testDifferentKeysCreateDifferentTransactions() throws Exception {
+        ChargeExchange first = exchange(UUID.randomUUID().toString(), testRequest);
+        ChargeExchange second = exchange(UUID.randomUUID().toString(), testRequest);
+
+        assertEquals(200, first.status);
+        assertEquals(200, second.status);
+        assertNotEquals(response(first).getTransactionId(), response(second).getTransactionId());
+    }
+
+    @Test
+    @DisplayName("Invalid request should return 400 Bad Request")
+    void testInvalidRequestReturnsBadRequest() throws Exception {
+        ChargeRequest invalidRequest = new ChargeRequest(
+                "",  // Empty customer ID
+                new BigDecimal("0.00"),  // Invalid amount
+                "",  // Empty currency
+                null
+        );
+
+        assertEquals(400, exchange(UUID.randomUUID().toString(), invalidRequest).status);
+    }
+
+    protected JsonNode json(ChargeExchange result) throws Exception {
+        return objectMapper.readTree(result.body);
+    }
+
+    protected ChargeResponse response(ChargeExchange result) throws Exception {
+        return objectMapper.readValue(result.body, ChargeResponse.class);
+    }
+
+    protected void assertKeyRequired(ChargeExchange result) throws Exception {
+        assertEquals(400, result.status);
+        assertEquals("FAILED", json(result).get("status").asText());
+        assertEquals("Idempotency-Key header is required", json(result).get("message").asText());
+    }
+
+    /**
+     * What came back for one charge request.
+     */
+    protected static final class ChargeExchange {
+
+        final int status;
+        final MediaType contentType;
+        final byte[] body;
+
+        ChargeExchange(int status, MediaType contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body != null ? body : new byte[0];
+        }
+    }
+}
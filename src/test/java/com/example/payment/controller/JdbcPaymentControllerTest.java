@@ -0,0 +1,14 @@
+package com.example.payment.controller;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the payment API integration tests against the JDBC store, backed by
+ * H2 in PostgreSQL mode.
+ */
+@TestPropertySource(properties = {
+        "payment.idempotency.store=jdbc",
+        "spring.datasource.url=jdbc:h2:mem:payments;MODE=PostgreSQL;DB_CLOSE_DELAY=-1"
+})
+class JdbcPaymentControllerTest extends PaymentControllerTest {
+}
@@ -0,0 +1,14 @@
+package com.example.payment.controller;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the payment API integration tests against the append-only log store.
+ */
+@TestPropertySource(properties = {
+        "payment.idempotency.store=log",
+        "payment.idempotency.log.directory=${java.io.tmpdir}/idempotency-log-test-${random.uuid}",
+        "payment.idempotency.log.segment-size=1MB"
+})
+class LogPaymentControllerTest extends PaymentControllerTest {
+}
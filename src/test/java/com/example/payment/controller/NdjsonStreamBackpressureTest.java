@@ -0,0 +1,120 @@
+package com.example.payment.controller;
+
+import com.example.payment.gateway.PaymentGateway;
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * Streams many more lines than max-in-flight through a slow gateway, so the
+ * reader has to wait for results to be written before reading on.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+// Imported, not a nested configuration, so apps started by the benchmarks don't scan it
+@Import(NdjsonStreamBackpressureTest.SlowGateway.class)
+@TestPropertySource(properties = {
+        "payment.gateway=slow",
+        "payment.stream.max-in-flight=4",
+        "payment.stream.chunk-size=2"
+})
+class NdjsonStreamBackpressureTest {
+
+    private static final int LINES = 40;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private SlowGateway gateway;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    @DisplayName("No more than max-in-flight lines are outstanding, lines are charged in chunks, and every line is answered")
+    void testBackpressure() throws Exception {
+        ChargeRequest charge = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            body.append(objectMapper.writeValueAsString(new BatchChargeItem(UUID.randomUUID().toString(), charge)))
+                    .append('\n');
+        }
+
+        MvcResult started = mockMvc.perform(post("/api/payments/charges/stream")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(body.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        started.getAsyncResult(30_000);
+
+        Map<String, BatchChargeResult> results = new HashMap<>();
+        for (String line : started.getResponse().getContentAsString().split("\n")) {
+            BatchChargeResult result = objectMapper.readValue(line, BatchChargeResult.class);
+            assertEquals(BatchChargeResult.Status.PROCESSED, result.getStatus(), line);
+            assertNull(results.put(result.getIdempotencyKey(), result), line);
+        }
+        assertEquals(LINES, results.size());
+        assertEquals(LINES, gateway.calls.get());
+        assertTrue(gateway.maxInFlight.get() <= 4, "max in flight: " + gateway.maxInFlight.get());
+
+        // The body is read ahead in one go, yet lines are still charged in chunks, not one by one
+        DistributionSummary chunks = meterRegistry.get("payment.stream.chunk.size").summary();
+        assertEquals(LINES, (long) chunks.totalAmount());
+        assertTrue(chunks.count() < LINES, "chunks: " + chunks.count());
+    }
+
+    /**
+     * Answers every charge after 20ms, tracking how many are in flight at once.
+     */
+    static final class SlowGateway implements PaymentGateway {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public ChargeResponse charge(ChargeRequest request) {
+            return chargeAsync(request).join();
+        }
+
+        @Override
+        public CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request) {
+            calls.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                inFlight.decrementAndGet();
+                return ChargeResponse.success("txn_" + UUID.randomUUID(), request.getAmount(), request.getCurrency());
+            }, CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+        }
+    }
+}
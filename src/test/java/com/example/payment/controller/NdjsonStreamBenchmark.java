@@ -0,0 +1,249 @@
+package com.example.payment.controller;
+
+import com.example.payment.PaymentApplication;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Streams NDJSON charges of growing length through one request and reports
+ * lines per second, the average chunk charged by one bulk lookup and reserve,
+ * and the server's peak live heap.
+ *
+ * Records expire after a second, so the in-memory store holds only the last
+ * few seconds of charges. What the stream itself holds is bounded by
+ * max-in-flight; the heap should track the charge rate, not the line count.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=NdjsonStreamBenchmark
+ * Options: -Dbenchmark.lines=100000,1000000 -Dbenchmark.maxInFlight=1024
+ */
+@Tag("benchmark")
+class NdjsonStreamBenchmark {
+
+    private static final String REQUEST =
+            "{\"customerId\":\"customer_123\",\"amount\":10.00,\"currency\":\"USD\",\"description\":\"Benchmark\"}";
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final long[] lines = Arrays.stream(System.getProperty("benchmark.lines", "100000,1000000").split(","))
+            .mapToLong(count -> Long.parseLong(count.trim()))
+            .toArray();
+    private final int maxInFlight = Integer.getInteger("benchmark.maxInFlight", 1024);
+
+    private final AtomicLong keys = new AtomicLong();
+
+    @Test
+    @DisplayName("Lines per second, chunk size and peak heap as the stream grows")
+    void stream() throws Exception {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(PaymentApplication.class)
+                .run("--server.port=0",
+                        "--payment.stream.max-in-flight=" + maxInFlight,
+                        "--payment.gateway.simulated.latency.median=PT0.005S",
+                        "--payment.gateway.simulated.latency.p99=PT0.005S",
+                        "--payment.idempotency.ttl=PT1S",
+                        "--logging.level.com.example.payment=WARN");
+        try {
+            int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            DistributionSummary chunks = context.getBean(MeterRegistry.class).get("payment.stream.chunk.size").summary();
+
+            // Warm up before measuring
+            run(port, 20_000);
+
+            System.out.printf("%10s %10s %10s %12s %11s %14s%n", "lines", "results", "seconds", "lines/s",
+                    "avg chunk", "live heap MB");
+            for (long count : lines) {
+                System.gc();
+                HeapSampler heap = new HeapSampler();
+                heap.start();
+                long chunkCount = chunks.count();
+                double chunkTotal = chunks.totalAmount();
+                long start = System.nanoTime();
+                long results = run(port, count);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                heap.interrupt();
+                heap.join();
+                System.out.printf("%10d %10d %10.1f %12.0f %11.1f %14.0f%n", count, results, elapsed,
+                        count / elapsed, (chunks.totalAmount() - chunkTotal) / (chunks.count() - chunkCount),
+                        heap.peak / 1e6);
+                assertEquals(count, results);
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Send the lines, generated as they are uploaded, and count the PROCESSED result lines.
+     *
+     * A raw socket, so that results are read while the body is still being
+     * sent; a client that reads only once the upload is done would stall
+     * the stream as soon as max-in-flight results were waiting.
+     */
+    private long run(int port, long count) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            Thread upload = new Thread(() -> {
+                try (InputStream body = new LineStream(count)) {
+                    out.write(("POST /api/payments/charges/stream HTTP/1.1\r\nHost: localhost\r\n"
+                            + "Content-Type: application/x-ndjson\r\nTransfer-Encoding: chunked\r\n"
+                            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    byte[] buffer = new byte[32 * 1024];
+                    int n;
+                    while ((n = body.read(buffer, 0, buffer.length)) > 0) {
+                        out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                        out.write(buffer, 0, n);
+                        out.write(CRLF);
+                    }
+                    out.write(("0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "stream-upload");
+            upload.start();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            String status = readLine(in);
+            assertEquals("HTTP/1.1 200 ", status.substring(0, Math.min(13, status.length())), status);
+            while (!readLine(in).isEmpty()) {
+                // Headers: the body is always chunked
+            }
+            long processed = 0;
+            StringBuilder line = new StringBuilder();
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                byte[] chunk = new byte[size];
+                in.readFully(chunk);
+                readLine(in);
+                for (byte b : chunk) {
+                    if (b != '\n') {
+                        line.append((char) b);
+                    } else {
+                        if (line.indexOf("\"PROCESSED\"") >= 0) {
+                            processed++;
+                        }
+                        line.setLength(0);
+                    }
+                }
+            }
+            upload.join();
+            return processed;
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Response ended early");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Request body of count lines, each on a new key, produced on demand.
+     */
+    private final class LineStream extends InputStream {
+
+        private final long count;
+        private long produced;
+        private byte[] line = new byte[0];
+        private int position;
+
+        private LineStream(long count) {
+            this.count = count;
+        }
+
+        @Override
+        public int read() {
+            if (!fill()) {
+                return -1;
+            }
+            return line[position++];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < length && fill()) {
+                int n = Math.min(length - read, line.length - position);
+                System.arraycopy(line, position, buffer, offset + read, n);
+                position += n;
+                read += n;
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        private boolean fill() {
+            if (position < line.length) {
+                return true;
+            }
+            if (produced == count) {
+                return false;
+            }
+            produced++;
+            line = ("{\"idempotencyKey\":\"stream-" + keys.incrementAndGet() + "\",\"request\":" + REQUEST + "}\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            position = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Live heap, sampled after a collection once a second until interrupted;
+     * the client shares the heap but holds no lines.
+     */
+    private static final class HeapSampler extends Thread {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile long peak;
+
+        private HeapSampler() {
+            super("heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                memory.gc();
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.payment.controller;
+
+import com.example.payment.repository.IdempotencyStore;
+import com.example.payment.repository.NearCacheIdempotencyStore;
+import com.example.payment.repository.RedisIdempotencyStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the payment API integration tests through a near cache in front of
+ * the Redis store.
+ */
+@TestPropertySource(properties = "payment.idempotency.near-cache.enabled=true")
+class NearCachePaymentControllerTest extends RedisPaymentControllerTest {
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    @DisplayName("The Redis store is wrapped and the near cache metrics are bound")
+    void testNearCacheInstalled() {
+        NearCacheIdempotencyStore nearCache = assertInstanceOf(NearCacheIdempotencyStore.class, idempotencyStore);
+        assertEquals(RedisIdempotencyStore.class, AopUtils.getTargetClass(nearCache.getRemote()));
+        assertNotNull(meterRegistry.find("idempotency.nearcache.hits").functionCounter());
+        assertNotNull(meterRegistry.find("idempotency.redis.batch.size").summary());
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.payment.controller;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the payment API integration tests against the off-heap store.
+ */
+@TestPropertySource(properties = {
+        "payment.idempotency.store=off-heap",
+        "payment.idempotency.off-heap.capacity=4MB",
+        "payment.idempotency.off-heap.max-entries=10000"
+})
+class OffHeapPaymentControllerTest extends PaymentControllerTest {
+}
@@ -0,0 +1,10 @@
+package com.example.payment.controller;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the payment API integration tests against the open-addressing store.
+ */
+@TestPropertySource(properties = "payment.idempotency.store=open-addressing")
+class OpenAddressingPaymentControllerTest extends PaymentControllerTest {
+}
@@ -0,0 +1,54 @@
+package com.example.payment.controller;
+
+import com.example.payment.repository.InMemoryIdempotencyStore;
+import com.example.payment.repository.PartitionedIdempotencyStore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the payment API integration tests with the store partitioned between
+ * the application and a second node started by the test, so about half of
+ * the keys are forwarded.
+ */
+@TestPropertySource(properties = "payment.idempotency.partition.enabled=true")
+class PartitionedPaymentControllerTest extends PaymentControllerTest {
+
+    private static final String SELF = "127.0.0.1:" + freePort();
+    private static final String PEER = "127.0.0.1:" + freePort();
+    private static final List<String> NODES = Arrays.asList(SELF, PEER);
+    private static PartitionedIdempotencyStore peer;
+
+    @DynamicPropertySource
+    static void partitionProperties(DynamicPropertyRegistry registry) {
+        registry.add("payment.idempotency.partition.self", () -> SELF);
+        registry.add("payment.idempotency.partition.nodes", () -> String.join(",", NODES));
+    }
+
+    @BeforeAll
+    static void startPeer() {
+        peer = new PartitionedIdempotencyStore(new InMemoryIdempotencyStore(), PEER, NODES, 128, 4,
+                Duration.ofSeconds(2));
+    }
+
+    @AfterAll
+    static void stopPeer() throws Exception {
+        peer.close();
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("No free port for a partition node", e);
+        }
+    }
+}
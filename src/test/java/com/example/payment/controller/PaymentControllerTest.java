@@ -1,9 +1,12 @@
 package com.example.payment.controller;
 
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
 import com.example.payment.model.ChargeRequest;
 import com.example.payment.model.ChargeResponse;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.junit.jupiter.api.BeforeEach;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.repository.IdempotencyStore;
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,276 +15,268 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 /**
- * Integration tests for idempotent payment API.
+ * Integration tests for idempotent payment API: the shared charge endpoint
+ * cases through MockMvc, plus the servlet-only batch and stream endpoints.
  */
 @SpringBootTest
 @AutoConfigureMockMvc
-class PaymentControllerTest {
+class PaymentControllerTest extends ChargeEndpointContractTest {
     
     @Autowired
     private MockMvc mockMvc;
     
     @Autowired
-    private ObjectMapper objectMapper;
+    private IdempotencyStore idempotencyStore;
     
-    private ChargeRequest testRequest;
+    @Override
+    protected ChargeExchange exchange(String idempotencyKey, ChargeRequest request) throws Exception {
+        MockHttpServletRequestBuilder builder = post("/api/payments/charge")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request));
+        if (idempotencyKey != null) {
+            builder.header("Idempotency-Key", idempotencyKey);
+        }
+        MvcResult result = mockMvc.perform(builder).andReturn();
+        // Rejected before the controller runs (validation) means no async dispatch
+        if (result.getRequest().isAsyncStarted()) {
+            result = mockMvc.perform(asyncDispatch(result)).andReturn();
+        }
+        String contentType = result.getResponse().getContentType();
+        return new ChargeExchange(result.getResponse().getStatus(),
+                contentType != null ? MediaType.parseMediaType(contentType) : null,
+                result.getResponse().getContentAsByteArray());
+    }
     
-    @BeforeEach
-    void setUp() {
-        testRequest = new ChargeRequest(
-                "customer_123",
-                new BigDecimal("99.99"),
-                "USD",
-                "Test payment"
-        );
+    @Test
+    @DisplayName("Whitespace-only Idempotency-Key should return 400 Bad Request")
+    void testWhitespaceIdempotencyKeyReturnsBadRequest() throws Exception {
+        // Only reachable through MockMvc: over the wire, surrounding whitespace is not part of a header value
+        assertKeyRequired(exchange("   ", testRequest));
     }
     
     @Test
-    @DisplayName("First call should process payment and return success")
-    void testFirstCallProcessesPayment() throws Exception {
+    @DisplayName("Replays write the JSON stored with the record, as the first response was written")
+    void testReplayWritesStoredJson() throws Exception {
         String idempotencyKey = UUID.randomUUID().toString();
+        MockHttpServletRequestBuilder request = post("/api/payments/charge")
+                .header("Idempotency-Key", idempotencyKey)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(testRequest));
         
-        MvcResult result = mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", idempotencyKey)
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
+        MvcResult first = charge(request).andExpect(status().isOk()).andReturn();
+        MvcResult replay = charge(request)
                 .andExpect(status().isOk())
-                .andExpect(jsonPath("$.status").value("SUCCESS"))
-                .andExpect(jsonPath("$.transactionId").isNotEmpty())
-                .andExpect(jsonPath("$.amount").value(99.99))
-                .andExpect(jsonPath("$.currency").value("USD"))
-                .andExpect(jsonPath("$.message").value("Payment processed successfully"))
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
                 .andReturn();
         
-        String responseBody = result.getResponse().getContentAsString();
-        ChargeResponse response = objectMapper.readValue(responseBody, ChargeResponse.class);
-        
-        assertNotNull(response.getTransactionId());
-        assertTrue(response.getTransactionId().startsWith("txn_"));
-        assertEquals("SUCCESS", response.getStatus());
+        // Encoded once when the outcome was recorded, and kept by the store whether it
+        // hands out its own record or decodes a copy
+        IdempotencyRecord record = idempotencyStore.findByKey(idempotencyKey).orElseThrow();
+        assertArrayEquals(first.getResponse().getContentAsByteArray(), record.getResponseJson());
+        assertArrayEquals(first.getResponse().getContentAsByteArray(), replay.getResponse().getContentAsByteArray());
     }
     
     @Test
-    @DisplayName("Retry with same key and same request should return cached response")
-    void testRetryWithSameKeyReturnsCache() throws Exception {
-        String idempotencyKey = UUID.randomUUID().toString();
+    @DisplayName("Batch reports processed, replayed, conflict and invalid items in order")
+    void testBatchCharge() throws Exception {
+        String charged = UUID.randomUUID().toString();
+        String fresh = UUID.randomUUID().toString();
+        String conflicted = UUID.randomUUID().toString();
+        ChargeRequest differentRequest = new ChargeRequest("customer_456", new BigDecimal("199.99"), "EUR",
+                "Different payment");
         
-        // First call
-        MvcResult firstResult = mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", idempotencyKey)
+        MvcResult single = charge(post("/api/payments/charge")
+                        .header("Idempotency-Key", charged)
                         .contentType(MediaType.APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(testRequest)))
                 .andExpect(status().isOk())
                 .andReturn();
+        String chargedTransaction = objectMapper.readValue(single.getResponse().getContentAsString(),
+                ChargeResponse.class).getTransactionId();
+        charge(post("/api/payments/charge")
+                        .header("Idempotency-Key", conflicted)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testRequest)))
+                .andExpect(status().isOk());
         
-        ChargeResponse firstResponse = objectMapper.readValue(
-                firstResult.getResponse().getContentAsString(),
-                ChargeResponse.class
-        );
+        List<BatchChargeResult> results = chargeBatch(Arrays.asList(
+                new BatchChargeItem(fresh, testRequest),
+                new BatchChargeItem(charged, testRequest),
+                new BatchChargeItem(conflicted, differentRequest),
+                new BatchChargeItem(fresh, testRequest),
+                new BatchChargeItem(fresh, differentRequest),
+                new BatchChargeItem(UUID.randomUUID().toString(),
+                        new ChargeRequest("", new BigDecimal("0.00"), "USD", null))));
         
-        // Second call with same key and same request
-        MvcResult secondResult = mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", idempotencyKey)
+        assertEquals(6, results.size());
+        assertEquals(BatchChargeResult.Status.PROCESSED, results.get(0).getStatus());
+        assertEquals("SUCCESS", results.get(0).getResponse().getStatus());
+        assertEquals(fresh, results.get(0).getIdempotencyKey());
+        assertEquals(BatchChargeResult.Status.REPLAYED, results.get(1).getStatus());
+        assertEquals(chargedTransaction, results.get(1).getResponse().getTransactionId());
+        assertEquals(BatchChargeResult.Status.CONFLICT, results.get(2).getStatus());
+        assertEquals("Idempotency key already used with different request parameters",
+                results.get(2).getResponse().getMessage());
+        // A key repeated within the batch shares the first item's charge
+        assertEquals(BatchChargeResult.Status.REPLAYED, results.get(3).getStatus());
+        assertEquals(results.get(0).getResponse().getTransactionId(),
+                results.get(3).getResponse().getTransactionId());
+        assertEquals(BatchChargeResult.Status.CONFLICT, results.get(4).getStatus());
+        assertEquals(BatchChargeResult.Status.INVALID, results.get(5).getStatus());
+        
+        // The batch's charges replay on the single endpoint
+        MvcResult replay = charge(post("/api/payments/charge")
+                        .header("Idempotency-Key", fresh)
                         .contentType(MediaType.APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(testRequest)))
                 .andExpect(status().isOk())
                 .andReturn();
-        
-        ChargeResponse secondResponse = objectMapper.readValue(
-                secondResult.getResponse().getContentAsString(),
-                ChargeResponse.class
-        );
-        
-        // Verify responses are identical
-        assertEquals(firstResponse.getTransactionId(), secondResponse.getTransactionId());
-        assertEquals(firstResponse.getStatus(), secondResponse.getStatus());
-        assertEquals(firstResponse.getAmount(), secondResponse.getAmount());
-        assertEquals(firstResponse.getCurrency(), secondResponse.getCurrency());
+        assertEquals(results.get(0).getResponse().getTransactionId(), objectMapper.readValue(
+                replay.getResponse().getContentAsString(), ChargeResponse.class).getTransactionId());
     }
     
     @Test
-    @DisplayName("Same key with different request should return 409 Conflict")
-    void testSameKeyDifferentRequestReturnsConflict() throws Exception {
-        String idempotencyKey = UUID.randomUUID().toString();
+    @DisplayName("Batch charges many new keys, each once")
+    void testLargeBatch() throws Exception {
+        List<BatchChargeItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(new BatchChargeItem(UUID.randomUUID().toString(), testRequest));
+        }
         
-        // First call
-        mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", idempotencyKey)
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
-                .andExpect(status().isOk());
+        List<BatchChargeResult> results = chargeBatch(items);
         
-        // Second call with same key but different request
-        ChargeRequest differentRequest = new ChargeRequest(
-                "customer_456",  // Different customer
-                new BigDecimal("199.99"),  // Different amount
-                "EUR",  // Different currency
-                "Different payment"
-        );
+        assertEquals(200, results.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(items.get(i).getIdempotencyKey(), results.get(i).getIdempotencyKey());
+            assertEquals(BatchChargeResult.Status.PROCESSED, results.get(i).getStatus());
+        }
+        assertEquals(200, results.stream().map(result -> result.getResponse().getTransactionId()).distinct().count());
         
-        mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", idempotencyKey)
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(differentRequest)))
-                .andExpect(status().isConflict())
-                .andExpect(jsonPath("$.status").value("FAILED"))
-                .andExpect(jsonPath("$.message")
-                        .value("Idempotency key already used with different request parameters"));
-    }
-    
-    @Test
-    @DisplayName("Missing Idempotency-Key header should return 400 Bad Request")
-    void testMissingIdempotencyKeyReturnsBadRequest() throws Exception {
-        mockMvc.perform(post("/api/payments/charge")
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
-                .andExpect(status().isBadRequest())
-                .andExpect(jsonPath("$.status").value("FAILED"))
-                .andExpect(jsonPath("$.message").value("Idempotency-Key header is required"));
+        List<BatchChargeResult> replayed = chargeBatch(items);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(BatchChargeResult.Status.REPLAYED, replayed.get(i).getStatus());
+            assertEquals(results.get(i).getResponse().getTransactionId(),
+                    replayed.get(i).getResponse().getTransactionId());
+        }
     }
     
     @Test
-    @DisplayName("Empty Idempotency-Key header should return 400 Bad Request")
-    void testEmptyIdempotencyKeyReturnsBadRequest() throws Exception {
-        mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", "")
+    @DisplayName("Empty batch should return 400 Bad Request")
+    void testEmptyBatchReturnsBadRequest() throws Exception {
+        charge(post("/api/payments/charges/batch")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
+                        .content("[]"))
                 .andExpect(status().isBadRequest())
                 .andExpect(jsonPath("$.status").value("FAILED"))
-                .andExpect(jsonPath("$.message").value("Idempotency-Key header is required"));
+                .andExpect(jsonPath("$.message").value("Batch must contain at least one charge"));
     }
     
     @Test
-    @DisplayName("Whitespace-only Idempotency-Key should return 400 Bad Request")
-    void testWhitespaceIdempotencyKeyReturnsBadRequest() throws Exception {
-        mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", "   ")
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
-                .andExpect(status().isBadRequest())
-                .andExpect(jsonPath("$.status").value("FAILED"));
-    }
-    
-    @Test
-    @DisplayName("Concurrent requests with same key should all get same response")
-    void testConcurrentRequestsWithSameKey() throws Exception {
-        String idempotencyKey = UUID.randomUUID().toString();
-        int threadCount = 10;
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        CountDownLatch latch = new CountDownLatch(threadCount);
-        
-        ChargeResponse[] responses = new ChargeResponse[threadCount];
-        Exception[] exceptions = new Exception[threadCount];
-        
-        // Submit concurrent requests
-        for (int i = 0; i < threadCount; i++) {
-            final int index = i;
-            executor.submit(() -> {
-                try {
-                    MvcResult result = mockMvc.perform(post("/api/payments/charge")
-                                    .header("Idempotency-Key", idempotencyKey)
-                                    .contentType(MediaType.APPLICATION_JSON)
-                                    .content(objectMapper.writeValueAsString(testRequest)))
-                            .andExpect(status().isOk())
-                            .andReturn();
-                    
-                    responses[index] = objectMapper.readValue(
-                            result.getResponse().getContentAsString(),
-                            ChargeResponse.class
-                    );
-                } catch (Exception e) {
-                    exceptions[index] = e;
-                } finally {
-                    latch.countDown();
-                }
-            });
+    @DisplayName("Stream answers every NDJSON line, and replays a repeated stream")
+    void testStreamCharge() throws Exception {
+        List<BatchChargeItem> items = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            items.add(new BatchChargeItem(UUID.randomUUID().toString(), testRequest));
         }
+        String invalidKey = UUID.randomUUID().toString();
+        items.add(new BatchChargeItem(invalidKey, new ChargeRequest("", new BigDecimal("0.00"), "USD", null)));
         
-        // Wait for all requests to complete
-        latch.await();
-        executor.shutdown();
+        Map<String, BatchChargeResult> results = chargeStream(ndjson(items));
         
-        // Verify no exceptions occurred
-        for (int i = 0; i < threadCount; i++) {
-            assertNull(exceptions[i], "Thread " + i + " threw exception: " + 
-                    (exceptions[i] != null ? exceptions[i].getMessage() : ""));
+        assertEquals(151, results.size());
+        assertEquals(BatchChargeResult.Status.INVALID, results.get(invalidKey).getStatus());
+        for (BatchChargeItem item : items.subList(0, 150)) {
+            assertEquals(BatchChargeResult.Status.PROCESSED, results.get(item.getIdempotencyKey()).getStatus());
         }
         
-        // Verify all responses have the same transaction ID
-        String firstTransactionId = responses[0].getTransactionId();
-        assertNotNull(firstTransactionId);
-        
-        for (int i = 0; i < threadCount; i++) {
-            assertNotNull(responses[i], "Response " + i + " is null");
-            assertEquals(firstTransactionId, responses[i].getTransactionId(),
-                    "Response " + i + " has different transaction ID");
-            assertEquals("SUCCESS", responses[i].getStatus());
+        Map<String, BatchChargeResult> replayed = chargeStream(ndjson(items));
+        for (BatchChargeItem item : items.subList(0, 150)) {
+            BatchChargeResult result = replayed.get(item.getIdempotencyKey());
+            assertEquals(BatchChargeResult.Status.REPLAYED, result.getStatus());
+            assertEquals(results.get(item.getIdempotencyKey()).getResponse().getTransactionId(),
+                    result.getResponse().getTransactionId());
         }
     }
     
     @Test
-    @DisplayName("Different idempotency keys should create different transactions")
-    void testDifferentKeysCreateDifferentTransactions() throws Exception {
-        String key1 = UUID.randomUUID().toString();
-        String key2 = UUID.randomUUID().toString();
+    @DisplayName("Stream answers the lines before a malformed one, then reports it")
+    void testMalformedStream() throws Exception {
+        String key = UUID.randomUUID().toString();
+        String body = ndjson(List.of(new BatchChargeItem(key, testRequest))) + "{not json\n"
+                + ndjson(List.of(new BatchChargeItem(UUID.randomUUID().toString(), testRequest)));
         
-        // First request
-        MvcResult result1 = mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", key1)
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
-                .andExpect(status().isOk())
-                .andReturn();
+        Map<String, BatchChargeResult> results = chargeStream(body);
         
-        ChargeResponse response1 = objectMapper.readValue(
-                result1.getResponse().getContentAsString(),
-                ChargeResponse.class
-        );
+        assertEquals(2, results.size());
+        assertEquals(BatchChargeResult.Status.PROCESSED, results.get(key).getStatus());
+        BatchChargeResult malformed = results.get(null);
+        assertEquals(BatchChargeResult.Status.INVALID, malformed.getStatus());
+        assertTrue(malformed.getResponse().getMessage().startsWith("Malformed NDJSON after line 1"),
+                malformed.getResponse().getMessage());
+    }
+    
+    private String ndjson(List<BatchChargeItem> items) throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (BatchChargeItem item : items) {
+            body.append(objectMapper.writeValueAsString(item)).append('\n');
+        }
+        return body.toString();
+    }
+    
+    /**
+     * Stream the lines and collect the result lines by idempotency key.
+     */
+    private Map<String, BatchChargeResult> chargeStream(String body) throws Exception {
+        MvcResult started = mockMvc.perform(post("/api/payments/charges/stream")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(body))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        started.getAsyncResult(30_000);
+        assertEquals(MediaType.APPLICATION_NDJSON_VALUE, started.getResponse().getContentType());
         
-        // Second request with different key
-        MvcResult result2 = mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", key2)
+        Map<String, BatchChargeResult> results = new HashMap<>();
+        for (String line : started.getResponse().getContentAsString().split("\n")) {
+            BatchChargeResult result = objectMapper.readValue(line, BatchChargeResult.class);
+            assertNull(results.put(result.getIdempotencyKey(), result), line);
+        }
+        return results;
+    }
+    
+    private List<BatchChargeResult> chargeBatch(List<BatchChargeItem> items) throws Exception {
+        MvcResult result = charge(post("/api/payments/charges/batch")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(testRequest)))
+                        .content(objectMapper.writeValueAsString(items)))
                 .andExpect(status().isOk())
                 .andReturn();
-        
-        ChargeResponse response2 = objectMapper.readValue(
-                result2.getResponse().getContentAsString(),
-                ChargeResponse.class
-        );
-        
-        // Verify different transaction IDs
-        assertNotEquals(response1.getTransactionId(), response2.getTransactionId());
+        return objectMapper.readValue(result.getResponse().getContentAsString(),
+                new TypeReference<List<BatchChargeResult>>() { });
     }
     
-    @Test
-    @DisplayName("Invalid request should return 400 Bad Request")
-    void testInvalidRequestReturnsBadRequest() throws Exception {
-        ChargeRequest invalidRequest = new ChargeRequest(
-                "",  // Empty customer ID
-                new BigDecimal("0.00"),  // Invalid amount
-                "",  // Empty currency
-                null
-        );
-        
-        mockMvc.perform(post("/api/payments/charge")
-                        .header("Idempotency-Key", UUID.randomUUID().toString())
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(invalidRequest)))
-                .andExpect(status().isBadRequest());
+    /**
+     * Perform a charge and wait for its asynchronous result.
+     */
+    private ResultActions charge(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult started = mockMvc.perform(request)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(started));
     }
 }
@@ -0,0 +1,91 @@
+package com.example.payment.controller;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Integration tests for the reactive endpoint on its Netty port: the shared
+ * charge endpoint cases over HTTP, plus sharing records with the servlet one.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "payment.reactive.enabled=true",
+        "payment.reactive.port=0"
+})
+class ReactivePaymentControllerTest extends ChargeEndpointContractTest {
+
+    @Autowired
+    private ReactivePaymentServer server;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private WebTestClient client;
+
+    @BeforeEach
+    void setUp() {
+        client = WebTestClient.bindToServer()
+                .baseUrl("http://localhost:" + server.getPort())
+                .responseTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    protected ChargeExchange exchange(String idempotencyKey, ChargeRequest request) {
+        WebTestClient.RequestBodySpec spec = client.post().uri("/api/payments/charge")
+                .contentType(MediaType.APPLICATION_JSON);
+        if (idempotencyKey != null) {
+            spec.header("Idempotency-Key", idempotencyKey);
+        }
+        EntityExchangeResult<byte[]> result = spec.bodyValue(request)
+                .exchange()
+                .expectBody()
+                .returnResult();
+        return new ChargeExchange(result.getRawStatusCode(), result.getResponseHeaders().getContentType(),
+                result.getResponseBody());
+    }
+
+    @Test
+    @DisplayName("A charge made on the servlet endpoint replays on the reactive one")
+    void testSharedWithServletEndpoint() throws Exception {
+        String idempotencyKey = UUID.randomUUID().toString();
+
+        MvcResult started = mockMvc.perform(post("/api/payments/charge")
+                        .header("Idempotency-Key", idempotencyKey)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(testRequest)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+        ChargeResponse servlet = objectMapper.readValue(result.getResponse().getContentAsString(),
+                ChargeResponse.class);
+
+        ChargeExchange reactive = exchange(idempotencyKey, testRequest);
+        assertEquals(200, reactive.status);
+        assertEquals(servlet.getTransactionId(), response(reactive).getTransactionId());
+    }
+}
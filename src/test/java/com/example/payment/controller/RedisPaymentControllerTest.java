@@ -0,0 +1,54 @@
+package com.example.payment.controller;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * Runs the payment API integration tests against the Redis store, backed by
+ * an embedded Redis server.
+ */
+@TestPropertySource(properties = {
+        "payment.idempotency.store=redis",
+        "spring.redis.host=127.0.0.1"
+})
+class RedisPaymentControllerTest extends PaymentControllerTest {
+
+    private static final int PORT = freePort();
+    private static RedisServer server;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.port", () -> PORT);
+    }
+
+    @BeforeAll
+    static void startRedis() {
+        server = RedisServer.builder()
+                .port(PORT)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        server.start();
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        server.stop();
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("No free port for embedded Redis", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.payment.controller;
+
+import com.example.payment.repository.InMemoryIdempotencyStore;
+import com.example.payment.repository.PartitionedIdempotencyStore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Collections;
+
+/**
+ * Runs the payment API integration tests with every write replicated to a
+ * standby started by the test, reservations synchronously.
+ */
+@TestPropertySource(properties = "payment.idempotency.replication.sync-reserve=true")
+class ReplicatedPaymentControllerTest extends PaymentControllerTest {
+
+    private static final String STANDBY = "127.0.0.1:" + freePort();
+    private static PartitionedIdempotencyStore standby;
+
+    @DynamicPropertySource
+    static void replicationProperties(DynamicPropertyRegistry registry) {
+        registry.add("payment.idempotency.replication.replica", () -> STANDBY);
+    }
+
+    @BeforeAll
+    static void startStandby() {
+        // A single-node partition is just a store served on the partition port
+        standby = new PartitionedIdempotencyStore(new InMemoryIdempotencyStore(), STANDBY,
+                Collections.singletonList(STANDBY), 1, 1, Duration.ofSeconds(2));
+    }
+
+    @AfterAll
+    static void stopStandby() throws Exception {
+        standby.close();
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("No free port for the standby", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.payment.controller;
+
+import com.example.payment.PaymentApplication;
+import com.example.payment.service.VirtualThreads;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Charges over HTTP at a fixed number of concurrent connections, served on
+ * Tomcat's platform worker pool (payment.threads=platform) versus virtual
+ * threads (payment.threads=virtual).
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=ThreadModeLoadBenchmark
+ * Options: -Dbenchmark.connections=5000 -Dbenchmark.seconds=10
+ * The virtual run needs a Java 21 runtime and is skipped on older ones.
+ */
+@Tag("benchmark")
+class ThreadModeLoadBenchmark {
+
+    private static final String BODY =
+            "{\"customerId\":\"customer_123\",\"amount\":10.00,\"currency\":\"USD\",\"description\":\"Benchmark\"}";
+
+    private final int connections = Integer.getInteger("benchmark.connections", 5000);
+    private final long seconds = Long.getLong("benchmark.seconds", 10);
+
+    private final AtomicLong keys = new AtomicLong();
+
+    @Test
+    @DisplayName("Throughput, latency and platform threads at 5k concurrent connections")
+    void load() throws Exception {
+        System.out.printf("%9s %12s %10s %10s %9s %9s %8s %16s%n", "mode", "connections", "requests",
+                "req/s", "p50 ms", "p99 ms", "errors", "peak platform");
+        run("platform");
+        if (VirtualThreads.isSupported()) {
+            run("virtual");
+        } else {
+            System.out.printf("%9s  skipped: virtual threads need Java 21, running on %s%n",
+                    "virtual", System.getProperty("java.version"));
+        }
+    }
+
+    private void run(String mode) throws Exception {
+        // Arguments, as default properties would lose to application.properties
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(PaymentApplication.class)
+                .run("--server.port=0",
+                        "--payment.threads=" + mode,
+                        "--server.tomcat.max-connections=" + (connections + 1000),
+                        "--server.tomcat.accept-count=" + connections,
+                        "--logging.level.com.example.payment=WARN");
+        ExecutorService clientThreads = Executors.newFixedThreadPool(4);
+        try {
+            int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            URI uri = URI.create("http://localhost:" + port + "/api/payments/charge");
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(30))
+                    .executor(clientThreads)
+                    .build();
+
+            // Open the connections and warm up before measuring
+            load(client, uri, 2, new long[connections * 4], new AtomicInteger(), new AtomicLong());
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            long[] latencies = new long[4_000_000];
+            AtomicInteger completed = new AtomicInteger();
+            AtomicLong errors = new AtomicLong();
+            long start = System.nanoTime();
+            load(client, uri, seconds, latencies, completed, errors);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            int count = Math.min(completed.get(), latencies.length);
+            Arrays.sort(latencies, 0, count);
+            System.out.printf("%9s %12d %10d %10.0f %9.1f %9.1f %8d %16d%n", mode, connections, completed.get(),
+                    completed.get() / elapsed, latencies[count / 2] / 1e6, latencies[count * 99 / 100] / 1e6,
+                    errors.get(), threads.getPeakThreadCount());
+            assertTrue(completed.get() > errors.get());
+        } finally {
+            clientThreads.shutdownNow();
+            context.close();
+        }
+    }
+
+    /**
+     * Keep the given number of charges in flight for the duration, each on a new key.
+     */
+    private void load(HttpClient client, URI uri, long durationSeconds, long[] latencies,
+                      AtomicInteger completed, AtomicLong errors) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(connections);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() - deadline < 0) {
+            inFlight.acquire();
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .header("Idempotency-Key", "load-" + keys.incrementAndGet())
+                    .timeout(Duration.ofSeconds(60))
+                    .POST(HttpRequest.BodyPublishers.ofString(BODY))
+                    .build();
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, failure) -> {
+                        if (failure != null || response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        } else {
+                            int i = completed.getAndIncrement();
+                            if (i < latencies.length) {
+                                latencies[i] = System.nanoTime() - sent;
+                            }
+                        }
+                        inFlight.release();
+                    });
+        }
+        // Let the last requests finish
+        assertTrue(inFlight.tryAcquire(connections, 120, TimeUnit.SECONDS));
+    }
+}
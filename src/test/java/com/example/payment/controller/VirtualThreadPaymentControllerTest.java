@@ -0,0 +1,13 @@
+package com.example.payment.controller;
+
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the payment API integration tests with charges on virtual threads.
+ * Skipped on runtimes older than Java 21.
+ */
+@EnabledIf("com.example.payment.service.VirtualThreads#isSupported")
+@TestPropertySource(properties = "payment.threads=virtual")
+class VirtualThreadPaymentControllerTest extends PaymentControllerTest {
+}
@@ -0,0 +1,138 @@
+package com.example.payment.gateway;
+
+import com.example.payment.exception.PaymentGatewayException;
+import com.example.payment.gateway.SimulatedPaymentGateway.Outcome;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the simulated gateway.
+ */
+class SimulatedPaymentGatewayTest {
+
+    private ChargeRequest request;
+    private SimulatedPaymentGateway gateway;
+
+    @BeforeEach
+    void setUp() {
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Approved charges take the configured latency, sync and async")
+    void testApproved() throws Exception {
+        gateway = gateway("fixed", 50, 50, 0, 0, 0, 1000);
+
+        long start = System.nanoTime();
+        ChargeResponse response = gateway.charge(request);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals("SUCCESS", response.getStatus());
+        assertTrue(response.getTransactionId().startsWith("txn_"));
+        assertEquals(request.getAmount(), response.getAmount());
+
+        start = System.nanoTime();
+        CompletableFuture<ChargeResponse> pending = gateway.chargeAsync(request);
+        assertFalse(pending.isDone());
+        assertEquals("SUCCESS", pending.get(5, TimeUnit.SECONDS).getStatus());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(2, gateway.count(Outcome.APPROVED));
+    }
+
+    @Test
+    @DisplayName("Declines are answers, errors and timeouts are exceptions")
+    void testFailures() throws Exception {
+        gateway = gateway("fixed", 1, 1, 0, 0, 1, 1000);
+        assertEquals("FAILED", gateway.charge(request).getStatus());
+        gateway.close();
+
+        gateway = gateway("fixed", 1, 1, 0, 1, 0, 1000);
+        assertThrows(PaymentGatewayException.class, () -> gateway.charge(request));
+        ExecutionException failed = assertThrows(ExecutionException.class,
+                () -> gateway.chargeAsync(request).get(5, TimeUnit.SECONDS));
+        assertTrue(failed.getCause() instanceof PaymentGatewayException);
+        gateway.close();
+
+        gateway = gateway("fixed", 1, 1, 1, 0, 0, 100);
+        long start = System.nanoTime();
+        failed = assertThrows(ExecutionException.class,
+                () -> gateway.chargeAsync(request).get(5, TimeUnit.SECONDS));
+        assertTrue(failed.getCause() instanceof PaymentGatewayException);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    @DisplayName("Latency draws match the configured median and p99, capped by the timeout")
+    void testLatencyDistributions() {
+        for (String distribution : new String[] {"uniform", "lognormal"}) {
+            gateway = gateway(distribution, 100, 400, 0, 0, 0, 10_000);
+            long[] draws = new long[20_000];
+            for (int i = 0; i < draws.length; i++) {
+                draws[i] = gateway.sampleLatencyNanos();
+            }
+            Arrays.sort(draws);
+            double median = draws[draws.length / 2] / 1e6;
+            double p99 = draws[draws.length * 99 / 100] / 1e6;
+            assertEquals(100, median, 10, distribution + " median");
+            assertEquals(400, p99, 40, distribution + " p99");
+            gateway.close();
+        }
+
+        // Draws past the timeout become timeouts
+        gateway = gateway("fixed", 200, 200, 0, 0, 0, 50);
+        assertThrows(PaymentGatewayException.class, () -> gateway.charge(request));
+        assertEquals(1, gateway.count(Outcome.TIMEOUT));
+    }
+
+    @Test
+    @DisplayName("Outcome rates are honoured and counted")
+    void testRates() {
+        // Timeouts wait out the timeout, so keep it short
+        gateway = gateway("fixed", 0, 0, 0.1, 0.2, 0.3, 1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        gateway.bindTo(registry);
+
+        int calls = 5_000;
+        for (int i = 0; i < calls; i++) {
+            try {
+                gateway.charge(request);
+            } catch (PaymentGatewayException e) {
+                // counted by outcome
+            }
+        }
+        assertEquals(0.1, gateway.count(Outcome.TIMEOUT) / (double) calls, 0.02);
+        assertEquals(0.2, gateway.count(Outcome.ERROR) / (double) calls, 0.02);
+        assertEquals(0.3, gateway.count(Outcome.DECLINED) / (double) calls, 0.02);
+        assertEquals(calls, registry.get("payment.gateway.calls").functionCounters().stream()
+                .mapToDouble(counter -> counter.count()).sum());
+        assertThrows(IllegalArgumentException.class, () -> gateway("fixed", 1, 1, 0.5, 0.5, 0.5, 1000));
+    }
+
+    private static SimulatedPaymentGateway gateway(String distribution, long medianMillis, long p99Millis,
+                                                   double timeoutRate, double errorRate, double declineRate,
+                                                   long timeoutMillis) {
+        return new SimulatedPaymentGateway(distribution, Duration.ofMillis(medianMillis),
+                Duration.ofMillis(p99Millis), timeoutRate, errorRate, declineRate,
+                Duration.ofMillis(timeoutMillis), 2);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.payment.model;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for request fingerprinting.
+ */
+class RequestFingerprintTest {
+    
+    @Test
+    @DisplayName("Amount scale and currency case do not change the fingerprint")
+    void testNormalization() {
+        RequestFingerprint a = RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("99.9"), "usd", "Test"));
+        RequestFingerprint b = RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("99.900"), "USD", "Test"));
+        
+        assertEquals(a, b);
+    }
+    
+    @Test
+    @DisplayName("Any field difference changes the fingerprint")
+    void testDifferentRequests() {
+        ChargeRequest base = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+        RequestFingerprint fingerprint = RequestFingerprint.of(base);
+        
+        assertNotEquals(fingerprint, RequestFingerprint.of(
+                new ChargeRequest("customer_124", new BigDecimal("10.00"), "USD", "Test")));
+        assertNotEquals(fingerprint, RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("10.01"), "USD", "Test")));
+        assertNotEquals(fingerprint, RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("10.00"), "EUR", "Test")));
+        assertNotEquals(fingerprint, RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", null)));
+        // Field boundaries are length-prefixed
+        assertNotEquals(
+                RequestFingerprint.of(new ChargeRequest("ab", BigDecimal.ONE, "USD", "c")),
+                RequestFingerprint.of(new ChargeRequest("a", BigDecimal.ONE, "USD", "bc")));
+    }
+    
+    @Test
+    @DisplayName("Hex form round-trips")
+    void testHexRoundTrip() {
+        RequestFingerprint fingerprint = RequestFingerprint.of(
+                new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test"));
+        
+        assertEquals(32, fingerprint.toHex().length());
+        assertEquals(fingerprint, RequestFingerprint.fromHex(fingerprint.toHex()));
+    }
+}
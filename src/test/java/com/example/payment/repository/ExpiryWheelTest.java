@@ -0,0 +1,86 @@
+package com.example.payment.repository;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the hierarchical expiry wheel.
+ */
+class ExpiryWheelTest {
+    
+    private static final long TICK = 1000;
+    private static final long START = 1_000_000L * TICK;
+    
+    @Test
+    @DisplayName("Entries fire on the first tick at or after their expiry, never before")
+    void testFiresAtExpiry() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        wheel.schedule("a", START + 5 * TICK);
+        wheel.schedule("b", START + 5 * TICK + 1);
+        
+        List<String> fired = new ArrayList<>();
+        wheel.advance(START + 4 * TICK, e -> fired.add(e.key));
+        assertTrue(fired.isEmpty());
+        
+        wheel.advance(START + 5 * TICK, e -> fired.add(e.key));
+        assertEquals(List.of("a"), fired);
+        
+        wheel.advance(START + 6 * TICK, e -> fired.add(e.key));
+        assertEquals(List.of("a", "b"), fired);
+    }
+    
+    @Test
+    @DisplayName("Entries in coarser levels cascade down and fire on time")
+    void testCascadesAcrossLevels() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        long[] delays = {63, 64, 65, 4095, 4096, 4097, 300_000};
+        for (long delay : delays) {
+            wheel.schedule("k" + delay, START + delay * TICK);
+        }
+        
+        for (long delay : delays) {
+            List<String> fired = new ArrayList<>();
+            wheel.advance(START + (delay - 1) * TICK, e -> fired.add(e.key));
+            assertFalse(fired.contains("k" + delay), "fired early: " + delay);
+            wheel.advance(START + delay * TICK, e -> fired.add(e.key));
+            assertEquals(List.of("k" + delay), fired);
+        }
+    }
+    
+    @Test
+    @DisplayName("Already expired entries fire on the next tick")
+    void testPastExpiry() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        wheel.schedule("old", START - 10 * TICK);
+        
+        List<String> fired = new ArrayList<>();
+        assertEquals(1, wheel.advance(START + TICK, e -> fired.add(e.key)));
+        assertEquals(List.of("old"), fired);
+    }
+    
+    @Test
+    @DisplayName("Cancelled entries leave the wheel and never fire")
+    void testCancel() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        ExpiryWheel.Entry near = wheel.schedule("near", START + 5 * TICK);
+        ExpiryWheel.Entry far = wheel.schedule("far", START + 500 * TICK);
+        wheel.schedule("kept", START + 5 * TICK);
+        assertEquals(3, wheel.size());
+        
+        wheel.cancel(near);
+        wheel.cancel(far);
+        wheel.cancel(far);
+        assertEquals(1, wheel.size());
+        assertFalse(near.isPending());
+        
+        List<String> fired = new ArrayList<>();
+        wheel.advance(START + 1000 * TICK, e -> fired.add(e.key));
+        assertEquals(List.of("kept"), fired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the reserve/complete state machine of InMemoryIdempotencyStore.
+ */
+class InMemoryIdempotencyStoreTest {
+    
+    private InMemoryIdempotencyStore store;
+    private ChargeRequest request;
+    
+    @BeforeEach
+    void setUp() {
+        store = new InMemoryIdempotencyStore();
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+    
+    @Test
+    @DisplayName("Reserve on a new key succeeds and leaves an IN_PROGRESS record")
+    void testReserveNewKey() {
+        Optional<IdempotencyRecord> existing = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        
+        assertFalse(existing.isPresent());
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+    }
+    
+    @Test
+    @DisplayName("Second reserve on the same key returns the existing record")
+    void testReserveTakenKey() {
+        IdempotencyRecord first = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        store.reserve(first);
+        
+        Optional<IdempotencyRecord> existing = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        
+        assertTrue(existing.isPresent());
+        assertSame(first, existing.get());
+    }
+    
+    @Test
+    @DisplayName("Expired record does not block a new reservation")
+    void testReserveOverExpired() {
+        store.reserve(IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1)));
+        
+        Optional<IdempotencyRecord> existing = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        
+        assertFalse(existing.isPresent());
+    }
+    
+    @Test
+    @DisplayName("Complete turns the reservation into a COMPLETED record")
+    void testComplete() {
+        store.reserve(IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertSame(response, record.getResponse());
+        assertFalse(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+    }
+    
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Concurrent reserves on one key have exactly one winner")
+    void testConcurrentReserveSingleWinner() throws Exception {
+        int threadCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger winners = new AtomicInteger();
+        
+        for (int i = 0; i < threadCount; i++) {
+            executor.submit(() -> {
+                start.await();
+                if (!store.reserve(IdempotencyRecord.inProgress(
+                        "hot-key", request, Instant.now().plusSeconds(60))).isPresent()) {
+                    winners.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, winners.get());
+    }
+    
+    @Test
+    @DisplayName("Expiry tick evicts expired records and keeps live ones")
+    void testEvictExpired() throws Exception {
+        store = new InMemoryIdempotencyStore(Duration.ofMillis(10), 0, 0);
+        store.save(new IdempotencyRecord("short", request,
+                ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency()),
+                Instant.now().plusMillis(20)));
+        store.save(new IdempotencyRecord("long", request,
+                ChargeResponse.success("txn_2", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+        
+        Thread.sleep(50);
+        store.evictExpired();
+        
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        assertEquals(1.0, registry.get("idempotency.store.expired").functionCounter().count());
+        assertEquals(1.0, registry.get("idempotency.store.size").gauge().value());
+        assertTrue(store.findByKey("long").isPresent());
+    }
+    
+    @Test
+    @DisplayName("Budgeted cleanup resumes from its cursor until the pass completes")
+    void testIncrementalCleanup() {
+        for (int i = 0; i < 10; i++) {
+            store.save(new IdempotencyRecord("expired-" + i, request,
+                    ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency()),
+                    Instant.now().minusSeconds(1)));
+        }
+        
+        CleanupStats first = store.cleanupExpired(4, Duration.ofSeconds(1));
+        assertEquals(4, first.getScanned());
+        assertEquals(4, first.getRemoved());
+        assertFalse(first.isPassCompleted());
+        
+        CleanupStats second = store.cleanupExpired(100, Duration.ofSeconds(1));
+        assertEquals(6, second.getRemoved());
+        assertTrue(second.isPassCompleted());
+    }
+    
+    @Test
+    @DisplayName("Bounded store evicts completed records but never IN_PROGRESS ones")
+    void testCapacityNeverEvictsInProgress() {
+        store = new InMemoryIdempotencyStore(Duration.ofSeconds(1), 10, 0);
+        for (int i = 0; i < 5; i++) {
+            store.reserve(IdempotencyRecord.inProgress("pending-" + i, request, Instant.now().plusSeconds(60)));
+        }
+        for (int i = 0; i < 200; i++) {
+            store.save(new IdempotencyRecord("done-" + i, request,
+                    ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency()),
+                    Instant.now().plusSeconds(60)));
+        }
+        
+        for (int i = 0; i < 5; i++) {
+            assertTrue(store.findByKey("pending-" + i).isPresent(), "pending-" + i + " was evicted");
+        }
+        
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        assertTrue(registry.get("idempotency.store.size").gauge().value() <= 15);
+        assertTrue(registry.get("idempotency.store.evicted").functionCounter().count() >= 190);
+        assertTrue(registry.get("idempotency.store.weight").gauge().value() > 0);
+    }
+    
+    @Test
+    @DisplayName("Expiry wheel entries leave with their records, whatever removes them")
+    void testExpiryEntriesFollowRecords() {
+        store = new InMemoryIdempotencyStore(Duration.ofSeconds(1), 100, 0);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        for (int i = 0; i < 10_000; i++) {
+            store.save(new IdempotencyRecord("done-" + i, request,
+                    ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency()),
+                    Instant.now().plusSeconds(60)));
+        }
+        assertEquals(registry.get("idempotency.store.size").gauge().value(),
+                registry.get("idempotency.store.expiry.entries").gauge().value());
+        
+        // Completing a reservation with the same expiry keeps its one entry
+        store.delete("done-9999");
+        IdempotencyRecord reservation = IdempotencyRecord.inProgress("pending", request, Instant.now().plusSeconds(60));
+        store.reserve(reservation);
+        store.complete("pending", ChargeResponse.success("txn_p", request.getAmount(), request.getCurrency()),
+                reservation.getExpiresAt());
+        assertEquals(registry.get("idempotency.store.size").gauge().value(),
+                registry.get("idempotency.store.expiry.entries").gauge().value());
+        
+        store.delete("pending");
+        assertEquals(registry.get("idempotency.store.size").gauge().value(),
+                registry.get("idempotency.store.expiry.entries").gauge().value());
+    }
+}
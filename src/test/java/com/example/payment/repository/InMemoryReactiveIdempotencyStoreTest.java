@@ -0,0 +1,12 @@
+package com.example.payment.repository;
+
+/**
+ * Runs the reactive store tests against an in-memory store.
+ */
+class InMemoryReactiveIdempotencyStoreTest extends ReactiveIdempotencyStoreContractTest {
+
+    @Override
+    protected ReactiveIdempotencyStore createStore() {
+        return new InMemoryReactiveIdempotencyStore(new InMemoryIdempotencyStore());
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the JDBC store against H2 in PostgreSQL mode.
+ */
+class JdbcIdempotencyStoreTest {
+
+    private JdbcDataSource dataSource;
+    private SimpleMeterRegistry registry;
+    private JdbcIdempotencyStore store;
+    private ChargeRequest request;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        registry = new SimpleMeterRegistry();
+        store = open(1000, Duration.ofMillis(1), 16);
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+        new JdbcTemplate(dataSource).execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    @DisplayName("Reserve, complete and find round-trip through the database")
+    void testReserveCompleteFind() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+
+        IdempotencyRecord held = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).get();
+        assertTrue(held.isInProgress());
+        assertTrue(held.requestMatches(request));
+
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertEquals("txn_1", record.getResponse().getTransactionId());
+        assertEquals(response.getProcessedAt(), record.getResponse().getProcessedAt());
+        assertEquals(held.getCreatedAt(), record.getCreatedAt());
+
+        ChargeRequest other = new ChargeRequest("customer_123", new BigDecimal("20.00"), "USD", "Test");
+        assertFalse(store.reserve(IdempotencyRecord.inProgress("key-1", other, Instant.now().plusSeconds(60)))
+                .get().requestMatches(other));
+    }
+
+    @Test
+    @DisplayName("An expired record is taken over by the next reservation")
+    void testExpiredTakeover() {
+        store.save(completed("key-1", Instant.now().minusSeconds(1)));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+    }
+
+    @Test
+    @DisplayName("Save upserts and delete releases records")
+    void testSaveDelete() {
+        store.save(IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        assertEquals("txn_key-1", store.findByKey("key-1").get().getResponse().getTransactionId());
+
+        store.delete("key-1");
+        assertFalse(store.findByKey("key-1").isPresent());
+        assertFalse(store.complete("key-1",
+                ChargeResponse.success("txn_2", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+    }
+
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Concurrent completions are written in shared batches")
+    void testBatchedCompletions() throws Exception {
+        store.close();
+        store = open(1000, Duration.ofMillis(20), 64);
+
+        int threads = 32;
+        for (int i = 0; i < threads; i++) {
+            store.reserve(IdempotencyRecord.inProgress("key-" + i, request, Instant.now().plusSeconds(60)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> completions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            String key = "key-" + i;
+            completions.add(executor.submit(() -> {
+                start.await();
+                return store.complete(key, ChargeResponse.success("txn_" + key, request.getAmount(),
+                        request.getCurrency()), Instant.now().plusSeconds(60));
+            }));
+        }
+        start.countDown();
+        for (Future<Boolean> completion : completions) {
+            assertTrue(completion.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < threads; i++) {
+            assertEquals("txn_key-" + i, store.findByKey("key-" + i).get().getResponse().getTransactionId());
+        }
+        DistributionSummary batches = registry.get("idempotency.jdbc.complete.batch.size").summary();
+        assertEquals(threads, (long) batches.totalAmount());
+        assertTrue(batches.count() < threads, "expected completions to share batches");
+    }
+
+    @Test
+    @DisplayName("Expired records are deleted in bounded batches")
+    void testBatchedExpiryDeletes() {
+        store.close();
+        store = open(100, Duration.ZERO, 1);
+
+        for (int i = 0; i < 250; i++) {
+            store.save(completed("expired-" + i, Instant.now().minusSeconds(1)));
+        }
+        for (int i = 0; i < 10; i++) {
+            store.save(completed("live-" + i, Instant.now().plusSeconds(60)));
+        }
+
+        CleanupStats first = store.cleanupExpired(150, Duration.ofSeconds(5));
+        assertEquals(150, first.getRemoved());
+        assertFalse(first.isPassCompleted());
+
+        CleanupStats second = store.cleanupExpired(1000, Duration.ofSeconds(5));
+        assertEquals(100, second.getRemoved());
+        assertTrue(second.isPassCompleted());
+
+        Integer rows = new JdbcTemplate(dataSource).queryForObject(
+                "SELECT COUNT(*) FROM idempotency_record", Integer.class);
+        assertEquals(10, rows);
+    }
+
+    @Test
+    @DisplayName("Only one of many concurrent reservations wins")
+    void testConcurrentReserve() throws Exception {
+        store.save(completed("contended", Instant.now().minusSeconds(1)));
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Optional<IdempotencyRecord>>> reservations = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            reservations.add(executor.submit(() -> {
+                start.await();
+                return store.reserve(IdempotencyRecord.inProgress(
+                        "contended", request, Instant.now().plusSeconds(60)));
+            }));
+        }
+        start.countDown();
+
+        int winners = 0;
+        for (Future<Optional<IdempotencyRecord>> reservation : reservations) {
+            if (!reservation.get(10, TimeUnit.SECONDS).isPresent()) {
+                winners++;
+            }
+        }
+        executor.shutdown();
+        assertEquals(1, winners);
+    }
+
+    @Test
+    @DisplayName("Bulk reserve inserts in one batch and reads back only the keys it lost")
+    void testReserveAllAndFindAllByKey() {
+        ChargeRequest other = new ChargeRequest("customer_456", new BigDecimal("20.00"), "EUR", "Other");
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("held", request, Instant.now().plusSeconds(60))).isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("other", other, Instant.now().plusSeconds(60))).isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("expired", other, Instant.now().minusSeconds(1))).isPresent());
+
+        List<Optional<IdempotencyRecord>> results = store.reserveAll(Arrays.asList(
+                IdempotencyRecord.inProgress("new-1", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("held", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("other", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("expired", request, Instant.now().plusSeconds(60))));
+
+        assertEquals(4, results.size());
+        assertFalse(results.get(0).isPresent());
+        assertTrue(results.get(1).get().requestMatches(request));
+        assertFalse(results.get(2).get().requestMatches(request));
+        // An expired row does not hold its key
+        assertFalse(results.get(3).isPresent());
+
+        assertTrue(store.complete("new-1", ChargeResponse.success("txn_1", request.getAmount(),
+                request.getCurrency()), Instant.now().plusSeconds(60)));
+        Map<String, IdempotencyRecord> found = store.findAllByKey(Arrays.asList("new-1", "expired", "missing"));
+        assertEquals(2, found.size());
+        assertEquals("txn_1", found.get("new-1").getResponse().getTransactionId());
+        assertTrue(found.get("expired").requestMatches(request));
+    }
+
+    @Test
+    @DisplayName("Bulk lookups split long key lists across statements")
+    void testFindAllByKeyManyKeys() {
+        List<String> keys = new ArrayList<>();
+        List<IdempotencyRecord> records = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            keys.add("key-" + i);
+            records.add(IdempotencyRecord.inProgress("key-" + i, request, Instant.now().plusSeconds(60)));
+        }
+        assertTrue(store.reserveAll(records).stream().noneMatch(Optional::isPresent));
+        assertEquals(2500, store.findAllByKey(keys).size());
+    }
+
+    private JdbcIdempotencyStore open(int deleteBatchSize, Duration completeWindow, int completeBatchSize) {
+        return new JdbcIdempotencyStore(dataSource, registry, true, deleteBatchSize,
+                completeWindow, completeBatchSize, Duration.ofSeconds(5));
+    }
+
+    private IdempotencyRecord completed(String key, Instant expiresAt) {
+        return new IdempotencyRecord(key, request,
+                ChargeResponse.success("txn_" + key, request.getAmount(), request.getCurrency()), expiresAt);
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the append-only log store.
+ */
+class LogIdempotencyStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private LogIdempotencyStore store;
+    private ChargeRequest request;
+
+    @BeforeEach
+    void setUp() {
+        store = open(DataSize.ofKilobytes(64));
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    @DisplayName("Records and deletes survive a restart")
+    void testReopen() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        response.setJson("{\"transactionId\":\"txn_1\"}".getBytes(StandardCharsets.UTF_8));
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-2", request, Instant.now().plusSeconds(60))).isPresent());
+        store.save(completed("key-3", Instant.now().plusSeconds(60)));
+        store.delete("key-3");
+        store.save(completed("expired", Instant.now().minusSeconds(1)));
+
+        store.close();
+        store = open(DataSize.ofKilobytes(64));
+
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertEquals("txn_1", record.getResponse().getTransactionId());
+        assertEquals(response.getProcessedAt(), record.getResponse().getProcessedAt());
+        assertArrayEquals(response.getJson(), record.getResponseJson());
+        assertTrue(record.requestMatches(request));
+        assertTrue(store.findByKey("key-2").get().isInProgress());
+        assertFalse(store.findByKey("key-3").isPresent());
+        assertFalse(store.findByKey("expired").isPresent());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        store.close();
+        store = open(DataSize.ofKilobytes(64));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Fully expired segments are deleted wholesale")
+    void testDropExpiredSegments() throws Exception {
+        // Existing segments keep their size, so start a fresh log with small segments
+        store.close();
+        directory = Files.createDirectory(directory.resolve("small"));
+        store = open(DataSize.ofKilobytes(4));
+
+        for (int i = 0; i < 100; i++) {
+            store.save(completed("expired-" + i, Instant.now().minusSeconds(1)));
+        }
+        for (int i = 0; i < 100; i++) {
+            store.save(completed("live-" + i, Instant.now().plusSeconds(60)));
+        }
+        int segmentsBefore = store.segmentCount();
+        assertTrue(segmentsBefore > 2, "expected the log to roll over several segments");
+
+        store.cleanupExpired(Integer.MAX_VALUE, Duration.ofSeconds(1));
+
+        assertTrue(store.segmentCount() < segmentsBefore);
+        assertEquals(store.segmentCount(), segmentFiles().size());
+        assertEquals(100, store.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.findByKey("live-" + i).isPresent());
+        }
+    }
+
+    @Test
+    @DisplayName("A torn entry at the end of the log is discarded on restart")
+    void testTornTail() throws Exception {
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        store.close();
+
+        // Simulate a crash mid-append: a length header whose payload never made it
+        Path segment = segmentFiles().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(firstFreeOffset(segment));
+            file.writeInt(500);
+            file.writeInt(12345);
+        }
+
+        store = open(DataSize.ofKilobytes(64));
+        assertTrue(store.findByKey("key-1").isPresent());
+
+        store.save(completed("key-2", Instant.now().plusSeconds(60)));
+        store.close();
+        store = open(DataSize.ofKilobytes(64));
+        assertTrue(store.findByKey("key-2").isPresent());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    @DisplayName("Recovery loads the checkpoint and replays only the log tail")
+    void testCheckpointRecovery() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            store.save(completed("before-" + i, Instant.now().plusSeconds(60)));
+        }
+        store.save(completed("expiring", Instant.now().plusMillis(50)));
+        store.checkpoint();
+
+        store.save(completed("after", Instant.now().plusSeconds(60)));
+        store.delete("before-0");
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("pending", request, Instant.now().plusSeconds(60))).isPresent());
+
+        // Reopen without closing, as after a crash: no shutdown checkpoint
+        Thread.sleep(100);
+        store = open(DataSize.ofKilobytes(64));
+
+        assertTrue(store.isRecoveredFromCheckpoint());
+        assertFalse(store.findByKey("before-0").isPresent());
+        assertTrue(store.findByKey("before-1").get().isCompleted());
+        assertTrue(store.findByKey("after").isPresent());
+        assertFalse(store.findByKey("expiring").isPresent());
+        assertEquals(21, store.size());
+
+        // The reservation survives as IN_PROGRESS and can still be resolved
+        assertEquals(1, store.getRecoveredInProgress());
+        assertTrue(store.findByKey("pending").get().isInProgress());
+        assertTrue(store.complete("pending",
+                ChargeResponse.success("txn_pending", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+    }
+
+    @Test
+    @DisplayName("A reservation recovered after a crash holds its key only for the lease")
+    void testRecoveredLease() throws Exception {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("pending", request, Instant.now().plusSeconds(60))).isPresent());
+
+        // Reopen without closing, as after a crash
+        store = open(DataSize.ofKilobytes(64), Duration.ofMillis(100));
+        assertEquals(1, store.getRecoveredInProgress());
+        Optional<IdempotencyRecord> duplicate = store.reserve(
+                IdempotencyRecord.inProgress("pending", request, Instant.now().plusSeconds(60)));
+        assertTrue(duplicate.isPresent());
+        assertTrue(duplicate.get().isInProgress());
+
+        Thread.sleep(150);
+        assertFalse(store.findByKey("pending").isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("pending", request, Instant.now().plusSeconds(60))).isPresent());
+        assertTrue(store.complete("pending",
+                ChargeResponse.success("txn_retry", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+        assertTrue(store.findByKey("pending").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("A damaged checkpoint falls back to a full replay")
+    void testCorruptCheckpoint() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            store.save(completed("key-" + i, Instant.now().plusSeconds(60)));
+        }
+        store.close();
+
+        Path checkpoint = directory.resolve(IndexCheckpoint.FILE_NAME);
+        byte[] bytes = Files.readAllBytes(checkpoint);
+        bytes[bytes.length / 2] ^= 0x5a;
+        Files.write(checkpoint, bytes);
+
+        store = open(DataSize.ofKilobytes(64));
+        assertFalse(store.isRecoveredFromCheckpoint());
+        assertEquals(20, store.size());
+    }
+
+    @Test
+    @DisplayName("Concurrent reservations are all durable under the always policy")
+    void testGroupCommit() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    store.reserve(IdempotencyRecord.inProgress(
+                            "key-" + thread + "-" + i, request, Instant.now().plusSeconds(60)));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(400, store.size());
+        store.close();
+        store = open(DataSize.ofKilobytes(64));
+        assertEquals(400, store.size());
+    }
+
+    @Test
+    @DisplayName("Writers that fill a segment roll the log and retry without losing an entry")
+    void testConcurrentRoll() throws Exception {
+        store.close();
+        directory = Files.createDirectory(directory.resolve("small"));
+        store = open(DataSize.ofKilobytes(4));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    String key = "key-" + thread + "-" + i;
+                    assertFalse(store.reserve(
+                            IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60))).isPresent());
+                    assertTrue(store.complete(key,
+                            ChargeResponse.success("txn_" + key, request.getAmount(), request.getCurrency()),
+                            Instant.now().plusSeconds(60)));
+                    if (i % 5 == 0) {
+                        store.delete(key);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTrue(store.segmentCount() > 2, "expected the log to roll over several segments");
+
+        store.close();
+        store = open(DataSize.ofKilobytes(4));
+        assertEquals(320, store.size());
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 50; i++) {
+                String key = "key-" + t + "-" + i;
+                assertEquals(i % 5 != 0, store.findByKey(key).isPresent(), key);
+            }
+        }
+        assertEquals("txn_key-7-49", store.findByKey("key-7-49").get().getResponse().getTransactionId());
+    }
+
+    @Test
+    @DisplayName("Writers queued behind a force share the next one")
+    void testGroupCommitShared() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        int writers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // Stand in for a force in progress while every writer appends and queues
+        store.syncLock.lock();
+        try {
+            for (int t = 0; t < writers; t++) {
+                String key = "key-" + t;
+                futures.add(executor.submit(() -> store.save(completed(key, Instant.now().plusSeconds(60)))));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (store.syncLock.getQueueLength() < writers) {
+                assertTrue(System.nanoTime() - deadline < 0, "queued: " + store.syncLock.getQueueLength());
+                Thread.sleep(1);
+            }
+        } finally {
+            store.syncLock.unlock();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // The first writer forces everything appended; the others find their entries covered
+        assertEquals(1, registry.get("idempotency.log.sync").functionTimer().count());
+        assertEquals(writers, registry.get("idempotency.log.sync.entries").functionCounter().count());
+    }
+
+    private LogIdempotencyStore open(DataSize segmentSize) {
+        return open(segmentSize, Duration.ofSeconds(60));
+    }
+
+    private LogIdempotencyStore open(DataSize segmentSize, Duration recoveredLease) {
+        return new LogIdempotencyStore(directory.toString(), segmentSize, "always", Duration.ofMillis(50),
+                recoveredLease);
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(LogSegment::isSegmentFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private int firstFreeOffset(Path segment) throws Exception {
+        LogSegment log = LogSegment.open(segment);
+        log.replay(LogSegment.HEADER_BYTES, (offset, type, payload) -> { });
+        return log.getWritePosition();
+    }
+
+    private IdempotencyRecord completed(String key, Instant expiresAt) {
+        return new IdempotencyRecord(key, request,
+                ChargeResponse.success("txn_" + key, request.getAmount(), request.getCurrency()), expiresAt);
+    }
+}
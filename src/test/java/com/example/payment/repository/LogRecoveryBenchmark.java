@@ -0,0 +1,88 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Startup time of the log store versus record count, with and without an
+ * index checkpoint.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=LogRecoveryBenchmark
+ * Record counts: -Dbenchmark.records=10000,100000,1000000
+ */
+@Tag("benchmark")
+class LogRecoveryBenchmark {
+
+    @TempDir
+    Path root;
+
+    @Test
+    @DisplayName("Startup time versus record count")
+    void startupTime() throws Exception {
+        String counts = System.getProperty("benchmark.records", "10000,100000,1000000");
+        ChargeRequest request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Benchmark");
+        ChargeResponse response = ChargeResponse.success("txn_benchmark", request.getAmount(), request.getCurrency());
+
+        System.out.printf("%12s %12s %14s %14s %12s%n",
+                "records", "tail", "full replay", "checkpoint", "in-progress");
+        for (String value : counts.split(",")) {
+            int records = Integer.parseInt(value.trim());
+            Path directory = Files.createDirectory(root.resolve("records-" + records));
+
+            // Mostly completed records plus a small IN_PROGRESS share, as after a crash under load
+            LogIdempotencyStore store = open(directory);
+            Instant expiresAt = Instant.now().plusSeconds(3600);
+            for (int i = 0; i < records; i++) {
+                String key = "key-" + i;
+                store.reserve(IdempotencyRecord.inProgress(key, request, expiresAt));
+                if (i % 100 != 0) {
+                    store.complete(key, response, expiresAt);
+                }
+            }
+            store.close();
+
+            // Recovery with the shutdown checkpoint plus a 1% tail written after it
+            store = open(directory);
+            int tail = Math.max(1, records / 100);
+            for (int i = 0; i < tail; i++) {
+                store.save(new IdempotencyRecord("tail-" + i, request, response, expiresAt));
+            }
+            store.flush();
+            long expected = store.size();
+            store = open(directory);
+            assertTrue(store.isRecoveredFromCheckpoint());
+            assertEquals(expected, store.size());
+            Duration withCheckpoint = store.getLastRecoveryTime();
+            long inProgress = store.getRecoveredInProgress();
+
+            // Same log without a checkpoint: every segment is replayed
+            Files.delete(directory.resolve(IndexCheckpoint.FILE_NAME));
+            store = open(directory);
+            assertFalse(store.isRecoveredFromCheckpoint());
+            assertEquals(expected, store.size());
+            Duration fullReplay = store.getLastRecoveryTime();
+
+            System.out.printf("%12d %12d %12d ms %12d ms %12d%n",
+                    records, tail, fullReplay.toMillis(), withCheckpoint.toMillis(), inProgress);
+        }
+    }
+
+    private LogIdempotencyStore open(Path directory) {
+        return new LogIdempotencyStore(directory.toString(), DataSize.ofMegabytes(64), "never", Duration.ofSeconds(1),
+                Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the near cache decorator, in front of an in-memory store
+ * that counts the calls reaching it.
+ */
+class NearCacheIdempotencyStoreTest {
+
+    private CountingStore remote;
+    private NearCacheIdempotencyStore store;
+    private ChargeRequest request;
+
+    @BeforeEach
+    void setUp() {
+        remote = new CountingStore();
+        store = new NearCacheIdempotencyStore(remote, 1000, Duration.ofMinutes(5));
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @Test
+    @DisplayName("Replays of a completed record are served locally")
+    void testCompletedRecordCached() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+        assertTrue(store.complete("key-1", response("txn_1"), Instant.now().plusSeconds(60)));
+
+        // The first lookup goes remote, the rest are local hits
+        assertEquals("txn_1", store.findByKey("key-1").get().getResponse().getTransactionId());
+        assertEquals("txn_1", store.findByKey("key-1").get().getResponse().getTransactionId());
+        Optional<IdempotencyRecord> held = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+        assertTrue(held.get().isCompleted());
+        assertTrue(held.get().requestMatches(request));
+
+        assertEquals(1, remote.finds.get());
+        assertEquals(1, remote.reserves.get());
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        assertEquals(2, registry.get("idempotency.nearcache.hits").functionCounter().count());
+        assertEquals(1, registry.get("idempotency.nearcache.size").gauge().value());
+        // The remote store's own metrics are still bound through the decorator
+        assertNotNull(registry.find("idempotency.store.size").gauge());
+    }
+
+    @Test
+    @DisplayName("IN_PROGRESS records are never cached")
+    void testInProgressNotCached() {
+        store.reserve(IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).get().isInProgress());
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+
+        assertEquals(2, remote.finds.get());
+        assertEquals(2, remote.reserves.get());
+
+        // Completion is visible at once, not hidden behind a cached reservation
+        store.complete("key-1", response("txn_1"), Instant.now().plusSeconds(60));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Cached records expire with the record")
+    void testExpiryAligned() throws InterruptedException {
+        store.save(completed("short", Instant.now().plusMillis(100)));
+        assertTrue(store.findByKey("short").isPresent());
+
+        Thread.sleep(150);
+
+        // Expired everywhere: the key is free again
+        assertFalse(store.findByKey("short").isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("short", request, Instant.now().plusSeconds(60))).isPresent());
+    }
+
+    @Test
+    @DisplayName("The local copy is capped at the max TTL")
+    void testMaxTtl() throws InterruptedException {
+        store = new NearCacheIdempotencyStore(remote, 1000, Duration.ofMillis(50));
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        store.findByKey("key-1");
+        int finds = remote.finds.get();
+
+        Thread.sleep(100);
+
+        assertTrue(store.findByKey("key-1").isPresent());
+        assertEquals(finds + 1, remote.finds.get());
+    }
+
+    @Test
+    @DisplayName("Delete and save invalidate the local copy")
+    void testInvalidation() {
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        assertTrue(store.findByKey("key-1").isPresent());
+
+        store.delete("key-1");
+        assertFalse(store.findByKey("key-1").isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+
+        // A record replaced by save is not shadowed by the old copy
+        store.save(completed("key-2", Instant.now().plusSeconds(60)));
+        store.findByKey("key-2");
+        store.save(IdempotencyRecord.inProgress("key-2", request, Instant.now().plusSeconds(60)));
+        assertTrue(store.findByKey("key-2").get().isInProgress());
+    }
+
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(remote.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(remote.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(remote.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Bulk calls pass only the keys the cache cannot answer")
+    void testBulkCalls() {
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        store.findByKey("key-1");
+        int finds = remote.finds.get();
+        int reserves = remote.reserves.get();
+
+        Map<String, IdempotencyRecord> found = store.findAllByKey(Arrays.asList("key-1", "key-2"));
+        assertEquals(1, found.size());
+        assertEquals("txn_key-1", found.get("key-1").getResponse().getTransactionId());
+        assertEquals(finds + 1, remote.finds.get());
+
+        List<Optional<IdempotencyRecord>> results = store.reserveAll(Arrays.asList(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("key-2", request, Instant.now().plusSeconds(60))));
+        assertTrue(results.get(0).get().isCompleted());
+        assertFalse(results.get(1).isPresent());
+        assertEquals(reserves + 1, remote.reserves.get());
+    }
+
+    private ChargeResponse response(String transactionId) {
+        return ChargeResponse.success(transactionId, request.getAmount(), request.getCurrency());
+    }
+
+    private IdempotencyRecord completed(String key, Instant expiresAt) {
+        return new IdempotencyRecord(key, request, response("txn_" + key), expiresAt);
+    }
+
+    private static final class CountingStore extends InMemoryIdempotencyStore {
+
+        private final AtomicInteger finds = new AtomicInteger();
+        private final AtomicInteger reserves = new AtomicInteger();
+
+        @Override
+        public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+            finds.incrementAndGet();
+            return super.findByKey(idempotencyKey);
+        }
+
+        @Override
+        public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+            reserves.incrementAndGet();
+            return super.reserve(record);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the off-heap idempotency store.
+ */
+class OffHeapIdempotencyStoreTest {
+    
+    private OffHeapIdempotencyStore store;
+    private ChargeRequest request;
+    
+    @BeforeEach
+    void setUp() {
+        store = new OffHeapIdempotencyStore(DataSize.ofKilobytes(64), 1000, 2, DataSize.ofKilobytes(8));
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+    
+    @Test
+    @DisplayName("Reserve, complete and find round-trip through off-heap memory")
+    void testReserveCompleteFind() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertEquals("key-1", record.getIdempotencyKey());
+        assertEquals("txn_1", record.getResponse().getTransactionId());
+        assertEquals(response.getProcessedAt(), record.getResponse().getProcessedAt());
+        assertEquals(0, new BigDecimal("10.00").compareTo(record.getResponse().getAmount()));
+        assertTrue(record.requestMatches(request));
+    }
+    
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Deleted chunks are reused instead of growing off-heap memory")
+    void testFreeListReuse() {
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 20; i++) {
+                store.save(completed("key-" + i, Instant.now().plusSeconds(60)));
+            }
+            for (int i = 0; i < 20; i++) {
+                store.delete("key-" + i);
+            }
+        }
+        
+        long allocated = store.allocatedBytes();
+        for (int i = 0; i < 20; i++) {
+            store.save(completed("key-" + i, Instant.now().plusSeconds(60)));
+        }
+        assertEquals(allocated, store.allocatedBytes());
+        assertEquals(20, store.size());
+    }
+    
+    @Test
+    @DisplayName("A full store reclaims expired records before rejecting writes")
+    void testCapacity() {
+        int capacity = 0;
+        try {
+            while (capacity <= 10_000) {
+                store.save(completed("live-" + capacity, Instant.now().plusSeconds(60)));
+                capacity++;
+            }
+            fail("store never filled up");
+        } catch (IllegalStateException expected) {
+            // Store is full of live records
+        }
+        
+        store = new OffHeapIdempotencyStore(DataSize.ofKilobytes(64), 1000, 2, DataSize.ofKilobytes(8));
+        for (int i = 0; i < capacity; i++) {
+            store.save(completed("expired-" + i, Instant.now().minusSeconds(1)));
+        }
+        for (int i = 0; i < capacity; i++) {
+            store.save(completed("live-" + i, Instant.now().plusSeconds(60)));
+        }
+        
+        assertEquals(capacity, store.size());
+        assertThrows(IllegalStateException.class,
+                () -> store.save(completed("one-too-many", Instant.now().plusSeconds(60))));
+    }
+    
+    @Test
+    @DisplayName("Budgeted cleanup frees expired records")
+    void testCleanup() {
+        for (int i = 0; i < 50; i++) {
+            store.save(completed("expired-" + i, Instant.now().minusSeconds(1)));
+            store.save(completed("live-" + i, Instant.now().plusSeconds(60)));
+        }
+        
+        store.cleanupExpired(Integer.MAX_VALUE, Duration.ofSeconds(1));
+        
+        assertEquals(50, store.size());
+        assertTrue(store.fragmentation() >= 0.0 && store.fragmentation() < 1.0);
+    }
+    
+    private IdempotencyRecord completed(String key, Instant expiresAt) {
+        return new IdempotencyRecord(key, request,
+                ChargeResponse.success("txn_" + key, request.getAmount(), request.getCurrency()), expiresAt);
+    }
+}
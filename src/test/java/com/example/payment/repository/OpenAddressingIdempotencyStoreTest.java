@@ -0,0 +1,141 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the open-addressing idempotency store.
+ */
+class OpenAddressingIdempotencyStoreTest {
+    
+    private OpenAddressingIdempotencyStore store;
+    private ChargeRequest request;
+    
+    @BeforeEach
+    void setUp() {
+        store = new OpenAddressingIdempotencyStore(4, 64);
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+    
+    @Test
+    @DisplayName("Reserve, complete and find round-trip through the primitive arrays")
+    void testReserveCompleteFind() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertEquals("key-1", record.getIdempotencyKey());
+        assertSame(response, record.getResponse());
+        assertTrue(record.requestMatches(request));
+        assertTrue(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+    }
+    
+    @Test
+    @DisplayName("Table grows and deletes keep every other key reachable")
+    void testGrowAndDelete() {
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            store.save(new IdempotencyRecord("key-" + i, request,
+                    ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency()),
+                    Instant.now().plusSeconds(60)));
+        }
+        for (int i = 0; i < count; i += 2) {
+            store.delete("key-" + i);
+        }
+        
+        assertEquals(count / 2, store.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 1, store.findByKey("key-" + i).isPresent(), "key-" + i);
+        }
+        assertEquals("txn_4999", store.findByKey("key-4999").get().getResponse().getTransactionId());
+    }
+    
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Budgeted cleanup removes expired records across stripes")
+    void testCleanup() {
+        for (int i = 0; i < 100; i++) {
+            store.save(new IdempotencyRecord("expired-" + i, request, null, Instant.now().minusSeconds(1)));
+            store.save(new IdempotencyRecord("live-" + i, request, null, Instant.now().plusSeconds(60)));
+        }
+        
+        CleanupStats first = store.cleanupExpired(50, Duration.ofSeconds(1));
+        assertEquals(50, first.getScanned());
+        assertFalse(first.isPassCompleted());
+        
+        store.cleanupExpired(Integer.MAX_VALUE, Duration.ofSeconds(1));
+        assertEquals(100, store.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.findByKey("live-" + i).isPresent());
+        }
+    }
+    
+    @Test
+    @DisplayName("Concurrent reserves on one key have exactly one winner")
+    void testConcurrentReserveSingleWinner() throws Exception {
+        int threadCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger winners = new AtomicInteger();
+        
+        for (int i = 0; i < threadCount; i++) {
+            executor.submit(() -> {
+                start.await();
+                if (!store.reserve(IdempotencyRecord.inProgress(
+                        "hot-key", request, Instant.now().plusSeconds(60))).isPresent()) {
+                    winners.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, winners.get());
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the partitioned store with three nodes on localhost ports.
+ */
+class PartitionedIdempotencyStoreTest {
+
+    private List<String> nodes;
+    private List<InMemoryIdempotencyStore> locals;
+    private List<PartitionedIdempotencyStore> stores;
+    private ChargeRequest request;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            nodes.add("127.0.0.1:" + freePort());
+        }
+        locals = new ArrayList<>();
+        stores = new ArrayList<>();
+        for (String node : nodes) {
+            InMemoryIdempotencyStore local = new InMemoryIdempotencyStore();
+            locals.add(local);
+            stores.add(new PartitionedIdempotencyStore(local, node, nodes, 128, 4, Duration.ofSeconds(2)));
+        }
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (PartitionedIdempotencyStore store : stores) {
+            store.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Every node agrees on the owner and keys spread evenly")
+    void testOwnership() {
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            String key = "key-" + i;
+            String owner = stores.get(0).ownerOf(key);
+            assertEquals(owner, stores.get(1).ownerOf(key));
+            assertEquals(owner, stores.get(2).ownerOf(key));
+            owned.merge(owner, 1, Integer::sum);
+        }
+        for (String node : nodes) {
+            // A third each, give or take the virtual node variance
+            assertTrue(owned.get(node) > 7_000 && owned.get(node) < 13_000, node + " owns " + owned.get(node));
+        }
+    }
+
+    @Test
+    @DisplayName("A record written through any node lives only on its owner")
+    void testForwarding() {
+        for (int i = 0; i < 100; i++) {
+            String key = "key-" + i;
+            PartitionedIdempotencyStore writer = stores.get(i % 3);
+            assertFalse(writer.reserve(IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60)))
+                    .isPresent());
+
+            int owner = nodes.indexOf(writer.ownerOf(key));
+            for (int n = 0; n < 3; n++) {
+                assertEquals(n == owner, locals.get(n).findByKey(key).isPresent());
+            }
+
+            ChargeResponse response = ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency());
+            assertTrue(stores.get((i + 1) % 3).complete(key, response, Instant.now().plusSeconds(60)));
+
+            IdempotencyRecord replay = stores.get((i + 2) % 3)
+                    .reserve(IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60))).get();
+            assertTrue(replay.isCompleted());
+            assertTrue(replay.requestMatches(request));
+            assertEquals(response.getTransactionId(), replay.getResponse().getTransactionId());
+            assertEquals(response.getProcessedAt(), replay.getResponse().getProcessedAt());
+        }
+    }
+
+    @Test
+    @DisplayName("Save and delete are applied on the owner")
+    void testSaveDelete() {
+        String key = remoteKeyFor(0);
+        IdempotencyRecord record = new IdempotencyRecord(key, request,
+                ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60));
+        stores.get(0).save(record);
+        assertEquals("txn_1", stores.get(1).findByKey(key).get().getResponse().getTransactionId());
+
+        stores.get(2).delete(key);
+        for (PartitionedIdempotencyStore store : stores) {
+            assertFalse(store.findByKey(key).isPresent());
+        }
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        stores.get(0).bindTo(registry);
+        assertEquals(2, registry.get("idempotency.partition.calls").tag("target", "forwarded")
+                .functionCounter().count());
+        assertEquals(2, registry.get("idempotency.partition.forward").functionTimer().count());
+    }
+
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        String key = remoteKeyFor(0);
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress(key, request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(stores.get(0).reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60));
+        assertFalse(stores.get(0).reserve(current).isPresent());
+
+        assertFalse(stores.get(0).release(stale));
+        assertTrue(stores.get(1).findByKey(key).get().isInProgress());
+        assertTrue(stores.get(0).release(current));
+        assertFalse(stores.get(1).findByKey(key).isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60));
+        assertFalse(stores.get(0).reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(stores.get(0).complete(key, response, Instant.now().plusSeconds(60)));
+        assertFalse(stores.get(0).release(next));
+        assertTrue(stores.get(1).findByKey(key).get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Only one of many concurrent reservations across nodes wins")
+    void testConcurrentReserve() throws Exception {
+        int threads = 24;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Optional<IdempotencyRecord>>> reservations = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            PartitionedIdempotencyStore store = stores.get(i % 3);
+            reservations.add(executor.submit(() -> {
+                start.await();
+                return store.reserve(IdempotencyRecord.inProgress(
+                        "contended", request, Instant.now().plusSeconds(60)));
+            }));
+        }
+        start.countDown();
+
+        int winners = 0;
+        for (Future<Optional<IdempotencyRecord>> reservation : reservations) {
+            if (!reservation.get(10, TimeUnit.SECONDS).isPresent()) {
+                winners++;
+            }
+        }
+        executor.shutdown();
+        assertEquals(1, winners);
+    }
+
+    @Test
+    @DisplayName("Keys owned by a node that is down are unavailable, not moved")
+    void testOwnerDown() throws Exception {
+        String key = remoteKeyFor(0);
+        int owner = nodes.indexOf(stores.get(0).ownerOf(key));
+        stores.get(owner).close();
+
+        assertThrows(UncheckedIOException.class, () -> stores.get(0).findByKey(key));
+        assertThrows(UncheckedIOException.class, () -> stores.get(0).reserve(
+                IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60))));
+        assertFalse(locals.get(0).findByKey(key).isPresent());
+    }
+
+    @Test
+    @DisplayName("Calls beyond the connection cap wait for a connection instead of opening more")
+    void testClientConnectionCap() throws Exception {
+        AtomicInteger inStore = new AtomicInteger();
+        AtomicInteger maxInStore = new AtomicInteger();
+        InMemoryIdempotencyStore slow = new InMemoryIdempotencyStore() {
+            @Override
+            public Optional<IdempotencyRecord> findByKey(String idempotencyKey) {
+                maxInStore.accumulateAndGet(inStore.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inStore.decrementAndGet();
+                }
+                return super.findByKey(idempotencyKey);
+            }
+        };
+        int port = freePort();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (PartitionServer server = new PartitionServer(slow, port, 8);
+             PartitionClient client = new PartitionClient("127.0.0.1:" + port, 2, Duration.ofSeconds(5))) {
+            List<Future<Optional<IdempotencyRecord>>> calls = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String key = "key-" + i;
+                calls.add(executor.submit(() -> client.findByKey(key)));
+            }
+            for (Future<Optional<IdempotencyRecord>> call : calls) {
+                assertFalse(call.get(10, TimeUnit.SECONDS).isPresent());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, maxInStore.get());
+    }
+
+    @Test
+    @DisplayName("The server refuses connections beyond its cap")
+    void testServerConnectionCap() throws Exception {
+        int port = freePort();
+        InMemoryIdempotencyStore local = new InMemoryIdempotencyStore();
+        try (PartitionServer server = new PartitionServer(local, port, 1);
+             PartitionClient first = new PartitionClient("127.0.0.1:" + port, 1, Duration.ofSeconds(2));
+             PartitionClient second = new PartitionClient("127.0.0.1:" + port, 1, Duration.ofSeconds(2))) {
+            // The first client keeps its connection open between calls
+            assertFalse(first.findByKey("key").isPresent());
+
+            assertThrows(UncheckedIOException.class, () -> second.findByKey("key"));
+            assertFalse(first.findByKey("key").isPresent());
+        }
+    }
+
+    private String remoteKeyFor(int node) {
+        for (int i = 0; ; i++) {
+            String key = "key-" + i;
+            if (!stores.get(node).ownerOf(key).equals(nodes.get(node))) {
+                return key;
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
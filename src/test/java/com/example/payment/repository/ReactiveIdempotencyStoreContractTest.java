@@ -0,0 +1,145 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behaviour every ReactiveIdempotencyStore shares; each implementation's
+ * test extends this with a store to run it against.
+ */
+abstract class ReactiveIdempotencyStoreContractTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    protected ReactiveIdempotencyStore store;
+    protected ChargeRequest request;
+    private String prefix;
+
+    /**
+     * A store with no records for the keys this test uses.
+     */
+    protected abstract ReactiveIdempotencyStore createStore();
+
+    @BeforeEach
+    void setUpStore() {
+        store = createStore();
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+        prefix = UUID.randomUUID() + "-";
+    }
+
+    @Test
+    @DisplayName("Reserve on a new key succeeds and leaves an IN_PROGRESS record")
+    void testReserveNewKey() {
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT));
+
+        IdempotencyRecord found = store.findByKey(key("key-1")).block(TIMEOUT);
+        assertNotNull(found);
+        assertTrue(found.isInProgress());
+        assertTrue(found.requestMatches(request));
+    }
+
+    @Test
+    @DisplayName("A taken key returns the holder, with a fingerprint to compare")
+    void testReserveTakenKey() {
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT));
+
+        IdempotencyRecord same = store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT);
+        assertNotNull(same);
+        assertTrue(same.isInProgress());
+        assertTrue(same.requestMatches(request));
+
+        ChargeRequest other = new ChargeRequest("customer_456", new BigDecimal("20.00"), "EUR", "Other");
+        IdempotencyRecord different = store.reserve(IdempotencyRecord.inProgress(key("key-1"), other,
+                Instant.now().plusSeconds(60))).block(TIMEOUT);
+        assertNotNull(different);
+        assertFalse(different.requestMatches(other));
+        assertTrue(different.requestMatches(request));
+    }
+
+    @Test
+    @DisplayName("Complete turns the reservation into a COMPLETED record, once")
+    void testComplete() {
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT));
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+
+        assertTrue(store.complete(key("key-1"), response, Instant.now().plusSeconds(60)).block(TIMEOUT));
+        IdempotencyRecord found = store.findByKey(key("key-1")).block(TIMEOUT);
+        assertTrue(found.isCompleted());
+        assertEquals("txn_1", found.getResponse().getTransactionId());
+
+        assertFalse(store.complete(key("key-1"), response, Instant.now().plusSeconds(60)).block(TIMEOUT));
+        assertFalse(store.complete(key("missing"), response, Instant.now().plusSeconds(60)).block(TIMEOUT));
+    }
+
+    @Test
+    @DisplayName("Save replaces a record and delete releases the key")
+    void testSaveAndDelete() {
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        store.save(new IdempotencyRecord(key("key-1"), request, response, Instant.now().plusSeconds(60)))
+                .block(TIMEOUT);
+        assertTrue(store.findByKey(key("key-1")).block(TIMEOUT).isCompleted());
+
+        store.delete(key("key-1")).block(TIMEOUT);
+        assertNull(store.findByKey(key("key-1")).block(TIMEOUT));
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT));
+    }
+
+    @Test
+    @DisplayName("Expired record does not block a new reservation")
+    void testExpiredRecord() throws InterruptedException {
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusMillis(50))).block(TIMEOUT));
+        Thread.sleep(150);
+
+        assertNull(store.findByKey(key("key-1")).block(TIMEOUT));
+        assertNull(store.reserve(inProgress("key-1", Instant.now().plusSeconds(60))).block(TIMEOUT));
+    }
+
+    @Test
+    @DisplayName("Nothing is written until the Mono is subscribed")
+    void testLazy() {
+        store.reserve(inProgress("key-1", Instant.now().plusSeconds(60)));
+        store.save(new IdempotencyRecord(key("key-2"), request,
+                ChargeResponse.success("txn_2", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+
+        assertNull(store.findByKey(key("key-1")).block(TIMEOUT));
+        assertNull(store.findByKey(key("key-2")).block(TIMEOUT));
+    }
+
+    @Test
+    @DisplayName("Concurrent reserves on one key have exactly one winner")
+    void testConcurrentReserve() {
+        List<Boolean> reserved = Flux.range(0, 32)
+                .flatMap(i -> store.reserve(inProgress("hot", Instant.now().plusSeconds(60)))
+                        .map(existing -> false)
+                        .defaultIfEmpty(true)
+                        .subscribeOn(Schedulers.parallel()))
+                .collectList()
+                .block(TIMEOUT);
+
+        assertEquals(32, reserved.size());
+        assertEquals(1, reserved.stream().filter(Boolean::booleanValue).count());
+    }
+
+    protected String key(String name) {
+        return prefix + name;
+    }
+
+    private IdempotencyRecord inProgress(String name, Instant expiresAt) {
+        return IdempotencyRecord.inProgress(key(name), request, expiresAt);
+    }
+}
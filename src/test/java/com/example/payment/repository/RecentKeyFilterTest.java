@@ -0,0 +1,71 @@
+package com.example.payment.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the rotating Bloom filter of recent keys.
+ */
+class RecentKeyFilterTest {
+
+    @Test
+    @DisplayName("Added keys are always found and new keys mostly are not")
+    void testNoFalseNegatives() {
+        RecentKeyFilter filter = new RecentKeyFilter(Duration.ofHours(1), 4, 10_000, 0.01);
+
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("key-" + i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("key-" + i));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("new-" + i)) {
+                falsePositives++;
+            }
+        }
+        // Sized for 1% over all generations, and only one generation is in use
+        assertTrue(falsePositives < 1_000, "false positives: " + falsePositives);
+        assertTrue(filter.estimatedFalsePositiveRate() < 0.01);
+    }
+
+    @Test
+    @DisplayName("Keys are forgotten once their generation rotates out")
+    void testTimeRotation() throws InterruptedException {
+        // Two generations of 100 ms each
+        RecentKeyFilter filter = new RecentKeyFilter(Duration.ofMillis(100), 2, 1_000, 0.01);
+        filter.add("old");
+
+        Thread.sleep(120);
+        filter.add("recent");
+        assertTrue(filter.mightContain("old"), "the previous generation is still consulted");
+
+        Thread.sleep(120);
+        assertFalse(filter.mightContain("old"));
+        assertTrue(filter.mightContain("recent"));
+    }
+
+    @Test
+    @DisplayName("A full generation rotates early")
+    void testCapacityRotation() {
+        RecentKeyFilter filter = new RecentKeyFilter(Duration.ofHours(1), 2, 100, 0.01);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        filter.bindTo(registry);
+
+        for (int i = 0; i < 250; i++) {
+            filter.add("key-" + i);
+        }
+
+        assertEquals(2, registry.get("idempotency.keyfilter.rotations").functionCounter().count());
+        assertTrue(filter.mightContain("key-249"));
+        assertEquals(filter.memoryBytes(), registry.get("idempotency.keyfilter.memory").gauge().value());
+        assertTrue(filter.memoryBytes() > 0);
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the Redis store against an embedded Redis server.
+ */
+class RedisIdempotencyStoreTest {
+
+    private static RedisServer server;
+    private static LettuceConnectionFactory connectionFactory;
+
+    private RedisIdempotencyStore store;
+    private SimpleMeterRegistry registry;
+    private ChargeRequest request;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port = freePort();
+        server = embeddedRedis(port);
+        server.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        connectionFactory.afterPropertiesSet();
+
+        // Connect up front so the TTL test does not pay for client startup
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.ping();
+        }
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        store = open(Duration.ofMillis(1), 16);
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    @DisplayName("Reserve, complete and find round-trip through Redis")
+    void testReserveCompleteFind() {
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).isPresent());
+
+        IdempotencyRecord held = store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60))).get();
+        assertTrue(held.isInProgress());
+        assertTrue(held.requestMatches(request));
+
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+
+        IdempotencyRecord record = store.findByKey("key-1").get();
+        assertTrue(record.isCompleted());
+        assertEquals("txn_1", record.getResponse().getTransactionId());
+        assertEquals(response.getProcessedAt(), record.getResponse().getProcessedAt());
+        assertEquals(held.getCreatedAt(), record.getCreatedAt());
+        assertTrue(record.requestMatches(request));
+    }
+
+    @Test
+    @DisplayName("Reserve with a different request returns the holder's fingerprint")
+    void testFingerprintMismatch() {
+        store.reserve(IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)));
+
+        ChargeRequest other = new ChargeRequest("customer_123", new BigDecimal("20.00"), "USD", "Test");
+        Optional<IdempotencyRecord> held = store.reserve(
+                IdempotencyRecord.inProgress("key-1", other, Instant.now().plusSeconds(60)));
+
+        assertTrue(held.isPresent());
+        assertFalse(held.get().requestMatches(other));
+        assertTrue(held.get().requestMatches(request));
+    }
+
+    @Test
+    @DisplayName("Records expire through native Redis TTLs")
+    void testNativeExpiry() throws InterruptedException {
+        store.save(completed("short", Instant.now().plusMillis(500)));
+        store.save(completed("already-expired", Instant.now().minusSeconds(1)));
+        assertTrue(store.findByKey("short").isPresent());
+        assertFalse(store.findByKey("already-expired").isPresent());
+
+        Thread.sleep(700);
+
+        assertFalse(store.findByKey("short").isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("short", request, Instant.now().plusSeconds(60))).isPresent());
+    }
+
+    @Test
+    @DisplayName("Save and delete replace and release records")
+    void testSaveDelete() {
+        store.save(completed("key-1", Instant.now().plusSeconds(60)));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+        assertEquals("txn_key-1", store.reserve(
+                IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60)))
+                .get().getResponse().getTransactionId());
+
+        store.delete("key-1");
+        assertFalse(store.findByKey("key-1").isPresent());
+        assertFalse(store.complete("key-1",
+                ChargeResponse.success("txn_2", request.getAmount(), request.getCurrency()),
+                Instant.now().plusSeconds(60)));
+    }
+
+    @Test
+    @DisplayName("Release deletes only the caller's own reservation")
+    void testRelease() {
+        // A reservation that outlived its TTL, and the retry that took the key over
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        assertFalse(store.reserve(stale).isPresent());
+        IdempotencyRecord current = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(current).isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.findByKey("key-1").get().isInProgress());
+        assertTrue(store.release(current));
+        assertFalse(store.findByKey("key-1").isPresent());
+
+        // A completed record is never released
+        IdempotencyRecord next = IdempotencyRecord.inProgress("key-1", request, Instant.now().plusSeconds(60));
+        assertFalse(store.reserve(next).isPresent());
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        assertFalse(store.release(next));
+        assertTrue(store.findByKey("key-1").get().isCompleted());
+    }
+
+    @Test
+    @DisplayName("Only one of many concurrent reservations wins")
+    void testConcurrentReserve() throws InterruptedException {
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger winners = new AtomicInteger();
+
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    if (!store.reserve(IdempotencyRecord.inProgress(
+                            "contended", request, Instant.now().plusSeconds(60))).isPresent()) {
+                        winners.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        assertEquals(1, winners.get());
+        assertEquals(0, store.cleanupExpired(100, Duration.ofMillis(5)).getScanned());
+    }
+
+    @Test
+    @DisplayName("Concurrent lookups share pipelined round trips")
+    void testBatchedFindByKey() throws Exception {
+        store.close();
+        store = open(Duration.ofMillis(20), 64);
+
+        for (int i = 0; i < 8; i++) {
+            store.save(completed("key-" + i, Instant.now().plusSeconds(60)));
+        }
+
+        int threads = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Optional<IdempotencyRecord>>> lookups = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            // A quarter of the lookups miss; the rest hit 8 keys, several times each
+            String key = i % 4 == 0 ? "missing-" + i : "key-" + (i % 8);
+            lookups.add(executor.submit(() -> {
+                start.await();
+                return store.findByKey(key);
+            }));
+        }
+        start.countDown();
+        for (int i = 0; i < threads; i++) {
+            Optional<IdempotencyRecord> record = lookups.get(i).get(10, TimeUnit.SECONDS);
+            if (i % 4 == 0) {
+                assertFalse(record.isPresent());
+            } else {
+                assertEquals("txn_key-" + (i % 8), record.get().getResponse().getTransactionId());
+            }
+        }
+        executor.shutdown();
+
+        DistributionSummary batches = registry.get("idempotency.redis.batch.size").summary();
+        assertEquals(threads, (long) batches.totalAmount());
+        assertTrue(batches.count() < threads, "expected lookups to share round trips");
+    }
+
+    @Test
+    @DisplayName("A full batch goes out without waiting for the window")
+    void testBatchMaxSize() throws Exception {
+        store.close();
+        store = open(Duration.ofSeconds(5), 4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Optional<IdempotencyRecord>>> lookups = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            String key = "key-" + i;
+            lookups.add(executor.submit(() -> store.findByKey(key)));
+        }
+        for (Future<Optional<IdempotencyRecord>> lookup : lookups) {
+            assertFalse(lookup.get(4, TimeUnit.SECONDS).isPresent());
+        }
+        executor.shutdown();
+
+        DistributionSummary batches = registry.get("idempotency.redis.batch.size").summary();
+        assertEquals(16, (long) batches.totalAmount());
+        assertEquals(4, batches.max());
+    }
+
+    @Test
+    @DisplayName("Bulk reserve and lookup go out as one pipeline each")
+    void testReserveAllAndFindAllByKey() {
+        ChargeRequest other = new ChargeRequest("customer_456", new BigDecimal("20.00"), "EUR", "Other");
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("held", request, Instant.now().plusSeconds(60))).isPresent());
+        assertFalse(store.reserve(
+                IdempotencyRecord.inProgress("other", other, Instant.now().plusSeconds(60))).isPresent());
+
+        List<Optional<IdempotencyRecord>> results = store.reserveAll(Arrays.asList(
+                IdempotencyRecord.inProgress("new-1", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("held", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("other", request, Instant.now().plusSeconds(60)),
+                IdempotencyRecord.inProgress("new-2", request, Instant.now().plusSeconds(60))));
+
+        assertEquals(4, results.size());
+        assertFalse(results.get(0).isPresent());
+        assertTrue(results.get(1).get().requestMatches(request));
+        assertFalse(results.get(2).get().requestMatches(request));
+        assertFalse(results.get(3).isPresent());
+
+        assertTrue(store.complete("new-1", ChargeResponse.success("txn_1", request.getAmount(),
+                request.getCurrency()), Instant.now().plusSeconds(60)));
+        Map<String, IdempotencyRecord> found = store.findAllByKey(Arrays.asList("new-1", "new-2", "missing"));
+        assertEquals(2, found.size());
+        assertEquals("txn_1", found.get("new-1").getResponse().getTransactionId());
+        assertTrue(found.get("new-2").isInProgress());
+        assertTrue(store.reserveAll(Collections.emptyList()).isEmpty());
+    }
+
+    static RedisServer embeddedRedis(int port) {
+        // No snapshots: the embedded server must not leave dump files behind
+        return RedisServer.builder()
+                .port(port)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private RedisIdempotencyStore open(Duration batchWindow, int batchMaxSize) {
+        // A fresh prefix per store keeps tests apart without flushing the server
+        registry = new SimpleMeterRegistry();
+        return new RedisIdempotencyStore(connectionFactory, registry, "test:" + UUID.randomUUID() + ":",
+                batchWindow, batchMaxSize, Duration.ofSeconds(5));
+    }
+
+    private IdempotencyRecord completed(String key, Instant expiresAt) {
+        return new IdempotencyRecord(key, request,
+                ChargeResponse.success("txn_" + key, request.getAmount(), request.getCurrency()), expiresAt);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the reactive store tests against an embedded Redis server, plus
+ * sharing records with the blocking Redis store.
+ */
+class RedisReactiveIdempotencyStoreTest extends ReactiveIdempotencyStoreContractTest {
+
+    private static final String KEY_PREFIX = "idempotency:";
+
+    private static RedisServer server;
+    private static LettuceConnectionFactory connectionFactory;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port = RedisIdempotencyStoreTest.freePort();
+        server = RedisIdempotencyStoreTest.embeddedRedis(port);
+        server.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        connectionFactory.afterPropertiesSet();
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    @Override
+    protected ReactiveIdempotencyStore createStore() {
+        return new RedisReactiveIdempotencyStore(connectionFactory, KEY_PREFIX);
+    }
+
+    @Test
+    @DisplayName("Records are shared with the blocking Redis store")
+    void testSharedWithBlockingStore() {
+        RedisIdempotencyStore blocking = new RedisIdempotencyStore(connectionFactory, new SimpleMeterRegistry(),
+                KEY_PREFIX, Duration.ofMillis(1), 1, Duration.ofSeconds(5));
+        try {
+            assertFalse(blocking.reserve(IdempotencyRecord.inProgress(key("key-1"), request,
+                    Instant.now().plusSeconds(60))).isPresent());
+            IdempotencyRecord held = store.reserve(IdempotencyRecord.inProgress(key("key-1"), request,
+                    Instant.now().plusSeconds(60))).block(Duration.ofSeconds(5));
+            assertNotNull(held);
+            assertTrue(held.isInProgress());
+
+            ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+            assertTrue(store.complete(key("key-1"), response, Instant.now().plusSeconds(60))
+                    .block(Duration.ofSeconds(5)));
+            assertEquals("txn_1", blocking.findByKey(key("key-1")).get().getResponse().getTransactionId());
+        } finally {
+            blocking.close();
+        }
+    }
+}
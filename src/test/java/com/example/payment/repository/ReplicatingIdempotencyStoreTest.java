@@ -0,0 +1,189 @@
+package com.example.payment.repository;
+
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for replication to a standby served on a localhost port.
+ */
+class ReplicatingIdempotencyStoreTest {
+
+    private int port;
+    private InMemoryIdempotencyStore standby;
+    private PartitionServer server;
+    private ReplicatingIdempotencyStore store;
+    private SimpleMeterRegistry registry;
+    private ChargeRequest request;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        port = freePort();
+        standby = new InMemoryIdempotencyStore();
+        server = new PartitionServer(standby, port, 4);
+        registry = new SimpleMeterRegistry();
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Reservations, completions, saves and deletes reach the standby")
+    void testAsyncReplication() {
+        open(1000, 64, false);
+
+        assertFalse(store.reserve(inProgress("key-1")).isPresent());
+        await(() -> standby.findByKey("key-1").map(IdempotencyRecord::isInProgress).orElse(false));
+
+        ChargeResponse response = ChargeResponse.success("txn_1", request.getAmount(), request.getCurrency());
+        assertTrue(store.complete("key-1", response, Instant.now().plusSeconds(60)));
+        await(() -> standby.findByKey("key-1").map(IdempotencyRecord::isCompleted).orElse(false));
+        IdempotencyRecord replicated = standby.findByKey("key-1").get();
+        assertTrue(replicated.requestMatches(request));
+        assertEquals(response.getProcessedAt(), replicated.getResponse().getProcessedAt());
+
+        store.save(new IdempotencyRecord("key-2", request, response, Instant.now().plusSeconds(60)));
+        store.delete("key-1");
+        await(() -> standby.findByKey("key-2").isPresent() && !standby.findByKey("key-1").isPresent());
+
+        // A reservation that found an existing record writes nothing
+        assertTrue(store.reserve(inProgress("key-2")).isPresent());
+        await(() -> writes() == 4);
+        assertEquals(0, store.getReplicationLag());
+    }
+
+    @Test
+    @DisplayName("A released reservation is deleted on the standby, a stale release is not sent")
+    void testRelease() {
+        open(1000, 64, false);
+
+        IdempotencyRecord stale = IdempotencyRecord.inProgress("key-1", request, Instant.now().minusSeconds(1));
+        stale.setCreatedAt(Instant.now().minusSeconds(61));
+        IdempotencyRecord current = inProgress("key-1");
+        assertFalse(store.reserve(current).isPresent());
+        await(() -> standby.findByKey("key-1").isPresent());
+
+        assertFalse(store.release(stale));
+        assertTrue(store.release(current));
+        // The reservation and its delete; the stale release wrote nothing
+        await(() -> !standby.findByKey("key-1").isPresent() && writes() == 2);
+    }
+
+    @Test
+    @DisplayName("A synchronous reservation is on the standby when reserve returns")
+    void testSyncReserve() {
+        open(1000, 64, true);
+
+        assertFalse(store.reserve(inProgress("key-1")).isPresent());
+        assertTrue(standby.findByKey("key-1").get().isInProgress());
+    }
+
+    @Test
+    @DisplayName("A synchronous reservation the standby never gets is released")
+    void testSyncReserveReplicaDown() {
+        server.close();
+        open(1000, 64, true);
+
+        assertThrows(IllegalStateException.class, () -> store.reserve(inProgress("key-1")));
+        assertFalse(store.findByKey("key-1").isPresent());
+    }
+
+    @Test
+    @DisplayName("A full queue pushes back, then drops, and drains once the standby is back")
+    void testBackpressure() throws Exception {
+        server.close();
+        open(4, 2, false);
+
+        // The sender holds up to one batch while retrying, the queue holds the rest
+        for (int i = 0; i < 10; i++) {
+            store.save(new IdempotencyRecord("key-" + i, request,
+                    ChargeResponse.success("txn_" + i, request.getAmount(), request.getCurrency()),
+                    Instant.now().plusSeconds(60)));
+        }
+        double dropped = registry.get("idempotency.replication.dropped").functionCounter().count();
+        assertTrue(dropped >= 4 && dropped <= 6, "dropped " + dropped);
+        Thread.sleep(50);
+        assertTrue(registry.get("idempotency.replication.lag").gauge().value() > 0);
+
+        server = new PartitionServer(standby, port, 4);
+        await(() -> writes() == 10 - dropped);
+        assertTrue(standby.findByKey("key-0").isPresent());
+    }
+
+    @Test
+    @DisplayName("Concurrent writes share round trips to the standby")
+    void testBatching() throws Exception {
+        open(10_000, 256, false);
+
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            int offset = t * 500;
+            writers[t] = new Thread(() -> {
+                for (int i = offset; i < offset + 500; i++) {
+                    store.reserve(inProgress("key-" + i));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        await(() -> writes() == 4000);
+        assertTrue(registry.get("idempotency.replication.batches").functionCounter().count() < 4000);
+        assertTrue(standby.findByKey("key-3999").isPresent());
+    }
+
+    private void open(int queueCapacity, int batchSize, boolean syncReserve) {
+        store = new ReplicatingIdempotencyStore(new InMemoryIdempotencyStore(), "127.0.0.1:" + port,
+                queueCapacity, batchSize, Duration.ofMillis(10), Duration.ofMillis(500), syncReserve);
+        store.bindTo(registry);
+    }
+
+    private double writes() {
+        return registry.get("idempotency.replication.writes").functionCounter().count();
+    }
+
+    private IdempotencyRecord inProgress(String key) {
+        return IdempotencyRecord.inProgress(key, request, Instant.now().plusSeconds(60));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out waiting for the standby");
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.payment.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the request batcher's failure handling.
+ */
+class RequestBatcherTest {
+
+    private RequestBatcher<String, String> batcher;
+
+    @AfterEach
+    void tearDown() {
+        batcher.close();
+    }
+
+    @Test
+    @DisplayName("An Error fails its batch and the dispatcher serves the next one")
+    void testErrorFailsOnlyItsBatch() {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        batcher = new RequestBatcher<>("test-batcher", keys -> {
+            if (fail.getAndSet(false)) {
+                throw new StackOverflowError("test");
+            }
+            return keys.stream().map(String::toUpperCase).collect(Collectors.toList());
+        }, 0, 16, TimeUnit.SECONDS.toNanos(5), size -> { });
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> batcher.execute("a"));
+        assertTrue(e.getCause() instanceof StackOverflowError);
+        assertEquals("B", batcher.execute("b"));
+    }
+
+    @Test
+    @DisplayName("A caller gives up on a batch that outlasts the timeout")
+    void testTimeout() {
+        CountDownLatch release = new CountDownLatch(1);
+        batcher = new RequestBatcher<>("test-batcher", keys -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.copyOf(keys);
+        }, 0, 16, TimeUnit.MILLISECONDS.toNanos(100), size -> { });
+
+        long start = System.nanoTime();
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> batcher.execute("a"));
+        assertTrue(e.getMessage().contains("within 100 ms"), e.getMessage());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        release.countDown();
+        assertEquals("b", batcher.execute("b"));
+    }
+}
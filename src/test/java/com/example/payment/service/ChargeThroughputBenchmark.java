@@ -0,0 +1,135 @@
+package com.example.payment.service;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.example.payment.gateway.SimulatedPaymentGateway;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.repository.InMemoryIdempotencyStore;
+import com.example.payment.repository.RecentKeyFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Charge throughput with a fixed number of request threads, blocking on the
+ * gateway versus handing the wait to chargeAsync.
+ *
+ * Run with: mvn test -Pbenchmark -Dtest=ChargeThroughputBenchmark
+ * Options: -Dbenchmark.threads=16 -Dbenchmark.seconds=5 -Dbenchmark.outstanding=2000
+ */
+@Tag("benchmark")
+class ChargeThroughputBenchmark {
+
+    private final int threads = Integer.getInteger("benchmark.threads", 16);
+    private final long seconds = Long.getLong("benchmark.seconds", 5);
+    private final int outstanding = Integer.getInteger("benchmark.outstanding", 2000);
+
+    private final AtomicLong keys = new AtomicLong();
+    private ChargeRequest request;
+    private SimulatedPaymentGateway gateway;
+    private PaymentService service;
+    private Level level;
+
+    @BeforeEach
+    void setUp() {
+        // Per-charge info logging would measure the console, not the service
+        Logger logger = (Logger) LoggerFactory.getLogger("com.example.payment");
+        level = logger.getLevel();
+        logger.setLevel(Level.WARN);
+
+        request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Benchmark");
+        gateway = new SimulatedPaymentGateway("fixed", Duration.ofMillis(100), Duration.ofMillis(100),
+                0, 0, 0, Duration.ofSeconds(10), 0);
+        service = new PaymentService(new InMemoryIdempotencyStore(), gateway,
+                new DefaultListableBeanFactory().getBeanProvider(RecentKeyFilter.class),
+                new SimpleMeterRegistry(), Jackson2ObjectMapperBuilder.json().build(),
+                Duration.ofHours(1), Duration.ofSeconds(5), false, 64, 0, "platform", 64);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        gateway.close();
+        ((Logger) LoggerFactory.getLogger("com.example.payment")).setLevel(level);
+    }
+
+    @Test
+    @DisplayName("Charges per second at a fixed thread count")
+    void throughput() throws Exception {
+        System.out.printf("%8s %8s %12s %12s %12s%n", "mode", "threads", "outstanding", "charges", "charges/s");
+        // Blocking callers can have at most one charge each in flight
+        long sync = run("sync", threads, this::chargeSync);
+        long async = run("async", outstanding, this::chargeAsync);
+        assertTrue(async > sync, "async " + async + " <= sync " + sync);
+    }
+
+    private long run(String mode, int inFlight, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(outstanding);
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(() -> {
+                while (System.nanoTime() - deadline < 0) {
+                    worker.charge(permits, completed);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : workers) {
+            future.get();
+        }
+        // Let charges still in flight finish before counting
+        assertTrue(permits.tryAcquire(outstanding, 10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long charges = completed.get();
+        System.out.printf("%8s %8d %12d %12d %12.0f%n",
+                mode, threads, inFlight, charges, charges / elapsed);
+        return charges;
+    }
+
+    private void chargeSync(Semaphore permits, AtomicLong completed) {
+        service.charge("key-" + keys.incrementAndGet(), request);
+        completed.incrementAndGet();
+    }
+
+    private void chargeAsync(Semaphore permits, AtomicLong completed) throws InterruptedException {
+        permits.acquire();
+        service.chargeAsync("key-" + keys.incrementAndGet(), request)
+                .whenComplete((response, failure) -> {
+                    if (failure == null) {
+                        completed.incrementAndGet();
+                    }
+                    permits.release();
+                });
+    }
+
+    @FunctionalInterface
+    private interface Worker {
+        void charge(Semaphore permits, AtomicLong completed) throws Exception;
+    }
+}
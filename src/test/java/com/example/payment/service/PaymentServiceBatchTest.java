@@ -0,0 +1,174 @@
+package com.example.payment.service;
+
+import com.example.payment.gateway.PaymentGateway;
+import com.example.payment.model.BatchChargeItem;
+import com.example.payment.model.BatchChargeResult;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.repository.IdempotencyStore;
+import com.example.payment.repository.InMemoryIdempotencyStore;
+import com.example.payment.repository.RecentKeyFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for batch charges against a gateway whose calls the test completes.
+ */
+class PaymentServiceBatchTest {
+
+    private final ChargeRequest request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    private PaymentService service;
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    @DisplayName("No more gateway calls are in flight than the batch concurrency")
+    void testConcurrencyLimit() throws Exception {
+        ManualGateway gateway = new ManualGateway();
+        service = open(gateway, 4);
+
+        CompletableFuture<List<BatchChargeResult>> batch = service.chargeBatch(items(50));
+        int answered = 0;
+        while (!batch.isDone()) {
+            CompletableFuture<ChargeResponse> call = gateway.calls.poll();
+            if (call == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            assertTrue(gateway.inFlight.get() <= 4, "in flight: " + gateway.inFlight.get());
+            gateway.inFlight.decrementAndGet();
+            call.complete(ChargeResponse.success("txn_" + answered++, request.getAmount(), request.getCurrency()));
+        }
+
+        List<BatchChargeResult> results = batch.get(5, TimeUnit.SECONDS);
+        assertEquals(50, answered);
+        assertEquals(4, gateway.maxInFlight.get());
+        assertTrue(results.stream().allMatch(result -> result.getStatus() == BatchChargeResult.Status.PROCESSED));
+    }
+
+    @Test
+    @DisplayName("A gateway that answers at once does not deepen the stack per item")
+    void testImmediateGateway() throws Exception {
+        service = open(new ImmediateGateway(), 1);
+
+        List<BatchChargeResult> results = service.chargeBatch(items(10_000)).get(30, TimeUnit.SECONDS);
+
+        assertEquals(10_000, results.size());
+        assertTrue(results.stream().allMatch(result -> result.getStatus() == BatchChargeResult.Status.PROCESSED));
+    }
+
+    @Test
+    @DisplayName("A bulk reserve that fails partway releases the keys it reserved")
+    void testFailedReserveReleases() throws Exception {
+        FailingStore store = new FailingStore(5);
+        service = open(store, new ImmediateGateway(), 4);
+        List<BatchChargeItem> items = items(10);
+
+        ExecutionException failed = assertThrows(ExecutionException.class,
+                () -> service.chargeBatch(items).get(5, TimeUnit.SECONDS));
+        assertEquals("Store unavailable", failed.getCause().getMessage());
+        for (BatchChargeItem item : items) {
+            assertFalse(store.findByKey(item.getIdempotencyKey()).isPresent(), item.getIdempotencyKey());
+        }
+
+        // The retry is charged at once rather than waiting on its own earlier reservations
+        List<BatchChargeResult> results = service.chargeBatch(items).get(5, TimeUnit.SECONDS);
+        assertTrue(results.stream().allMatch(result -> result.getStatus() == BatchChargeResult.Status.PROCESSED));
+    }
+
+    private PaymentService open(PaymentGateway gateway, int batchConcurrency) {
+        return open(new InMemoryIdempotencyStore(), gateway, batchConcurrency);
+    }
+
+    private PaymentService open(IdempotencyStore store, PaymentGateway gateway, int batchConcurrency) {
+        return new PaymentService(store, gateway,
+                new DefaultListableBeanFactory().getBeanProvider(RecentKeyFilter.class),
+                new SimpleMeterRegistry(), Jackson2ObjectMapperBuilder.json().build(),
+                Duration.ofHours(1), Duration.ofSeconds(5), false, 64, 1, "platform", batchConcurrency);
+    }
+
+    private List<BatchChargeItem> items(int count) {
+        List<BatchChargeItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new BatchChargeItem(UUID.randomUUID().toString(), request));
+        }
+        return items;
+    }
+
+    private static final class ManualGateway implements PaymentGateway {
+
+        private final Queue<CompletableFuture<ChargeResponse>> calls = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public ChargeResponse charge(ChargeRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<ChargeResponse> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+    }
+
+    /**
+     * Fails the nth reserve, once.
+     */
+    private static final class FailingStore extends InMemoryIdempotencyStore {
+
+        private final AtomicInteger reserves = new AtomicInteger();
+        private final int failOn;
+
+        private FailingStore(int failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+            if (reserves.incrementAndGet() == failOn) {
+                throw new IllegalStateException("Store unavailable");
+            }
+            return super.reserve(record);
+        }
+    }
+
+    private static final class ImmediateGateway implements PaymentGateway {
+
+        @Override
+        public ChargeResponse charge(ChargeRequest request) {
+            return ChargeResponse.success("txn_" + UUID.randomUUID(), request.getAmount(), request.getCurrency());
+        }
+
+        @Override
+        public CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request) {
+            return CompletableFuture.completedFuture(charge(request));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.payment.service;
+
+import com.example.payment.exception.IdempotencyConflictException;
+import com.example.payment.gateway.PaymentGateway;
+import com.example.payment.model.ChargeRequest;
+import com.example.payment.model.ChargeResponse;
+import com.example.payment.model.IdempotencyRecord;
+import com.example.payment.repository.IdempotencyStore;
+import com.example.payment.repository.InMemoryIdempotencyStore;
+import com.example.payment.repository.RecentKeyFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for coalescing concurrent duplicates on one node, against a gateway
+ * that holds every call until the test lets it go.
+ */
+class PaymentServiceInFlightTest {
+
+    private final ChargeRequest request = new ChargeRequest("customer_123", new BigDecimal("10.00"), "USD", "Test");
+    private final AtomicInteger threads = new AtomicInteger();
+    private final ExecutorService callers = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "charge-caller-" + threads.incrementAndGet()));
+    private final BlockingGateway gateway = new BlockingGateway();
+    private PaymentService service;
+
+    @AfterEach
+    void tearDown() {
+        gateway.release.countDown();
+        callers.shutdownNow();
+        service.shutdown();
+    }
+
+    @Test
+    @DisplayName("Concurrent duplicates share one gateway call and its response")
+    void testDuplicatesShareLeader() throws Exception {
+        service = open(Duration.ofSeconds(5));
+
+        List<Future<ChargeResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            responses.add(callers.submit(() -> service.charge("key-1", request)));
+        }
+        assertTrue(gateway.entered.await(5, TimeUnit.SECONDS));
+        awaitWaiting(8);
+        gateway.release.countDown();
+
+        ChargeResponse first = responses.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<ChargeResponse> response : responses) {
+            assertSame(first, response.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, gateway.calls.get());
+    }
+
+    @Test
+    @DisplayName("A concurrent duplicate with a different request is a conflict")
+    void testDifferentRequestConflicts() throws Exception {
+        service = open(Duration.ofSeconds(5));
+
+        Future<ChargeResponse> leader = callers.submit(() -> service.charge("key-1", request));
+        assertTrue(gateway.entered.await(5, TimeUnit.SECONDS));
+
+        ChargeRequest other = new ChargeRequest("customer_123", new BigDecimal("20.00"), "USD", "Test");
+        assertThrows(IdempotencyConflictException.class, () -> service.charge("key-1", other));
+
+        gateway.release.countDown();
+        assertEquals("SUCCESS", leader.get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(1, gateway.calls.get());
+    }
+
+    @Test
+    @DisplayName("A duplicate gives up on a leader still running after the in-progress timeout")
+    void testWaiterTimesOut() throws Exception {
+        service = open(Duration.ofMillis(200));
+
+        Future<ChargeResponse> leader = callers.submit(() -> service.charge("key-1", request));
+        assertTrue(gateway.entered.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertThrows(IdempotencyConflictException.class, () -> service.charge("key-1", request));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+        gateway.release.countDown();
+        assertEquals("SUCCESS", leader.get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(1, gateway.calls.get());
+    }
+
+    @Test
+    @DisplayName("A failed leader is removed and a waiting duplicate takes over")
+    void testWaiterTakesOverFailedLeader() throws Exception {
+        FailingStore store = new FailingStore();
+        service = open(store, Duration.ofSeconds(5));
+        gateway.release.countDown();
+
+        Future<ChargeResponse> leader = callers.submit(() -> service.charge("key-1", request));
+        assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+        Future<ChargeResponse> waiter = callers.submit(() -> service.charge("key-1", request));
+        awaitWaiting(2);
+        store.release.countDown();
+
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertEquals("Store unavailable", failed.getCause().getMessage());
+        ChargeResponse response = waiter.get(5, TimeUnit.SECONDS);
+        assertEquals("SUCCESS", response.getStatus());
+        assertEquals(1, gateway.calls.get());
+
+        // The successor's response is the one recorded for the key
+        assertEquals(response.getTransactionId(), service.charge("key-1", request).getTransactionId());
+        assertEquals(1, gateway.calls.get());
+    }
+
+    private PaymentService open(Duration inProgressTimeout) {
+        return open(new InMemoryIdempotencyStore(), inProgressTimeout);
+    }
+
+    private PaymentService open(IdempotencyStore store, Duration inProgressTimeout) {
+        return new PaymentService(store, gateway,
+                new DefaultListableBeanFactory().getBeanProvider(RecentKeyFilter.class),
+                new SimpleMeterRegistry(), Jackson2ObjectMapperBuilder.json().build(),
+                Duration.ofHours(1), inProgressTimeout, false, 64, 1, "platform", 64);
+    }
+
+    /**
+     * Wait until the leader's gateway call and its duplicates are all parked.
+     */
+    private void awaitWaiting(int callers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (parked() < callers) {
+            assertTrue(System.nanoTime() - deadline < 0, "callers parked: " + parked());
+            Thread.sleep(5);
+        }
+    }
+
+    private static long parked() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("charge-caller-"))
+                .filter(thread -> thread.getState() == Thread.State.WAITING
+                        || thread.getState() == Thread.State.TIMED_WAITING)
+                .filter(thread -> Arrays.stream(thread.getStackTrace())
+                        .anyMatch(frame -> frame.getClassName().equals(PaymentService.class.getName())))
+                .count();
+    }
+
+    /**
+     * Holds every charge until released.
+     */
+    private static final class BlockingGateway implements PaymentGateway {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public ChargeResponse charge(ChargeRequest request) {
+            int call = calls.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            return ChargeResponse.success("txn_" + call, request.getAmount(), request.getCurrency());
+        }
+
+        @Override
+        public CompletableFuture<ChargeResponse> chargeAsync(ChargeRequest request) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Holds the first reservation until released, then fails it.
+     */
+    private static final class FailingStore extends InMemoryIdempotencyStore {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger reserves = new AtomicInteger();
+
+        @Override
+        public Optional<IdempotencyRecord> reserve(IdempotencyRecord record) {
+            if (reserves.incrementAndGet() > 1) {
+                return super.reserve(record);
+            }
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("Store unavailable");
+        }
+    }
+}
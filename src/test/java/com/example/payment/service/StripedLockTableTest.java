@@ -0,0 +1,130 @@
+package com.example.payment.service;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the striped in-flight table.
+ */
+class StripedLockTableTest {
+
+    @Test
+    @DisplayName("Stripe counts are rounded up to a power of two")
+    void testStripeCount() {
+        assertEquals(1, new StripedLockTable<>(1).stripeCount());
+        assertEquals(64, new StripedLockTable<>(64).stripeCount());
+        assertEquals(128, new StripedLockTable<>(100).stripeCount());
+        assertThrows(IllegalArgumentException.class, () -> new StripedLockTable<>(0));
+    }
+
+    @Test
+    @DisplayName("The first value for a key wins until it is removed")
+    void testPutIfAbsentRemove() {
+        StripedLockTable<String> table = new StripedLockTable<>(4);
+
+        assertNull(table.putIfAbsent("key-1", "first"));
+        assertEquals("first", table.putIfAbsent("key-1", "second"));
+        assertNull(table.putIfAbsent("key-2", "other"));
+        assertEquals(2, table.size());
+
+        assertFalse(table.remove("key-1", "second"));
+        assertTrue(table.remove("key-1", "first"));
+        assertNull(table.putIfAbsent("key-1", "second"));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    @DisplayName("Exactly one of many concurrent callers for a hot key becomes leader")
+    void testHotKeyLeader() throws Exception {
+        StripedLockTable<Object> table = new StripedLockTable<>(1);
+
+        int threads = 16;
+        int rounds = 2_000;
+        AtomicInteger leaders = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < rounds; i++) {
+                    Object mine = new Object();
+                    if (table.putIfAbsent("hot-" + (i % 4), mine) == null) {
+                        leaders.incrementAndGet();
+                        assertTrue(table.remove("hot-" + (i % 4), mine));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, table.size());
+        assertTrue(leaders.get() > 0);
+    }
+
+    @Test
+    @DisplayName("Callers waiting for a held stripe are counted and timed")
+    void testContention() throws Exception {
+        StripedLockTable<Object> table = new StripedLockTable<>(1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        table.bindTo(registry);
+
+        // remove(key, value) compares values under the stripe lock, so this one holds it
+        CountDownLatch comparing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object blocking = new Object() {
+            @Override
+            public boolean equals(Object other) {
+                comparing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+
+            @Override
+            public int hashCode() {
+                return 0;
+            }
+        };
+        table.putIfAbsent("held", "other");
+        Thread holder = new Thread(() -> table.remove("held", blocking));
+        holder.start();
+        assertTrue(comparing.await(5, TimeUnit.SECONDS));
+
+        Thread waiter = new Thread(() -> table.putIfAbsent("key-1", "value"));
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            assertTrue(waiter.isAlive());
+            Thread.sleep(1);
+        }
+        release.countDown();
+        holder.join();
+        waiter.join();
+
+        FunctionTimer contended = registry.get("idempotency.inflight.contended").functionTimer();
+        assertEquals(1, contended.count());
+        assertTrue(contended.totalTime(TimeUnit.NANOSECONDS) > 0);
+        assertEquals(2, table.size());
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.payment.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledIf;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the reflective virtual thread executor.
+ */
+class VirtualThreadsTest {
+
+    @Test
+    @EnabledIf("com.example.payment.service.VirtualThreads#isSupported")
+    @DisplayName("Each task runs on a new, named virtual thread")
+    void testPerTaskExecutor() throws Exception {
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("test-virtual-");
+        try {
+            Thread first = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+            Thread second = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+
+            assertNotSame(first, second);
+            assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(first));
+            assertTrue(first.getName().startsWith("test-virtual-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisabledIf("com.example.payment.service.VirtualThreads#isSupported")
+    @DisplayName("Older runtimes fail fast")
+    void testUnsupported() {
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> VirtualThreads.newPerTaskExecutor("test-virtual-"));
+        assertTrue(e.getMessage().contains("Java 21"));
+    }
+}